@@ -0,0 +1,281 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small admin endpoint to watch and to control the running harvest.
+ *
+ * The endpoint is bound to the loopback address only and accepts:
+ * <p>
+ * {@code
+ *   GET  /status                         - progress of every set, ETA, rates and concurrency
+ *   POST /pause                          - stop sending requests after the current pages
+ *   POST /resume                         - continue harvesting
+ *   POST /rate?requests=<n>&bytes=<n>    - change request and byte rate limits, 0 is unlimited
+ *   POST /concurrency?sets=<n>           - change number of the sets, harvested at once
+ *   POST /drain?set=<id>                 - stop the set after its current page, keeping its resumption token
+ * }
+ * <p>
+ * Every POST request must carry the per-run token in the {@code X-Admin-Token} header. The token
+ * is printed, when the endpoint is started. Any request with {@code Origin} header will be rejected,
+ * so a web page, opened in the browser on the same host, could not control the harvest.
+ * <p>
+ * Every response is JSON document.
+ *
+ * @author dima
+ *
+ */
+public class AdminServer {
+
+	public static final String TOKEN_HEADER = "X-Admin-Token";
+
+	private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+	/**
+	 * Interface to the running harvest
+	 */
+	public interface Control {
+		Map<String, Object> getStatus();
+		void pause();
+		void resume();
+		void setRequestRate(double requestsPerSecond);
+		void setByteRate(double bytesPerSecond);
+		void setConcurrency(int sets);
+		boolean drain(String set);
+	}
+
+	private final Control control;
+	private final String token;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final PrintStream out;
+
+	/**
+	 * Start admin endpoint with new random token
+	 * @param port A local port, 0 to choose any free port
+	 * @param control The harvest control
+	 * @throws IOException if the port could not be bound
+	 */
+	public AdminServer(int port, Control control) throws IOException {
+		this(port, null, control);
+	}
+
+	/**
+	 * Start admin endpoint
+	 * @param port A local port, 0 to choose any free port
+	 * @param token A token of the POST requests or null to create new random token
+	 * @param control The harvest control
+	 * @throws IOException if the port could not be bound
+	 */
+	public AdminServer(int port, String token, Control control) throws IOException {
+		this(port, token, control, System.out);
+	}
+
+	/**
+	 * Start admin endpoint
+	 * @param port A local port, 0 to choose any free port
+	 * @param token A token of the POST requests or null to create new random token
+	 * @param control The harvest control
+	 * @param out The stream to print the messages into
+	 * @throws IOException if the port could not be bound
+	 */
+	public AdminServer(int port, String token, Control control, PrintStream out) throws IOException {
+		this.control = control;
+		this.out = out;
+		this.token = null == token || token.isEmpty() ? newToken() : token;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					process(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "admin");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+
+		out.println("Admin endpoint is listening on http://" + server.getAddress().getHostString() + ":" + getPort() 
+				+ "/status, the commands require " + TOKEN_HEADER + ": " + this.token + " header");
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Stop the endpoint
+	 */
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void process(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+		// the browsers will always send the origin of the cross-site requests
+		if (exchange.getRequestHeaders().containsKey("Origin")) {
+			send(exchange, 403, error("The cross-origin requests are not allowed"));
+
+			return;
+		}
+
+		if ("/status".equals(path)) {
+			if (!"GET".equals(exchange.getRequestMethod())) 
+				send(exchange, 405, error("Please use GET method"));
+			else
+				send(exchange, 200, control.getStatus());
+
+			return;
+		}
+
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("Please use POST method"));
+
+			return;
+		}
+
+		if (!isAuthorized(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+			send(exchange, 401, error("Please enter the admin token in " + TOKEN_HEADER + " header"));
+
+			return;
+		}
+
+		try {
+			switch (path) {
+			case "/pause":
+				control.pause();
+				break;
+
+			case "/resume":
+				control.resume();
+				break;
+
+			case "/rate":
+				if (!query.containsKey("requests") && !query.containsKey("bytes"))
+					throw new IllegalArgumentException("Please enter `requests` or `bytes` parameter");
+				if (query.containsKey("requests"))
+					control.setRequestRate(Double.parseDouble(query.get("requests")));
+				if (query.containsKey("bytes"))
+					control.setByteRate(Double.parseDouble(query.get("bytes")));
+				break;
+
+			case "/concurrency":
+				if (!query.containsKey("sets"))
+					throw new IllegalArgumentException("Please enter `sets` parameter");
+				int sets = Integer.parseInt(query.get("sets"));
+				if (sets < 1)
+					throw new IllegalArgumentException("The concurrency must be at least 1");
+				control.setConcurrency(sets);
+				break;
+
+			case "/drain":
+				if (!query.containsKey("set"))
+					throw new IllegalArgumentException("Please enter `set` parameter");
+				if (!control.drain(query.get("set"))) {
+					send(exchange, 404, error("Unknown set: " + query.get("set")));
+
+					return;
+				}
+				break;
+
+			default:
+				send(exchange, 404, error("Unknown command: " + path));
+
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, error(e.getMessage()));
+
+			return;
+		}
+
+		out.println("Admin command: " + path + (query.isEmpty() ? "" : " " + query));
+
+		send(exchange, 200, control.getStatus());
+	}
+
+	private boolean isAuthorized(String header) {
+		return null != header && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), 
+				header.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String newToken() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+
+		return sb.toString();
+	}
+
+	private static Map<String, Object> error(String message) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("error", message);
+		return map;
+	}
+
+	private static void send(HttpExchange exchange, int status, Map<String, Object> body) throws IOException {
+		byte[] bytes = mapper.writeValueAsBytes(body);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> map = new HashMap<String, String>();
+		if (null != query)
+			for (String pair : query.split("&")) {
+				int pos = pair.indexOf('=');
+				if (pos > 0)
+					map.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"), URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+				else if (!pair.isEmpty())
+					map.put(URLDecoder.decode(pair, "UTF-8"), "");
+			}
+
+		return map;
+	}
+}
@@ -23,25 +23,38 @@ public class App {
                 properties.load(in);
 			}
 			
-			Harvester harvester = new Harvester(properties);
+			// the pages will be written into the standard output, so all messages must be printed into the standard error
+			if ("-".equals(properties.getProperty("pipe")))
+				System.setOut(System.err);
 			
-			harvester.identify();
+			boolean result = true;
+			try (Harvester harvester = new Harvester(properties)) {
 			
-			if (StringUtils.isNullOrEmpty(harvester.getMetadataPrefix())) {
-				// List and display supported metadata formats
-				List<MetadataFormat> formats = harvester.listMetadataFormats();
-				System.out.println("Supported metadata formats:");
-				for (MetadataFormat format : formats) {
-					System.out.println(format.toString());
-				}
-			} else {
-				boolean result = harvester.harvest();
+				harvester.identify();
 				
-				harvester.printStatistics(result, System.out);
-								
-				if (!result)
-					System.exit(1);
+				if (StringUtils.isNullOrEmpty(harvester.getMetadataPrefix())) {
+					// List and display supported metadata formats
+					List<MetadataFormat> formats = harvester.listMetadataFormats();
+					System.out.println("Supported metadata formats:");
+					for (MetadataFormat format : formats) {
+						System.out.println(format.toString());
+					}
+				} else {
+					result = harvester.harvest();
+					
+					harvester.printStatistics(result, System.out);
+					
+					// the new harvest could be merged into the compacted snapshot right away
+					if (result && Boolean.parseBoolean(properties.getProperty("compact", "false"))) {
+						Compactor compactor = new Compactor(properties);
+						compactor.compact();
+						compactor.printStatistics(System.out);
+					}
+				}
 			}
+			
+			if (!result)
+				System.exit(1);
 
 			
 			
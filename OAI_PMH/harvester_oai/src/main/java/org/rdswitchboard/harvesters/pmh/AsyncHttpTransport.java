@@ -0,0 +1,245 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Non-blocking HTTP Transport, based on Apache HttpAsyncClient.
+ *
+ * The requests are sent and the responses are received by a small number of I/O reactor
+ * threads, so no thread will wait for the server while the request is in flight. The response
+ * content is buffered in memory, or in a temporary file if it is larger than the buffer size,
+ * and the returned future will be completed after the whole response has been received.
+ * Thousands of outstanding requests will only cost their connections and buffers.
+ *
+ * @author dima
+ *
+ */
+public class AsyncHttpTransport implements HttpTransport {
+
+	private final CloseableHttpAsyncClient client;
+	private final int bufferSize;
+
+	private volatile String acceptEncoding;
+
+	public AsyncHttpTransport(int connectionTimeout, int readTimeout, int maxConnections, int bufferSize) {
+		this.bufferSize = bufferSize;
+
+		RequestConfig.Builder config = RequestConfig.custom();
+		if (connectionTimeout > 0)
+			config.setConnectTimeout(connectionTimeout);
+		if (readTimeout > 0)
+			config.setSocketTimeout(readTimeout);
+
+		client = HttpAsyncClients.custom()
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnections)
+				.setDefaultRequestConfig(config.build())
+				.build();
+		client.start();
+	}
+
+	/**
+	 * Send GET request without waiting for the response
+	 * @param url A request URL
+	 * @return {@code CompletableFuture<HttpResponse>} - the future, which will be completed with
+	 * the buffered response. The response must be closed by the caller.
+	 */
+	public CompletableFuture<HttpResponse> getAsync(String url) {
+		return getAsync(url, null);
+	}
+
+	/**
+	 * Send GET request with additional headers without waiting for the response
+	 * @param url A request URL
+	 * @param headers The request headers, could be null
+	 * @return {@code CompletableFuture<HttpResponse>} - the future, which will be completed with
+	 * the buffered response. The response must be closed by the caller.
+	 */
+	public CompletableFuture<HttpResponse> getAsync(String url, Map<String, String> headers) {
+		final CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+
+		HttpGet request = new HttpGet(url);
+
+		String encoding = acceptEncoding;
+		if (null != encoding)
+			request.setHeader("Accept-Encoding", encoding);
+		if (null != headers)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				request.setHeader(header.getKey(), header.getValue());
+
+		client.execute(HttpAsyncMethods.create(request), new BufferingConsumer(), new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				if (!future.complete(response))
+					IOUtils.closeQuietly(response);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				future.completeExceptionally(e);
+			}
+
+			@Override
+			public void cancelled() {
+				future.cancel(false);
+			}
+		});
+
+		return future;
+	}
+
+	@Override
+	public HttpResponse get(String url) throws IOException {
+		return get(url, null);
+	}
+
+	@Override
+	public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+		try {
+			return getAsync(url, headers).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("The request has been interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void setCompression(Collection<String> encodings) {
+		acceptEncoding = HttpResponse.acceptEncoding(encodings);
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+	}
+
+	/**
+	 * Response consumer, which will copy the content into the buffer as soon as it has been received
+	 */
+	private class BufferingConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+		private final ByteBuffer chunk = ByteBuffer.allocate(8192);
+
+		private int statusCode;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private String contentEncoding;
+		private DeferredFileOutputStream buffer;
+		private boolean completed;
+
+		@Override
+		protected void onResponseReceived(org.apache.http.HttpResponse response) throws HttpException, IOException {
+			statusCode = response.getStatusLine().getStatusCode();
+
+			for (Header header : response.getAllHeaders())
+				if (!headers.containsKey(header.getName()))
+					headers.put(header.getName(), header.getValue());
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+			Header encoding = entity.getContentEncoding();
+			contentEncoding = null == encoding ? null : encoding.getValue();
+
+			buffer = new DeferredFileOutputStream(bufferSize, "response", ".tmp", null);
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl control) throws IOException {
+			int read;
+			while ((read = decoder.read(chunk)) > 0) {
+				buffer.write(chunk.array(), 0, read);
+				((Buffer) chunk).clear();
+			}
+		}
+
+		@Override
+		protected HttpResponse buildResult(HttpContext context) throws Exception {
+			InputStream is = null;
+			if (null != buffer) {
+				buffer.close();
+
+				if (buffer.isInMemory())
+					is = new ByteArrayInputStream(buffer.getData());
+				else
+					is = new TemporaryFileInputStream(buffer.getFile());
+
+				is = HttpResponse.decode(is, contentEncoding);
+			}
+
+			completed = true;
+
+			return new HttpResponse(statusCode, headers, is);
+		}
+
+		@Override
+		protected void releaseResources() {
+			// the buffer will be deleted by the response stream, if the response has been built
+			if (!completed && null != buffer)
+				try {
+					buffer.close();
+				} catch (IOException e) {
+				} finally {
+					if (!buffer.isInMemory())
+						buffer.getFile().delete();
+				}
+		}
+	}
+
+	/**
+	 * Stream, which will delete the buffer file after it has been closed
+	 */
+	private static class TemporaryFileInputStream extends FileInputStream {
+
+		private final File file;
+
+		public TemporaryFileInputStream(File file) throws IOException {
+			super(file);
+
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				file.delete();
+			}
+		}
+	}
+}
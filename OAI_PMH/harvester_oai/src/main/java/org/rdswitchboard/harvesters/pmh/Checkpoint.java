@@ -0,0 +1,142 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class to store the set harvesting progress after one page has been stored
+ * @author dima
+ *
+ */
+public class Checkpoint {
+
+	private final String set;
+	private final String token;
+	private final int cursor;
+	private final int size;
+	private final int files;
+	private final String key;
+	private final String datestamp;
+
+	public Checkpoint(String set, String token, int cursor, int size, int files, String key, String datestamp) {
+		this.set = set;
+		this.token = token;
+		this.cursor = cursor;
+		this.size = size;
+		this.files = files;
+		this.key = key;
+		this.datestamp = datestamp;
+	}
+
+	/**
+	 * Create checkpoint from the current set status
+	 * @param set A set status
+	 * @param key A key of the stored page
+	 * @return Checkpoint
+	 */
+	public static Checkpoint fromSet(SetStatus set, String key) {
+		return new Checkpoint(set.getId(), set.getToken(), set.getCursor(), set.getSize(),
+				set.getFiles(), key, set.getDatestamp());
+	}
+
+	/**
+	 * Create the same checkpoint with another key
+	 * @param key A key of the stored object
+	 * @return Checkpoint
+	 */
+	public Checkpoint withKey(String key) {
+		return new Checkpoint(set, token, cursor, size, files, key, datestamp);
+	}
+
+	/**
+	 * Restore the set status from the checkpoint
+	 * @param status A set status
+	 */
+	public void restore(SetStatus status) {
+		status.setToken(token);
+		status.setCursor(cursor);
+		status.setSize(size);
+		status.setFiles(files);
+		status.setDatestamp(datestamp);
+	}
+
+	public String getSet() {
+		return set;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public boolean hasToken() {
+		return null != token && !token.isEmpty();
+	}
+
+	public int getCursor() {
+		return cursor;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getFiles() {
+		return files;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getDatestamp() {
+		return datestamp;
+	}
+
+	/**
+	 * Convert checkpoint into one tab separated line
+	 * @return String
+	 */
+	public String toLine() {
+		return encode(set) + "\t" + encode(token) + "\t" + cursor + "\t" + size + "\t"
+				+ files + "\t" + encode(key) + "\t" + encode(datestamp);
+	}
+
+	/**
+	 * Parse checkpoint from the tab separated line
+	 * @param line A line
+	 * @return Checkpoint
+	 */
+	public static Checkpoint fromLine(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length < 7)
+			throw new IllegalArgumentException("Invalid checkpoint: " + line);
+
+		return new Checkpoint(decode(fields[0]), decode(fields[1]), Integer.parseInt(fields[2]),
+				Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), decode(fields[5]), decode(fields[6]));
+	}
+
+	private static String encode(String s) {
+		try {
+			return null == s ? "" : URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return s.isEmpty() ? null : URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Checkpoint [set=" + set + ", token=" + token + ", cursor=" + cursor
+				+ ", size=" + size + ", files=" + files + ", key=" + key
+				+ ", datestamp=" + datestamp + "]";
+	}
+}
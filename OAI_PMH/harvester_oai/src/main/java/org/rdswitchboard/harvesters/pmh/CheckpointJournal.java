@@ -0,0 +1,363 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Append-only journal of the harvesting progress.
+ *
+ * A line will be appended and synced to the disk after every stored page and after every
+ * completed set. If the harvester has been terminated, the journal could be replayed to
+ * find the harvest date, the completed sets and the last resumption token of every
+ * unfinished set. The journal should be deleted after the successful harvest.
+ *
+ * The journal lines are:
+ * <p>
+ * {@code
+ *   H <harvest date> <partition end>
+ *   P <set> <token> <cursor> <size> <files> <page key> <datestamp>
+ *   D <set> <token> <cursor> <size> <files> <page key> <datestamp>
+ *   M <page key> <blob key>
+ *   S <page entry JSON>
+ *   R <set> <page key prefix>
+ * }
+ * <p>
+ * where H is the header with the upper bound of the partition windows (epoch seconds,
+ * optional), P is a stored page, D is a completed set, M is a content store manifest entry and 
+ * S is a harvest manifest page entry. The S lines are not synced, they will be synced with 
+ * the next P line. R is a set, restarted from the beginning: its progress, its M lines with 
+ * the key prefix and its S lines written before will be dropped.
+ *
+ * @author dima
+ *
+ */
+public class CheckpointJournal {
+
+	private static final String TYPE_HEADER = "H";
+	private static final String TYPE_PAGE = "P";
+	private static final String TYPE_DONE = "D";
+	private static final String TYPE_MANIFEST = "M";
+	private static final String TYPE_SUMMARY = "S";
+	private static final String TYPE_RESTART = "R";
+
+	private final File file;
+
+	private String harvestDate;
+	private long partitionEnd;
+	private final Map<String, Checkpoint> unfinished = new HashMap<String, Checkpoint>();
+	private final Map<String, Checkpoint> completed = new HashMap<String, Checkpoint>();
+	private final Map<String, String> manifest = new HashMap<String, String>();
+	private final List<HarvestManifest.PageEntry> summaries = new ArrayList<HarvestManifest.PageEntry>();
+
+	private FileOutputStream os;
+	private volatile PrintStream out = System.out;
+
+	public CheckpointJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read the journal, if it exists
+	 * @return true if the journal has been found
+	 * @throws IOException
+	 */
+	public synchronized boolean replay() throws IOException {
+		harvestDate = null;
+		partitionEnd = 0;
+		unfinished.clear();
+		completed.clear();
+		manifest.clear();
+		summaries.clear();
+
+		if (!file.isFile())
+			return false;
+
+		// the last line is incomplete, if the harvester has been killed while writing it, 
+		// so only the lines, terminated by the new line, will be replayed
+		String[] lines = FileUtils.readFileToString(file, StandardCharsets.UTF_8.name()).split("\n", -1);
+		for (int n = 0; n < lines.length - 1; ++n) {
+			String line = lines[n];
+			int tab = line.indexOf('\t');
+			if (tab < 0)
+				continue;
+
+			String type = line.substring(0, tab);
+			String data = line.substring(tab + 1);
+			try {
+				if (TYPE_HEADER.equals(type)) {
+					int separator = data.indexOf('\t');
+					if (separator < 0) 
+						harvestDate = data;
+					else {
+						harvestDate = data.substring(0, separator);
+						partitionEnd = Long.parseLong(data.substring(separator + 1));
+					}
+				} else if (TYPE_PAGE.equals(type)) {
+					Checkpoint checkpoint = Checkpoint.fromLine(data);
+					unfinished.put(checkpoint.getSet(), checkpoint);
+				} else if (TYPE_DONE.equals(type)) {
+					Checkpoint checkpoint = Checkpoint.fromLine(data);
+					unfinished.remove(checkpoint.getSet());
+					completed.put(checkpoint.getSet(), checkpoint);
+				} else if (TYPE_MANIFEST.equals(type)) {
+					int separator = data.indexOf('\t');
+					if (separator < 0)
+						throw new IllegalArgumentException("Invalid manifest entry: " + data);
+					manifest.put(data.substring(0, separator), data.substring(separator + 1));
+				} else if (TYPE_SUMMARY.equals(type))
+					summaries.add(HarvestManifest.PageEntry.fromLine(data));
+				else if (TYPE_RESTART.equals(type)) {
+					int separator = data.indexOf('\t');
+					if (separator < 0)
+						throw new IllegalArgumentException("Invalid restart entry: " + data);
+					dropSet(data.substring(0, separator), data.substring(separator + 1));
+				}
+			} catch (IllegalArgumentException e) {
+				out.println("Warning, ignoring invalid journal line: " + line);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return the harvest date of the journal
+	 * @return String - harvest date or null
+	 */
+	public synchronized String getHarvestDate() {
+		return harvestDate;
+	}
+
+	/**
+	 * Return the upper bound of the partition windows, used by the journal
+	 * @return long - epoch seconds or 0 if the bound has not been recorded
+	 */
+	public synchronized long getPartitionEnd() {
+		return partitionEnd;
+	}
+
+	/**
+	 * Return the last checkpoint of unfinished set
+	 * @param set A set name
+	 * @return Checkpoint - checkpoint or null
+	 */
+	public synchronized Checkpoint getUnfinished(String set) {
+		return unfinished.get(set);
+	}
+
+	/**
+	 * Return the final checkpoint of completed set
+	 * @param set A set name
+	 * @return Checkpoint - checkpoint or null
+	 */
+	public synchronized Checkpoint getCompleted(String set) {
+		return completed.get(set);
+	}
+
+	/**
+	 * Return number of the completed sets
+	 * @return int - number of the sets
+	 */
+	public synchronized int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * Return number of the unfinished sets, which have at least one stored page
+	 * @return int - number of the sets
+	 */
+	public synchronized int getUnfinishedCount() {
+		return unfinished.size();
+	}
+
+	/**
+	 * Return the content store manifest entries
+	 * @return {@code Map<String, String>} - map of the page keys to the blob keys
+	 */
+	public synchronized Map<String, String> getManifest() {
+		return new HashMap<String, String>(manifest);
+	}
+
+	/**
+	 * Return the harvest manifest page entries
+	 * @return {@code List<HarvestManifest.PageEntry>} - list of the page entries
+	 */
+	public synchronized List<HarvestManifest.PageEntry> getSummaries() {
+		return new ArrayList<HarvestManifest.PageEntry>(summaries);
+	}
+
+	/**
+	 * Open the journal for writing. If the journal is new, the harvest date will be written
+	 * @param harvestDate A harvest date
+	 * @throws IOException
+	 */
+	public synchronized void open(String harvestDate) throws IOException {
+		open(harvestDate, 0);
+	}
+
+	/**
+	 * Open the journal for writing. If the journal is new, the harvest date and the upper 
+	 * bound of the partition windows will be written
+	 * @param harvestDate A harvest date
+	 * @param partitionEnd An upper bound of the partition windows in epoch seconds or 0
+	 * @throws IOException
+	 */
+	public synchronized void open(String harvestDate, long partitionEnd) throws IOException {
+		if (file.isFile())
+			dropIncompleteLine();
+		
+		boolean exists = file.isFile() && file.length() > 0;
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (null != parent)
+			parent.mkdirs();
+
+		os = new FileOutputStream(file, true);
+		
+		if (!exists || null == this.harvestDate) {
+			this.harvestDate = harvestDate;
+			this.partitionEnd = partitionEnd;
+			write(TYPE_HEADER, partitionEnd > 0 ? harvestDate + "\t" + partitionEnd : harvestDate);
+		}
+	}
+
+	/**
+	 * Append stored page checkpoint
+	 * @param checkpoint A checkpoint
+	 * @throws IOException
+	 */
+	public synchronized void page(Checkpoint checkpoint) throws IOException {
+		write(TYPE_PAGE, checkpoint.toLine());
+	}
+
+	/**
+	 * Append completed set checkpoint
+	 * @param checkpoint A checkpoint
+	 * @throws IOException
+	 */
+	public synchronized void done(Checkpoint checkpoint) throws IOException {
+		write(TYPE_DONE, checkpoint.toLine());
+	}
+
+	/**
+	 * Append content store manifest entry
+	 * @param key A page key
+	 * @param blobKey A blob key
+	 * @throws IOException
+	 */
+	public synchronized void manifest(String key, String blobKey) throws IOException {
+		write(TYPE_MANIFEST, key + "\t" + blobKey);
+	}
+
+	/**
+	 * Append harvest manifest page entry. The entry will not be synced to the disk.
+	 * @param entry A page entry
+	 * @throws IOException
+	 */
+	public synchronized void summary(HarvestManifest.PageEntry entry) throws IOException {
+		write(TYPE_SUMMARY, entry.toLine(), false);
+	}
+
+	/**
+	 * Append restarted set. The set progress, manifest and summary entries will be dropped on replay.
+	 * @param set A set
+	 * @param prefix The key prefix of the set pages
+	 * @throws IOException
+	 */
+	public synchronized void restart(String set, String prefix) throws IOException {
+		write(TYPE_RESTART, set + "\t" + prefix);
+		
+		dropSet(set, prefix);
+	}
+
+	/**
+	 * Close the journal
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (null != os) {
+			os.close();
+			os = null;
+		}
+	}
+
+	/**
+	 * Close and delete the journal
+	 * @throws IOException
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+
+		file.delete();
+	}
+
+	private void dropSet(String set, String prefix) {
+		unfinished.remove(set);
+		
+		for (Iterator<String> it = manifest.keySet().iterator(); it.hasNext(); )
+			if (it.next().startsWith(prefix))
+				it.remove();
+		
+		for (Iterator<HarvestManifest.PageEntry> it = summaries.iterator(); it.hasNext(); )
+			if (set.equals(it.next().getSet()))
+				it.remove();
+	}
+
+	/**
+	 * Truncate the last line, if the harvester has been killed while writing it. The line 
+	 * will not be replayed, so it must not be completed by the next line.
+	 * @throws IOException
+	 */
+	private void dropIncompleteLine() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			long length = raf.length();
+			for (; length > 0; --length) {
+				raf.seek(length - 1);
+				if (raf.read() == '\n')
+					break;
+			}
+			
+			if (length < raf.length()) {
+				out.println("Warning, dropping incomplete journal line");
+				
+				raf.setLength(length);
+			}
+		}
+	}
+
+	private void write(String type, String data) throws IOException {
+		write(type, data, true);
+	}
+
+	private void write(String type, String data, boolean sync) throws IOException {
+		if (null == os)
+			throw new IOException("The journal is not open");
+
+		os.write((type + "\t" + data + "\n").getBytes(StandardCharsets.UTF_8));
+		if (sync)
+			os.getChannel().force(false);
+	}
+}
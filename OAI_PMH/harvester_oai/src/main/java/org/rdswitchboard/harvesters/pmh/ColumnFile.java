@@ -0,0 +1,268 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Simple columnar file of the exported records.
+ *
+ * The values of every column are stored together in a separate deflate compressed block, 
+ * so the reader could read only the columns it needs. The footer at the end of the file 
+ * describes the columns:
+ * <p>
+ * {@code
+ *   <magic> <column block> ... <column block> <footer> <footer offset> <magic>
+ *   footer: <rows> <columns> (<name> <type> <offset> <length>) ...
+ * }
+ * <p>
+ * where the magic is {@code OAICOLS1}, the numbers are big endian, the name is modified
+ * UTF-8 as written by {@link DataOutputStream#writeUTF(String)}. Inside the block, every
+ * string or binary value is written as its length, -1 for null, followed by the bytes, 
+ * every boolean as one byte and every list of strings as its length followed by the strings.
+ *
+ * @author dima
+ *
+ */
+public class ColumnFile {
+
+	public static final byte TYPE_STRING = 's';
+	public static final byte TYPE_BOOLEAN = 'b';
+	public static final byte TYPE_BINARY = 'x';
+	public static final byte TYPE_STRING_LIST = 'l';
+
+	private static final byte[] MAGIC = "OAICOLS1".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Writer of one columnar file in memory
+	 */
+	public static class Writer {
+		private final String[] names;
+		private final byte[] types;
+		private final ByteArrayOutputStream[] blocks;
+		private final DataOutputStream[] columns;
+		private int rows;
+
+		/**
+		 * Construct writer
+		 * @param names The column names
+		 * @param types The column types, one of TYPE_ constants
+		 */
+		public Writer(String[] names, byte[] types) {
+			if (names.length != types.length)
+				throw new IllegalArgumentException("Every column must have a type");
+
+			this.names = names;
+			this.types = types;
+			this.blocks = new ByteArrayOutputStream[names.length];
+			this.columns = new DataOutputStream[names.length];
+
+			for (int i = 0; i < names.length; ++i) {
+				blocks[i] = new ByteArrayOutputStream();
+				columns[i] = new DataOutputStream(new DeflaterOutputStream(blocks[i]));
+			}
+		}
+
+		/**
+		 * Add one row
+		 * @param values The row values in the column order: String, Boolean, byte[] or {@code List<String>}
+		 * @throws IOException
+		 */
+		@SuppressWarnings("unchecked")
+		public void addRow(Object... values) throws IOException {
+			if (values.length != names.length)
+				throw new IllegalArgumentException("The row must have " + names.length + " values");
+
+			for (int i = 0; i < values.length; ++i)
+				switch (types[i]) {
+				case TYPE_STRING:
+					writeBytes(columns[i], null == values[i] ? null : ((String) values[i]).getBytes(StandardCharsets.UTF_8));
+					break;
+				case TYPE_BOOLEAN:
+					columns[i].writeBoolean(Boolean.TRUE.equals(values[i]));
+					break;
+				case TYPE_BINARY:
+					writeBytes(columns[i], (byte[]) values[i]);
+					break;
+				case TYPE_STRING_LIST:
+					List<String> list = (List<String>) values[i];
+					columns[i].writeInt(null == list ? -1 : list.size());
+					if (null != list)
+						for (String s : list)
+							writeBytes(columns[i], s.getBytes(StandardCharsets.UTF_8));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown column type: " + (char) types[i]);
+				}
+
+			++rows;
+		}
+
+		/**
+		 * Return number of the rows
+		 * @return int - number of the rows
+		 */
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * Finish the file
+		 * @return byte[] - the file content
+		 * @throws IOException
+		 */
+		public byte[] toByteArray() throws IOException {
+			ByteArrayOutputStream file = new ByteArrayOutputStream();
+			file.write(MAGIC);
+
+			long[] offsets = new long[names.length];
+			long[] lengths = new long[names.length];
+			for (int i = 0; i < names.length; ++i) {
+				columns[i].close();
+
+				offsets[i] = file.size();
+				lengths[i] = blocks[i].size();
+				blocks[i].writeTo(file);
+			}
+
+			long footerOffset = file.size();
+
+			DataOutputStream footer = new DataOutputStream(file);
+			footer.writeInt(rows);
+			footer.writeInt(names.length);
+			for (int i = 0; i < names.length; ++i) {
+				footer.writeUTF(names[i]);
+				footer.writeByte(types[i]);
+				footer.writeLong(offsets[i]);
+				footer.writeLong(lengths[i]);
+			}
+			footer.writeLong(footerOffset);
+			footer.write(MAGIC);
+			footer.flush();
+
+			return file.toByteArray();
+		}
+
+		private static void writeBytes(DataOutputStream os, byte[] bytes) throws IOException {
+			os.writeInt(null == bytes ? -1 : bytes.length);
+			if (null != bytes)
+				os.write(bytes);
+		}
+	}
+
+	/**
+	 * Reader of one columnar file
+	 */
+	public static class Reader {
+		private final ByteBuffer data;
+		private final int rows;
+		private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+		/**
+		 * Construct reader and read the footer
+		 * @param data The file content
+		 * @throws IOException if the file is not a valid columnar file
+		 */
+		public Reader(byte[] data) throws IOException {
+			this.data = ByteBuffer.wrap(data);
+
+			if (data.length < MAGIC.length * 2 + 8
+					|| !Arrays.equals(MAGIC, Arrays.copyOfRange(data, 0, MAGIC.length))
+					|| !Arrays.equals(MAGIC, Arrays.copyOfRange(data, data.length - MAGIC.length, data.length)))
+				throw new IOException("The file is not a columnar file");
+
+			long footerOffset = this.data.getLong(data.length - MAGIC.length - 8);
+			DataInputStream footer = new DataInputStream(new ByteArrayInputStream(data, (int) footerOffset, 
+					data.length - (int) footerOffset));
+
+			rows = footer.readInt();
+			int count = footer.readInt();
+			for (int i = 0; i < count; ++i) {
+				String name = footer.readUTF();
+				columns.put(name, new Column(footer.readByte(), footer.readLong(), footer.readLong()));
+			}
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public List<String> getColumns() {
+			return new ArrayList<String>(columns.keySet());
+		}
+
+		/**
+		 * Read the values of one column
+		 * @param name A column name
+		 * @return {@code List<Object>} - the values: String, Boolean, byte[] or {@code List<String>}
+		 * @throws IOException
+		 */
+		public List<Object> read(String name) throws IOException {
+			Column column = columns.get(name);
+			if (null == column)
+				throw new IllegalArgumentException("Unknown column: " + name);
+
+			List<Object> values = new ArrayList<Object>(rows);
+			try (DataInputStream is = new DataInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(data.array(), (int) column.offset, (int) column.length)))) {
+				for (int i = 0; i < rows; ++i)
+					switch (column.type) {
+					case TYPE_STRING:
+						byte[] bytes = readBytes(is);
+						values.add(null == bytes ? null : new String(bytes, StandardCharsets.UTF_8));
+						break;
+					case TYPE_BOOLEAN:
+						values.add(is.readBoolean());
+						break;
+					case TYPE_BINARY:
+						values.add(readBytes(is));
+						break;
+					case TYPE_STRING_LIST:
+						int size = is.readInt();
+						List<String> list = size < 0 ? null : new ArrayList<String>(size);
+						for (int j = 0; j < size; ++j)
+							list.add(new String(readBytes(is), StandardCharsets.UTF_8));
+						values.add(list);
+						break;
+					default:
+						throw new IOException("Unknown column type: " + (char) column.type);
+					}
+			}
+
+			return values;
+		}
+
+		private static byte[] readBytes(DataInputStream is) throws IOException {
+			int length = is.readInt();
+			if (length < 0)
+				return null;
+
+			byte[] bytes = new byte[length];
+			is.readFully(bytes);
+			return bytes;
+		}
+	}
+
+	private static class Column {
+		private final byte type;
+		private final long offset;
+		private final long length;
+
+		Column(byte type, long offset, long length) {
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
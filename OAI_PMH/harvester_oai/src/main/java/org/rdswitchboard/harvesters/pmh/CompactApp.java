@@ -0,0 +1,40 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Application to compact the stored harvests without harvesting the repository.
+ * The same properties file as for the harvester will be used.
+ *
+ * @author dima
+ *
+ */
+public class CompactApp {
+
+	private static final String PROPERTIES_FILE = "properties/harvester.properties";
+	
+	public static void main(String[] args) {
+		String propertiesFile = PROPERTIES_FILE;
+		if (args.length > 0 && !args[0].isEmpty())
+			propertiesFile = args[0];
+		
+		try {
+			Properties properties = new Properties();
+			try (InputStream in = new FileInputStream(propertiesFile)) {
+				properties.load(in);
+			}
+			
+			Compactor compactor = new Compactor(properties);
+			compactor.compact();
+			compactor.printStatistics(System.out);
+		} catch (Exception e) {
+			System.err.println("Error [" + e.getClass().getName() + "]:" + e.getMessage());
+			
+			e.printStackTrace();
+					
+			System.exit(2);
+		}
+	}
+}
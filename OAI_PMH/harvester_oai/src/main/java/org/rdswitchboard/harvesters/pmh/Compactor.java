@@ -0,0 +1,857 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.StringUtils;
+
+/**
+ * Class to compact the successive harvests of one repository into a consolidated snapshot.
+ *
+ * All records of the harvests, stored after the previous compacted snapshot, will be merged
+ * with that snapshot. Only the latest version of every record will be kept: the record from
+ * the later harvest wins, the records of the same harvest are ordered by their datestamp. The
+ * records with {@code status="deleted"} will be removed from the snapshot. The harvests could
+ * be stored as pages, segments or content store blobs.
+ *
+ * The records are sorted out of core: they are collected into sorted runs of limited size in
+ * temporary files, and the runs are merged, so the memory does not depend on the repository size.
+ * The snapshot of every set will be stored as:
+ * <p>
+ * {@code
+ *   <Base Folder>/<Metadata Name>/compacted/<Harvest Date>/<Set Name>.xml.gz
+ * }
+ * <p>
+ * The snapshot contains gzip members with up to `compact.block.records` records, wrapped into
+ * the {@code <ListRecords>} element. The set index {@code <Set Name>.tsv} will contain one
+ * tab separated line per record, sorted by the identifier:
+ * <p>
+ * {@code
+ *   <identifier> <datestamp> <block offset> <block length>
+ * }
+ * <p>
+ * where the identifier is URL encoded and the offset and the length are empty for the deleted
+ * records. The date of the latest compacted snapshot will be stored in {@code compacted/latest.txt}.
+ *
+ * @author dima
+ *
+ */
+public class Compactor {
+
+	public static final String COMPACTED = "compacted";
+
+	private static final String LATEST = "latest.txt";
+	private static final String SNAPSHOT_EXTENSION = ".xml.gz";
+	private static final String INDEX_EXTENSION = ".tsv";
+
+	private static final Pattern PATTERN_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+	private static final Pattern PATTERN_XML_DECLARATION = Pattern.compile("^<\\?xml[^>]*\\?>");
+
+	private static final String LIST_RECORDS_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<ListRecords xmlns=\"http://www.openarchives.org/OAI/2.0/\">";
+	private static final String LIST_RECORDS_END = "</ListRecords>";
+
+	private final String prefix;
+	private final String bucketName;
+	private final String folderName;
+	private final AmazonS3 s3client;
+
+	private final long runSize;
+	private final int mergeFactor;
+	private final int blockRecords;
+
+	private long sequence;
+	private int harvests;
+	private int sets;
+	private long records;
+	private long deleted;
+
+	public Compactor( final Properties properties ) {
+		String repoPrefix = properties.getProperty("name");
+		if (StringUtils.isNullOrEmpty(repoPrefix))
+			throw new IllegalArgumentException("The OAI:PMH Repository Prefix can not be empty");
+
+		String metadataPrefix = properties.getProperty("metadata");
+		if (StringUtils.isNullOrEmpty(metadataPrefix))
+			throw new IllegalArgumentException("The OAI:PMH Metadata Prefix can not be empty");
+
+		prefix = repoPrefix + "/" + metadataPrefix;
+
+		bucketName = properties.getProperty("s3.bucket");
+		folderName = properties.getProperty("folder");
+
+		if (StringUtils.isNullOrEmpty(bucketName) && StringUtils.isNullOrEmpty(folderName))
+			throw new IllegalArgumentException("Please enter either local folder name or AWS S3 Bucket name to compact the harvested files");
+
+		if (StringUtils.isNullOrEmpty(bucketName))
+			s3client = null;
+		else {
+			String accessKey = properties.getProperty("aws.access.key");
+			String secretKey = properties.getProperty("aws.secret.key");
+			if (StringUtils.isNullOrEmpty(accessKey) || StringUtils.isNullOrEmpty(secretKey))
+				s3client = new AmazonS3Client(new InstanceProfileCredentialsProvider());
+			else
+				s3client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey));
+		}
+
+		runSize = Long.parseLong(properties.getProperty("compact.run.size", "67108864"));
+		mergeFactor = Math.max(2, Integer.parseInt(properties.getProperty("compact.merge.factor", "64")));
+		blockRecords = Math.max(1, Integer.parseInt(properties.getProperty("compact.block.records", "1000")));
+	}
+
+	/**
+	 * Function to compact all harvests, stored after the previous compacted snapshot
+	 * @return String - the date of the compacted snapshot or null if there is nothing to compact
+	 * @throws Exception
+	 */
+	public String compact() throws Exception {
+		String previous = readLatest();
+
+		List<String> dates = new ArrayList<String>();
+		for (String date : listDates())
+			if (null == previous || date.compareTo(previous) > 0)
+				dates.add(date);
+
+		if (dates.isEmpty()) {
+			System.out.println("There are no new harvests to compact");
+
+			return null;
+		}
+
+		String date = dates.get(dates.size() - 1);
+		System.out.println("Compacting " + dates.size() + " harvests into the snapshot " + date
+				+ (null == previous ? "" : ", based on the snapshot " + previous));
+
+		List<File> runs = new ArrayList<File>();
+		try {
+			RunBuilder builder = new RunBuilder(runs);
+
+			if (null != previous)
+				readSnapshot(previous, builder);
+
+			for (String d : dates)
+				readHarvest(d, builder);
+
+			builder.close();
+
+			while (runs.size() > mergeFactor)
+				mergeRuns(runs);
+
+			writeSnapshot(date, runs);
+		} finally {
+			for (File run : runs)
+				run.delete();
+		}
+
+		writeObject(prefix + "/" + COMPACTED + "/" + LATEST, date.getBytes(StandardCharsets.UTF_8), "text/plain");
+
+		return date;
+	}
+
+	public void printStatistics(PrintStream out) {
+		out.println();
+		out.println(String.format("%d %s has been compacted into %d %s: %d records, %d deleted records",
+				harvests, harvests == 1 ? "harvest" : "harvests", sets, sets == 1 ? "set" : "sets", records, deleted));
+	}
+
+	/**
+	 * Function to read the records of the previous snapshot. The deleted records will be kept in the
+	 * index of the new snapshot, so they will be read from the previous index.
+	 * @param date The snapshot date
+	 * @param builder A run builder
+	 * @throws Exception
+	 */
+	private void readSnapshot(String date, RunBuilder builder) throws Exception {
+		String snapshotPrefix = prefix + "/" + COMPACTED + "/" + date + "/";
+
+		for (String key : listKeys(snapshotPrefix)) {
+			if (!key.endsWith(INDEX_EXTENSION))
+				continue;
+
+			String set = key.substring(snapshotPrefix.length(), key.length() - INDEX_EXTENSION.length());
+			String snapshotKey = snapshotPrefix + set + SNAPSHOT_EXTENSION;
+
+			File file = getFile(snapshotKey);
+			try {
+				// every block will be read only once, the index is sorted by the block offset
+				long lastOffset = -1;
+				for (String line : new String(readObject(key), StandardCharsets.UTF_8).split("\n")) {
+					String[] fields = line.split("\t", -1);
+					if (fields.length != 4)
+						continue;
+
+					if (fields[2].isEmpty()) {
+						builder.add(new Entry(set, decode(fields[0]), "", fields[1], ++sequence, null));
+
+						continue;
+					}
+
+					long offset = Long.parseLong(fields[2]);
+					if (offset == lastOffset)
+						continue;
+
+					lastOffset = offset;
+					try (InputStream is = SegmentWriter.openPage(file, offset, Long.parseLong(fields[3]))) {
+						addRecords(set, "", is, builder);
+					}
+				}
+			} finally {
+				if (null != s3client)
+					file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Function to read the records of one harvest
+	 * @param date The harvest date
+	 * @param builder A run builder
+	 * @throws Exception
+	 */
+	private void readHarvest(String date, RunBuilder builder) throws Exception {
+		System.out.println("Reading the harvest " + date);
+
+		++harvests;
+
+		String datePrefix = prefix + "/" + date + "/";
+
+		// the content store will keep the pages as blobs
+		Map<String, String> pages = ContentStore.loadManifest(readObject(datePrefix + ContentStore.MANIFEST));
+		if (pages.isEmpty())
+			for (String key : listKeys(datePrefix))
+				pages.put(key, key);
+
+		List<String> keys = new ArrayList<String>(pages.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int n = a.substring(0, a.lastIndexOf('/')).compareTo(b.substring(0, b.lastIndexOf('/')));
+				return n != 0 ? n : Long.compare(getPageNumber(a), getPageNumber(b));
+			}
+		});
+
+		for (String key : keys) {
+			String name = key.substring(datePrefix.length());
+			if (name.indexOf('/') < 0)
+				continue;
+
+			String set = name.substring(0, name.indexOf('/'));
+			String source = pages.get(key);
+
+			if (key.endsWith(SegmentWriter.SEGMENT_EXTENSION))
+				readSegment(set, date, source, builder);
+			else if (key.endsWith(".xml"))
+				try (InputStream is = openObject(source)) {
+					addRecords(set, date, is, builder);
+				}
+		}
+	}
+
+	private void readSegment(String set, String date, String key, RunBuilder builder) throws Exception {
+		String indexKey = key.substring(0, key.length() - SegmentWriter.SEGMENT_EXTENSION.length()) + SegmentWriter.INDEX_EXTENSION;
+		byte[] index = readObject(indexKey);
+		if (null == index) {
+			System.out.println("Warning, the segment " + key + " does not have an index and will be ignored");
+
+			return;
+		}
+
+		File file = getFile(key);
+		try {
+			for (String line : new String(index, StandardCharsets.UTF_8).split("\n")) {
+				String[] fields = line.split("\t");
+				if (fields.length < 3)
+					continue;
+
+				try (InputStream is = SegmentWriter.openPage(file, Long.parseLong(fields[1]), Long.parseLong(fields[2]))) {
+					addRecords(set, date, is, builder);
+				}
+			}
+		} finally {
+			if (null != s3client)
+				file.delete();
+		}
+	}
+
+	private void addRecords(String set, String date, InputStream is, RunBuilder builder) throws Exception {
+		List<Record> list;
+		try {
+			list = Record.split(is);
+		} catch (XMLStreamException e) {
+			throw new HarvesterException("Unable to parse the records of the set " + set + " from " + date + ": " + e.getMessage());
+		}
+
+		for (Record record : list)
+			builder.add(new Entry(set, record.getIdentifier(), date, record.getDatestamp(), ++sequence,
+					record.isDeleted() ? null : record.getXml()));
+	}
+
+	/**
+	 * Function to merge the oldest runs into one run
+	 * @param runs A list of runs. The merged runs will be replaced by the new run.
+	 * @throws IOException
+	 */
+	private void mergeRuns(List<File> runs) throws IOException {
+		List<File> merged = new ArrayList<File>(runs.subList(0, mergeFactor));
+
+		File run = File.createTempFile("compact", ".run");
+		try (RunMerger merger = new RunMerger(merged);
+				DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536))) {
+			Entry entry;
+			while (null != (entry = merger.next()))
+				entry.write(os);
+		} catch (IOException e) {
+			run.delete();
+
+			throw e;
+		}
+
+		runs.removeAll(merged);
+		runs.add(run);
+
+		for (File file : merged)
+			file.delete();
+	}
+
+	/**
+	 * Function to merge the runs and to write the latest version of every record
+	 * @param date The snapshot date
+	 * @param runs A list of runs
+	 * @throws Exception
+	 */
+	private void writeSnapshot(String date, List<File> runs) throws Exception {
+		String snapshotPrefix = prefix + "/" + COMPACTED + "/" + date + "/";
+
+		try (RunMerger merger = new RunMerger(runs)) {
+			SnapshotWriter writer = null;
+			try {
+				Entry latest = null;
+				Entry entry;
+				do {
+					entry = merger.next();
+
+					// the entries are sorted, so the last entry of the identifier will be the latest version
+					if (null != latest && (null == entry || !entry.isSameRecord(latest))) {
+						if (null == writer || !writer.set.equals(latest.set)) {
+							if (null != writer)
+								writer.close(snapshotPrefix);
+
+							writer = new SnapshotWriter(latest.set);
+						}
+
+						writer.write(latest);
+					}
+
+					latest = entry;
+				} while (null != entry);
+
+				if (null != writer)
+					writer.close(snapshotPrefix);
+			} finally {
+				if (null != writer)
+					writer.discard();
+			}
+		}
+	}
+
+	private static long getPageNumber(String key) {
+		String name = key.substring(key.lastIndexOf('/') + 1);
+		int end = 0;
+		while (end < name.length() && Character.isDigit(name.charAt(end)))
+			++end;
+
+		return end == 0 ? -1 : Long.parseLong(name.substring(0, end));
+	}
+
+	private String readLatest() throws IOException {
+		byte[] latest = readObject(prefix + "/" + COMPACTED + "/" + LATEST);
+
+		return null == latest ? null : new String(latest, StandardCharsets.UTF_8).trim();
+	}
+
+	/**
+	 * Function to find the dates of all harvests
+	 * @return {@code List<String>} - sorted list of the harvest dates
+	 */
+	private List<String> listDates() {
+		List<String> dates = new ArrayList<String>();
+		if (null == s3client) {
+			String[] names = new File(folderName, prefix).list();
+			if (null != names)
+				for (String name : names)
+					if (PATTERN_DATE.matcher(name).matches())
+						dates.add(name);
+		} else {
+			ListObjectsRequest request = new ListObjectsRequest()
+					.withBucketName(bucketName).withPrefix(prefix + "/").withDelimiter("/");
+			ObjectListing listing;
+			do {
+				listing = s3client.listObjects(request);
+				for (String commonPrefix : listing.getCommonPrefixes()) {
+					String name = commonPrefix.substring(prefix.length() + 1, commonPrefix.length() - 1);
+					if (PATTERN_DATE.matcher(name).matches())
+						dates.add(name);
+				}
+
+				request.setMarker(listing.getNextMarker());
+			} while (listing.isTruncated());
+		}
+
+		Collections.sort(dates);
+
+		return dates;
+	}
+
+	/**
+	 * Function to list all objects with the key prefix in the local folder or S3 bucket
+	 * @param keyPrefix A key prefix, ending with /
+	 * @return {@code List<String>} - list of the object keys
+	 */
+	private List<String> listKeys(String keyPrefix) {
+		List<String> keys = new ArrayList<String>();
+		if (null == s3client) {
+			File root = new File(folderName);
+			File dir = new File(root, keyPrefix);
+			if (dir.isDirectory())
+				for (File file : FileUtils.listFiles(dir, null, true))
+					keys.add(root.toURI().relativize(file.toURI()).getPath());
+		} else {
+			ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName).withPrefix(keyPrefix);
+			ObjectListing listing;
+			do {
+				listing = s3client.listObjects(request);
+				for (S3ObjectSummary summary : listing.getObjectSummaries())
+					keys.add(summary.getKey());
+
+				request.setMarker(listing.getNextMarker());
+			} while (listing.isTruncated());
+		}
+
+		return keys;
+	}
+
+	private InputStream openObject(String key) throws IOException {
+		if (null == s3client)
+			return new FileInputStream(new File(folderName, key));
+
+		return s3client.getObject(bucketName, key).getObjectContent();
+	}
+
+	private byte[] readObject(String key) throws IOException {
+		if (null == s3client) {
+			File file = new File(folderName, key);
+
+			return file.isFile() ? FileUtils.readFileToByteArray(file) : null;
+		}
+
+		try (S3Object object = s3client.getObject(bucketName, key)) {
+			return IOUtils.toByteArray(object.getObjectContent());
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				return null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Function to get the local file of the object. The object from S3 bucket will be downloaded into
+	 * a temporary file, which must be deleted by the caller.
+	 * @param key An object key
+	 * @return File - the local file
+	 * @throws IOException
+	 */
+	private File getFile(String key) throws IOException {
+		if (null == s3client)
+			return new File(folderName, key);
+
+		File file = File.createTempFile("compact", SNAPSHOT_EXTENSION);
+		try (InputStream is = openObject(key)) {
+			FileUtils.copyInputStreamToFile(is, file);
+		} catch (IOException e) {
+			file.delete();
+
+			throw e;
+		}
+
+		return file;
+	}
+
+	private void writeObject(String key, byte[] bytes, String contentType) throws IOException {
+		if (null == s3client)
+			FileUtils.writeByteArrayToFile(new File(folderName, key), bytes);
+		else {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentEncoding(StandardCharsets.UTF_8.name());
+			metadata.setContentType(contentType);
+			metadata.setContentLength(bytes.length);
+
+			s3client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+		}
+	}
+
+	private void writeFile(String key, File file, String contentType) throws IOException {
+		if (null == s3client)
+			FileUtils.copyFile(file, new File(folderName, key));
+		else {
+			PutObjectRequest request = new PutObjectRequest(bucketName, key, file);
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentType(contentType);
+			request.setMetadata(metadata);
+
+			s3client.putObject(request);
+		}
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * One version of the record. The entries are sorted by the set, the identifier, the harvest
+	 * date, the record datestamp and the order they has been read.
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private final String set;
+		private final String identifier;
+		private final String date;
+		private final String datestamp;
+		private final long sequence;
+		private final byte[] xml;
+
+		Entry(String set, String identifier, String date, String datestamp, long sequence, byte[] xml) {
+			this.set = set;
+			this.identifier = identifier;
+			this.date = date;
+			this.datestamp = null == datestamp ? "" : datestamp;
+			this.sequence = sequence;
+			this.xml = xml;
+		}
+
+		boolean isDeleted() {
+			return null == xml;
+		}
+
+		boolean isSameRecord(Entry entry) {
+			return set.equals(entry.set) && identifier.equals(entry.identifier);
+		}
+
+		long getMemorySize() {
+			return 64 + 2 * (set.length() + identifier.length() + date.length() + datestamp.length())
+					+ (null == xml ? 0 : xml.length);
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			int n = set.compareTo(o.set);
+			if (n == 0)
+				n = identifier.compareTo(o.identifier);
+			if (n == 0)
+				n = date.compareTo(o.date);
+			if (n == 0)
+				n = datestamp.compareTo(o.datestamp);
+			if (n == 0)
+				n = Long.compare(sequence, o.sequence);
+
+			return n;
+		}
+
+		void write(DataOutputStream os) throws IOException {
+			writeString(os, set);
+			writeString(os, identifier);
+			writeString(os, date);
+			writeString(os, datestamp);
+			os.writeLong(sequence);
+			if (null == xml)
+				os.writeInt(-1);
+			else {
+				os.writeInt(xml.length);
+				os.write(xml);
+			}
+		}
+
+		static Entry read(DataInputStream is) throws IOException {
+			String set;
+			try {
+				set = readString(is);
+			} catch (EOFException e) {
+				return null;
+			}
+
+			String identifier = readString(is);
+			String date = readString(is);
+			String datestamp = readString(is);
+			long sequence = is.readLong();
+
+			byte[] xml = null;
+			int length = is.readInt();
+			if (length >= 0) {
+				xml = new byte[length];
+				is.readFully(xml);
+			}
+
+			return new Entry(set, identifier, date, datestamp, sequence, xml);
+		}
+
+		private static void writeString(DataOutputStream os, String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			os.writeInt(bytes.length);
+			os.write(bytes);
+		}
+
+		private static String readString(DataInputStream is) throws IOException {
+			byte[] bytes = new byte[is.readInt()];
+			is.readFully(bytes);
+
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Builder of the sorted runs. The entries will be collected in memory, until their size will
+	 * reach `compact.run.size`, then sorted and written into a new run.
+	 */
+	private class RunBuilder {
+		private final List<File> runs;
+		private final List<Entry> entries = new ArrayList<Entry>();
+		private long size;
+
+		RunBuilder(List<File> runs) {
+			this.runs = runs;
+		}
+
+		void add(Entry entry) throws IOException {
+			entries.add(entry);
+			size += entry.getMemorySize();
+
+			if (size >= runSize)
+				close();
+		}
+
+		void close() throws IOException {
+			if (entries.isEmpty())
+				return;
+
+			Collections.sort(entries);
+
+			File run = File.createTempFile("compact", ".run");
+			runs.add(run);
+
+			try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536))) {
+				for (Entry entry : entries)
+					entry.write(os);
+			}
+
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * K-way merge of the sorted runs
+	 */
+	private static class RunMerger implements AutoCloseable {
+		private final List<DataInputStream> streams = new ArrayList<DataInputStream>();
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+
+		RunMerger(List<File> runs) throws IOException {
+			try {
+				for (File run : runs) {
+					DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 65536));
+					streams.add(is);
+
+					Entry entry = Entry.read(is);
+					if (null != entry)
+						heads.add(new Head(entry, is));
+				}
+			} catch (IOException e) {
+				close();
+
+				throw e;
+			}
+		}
+
+		Entry next() throws IOException {
+			Head head = heads.poll();
+			if (null == head)
+				return null;
+
+			Entry next = Entry.read(head.stream);
+			if (null != next)
+				heads.add(new Head(next, head.stream));
+
+			return head.entry;
+		}
+
+		@Override
+		public void close() {
+			for (DataInputStream is : streams)
+				IOUtils.closeQuietly(is);
+		}
+	}
+
+	private static class Head implements Comparable<Head> {
+		private final Entry entry;
+		private final DataInputStream stream;
+
+		Head(Entry entry, DataInputStream stream) {
+			this.entry = entry;
+			this.stream = stream;
+		}
+
+		@Override
+		public int compareTo(Head o) {
+			return entry.compareTo(o.entry);
+		}
+	}
+
+	/**
+	 * Writer of the snapshot and the index of one set
+	 */
+	private class SnapshotWriter {
+		private final String set;
+		private final File snapshot;
+		private final File index;
+		private final CountingOutputStream os;
+		private final BufferedWriter indexWriter;
+		private final List<Entry> block = new ArrayList<Entry>();
+
+		SnapshotWriter(String set) throws IOException {
+			this.set = set;
+
+			snapshot = File.createTempFile("snapshot", SNAPSHOT_EXTENSION);
+			index = File.createTempFile("snapshot", INDEX_EXTENSION);
+			os = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot), 65536));
+			indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index), StandardCharsets.UTF_8));
+
+			++sets;
+		}
+
+		void write(Entry entry) throws IOException {
+			if (entry.isDeleted()) {
+				++deleted;
+
+				// the block is written before the index line, so the index will be sorted by the identifier
+				writeBlock();
+				writeIndex(entry, -1, -1);
+
+				return;
+			}
+
+			++records;
+
+			block.add(entry);
+			if (block.size() >= blockRecords)
+				writeBlock();
+		}
+
+		void close(String snapshotPrefix) throws IOException {
+			writeBlock();
+
+			os.close();
+			indexWriter.close();
+
+			writeFile(snapshotPrefix + set + SNAPSHOT_EXTENSION, snapshot, "application/gzip");
+			writeFile(snapshotPrefix + set + INDEX_EXTENSION, index, "text/tab-separated-values");
+
+			discard();
+		}
+
+		void discard() {
+			IOUtils.closeQuietly(os);
+			IOUtils.closeQuietly(indexWriter);
+
+			snapshot.delete();
+			index.delete();
+		}
+
+		private void writeBlock() throws IOException {
+			if (block.isEmpty())
+				return;
+
+			long offset = os.getByteCount();
+			try (GZIPOutputStream gz = new GZIPOutputStream(new CloseShieldOutputStream(os), 65536)) {
+				gz.write(LIST_RECORDS_START.getBytes(StandardCharsets.UTF_8));
+				for (Entry entry : block) {
+					String xml = new String(entry.xml, StandardCharsets.UTF_8);
+					gz.write(PATTERN_XML_DECLARATION.matcher(xml).replaceFirst("").getBytes(StandardCharsets.UTF_8));
+				}
+				gz.write(LIST_RECORDS_END.getBytes(StandardCharsets.UTF_8));
+			}
+
+			long length = os.getByteCount() - offset;
+			for (Entry entry : block)
+				writeIndex(entry, offset, length);
+
+			block.clear();
+		}
+
+		private void writeIndex(Entry entry, long offset, long length) throws IOException {
+			indexWriter.write(encode(entry.identifier));
+			indexWriter.write('\t');
+			indexWriter.write(entry.datestamp);
+			indexWriter.write('\t');
+			if (offset >= 0) {
+				indexWriter.write(Long.toString(offset));
+				indexWriter.write('\t');
+				indexWriter.write(Long.toString(length));
+			} else
+				indexWriter.write('\t');
+			indexWriter.write('\n');
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class to store the pages by the hash of their content.
+ *
+ * Every page is stored as a blob {@code blobs/xx/<sha-256>.xml}, where the hash is calculated
+ * from the normalised page content: the response date, the request and the resumption token
+ * elements will be removed, because they are different in every response. If the blob with
+ * the same hash has been stored already, the page will not be stored again. The blob will be
+ * known as stored only after its write has succeeded, the pages with the same content should
+ * wait for that write before their progress could be saved.
+ *
+ * The manifest will map the logical snapshot layout {@code date/set/N.xml} to the stored blobs,
+ * one tab separated line per page:
+ * <p>
+ * {@code
+ *   <page key> <blob key>
+ * }
+ *
+ * @author dima
+ *
+ */
+public class ContentStore {
+
+	public static final String BLOBS = "blobs";
+	public static final String MANIFEST = "manifest.tsv";
+
+	private static final Pattern PATTERN_VOLATILE = Pattern.compile(
+			"<responseDate>[^<]*</responseDate>"
+			+ "|<request(\\s[^>]*)?/>|<request(\\s[^>]*)?>[^<]*</request>"
+			+ "|<resumptionToken(\\s[^>]*)?/>|<resumptionToken(\\s[^>]*)?>[^<]*</resumptionToken>");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String blobPrefix;
+	private final Set<String> blobs = ConcurrentHashMap.newKeySet();
+	private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	private final Map<String, String> manifest = new ConcurrentSkipListMap<String, String>();
+
+	/**
+	 * Construct content store
+	 * @param blobPrefix A key prefix of the blobs, for example {@code repo/metadata/blobs}
+	 */
+	public ContentStore(String blobPrefix) {
+		this.blobPrefix = blobPrefix;
+	}
+
+	/**
+	 * Return the blob key for the page. The page will not be released. The page bytes will be
+	 * hashed in place, the volatile elements will be skipped without copying the page.
+	 * @param page A page
+	 * @return String - the blob key
+	 * @throws IOException
+	 */
+	public String getBlobKey(Page page) throws IOException {
+		ByteBuffer content = page.map();
+		MessageDigest digest = newDigest();
+
+		if (page.getContentType().equals("text/xml")) {
+			Matcher matcher = PATTERN_VOLATILE.matcher(new ByteSequence(content));
+			int position = 0;
+			while (matcher.find()) {
+				update(digest, content, position, matcher.start());
+				position = matcher.end();
+			}
+
+			update(digest, content, position, content.limit());
+		} else
+			digest.update(content);
+
+		String hash = toHex(digest.digest());
+		String extension = page.getKey().substring(page.getKey().lastIndexOf('.'));
+
+		return blobPrefix + "/" + hash.substring(0, 2) + "/" + hash + extension;
+	}
+
+	/**
+	 * Claim the blob for storing. Only one page could store the blob, the other pages with the 
+	 * same content should wait for the returned future.
+	 * @param blobKey A blob key
+	 * @return CompletableFuture - null if the blob should be stored by the caller, otherwise 
+	 * the future, which will be completed after the blob has been stored, or will fail if the 
+	 * blob could not be stored
+	 */
+	public CompletableFuture<Void> claim(String blobKey) {
+		if (blobs.contains(blobKey))
+			return CompletableFuture.completedFuture(null);
+		
+		CompletableFuture<Void> claimed = new CompletableFuture<Void>();
+		CompletableFuture<Void> existing = pending.putIfAbsent(blobKey, claimed);
+		if (null != existing)
+			return existing;
+		
+		// the blob could have been stored just before it has been claimed
+		if (blobs.contains(blobKey)) {
+			pending.remove(blobKey, claimed);
+			claimed.complete(null);
+			
+			return claimed;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Register the claimed blob as stored and release the pages, waiting for it
+	 * @param blobKey A blob key
+	 */
+	public void stored(String blobKey) {
+		blobs.add(blobKey);
+		
+		CompletableFuture<Void> claimed = pending.remove(blobKey);
+		if (null != claimed)
+			claimed.complete(null);
+	}
+	
+	/**
+	 * Release the claimed blob, which could not be stored. The pages, waiting for it, will fail 
+	 * and the blob could be claimed again.
+	 * @param blobKey A blob key
+	 * @param e The write error
+	 */
+	public void failed(String blobKey, Throwable e) {
+		CompletableFuture<Void> claimed = pending.remove(blobKey);
+		if (null != claimed)
+			claimed.completeExceptionally(e);
+	}
+	
+	/**
+	 * Register the asynchronous write of the claimed blob
+	 * @param blobKey A blob key
+	 * @param write The future of the write
+	 */
+	public void written(final String blobKey, CompletableFuture<Void> write) {
+		write.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable e) {
+				if (null == e)
+					stored(blobKey);
+				else
+					failed(blobKey, e);
+			}
+		});
+	}
+
+	/**
+	 * Register the blobs, which are known to be stored, for example from the previous manifest
+	 * @param blobKeys A collection of blob keys
+	 */
+	public void addBlobs(Collection<String> blobKeys) {
+		blobs.addAll(blobKeys);
+	}
+
+	/**
+	 * Map the page key to the blob key in the manifest
+	 * @param key A page key
+	 * @param blobKey A blob key
+	 */
+	public void putManifest(String key, String blobKey) {
+		manifest.put(key, blobKey);
+	}
+
+	/**
+	 * Remove the manifest entries of the pages with the key prefix, for example of the set, 
+	 * which will be harvested again from the beginning
+	 * @param prefix A page key prefix
+	 */
+	public void removeManifest(String prefix) {
+		for (Iterator<String> it = manifest.keySet().iterator(); it.hasNext(); )
+			if (it.next().startsWith(prefix))
+				it.remove();
+	}
+
+	public Map<String, String> getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Save manifest as a tab separated file content, sorted by the page key
+	 * @return byte[] - manifest content
+	 */
+	public byte[] saveManifest() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : manifest.entrySet())
+			sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parse manifest content
+	 * @param data A manifest content, could be null
+	 * @return {@code Map<String, String>} - map of the page keys to the blob keys
+	 */
+	public static Map<String, String> loadManifest(byte[] data) {
+		Map<String, String> map = new ConcurrentSkipListMap<String, String>();
+		if (null != data)
+			for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+				int tab = line.indexOf('\t');
+				if (tab > 0)
+					map.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+
+		return map;
+	}
+
+	public static String sha256(byte[] content) {
+		return toHex(newDigest().digest(content));
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, ByteBuffer content, int start, int end) {
+		// Buffer methods are used, so the class will run on Java 8
+		Buffer range = content.duplicate();
+		range.limit(end).position(start);
+
+		digest.update((ByteBuffer) range);
+	}
+
+	static String toHex(byte[] digest) {
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; ++i) {
+			chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * The page bytes as ISO-8859-1 characters, so the page could be matched without decoding it
+	 */
+	private static class ByteSequence implements CharSequence {
+		private final ByteBuffer buffer;
+
+		ByteSequence(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int length() {
+			return buffer.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buffer.get(index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			Buffer range = buffer.duplicate();
+			range.limit(end).position(start);
+
+			return new ByteSequence(((ByteBuffer) range).slice());
+		}
+
+		@Override
+		public String toString() {
+			byte[] bytes = new byte[buffer.limit()];
+			buffer.duplicate().get(bytes);
+
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Cache of the compiled XSLT crosswalks, one for every metadata prefix.
+ *
+ * The compiled templates are thread safe, every thread should create its own transformer
+ * from the templates, which is cheap, instead of parsing the stylesheet again.
+ *
+ * @author dima
+ *
+ */
+public class CrosswalkCache {
+
+	private final Map<String, Templates> templates = new ConcurrentHashMap<String, Templates>();
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Return the compiled crosswalk of the metadata prefix
+	 * @param metadataPrefix A metadata prefix
+	 * @param stylesheet The XSLT stylesheet of the crosswalk, will be compiled only once
+	 * @return Templates
+	 * @throws HarvesterException if the stylesheet could not be compiled
+	 */
+	public synchronized Templates getTemplates(String metadataPrefix, File stylesheet) throws HarvesterException {
+		Templates crosswalk = templates.get(metadataPrefix);
+		if (null == crosswalk) {
+			out.println("Compiling crosswalk " + stylesheet + " for " + metadataPrefix);
+
+			try {
+				crosswalk = TransformerFactory.newInstance().newTemplates(new StreamSource(stylesheet));
+			} catch (TransformerConfigurationException e) {
+				throw new HarvesterException("Unable to compile the crosswalk " + stylesheet + ": " + e.getMessage());
+			}
+
+			templates.put(metadataPrefix, crosswalk);
+		}
+
+		return crosswalk;
+	}
+}
@@ -0,0 +1,149 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to store the datestamp window of the set partition.
+ *
+ * The window bounds are inclusive, as OAI:PMH `from` and `until` arguments. The window
+ * is aligned to the repository granularity: whole days or seconds. The last window of
+ * the set is open, so it will not send `until` argument and will include the records,
+ * changed while the harvest was running.
+ *
+ * @author dima
+ *
+ */
+public class DateWindow {
+
+	private static final long SECONDS_PER_DAY = 86400;
+
+	private static final DateTimeFormatter FORMAT_DAY = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter FORMAT_SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+	private static final DateTimeFormatter FORMAT_LABEL = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+	private final long from;
+	private final long until;
+	private final boolean open;
+	private final long unit;
+
+	/**
+	 * Construct window
+	 * @param from Window start in epoch seconds, inclusive
+	 * @param until Window end in epoch seconds, inclusive
+	 * @param open true if `until` should not be send to the server
+	 * @param unit Repository granularity in seconds
+	 */
+	public DateWindow(long from, long until, boolean open, long unit) {
+		this.from = from;
+		this.until = until;
+		this.open = open;
+		this.unit = unit;
+	}
+
+	/**
+	 * Split the datestamp range into windows
+	 * @param start The range start, as OAI:PMH datestamp
+	 * @param end The range end in epoch seconds
+	 * @param count Number of windows
+	 * @param granularity Repository granularity
+	 * @return {@code List<DateWindow>} - list of windows, the last window will be open
+	 * @throws IllegalArgumentException if the start or granularity could not be parsed
+	 */
+	public static List<DateWindow> partition(String start, long end, int count, String granularity) {
+		long unit = getUnit(granularity);
+		long from = align(parse(start), unit);
+		long until = Math.max(from, align(end, unit));
+
+		long units = (until - from) / unit + 1;
+		int windows = (int) Math.max(1, Math.min(count, units));
+
+		List<DateWindow> list = new ArrayList<DateWindow>();
+		for (int i = 0; i < windows; ++i) {
+			long f = from + units * i / windows * unit;
+			long u = from + units * (i + 1) / windows * unit - unit;
+			list.add(new DateWindow(f, u, i == windows - 1, unit));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Split the window into two halves
+	 * @return DateWindow[] - two windows or null if the window could not be split
+	 */
+	public DateWindow[] split() {
+		long units = (until - from) / unit + 1;
+		if (units < 2)
+			return null;
+
+		long middle = from + units / 2 * unit;
+
+		return new DateWindow[] {
+				new DateWindow(from, middle - unit, false, unit),
+				new DateWindow(middle, until, open, unit)
+		};
+	}
+
+	/**
+	 * Return the `from` argument
+	 * @return String
+	 */
+	public String getFrom() {
+		return format(from);
+	}
+
+	/**
+	 * Return the `until` argument
+	 * @return String - until or null if the window is open
+	 */
+	public String getUntil() {
+		return open ? null : format(until);
+	}
+
+	/**
+	 * Return the window label, which could be used in the file names
+	 * @return String
+	 */
+	public String getLabel() {
+		return FORMAT_LABEL.format(Instant.ofEpochSecond(from)) + "-"
+				+ (open ? "" : FORMAT_LABEL.format(Instant.ofEpochSecond(until)));
+	}
+
+	private String format(long seconds) {
+		return (unit == SECONDS_PER_DAY ? FORMAT_DAY : FORMAT_SECONDS).format(Instant.ofEpochSecond(seconds));
+	}
+
+	private static long getUnit(String granularity) {
+		if (HighWaterMarks.GRANULARITY_DAY.equals(granularity))
+			return SECONDS_PER_DAY;
+		if (HighWaterMarks.GRANULARITY_SECONDS.equals(granularity))
+			return 1;
+
+		throw new IllegalArgumentException("Unknown granularity: " + granularity);
+	}
+
+	private static long align(long seconds, long unit) {
+		return seconds - Math.floorMod(seconds, unit);
+	}
+
+	private static long parse(String datestamp) {
+		if (null == datestamp || datestamp.trim().isEmpty())
+			throw new IllegalArgumentException("The datestamp is empty");
+
+		String s = datestamp.trim();
+		if (s.length() == 10)
+			return LocalDate.parse(s).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+
+		return Instant.parse(s).getEpochSecond();
+	}
+
+	@Override
+	public String toString() {
+		return "DateWindow [from=" + getFrom() + ", until=" + getUntil() + "]";
+	}
+}
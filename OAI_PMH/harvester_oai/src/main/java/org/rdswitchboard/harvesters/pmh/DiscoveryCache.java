@@ -0,0 +1,266 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * On-disk cache of the repository discovery responses: Identify, ListMetadataFormats and ListSets.
+ *
+ * Every repository has its own folder, named by sha-256 of the repository URL, with two files
+ * per verb: {@code <verb>.cache} with the response and {@code <verb>.properties} with the time
+ * the response has been received and the validators, returned by the server: ETag and Last-Modified.
+ * The response with validators should be revalidated with If-None-Match and If-Modified-Since
+ * every time it is used, the server will answer with 304 if it has not been changed. The response
+ * without validators will be used without any request during the TTL. The ListSets entry keeps
+ * the complete list of sets from all pages, see {@link #saveSets(Map)}.
+ *
+ * @author dima
+ *
+ */
+public class DiscoveryCache {
+
+	public static final String VERB_IDENTIFY = "Identify";
+	public static final String VERB_LIST_METADATA_FORMATS = "ListMetadataFormats";
+	public static final String VERB_LIST_SETS = "ListSets";
+
+	private static final String EXTENSION_CACHE = ".cache";
+	private static final String EXTENSION_PROPERTIES = ".properties";
+
+	private static final String PROPERTY_URL = "url";
+	private static final String PROPERTY_FETCHED = "fetched";
+	private static final String PROPERTY_ETAG = "etag";
+	private static final String PROPERTY_LAST_MODIFIED = "last.modified";
+
+	private final File folder;
+	private final String repoUrl;
+	private final long ttl;
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Cached response
+	 */
+	public static class Entry {
+		private final byte[] content;
+		private final String etag;
+		private final String lastModified;
+		private final long fetched;
+
+		private Entry(byte[] content, String etag, String lastModified, long fetched) {
+			this.content = content;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetched = fetched;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Return the time the response has been received or revalidated
+		 * @return long - time in milliseconds
+		 */
+		public long getFetched() {
+			return fetched;
+		}
+
+		/**
+		 * Return true if the server has returned any validator
+		 * @return boolean
+		 */
+		public boolean hasValidators() {
+			return null != etag || null != lastModified;
+		}
+
+		/**
+		 * Return the conditional request headers
+		 * @return {@code Map<String, String>} - If-None-Match and If-Modified-Since headers
+		 */
+		public Map<String, String> getConditionalHeaders() {
+			Map<String, String> headers = new HashMap<String, String>();
+			if (null != etag)
+				headers.put("If-None-Match", etag);
+			if (null != lastModified)
+				headers.put("If-Modified-Since", lastModified);
+			return headers;
+		}
+	}
+
+	/**
+	 * Construct discovery cache
+	 * @param folder The cache root folder
+	 * @param repoUrl The repository URL
+	 * @param ttl Time to live in milliseconds of the responses without validators
+	 */
+	public DiscoveryCache(File folder, String repoUrl, long ttl) {
+		this.folder = new File(folder, ContentStore.toHex(ContentStore.newDigest().digest(repoUrl.getBytes(StandardCharsets.UTF_8))));
+		this.repoUrl = repoUrl;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Return the repository folder
+	 * @return File
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Load the cached response
+	 * @param verb The OAI:PMH verb
+	 * @return Entry - the cached response or null if the response has not been cached
+	 */
+	public synchronized Entry get(String verb) {
+		File cache = new File(folder, verb + EXTENSION_CACHE);
+		File properties = new File(folder, verb + EXTENSION_PROPERTIES);
+		if (!cache.isFile() || !properties.isFile())
+			return null;
+
+		try {
+			Properties p = new Properties();
+			p.load(new ByteArrayInputStream(FileUtils.readFileToByteArray(properties)));
+
+			return new Entry(FileUtils.readFileToByteArray(cache), p.getProperty(PROPERTY_ETAG),
+					p.getProperty(PROPERTY_LAST_MODIFIED), Long.parseLong(p.getProperty(PROPERTY_FETCHED, "0")));
+		} catch (IOException | NumberFormatException e) {
+			out.println("Warning, unable to load the cached " + verb + " response: " + e.getMessage());
+
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the cached response could be used without any request
+	 * @param entry The cached response
+	 * @return true if the response has no validators and its TTL has not expired
+	 */
+	public boolean isFresh(Entry entry) {
+		return !entry.hasValidators() && System.currentTimeMillis() - entry.getFetched() < ttl;
+	}
+
+	/**
+	 * Store the response
+	 * @param verb The OAI:PMH verb
+	 * @param content The response
+	 * @param etag ETag header value, could be null
+	 * @param lastModified Last-Modified header value, could be null
+	 * @return Entry - the cached response
+	 * @throws IOException
+	 */
+	public synchronized Entry put(String verb, byte[] content, String etag, String lastModified) throws IOException {
+		Entry entry = new Entry(content, etag, lastModified, System.currentTimeMillis());
+
+		// the properties will be written last, so the response will never be used without them
+		write(new File(folder, verb + EXTENSION_CACHE), content);
+		saveProperties(verb, entry);
+
+		return entry;
+	}
+
+	/**
+	 * Mark the cached response as revalidated now
+	 * @param verb The OAI:PMH verb
+	 * @param entry The cached response
+	 * @return Entry - the revalidated response
+	 * @throws IOException
+	 */
+	public synchronized Entry revalidated(String verb, Entry entry) throws IOException {
+		entry = new Entry(entry.getContent(), entry.getEtag(), entry.getLastModified(), System.currentTimeMillis());
+
+		saveProperties(verb, entry);
+
+		return entry;
+	}
+
+	private void saveProperties(String verb, Entry entry) throws IOException {
+		Properties p = new Properties();
+		p.setProperty(PROPERTY_URL, repoUrl);
+		p.setProperty(PROPERTY_FETCHED, Long.toString(entry.getFetched()));
+		if (null != entry.getEtag())
+			p.setProperty(PROPERTY_ETAG, entry.getEtag());
+		if (null != entry.getLastModified())
+			p.setProperty(PROPERTY_LAST_MODIFIED, entry.getLastModified());
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		p.store(os, verb + " response of " + repoUrl);
+
+		write(new File(folder, verb + EXTENSION_PROPERTIES), os.toByteArray());
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileUtils.writeByteArrayToFile(tmp, content);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Convert the list of sets into the cache content: a tab separated line per set with
+	 * URL encoded set specification and set name
+	 * @param sets The sets, where key is set specification and value is set name
+	 * @return byte[] - the cache content
+	 */
+	public static byte[] saveSets(Map<String, String> sets) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> set : new TreeMap<String, String>(sets).entrySet())
+				sb.append(URLEncoder.encode(set.getKey(), "UTF-8")).append('\t')
+					.append(URLEncoder.encode(null == set.getValue() ? "" : set.getValue(), "UTF-8")).append('\n');
+
+			return sb.toString().getBytes(StandardCharsets.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parse the list of sets from the cache content
+	 * @param content The cache content
+	 * @return {@code Map<String, String>} - the sets, where key is set specification and value is set name
+	 */
+	public static Map<String, String> loadSets(byte[] content) {
+		try {
+			Map<String, String> sets = new HashMap<String, String>();
+			for (String line : new String(content, StandardCharsets.UTF_8).split("\n")) {
+				int pos = line.indexOf('\t');
+				if (pos > 0)
+					sets.put(URLDecoder.decode(line.substring(0, pos), "UTF-8"), URLDecoder.decode(line.substring(pos + 1), "UTF-8"));
+			}
+
+			return sets;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Stage to export the harvested records into the analytics friendly formats.
+ *
+ * The pages will be exported by a separate pool of worker threads, see {@link PageStage}. 
+ * Every page will be split into records and written next to the page as gzipped JSON Lines
+ * ({@code <page>.jsonl.gz}) and as a {@link ColumnFile} ({@code <page>.columns}). The header
+ * fields will be written as separate columns and the metadata will be kept as an XML blob.
+ * If the crosswalk has been configured for the metadata format, the metadata will also be
+ * transformed by the compiled crosswalk and the result will be written as an extra column.
+ *
+ * @author dima
+ *
+ */
+public class ExportStage extends PageStage {
+
+	public static final String FORMAT_JSONL = "jsonl";
+	public static final String FORMAT_COLUMNS = "columns";
+
+	public static final String EXTENSION_JSONL = ".jsonl.gz";
+	public static final String EXTENSION_COLUMNS = ".columns";
+
+	public static final String COLUMN_IDENTIFIER = "identifier";
+	public static final String COLUMN_DATESTAMP = "datestamp";
+	public static final String COLUMN_DELETED = "deleted";
+	public static final String COLUMN_SET_SPECS = "setSpecs";
+	public static final String COLUMN_METADATA = "metadata";
+	public static final String COLUMN_CROSSWALK = "crosswalk";
+
+	private static final String PAGE_EXTENSION = ".xml";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/**
+	 * Interface to store the exported files
+	 */
+	public interface Output {
+		void write(String key, byte[] bytes, String contentType) throws IOException;
+	}
+
+	private final boolean jsonl;
+	private final boolean columns;
+	private final Templates crosswalk;
+	private final Output output;
+
+	/**
+	 * Construct export stage
+	 * @param jsonl true to export the records as JSON Lines
+	 * @param columns true to export the records as columnar file
+	 * @param crosswalk A compiled crosswalk of the metadata format or null
+	 * @param threads Number of the worker threads
+	 * @param queueSize Maximum number of the pages, waiting to be exported
+	 * @param output An output for the exported files
+	 */
+	public ExportStage(boolean jsonl, boolean columns, Templates crosswalk, int threads, int queueSize, Output output) {
+		super("export", threads, queueSize);
+
+		this.jsonl = jsonl;
+		this.columns = columns;
+		this.crosswalk = crosswalk;
+		this.output = output;
+	}
+
+	/**
+	 * Return key of the exported file
+	 * @param pageKey The page key
+	 * @param extension The file extension
+	 * @return String - the key
+	 */
+	public static String getExportKey(String pageKey, String extension) {
+		if (pageKey.endsWith(PAGE_EXTENSION))
+			pageKey = pageKey.substring(0, pageKey.length() - PAGE_EXTENSION.length());
+
+		return pageKey + extension;
+	}
+
+	@Override
+	protected void process(String set, Page page) throws Exception {
+		final Transformer transformer = null == crosswalk ? null : crosswalk.newTransformer();
+
+		ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+		final JsonGenerator json = jsonl ? jsonFactory.createGenerator(new GZIPOutputStream(jsonBytes), JsonEncoding.UTF8) : null;
+		if (null != json)
+			json.setRootValueSeparator(null);
+
+		final ColumnFile.Writer writer = columns ? newColumnWriter(null != transformer) : null;
+
+		try (InputStream is = page.openStream()) {
+			Record.split(is, true, new Record.Handler() {
+				@Override
+				public void record(Record record) throws Exception {
+					String transformed = null;
+					if (null != transformer && null != record.getMetadata()) {
+						StringWriter sw = new StringWriter();
+						transformer.transform(new StreamSource(new ByteArrayInputStream(record.getMetadata())), new StreamResult(sw));
+						transformed = sw.toString();
+					}
+
+					if (null != json)
+						writeJson(json, record, transformed, null != transformer);
+
+					if (null != writer) {
+						if (null != transformer)
+							writer.addRow(record.getIdentifier(), record.getDatestamp(), record.isDeleted(), 
+									record.getSetSpecs(), record.getMetadata(), transformed);
+						else
+							writer.addRow(record.getIdentifier(), record.getDatestamp(), record.isDeleted(), 
+									record.getSetSpecs(), record.getMetadata());
+					}
+				}
+			});
+		}
+
+		if (null != json) {
+			json.close();
+			output.write(getExportKey(page.getKey(), EXTENSION_JSONL), jsonBytes.toByteArray(), "application/gzip");
+		}
+
+		if (null != writer)
+			output.write(getExportKey(page.getKey(), EXTENSION_COLUMNS), writer.toByteArray(), "application/octet-stream");
+	}
+
+	private static ColumnFile.Writer newColumnWriter(boolean crosswalk) {
+		if (crosswalk)
+			return new ColumnFile.Writer(
+					new String[] { COLUMN_IDENTIFIER, COLUMN_DATESTAMP, COLUMN_DELETED, COLUMN_SET_SPECS, COLUMN_METADATA, COLUMN_CROSSWALK },
+					new byte[] { ColumnFile.TYPE_STRING, ColumnFile.TYPE_STRING, ColumnFile.TYPE_BOOLEAN, 
+							ColumnFile.TYPE_STRING_LIST, ColumnFile.TYPE_BINARY, ColumnFile.TYPE_STRING });
+		else
+			return new ColumnFile.Writer(
+					new String[] { COLUMN_IDENTIFIER, COLUMN_DATESTAMP, COLUMN_DELETED, COLUMN_SET_SPECS, COLUMN_METADATA },
+					new byte[] { ColumnFile.TYPE_STRING, ColumnFile.TYPE_STRING, ColumnFile.TYPE_BOOLEAN, 
+							ColumnFile.TYPE_STRING_LIST, ColumnFile.TYPE_BINARY });
+	}
+
+	private static void writeJson(JsonGenerator json, Record record, String transformed, boolean crosswalk) throws IOException {
+		json.writeStartObject();
+		json.writeStringField(COLUMN_IDENTIFIER, record.getIdentifier());
+		json.writeStringField(COLUMN_DATESTAMP, record.getDatestamp());
+		json.writeBooleanField(COLUMN_DELETED, record.isDeleted());
+		json.writeArrayFieldStart(COLUMN_SET_SPECS);
+		if (null != record.getSetSpecs())
+			for (String setSpec : record.getSetSpecs())
+				json.writeString(setSpec);
+		json.writeEndArray();
+		if (null != record.getMetadata())
+			json.writeStringField(COLUMN_METADATA, new String(record.getMetadata(), StandardCharsets.UTF_8));
+		else
+			json.writeNullField(COLUMN_METADATA);
+		if (crosswalk)
+			json.writeStringField(COLUMN_CROSSWALK, transformed);
+		json.writeEndObject();
+		json.writeRaw('\n');
+	}
+}
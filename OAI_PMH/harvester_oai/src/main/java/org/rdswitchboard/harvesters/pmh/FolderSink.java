@@ -0,0 +1,79 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Sink to store the pages into the local folder. Every file will be written atomically.
+ * 
+ * @author dima
+ *
+ */
+public class FolderSink implements HarvestSink {
+
+	private final File folder;
+	private final boolean movePages;
+	
+	/**
+	 * Construct folder sink
+	 * @param folder A root folder
+	 * @param movePages true if the pages buffered on the disk could be moved into the folder. 
+	 * Should be used only if the folder is the only sink, because the page could not be read after it. 
+	 */
+	public FolderSink(File folder, boolean movePages) {
+		this.folder = folder;
+		this.movePages = movePages;
+	}
+	
+	public File getFolder() {
+		return folder;
+	}
+
+	@Override
+	public void store(Page page) throws IOException {
+		if (movePages)
+			page.moveTo(new File(folder, page.getKey()));
+		else
+			page.copyTo(new File(folder, page.getKey()));
+	}
+
+	@Override
+	public void write(String key, byte[] bytes, String contentType) throws IOException {
+		new Page(key, bytes).moveTo(new File(folder, key));
+	}
+
+	@Override
+	public byte[] read(String key) throws IOException {
+		File file = new File(folder, key);
+		
+		return file.isFile() ? FileUtils.readFileToByteArray(file) : null;
+	}
+
+	@Override
+	public boolean isRetryable() {
+		return true;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return new File(folder, key).isFile();
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		File file = new File(folder, key);
+		if (file.exists() && !file.delete())
+			throw new IOException("Unable to delete file: " + file);
+	}
+
+	@Override
+	public void close() {
+	}
+	
+	@Override
+	public String toString() {
+		return "folder " + folder;
+	}
+}
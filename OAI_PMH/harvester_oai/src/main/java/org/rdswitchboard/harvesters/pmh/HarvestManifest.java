@@ -0,0 +1,576 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Machine readable description of one harvest.
+ *
+ * The manifest will be written as {@code <prefix>/<date>/manifest.json} after all pages have
+ * been stored and before latest.txt will point to the new harvest date, so the consumers
+ * could find every set and every page of the harvest without listing the storage:
+ * <p>
+ * {@code
+ *   { "harvestDate": ..., "repository": ..., "metadataPrefix": ..., "format": ..., "storeMode": ..., "complete": ...,
+ *     "incremental": ..., "baseDate": ...,
+ *     "sets": [ { "id": ..., "outcome": ..., "files": ..., "records": ...,
+ *                 "pages": [ { "key": ..., "offset": ..., "length": ..., "size": ..., "sha256": ..., "records": ...,
+ *                              "firstIdentifier": ..., "lastIdentifier": ...,
+ *                              "minDatestamp": ..., "maxDatestamp": ...,
+ *                              "resumptionToken": ..., "cursor": ..., "completeListSize": ... } ] } ] }
+ * }
+ * <p>
+ * The page values are collected while the page is downloaded, so the pages will never be
+ * read again. The hash is calculated from the page bytes as they have been received.
+ * The resumption token of the page is the token, returned in this page.
+ * <p>
+ * The incremental harvest lists only the records, changed since the harvest of the base date,
+ * so it should be applied on top of that harvest. It will be pointed by latest-incremental.txt,
+ * while latest.txt always points to the latest full harvest.
+ * <p>
+ * The accepted page will be listed only after it has been stored, with the key of the object
+ * it has been stored into: the page file, the content store blob, the segment (together with
+ * the offset and the compressed length of the page in it) or the folder of the set records.
+ *
+ * @author dima
+ *
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class HarvestManifest {
+
+	public static final String MANIFEST = "manifest.json";
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	static {
+		mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+		mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	}
+
+	private String harvestDate;
+	private String repository;
+	private String metadataPrefix;
+	private String format;
+	private String storeMode;
+	private String created;
+	private boolean complete;
+	private boolean incremental;
+	private String baseDate;
+	private List<SetEntry> sets = new ArrayList<SetEntry>();
+
+	@JsonIgnore
+	private final Map<String, PageEntry> pages = new ConcurrentHashMap<String, PageEntry>();
+	@JsonIgnore
+	private final Map<String, List<PageEntry>> accepted = new HashMap<String, List<PageEntry>>();
+
+	private HarvestManifest() {
+	}
+
+	/**
+	 * Construct harvest manifest
+	 * @param harvestDate A harvest date
+	 * @param repository A repository url
+	 * @param metadataPrefix A metadata prefix
+	 * @param format An output format
+	 * @param storeMode A store mode
+	 */
+	public HarvestManifest(String harvestDate, String repository, String metadataPrefix, String format, String storeMode) {
+		this.harvestDate = harvestDate;
+		this.repository = repository;
+		this.metadataPrefix = metadataPrefix;
+		this.format = format;
+		this.storeMode = storeMode;
+	}
+
+	/**
+	 * Mark the harvest as incremental
+	 * @param baseDate The date of the previous harvest, the changes have been harvested since, could be null
+	 */
+	public void setIncremental(String baseDate) {
+		this.incremental = true;
+		this.baseDate = baseDate;
+	}
+
+	/**
+	 * Add the stored page. The page, harvested again after the harvester has been resumed, will
+	 * replace the previous entry with the same set and number.
+	 * @param page A page entry
+	 */
+	public void putPage(PageEntry page) {
+		pages.put(page.getSet() + "\t" + page.getNumber(), page);
+	}
+
+	/**
+	 * Add the page, which is going to be stored. The page will be listed after the set progress 
+	 * has been stored, see {@link #storePages(String, int, String)}. If the set has been harvested 
+	 * again from the beginning, the previous pages, which have not been stored, will be dropped.
+	 * @param page A page entry
+	 */
+	public synchronized void acceptPage(PageEntry page) {
+		List<PageEntry> list = accepted.get(page.getSet());
+		if (null == list)
+			accepted.put(page.getSet(), list = new ArrayList<PageEntry>());
+		
+		for (Iterator<PageEntry> it = list.iterator(); it.hasNext(); )
+			if (it.next().getNumber() >= page.getNumber())
+				it.remove();
+		
+		list.add(page);
+	}
+
+	/**
+	 * Add the accepted pages of the set, which have been stored
+	 * @param set A set id
+	 * @param files Number of the stored pages of the set
+	 * @param key The key of the object, the pages without key have been stored into
+	 * @return {@code List<PageEntry>} - the added pages
+	 */
+	public synchronized List<PageEntry> storePages(String set, int files, String key) {
+		List<PageEntry> stored = new ArrayList<PageEntry>();
+		
+		List<PageEntry> list = accepted.get(set);
+		if (null != list) {
+			for (Iterator<PageEntry> it = list.iterator(); it.hasNext(); ) {
+				PageEntry page = it.next();
+				if (page.getNumber() < files) {
+					if (null == page.getKey())
+						page.setLocation(key, page.getOffset(), page.getLength());
+					
+					putPage(page);
+					stored.add(page);
+					it.remove();
+				}
+			}
+			
+			if (list.isEmpty())
+				accepted.remove(set);
+		}
+		
+		return stored;
+	}
+
+	/**
+	 * Remove all pages of the set, stored or accepted. The set will be harvested again from the beginning,
+	 * so its previous pages are not part of the harvest.
+	 * @param set A set id
+	 * @return {@code List<PageEntry>} - the removed stored pages
+	 */
+	public synchronized List<PageEntry> removeSet(String set) {
+		accepted.remove(set);
+		
+		List<PageEntry> removed = new ArrayList<PageEntry>();
+		for (Iterator<PageEntry> it = pages.values().iterator(); it.hasNext(); ) {
+			PageEntry page = it.next();
+			if (set.equals(page.getSet())) {
+				removed.add(page);
+				it.remove();
+			}
+		}
+		
+		return removed;
+	}
+
+	/**
+	 * Return number of the pages
+	 * @return int - number of the pages
+	 */
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	/**
+	 * Convert the manifest into JSON. Every set will list its pages in the harvesting order.
+	 * @param statuses The final status of every processed set
+	 * @param complete true if the harvest has been completed without errors
+	 * @return byte[] - the manifest
+	 * @throws IOException
+	 */
+	public synchronized byte[] save(Collection<SetStatus> statuses, boolean complete) throws IOException {
+		this.complete = complete;
+		this.created = new DateTime().toString();
+
+		Map<String, List<PageEntry>> setPages = new HashMap<String, List<PageEntry>>();
+		for (PageEntry page : pages.values()) {
+			List<PageEntry> list = setPages.get(page.getSet());
+			if (null == list)
+				setPages.put(page.getSet(), list = new ArrayList<PageEntry>());
+			list.add(page);
+		}
+
+		sets = new ArrayList<SetEntry>();
+		for (SetStatus status : statuses) {
+			List<PageEntry> list = setPages.remove(status.getId());
+			sets.add(new SetEntry(status, null == list ? Collections.<PageEntry>emptyList() : list));
+		}
+
+		// the pages of the sets, which have not been finished
+		for (Map.Entry<String, List<PageEntry>> entry : setPages.entrySet())
+			sets.add(new SetEntry(entry.getKey(), entry.getValue()));
+
+		Collections.sort(sets, new Comparator<SetEntry>() {
+			@Override
+			public int compare(SetEntry a, SetEntry b) {
+				return a.getId().compareTo(b.getId());
+			}
+		});
+
+		return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);
+	}
+
+	/**
+	 * Parse the manifest
+	 * @param data The manifest JSON
+	 * @return HarvestManifest
+	 * @throws IOException
+	 */
+	public static HarvestManifest load(byte[] data) throws IOException {
+		return mapper.readValue(data, HarvestManifest.class);
+	}
+
+	public String getHarvestDate() {
+		return harvestDate;
+	}
+
+	public String getRepository() {
+		return repository;
+	}
+
+	public String getMetadataPrefix() {
+		return metadataPrefix;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public String getStoreMode() {
+		return storeMode;
+	}
+
+	public String getCreated() {
+		return created;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public String getBaseDate() {
+		return baseDate;
+	}
+
+	public List<SetEntry> getSets() {
+		return sets;
+	}
+
+	/**
+	 * Final status of one set or set partition and its pages
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class SetEntry {
+		private String id;
+		private String name;
+		private String title;
+		private String outcome;
+		private String error;
+		private int files;
+		private long records;
+		private Integer validRecords;
+		private Integer invalidRecords;
+		private String datestamp;
+		private String from;
+		private String until;
+		private long milliseconds;
+		private List<PageEntry> pages;
+
+		private SetEntry() {
+		}
+
+		private SetEntry(SetStatus status, List<PageEntry> pages) {
+			this(status.getId(), pages);
+
+			this.name = status.getName();
+			this.title = status.getTitle();
+			this.outcome = status.getOutcome();
+			this.error = status.getError();
+			this.files = Math.max(status.getFiles(), 0);
+			this.datestamp = status.getDatestamp();
+			this.from = status.getFrom();
+			this.until = status.getUntil();
+			this.milliseconds = status.getMilliseconds();
+
+			if (status.isValidated()) {
+				this.validRecords = status.getValidRecords();
+				this.invalidRecords = status.getInvalidRecords();
+			}
+		}
+
+		private SetEntry(String id, List<PageEntry> pages) {
+			this.id = id;
+			this.outcome = SetStatus.OUTCOME_UNFINISHED;
+			this.files = pages.size();
+			this.pages = new ArrayList<PageEntry>(pages);
+
+			Collections.sort(this.pages, new Comparator<PageEntry>() {
+				@Override
+				public int compare(PageEntry a, PageEntry b) {
+					return Integer.compare(a.getNumber(), b.getNumber());
+				}
+			});
+
+			for (PageEntry page : pages)
+				records += page.getRecords();
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getOutcome() {
+			return outcome;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		/**
+		 * Return number of the valid records
+		 * @return Integer - number of the records or null if the records have not been validated
+		 */
+		public Integer getValidRecords() {
+			return validRecords;
+		}
+
+		/**
+		 * Return number of the invalid records
+		 * @return Integer - number of the records or null if the records have not been validated
+		 */
+		public Integer getInvalidRecords() {
+			return invalidRecords;
+		}
+
+		public String getDatestamp() {
+			return datestamp;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public String getUntil() {
+			return until;
+		}
+
+		public long getMilliseconds() {
+			return milliseconds;
+		}
+
+		public List<PageEntry> getPages() {
+			return pages;
+		}
+	}
+
+	/**
+	 * Description of one harvested page
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class PageEntry {
+		private String set;
+		private int number;
+		private String key;
+		private Long offset;
+		private Long length;
+		private long size;
+		private String sha256;
+		private int records;
+		private int deleted;
+		private String firstIdentifier;
+		private String lastIdentifier;
+		private String minDatestamp;
+		private String maxDatestamp;
+		private String resumptionToken;
+		private int cursor;
+		private int completeListSize;
+
+		private PageEntry() {
+		}
+
+		public PageEntry(String set, int number, String key, long size, String sha256) {
+			this.set = set;
+			this.number = number;
+			this.key = key;
+			this.size = size;
+			this.sha256 = sha256;
+		}
+
+		/**
+		 * Set the records values, collected while the page has been parsed
+		 * @param response The page response processor
+		 */
+		public void setRecords(ResponseProcessor response) {
+			this.records = response.getRecords();
+			this.deleted = response.getDeleted();
+			this.firstIdentifier = response.getFirstIdentifier();
+			this.lastIdentifier = response.getLastIdentifier();
+			this.minDatestamp = response.getMinDatestamp();
+			this.maxDatestamp = response.getMaxDatestamp();
+		}
+
+		/**
+		 * Set the location of the stored page
+		 * @param key The key of the object, the page has been stored into or null if it is not known yet
+		 * @param offset The offset of the page in the segment or null
+		 * @param length The compressed length of the page in the segment or null
+		 */
+		public void setLocation(String key, Long offset, Long length) {
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Set the resumption values, returned in the page
+		 * @param token A resumption token or null, if this is the last page of the set
+		 * @param cursor A cursor
+		 * @param completeListSize A complete list size
+		 */
+		public void setResumption(String token, int cursor, int completeListSize) {
+			this.resumptionToken = token;
+			this.cursor = cursor;
+			this.completeListSize = completeListSize;
+		}
+
+		/**
+		 * Convert the entry into one line JSON
+		 * @return String
+		 * @throws IOException
+		 */
+		public String toLine() throws IOException {
+			return mapper.writeValueAsString(this);
+		}
+
+		/**
+		 * Parse the entry from one line JSON
+		 * @param line A line
+		 * @return PageEntry
+		 */
+		public static PageEntry fromLine(String line) {
+			try {
+				return mapper.readValue(line, PageEntry.class);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Invalid page entry: " + line);
+			}
+		}
+
+		public String getSet() {
+			return set;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Return the offset of the page in the segment
+		 * @return Long - the offset or null if the page has not been stored into a segment
+		 */
+		public Long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Return the compressed length of the page in the segment
+		 * @return Long - the length or null if the page has not been stored into a segment
+		 */
+		public Long getLength() {
+			return length;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getSha256() {
+			return sha256;
+		}
+
+		public int getRecords() {
+			return records;
+		}
+
+		public int getDeleted() {
+			return deleted;
+		}
+
+		public String getFirstIdentifier() {
+			return firstIdentifier;
+		}
+
+		public String getLastIdentifier() {
+			return lastIdentifier;
+		}
+
+		public String getMinDatestamp() {
+			return minDatestamp;
+		}
+
+		public String getMaxDatestamp() {
+			return maxDatestamp;
+		}
+
+		public String getResumptionToken() {
+			return resumptionToken;
+		}
+
+		public int getCursor() {
+			return cursor;
+		}
+
+		public int getCompleteListSize() {
+			return completeListSize;
+		}
+	}
+}
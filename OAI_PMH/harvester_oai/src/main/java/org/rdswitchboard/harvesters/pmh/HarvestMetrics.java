@@ -0,0 +1,445 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Metrics of one harvest.
+ *
+ * Every stage of the page processing is measured separately for the repository and for every
+ * set: fetch is the time until the server has returned the response headers, parse is the time 
+ * to receive, parse and buffer the response body, store is the time to write the page into every 
+ * sink. The pages, records, bytes, retries and errors are counted as well, so the stage, which 
+ * limits the throughput of the repository, could be found while the harvest is running.
+ * 
+ * The metrics are updated without locks and, after the set has been seen once, without memory
+ * allocation. The metrics could be exposed over JMX as {@code org.rdswitchboard.harvesters.pmh:type=HarvestMetrics,repository=<name>,harvest=<id>}
+ * with one extra bean for every set and could be written into the JSON file periodically. The harvest
+ * id is the start time and the number of the metrics instance, so several harvests of the same 
+ * repository could be registered in one JVM at once.
+ *
+ * @author dima
+ *
+ */
+public class HarvestMetrics {
+
+	public static final String STAGE_FETCH = "fetch";
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_STORE = "store";
+
+	private static final String JMX_DOMAIN = "org.rdswitchboard.harvesters.pmh";
+
+	private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	/**
+	 * Interface to read the current value, like the queue depth
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	private final String repository;
+	private final long started = System.nanoTime();
+	private final String startedAt = new DateTime().toString();
+	private final String harvest = startedAt + "#" + instances.incrementAndGet();
+
+	private final Counters total = new Counters(null);
+	private final Map<String, Counters> sets = new ConcurrentHashMap<String, Counters>();
+	private final Map<HarvestSink, Histogram> sinks = new ConcurrentHashMap<HarvestSink, Histogram>();
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	private boolean jmx;
+	private final List<ObjectName> names = new ArrayList<ObjectName>();
+	private volatile PrintStream out = System.out;
+	private ScheduledExecutorService reporter;
+	private File file;
+
+	/**
+	 * Construct harvest metrics
+	 * @param repository A repository name, will be used in the JMX names and in the metrics file
+	 */
+	public HarvestMetrics(String repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Register the repository metrics in the platform MBean server. The set metrics will be 
+	 * registered as soon as the first page of the set has been fetched.
+	 * @throws JMException
+	 */
+	public synchronized void registerJmx() throws JMException {
+		jmx = true;
+
+		register(total, null);
+		for (Map.Entry<String, Counters> entry : sets.entrySet())
+			register(entry.getValue(), entry.getKey());
+	}
+
+	/**
+	 * Write the metrics into the file periodically. The file will be replaced atomically, so 
+	 * it could be read by the monitoring tools at any time.
+	 * @param file A metrics file
+	 * @param interval Interval in seconds
+	 */
+	public synchronized void startReporting(File file, int interval) {
+		this.file = file;
+
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					save();
+				} catch (IOException e) {
+					out.println("Warning, unable to write metrics: " + e.getMessage());
+				}
+			}
+		}, interval, Math.max(interval, 1), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the reporting, write the final metrics into the file and unregister the JMX beans
+	 */
+	public synchronized void close() {
+		if (null != reporter) {
+			reporter.shutdownNow();
+			reporter = null;
+
+			try {
+				save();
+			} catch (IOException e) {
+				out.println("Warning, unable to write metrics: " + e.getMessage());
+			}
+		}
+
+		if (jmx) {
+			jmx = false;
+
+			// only the beans of this harvest, the other harvests of the repository could be still running
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (ObjectName name : names)
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					out.println("Warning, unable to unregister metrics " + name + ": " + e.getMessage());
+				}
+			
+			names.clear();
+		}
+	}
+
+	/**
+	 * Add the gauge, which will be reported with the repository metrics
+	 * @param name A gauge name
+	 * @param gauge A gauge
+	 */
+	public void addGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Record the time until the server has returned the response headers
+	 * @param set The set identifier or null
+	 * @param nanos Time in nanoseconds
+	 */
+	public void fetched(String set, long nanos) {
+		total.fetch.record(nanos);
+		Counters c = getSet(set);
+		if (null != c) 
+			c.fetch.record(nanos);
+	}
+
+	/**
+	 * Record the downloaded and parsed page
+	 * @param set The set identifier or null
+	 * @param nanos Time in nanoseconds to receive and parse the response body
+	 * @param bytes Page size
+	 * @param records Number of the records in the page
+	 */
+	public void parsed(String set, long nanos, long bytes, int records) {
+		total.parsed(nanos, bytes, records);
+		Counters c = getSet(set);
+		if (null != c) 
+			c.parsed(nanos, bytes, records);
+	}
+
+	/**
+	 * Record the page, stored into the sink
+	 * @param set The set identifier or null
+	 * @param sink The sink
+	 * @param nanos Time in nanoseconds
+	 */
+	public void stored(String set, HarvestSink sink, long nanos) {
+		total.store.record(nanos);
+		Counters c = getSet(set);
+		if (null != c) 
+			c.store.record(nanos);
+
+		Histogram h = sinks.get(sink);
+		if (null == h) 
+			synchronized (sinks) {
+				if (null == (h = sinks.get(sink)))
+					sinks.put(sink, h = new Histogram());
+			}
+		h.record(nanos);
+	}
+
+	/**
+	 * Count one retry of the request or of the write
+	 * @param set The set identifier or null
+	 */
+	public void retried(String set) {
+		total.retries.incrementAndGet();
+		Counters c = getSet(set);
+		if (null != c) 
+			c.retries.incrementAndGet();
+	}
+
+	/**
+	 * Count one failed set or write
+	 * @param set The set identifier or null
+	 */
+	public void failed(String set) {
+		total.errors.incrementAndGet();
+		Counters c = getSet(set);
+		if (null != c) 
+			c.errors.incrementAndGet();
+	}
+
+	public HarvestMetricsMXBean getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the metrics of the set
+	 * @param set The set identifier
+	 * @return HarvestMetricsMXBean - the metrics or null if nothing has been recorded for the set
+	 */
+	public HarvestMetricsMXBean getSetMetrics(String set) {
+		return sets.get(set);
+	}
+
+	/**
+	 * Convert the metrics into JSON
+	 * @return byte[] - JSON document
+	 * @throws IOException
+	 */
+	public byte[] toJson() throws IOException {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("repository", repository);
+		json.put("started", startedAt);
+		json.put("updated", new DateTime().toString());
+		json.put("seconds", elapsedSeconds());
+		json.put("total", total.toMap());
+
+		Map<String, Object> setMap = new TreeMap<String, Object>();
+		for (Map.Entry<String, Counters> entry : sets.entrySet())
+			setMap.put(entry.getKey(), entry.getValue().toMap());
+		json.put("sets", setMap);
+
+		return mapper.writeValueAsBytes(json);
+	}
+
+	private synchronized void save() throws IOException {
+		if (null == file)
+			return;
+
+		File tmp = new File(file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), toJson());
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Counters getSet(String set) {
+		if (null == set)
+			return null;
+
+		Counters c = sets.get(set);
+		if (null == c)
+			synchronized (this) {
+				if (null == (c = sets.get(set))) {
+					sets.put(set, c = new Counters(set));
+
+					if (jmx) 
+						try {
+							register(c, set);
+						} catch (JMException e) {
+							out.println("Warning, unable to register metrics of the set " + set + ": " + e.getMessage());
+						}
+				}
+			}
+
+		return c;
+	}
+
+	private void register(Counters counters, String set) throws JMException {
+		ObjectName name = new ObjectName(JMX_DOMAIN + ":type=HarvestMetrics,repository=" + ObjectName.quote(repository)
+				+ ",harvest=" + ObjectName.quote(harvest) + (null == set ? "" : ",set=" + ObjectName.quote(set)));
+
+		ManagementFactory.getPlatformMBeanServer().registerMBean(counters, name);
+		names.add(name);
+	}
+
+	private double elapsedSeconds() {
+		return Math.max(System.nanoTime() - started, 1) / 1e9;
+	}
+
+	private static void putLatency(Map<String, Double> map, String stage, Histogram h) {
+		map.put(stage + ".count", (double) h.getCount());
+		map.put(stage + ".mean", h.getMean() / 1e6);
+		map.put(stage + ".p50", h.getPercentile(0.5) / 1e6);
+		map.put(stage + ".p95", h.getPercentile(0.95) / 1e6);
+		map.put(stage + ".p99", h.getPercentile(0.99) / 1e6);
+		map.put(stage + ".max", h.getMax() / 1e6);
+	}
+
+	/**
+	 * Metrics of the repository or of one set
+	 */
+	private class Counters implements HarvestMetricsMXBean {
+		private final String set;
+		private final Histogram fetch = new Histogram();
+		private final Histogram parse = new Histogram();
+		private final Histogram store = new Histogram();
+		private final AtomicLong pages = new AtomicLong();
+		private final AtomicLong records = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong retries = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+
+		Counters(String set) {
+			this.set = set;
+		}
+
+		void parsed(long nanos, long size, int count) {
+			parse.record(nanos);
+			pages.incrementAndGet();
+			records.addAndGet(count);
+			bytes.addAndGet(size);
+		}
+
+		@Override
+		public long getPages() {
+			return pages.get();
+		}
+
+		@Override
+		public long getRecords() {
+			return records.get();
+		}
+
+		@Override
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		@Override
+		public long getRetries() {
+			return retries.get();
+		}
+
+		@Override
+		public long getErrors() {
+			return errors.get();
+		}
+
+		@Override
+		public double getPagesPerSecond() {
+			return pages.get() / elapsedSeconds();
+		}
+
+		@Override
+		public double getRecordsPerSecond() {
+			return records.get() / elapsedSeconds();
+		}
+
+		@Override
+		public double getBytesPerSecond() {
+			return bytes.get() / elapsedSeconds();
+		}
+
+		@Override
+		public Map<String, Double> getLatencies() {
+			Map<String, Double> map = new TreeMap<String, Double>();
+			putLatency(map, STAGE_FETCH, fetch);
+			putLatency(map, STAGE_PARSE, parse);
+			putLatency(map, STAGE_STORE, store);
+
+			// the sinks are shared by all sets
+			if (null == set)
+				for (Map.Entry<HarvestSink, Histogram> entry : sinks.entrySet())
+					putLatency(map, STAGE_STORE + "." + entry.getKey(), entry.getValue());
+
+			return map;
+		}
+
+		@Override
+		public Map<String, Long> getQueueDepths() {
+			if (null != set)
+				return Collections.emptyMap();
+
+			Map<String, Long> map = new TreeMap<String, Long>();
+			for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+				map.put(entry.getKey(), entry.getValue().getValue());
+
+			return map;
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("pages", getPages());
+			map.put("records", getRecords());
+			map.put("bytes", getBytes());
+			map.put("retries", getRetries());
+			map.put("errors", getErrors());
+			map.put("pagesPerSecond", getPagesPerSecond());
+			map.put("recordsPerSecond", getRecordsPerSecond());
+			map.put("bytesPerSecond", getBytesPerSecond());
+			map.put("latencies", getLatencies());
+			if (null == set)
+				map.put("queueDepths", getQueueDepths());
+			return map;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.util.Map;
+
+/**
+ * JMX view of the harvest metrics of the repository or of one set. 
+ * 
+ * The latencies are reported in milliseconds as {@code <stage>.<statistic>}, where the stage
+ * is fetch, parse, store or store.{@code <sink>} and the statistic is count, mean, p50, p95, 
+ * p99 or max.
+ *
+ * @author dima
+ *
+ */
+public interface HarvestMetricsMXBean {
+	long getPages();
+	long getRecords();
+	long getBytes();
+	long getRetries();
+	long getErrors();
+	double getPagesPerSecond();
+	double getRecordsPerSecond();
+	double getBytesPerSecond();
+	Map<String, Double> getLatencies();
+	Map<String, Long> getQueueDepths();
+}
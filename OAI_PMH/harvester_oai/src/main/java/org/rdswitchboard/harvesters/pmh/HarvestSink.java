@@ -0,0 +1,63 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface of the storage for the harvested pages and the harvester objects.
+ *
+ * The same page could be stored by several sinks at the same time, so the sink must not 
+ * release the page and must not change it. The objects, such as latest.txt, the high water 
+ * marks or the manifests, are small and will be written by the harvesting thread.
+ * 
+ * @author dima
+ *
+ */
+public interface HarvestSink extends Closeable {
+	
+	/**
+	 * Function to store the page under its key
+	 * @param page A page
+	 * @throws IOException
+	 */
+	void store(Page page) throws IOException;
+	
+	/**
+	 * Function to write small object
+	 * @param key An object key
+	 * @param bytes An object content
+	 * @param contentType An object content type
+	 * @throws IOException
+	 */
+	void write(String key, byte[] bytes, String contentType) throws IOException;
+	
+	/**
+	 * Function to read small object
+	 * @param key An object key
+	 * @return byte[] - object content or null if the object does not exist or could not be read
+	 * @throws IOException
+	 */
+	byte[] read(String key) throws IOException;
+	
+	/**
+	 * Function to check if object exists
+	 * @param key An object key
+	 * @return true if the object exists
+	 * @throws IOException
+	 */
+	boolean exists(String key) throws IOException;
+	
+	/**
+	 * Function to check if the failed page could be stored again. The sink, which could
+	 * have written a part of the page before the failure, must not be retried.
+	 * @return true if the store could be retried
+	 */
+	boolean isRetryable();
+	
+	/**
+	 * Function to delete object
+	 * @param key An object key
+	 * @throws IOException
+	 */
+	void delete(String key) throws IOException;
+}
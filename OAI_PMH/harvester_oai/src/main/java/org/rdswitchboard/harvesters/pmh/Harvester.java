@@ -1,50 +1,72 @@
 package org.rdswitchboard.harvesters.pmh;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
+import javax.management.JMException;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.Templates;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
-import jdk.nashorn.internal.runtime.regexp.joni.Warnings;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.util.StringUtils;
 
 /**	
@@ -72,12 +94,12 @@ import com.amazonaws.util.StringUtils;
  *   <Base Folder>/<Metadata Name>/<Set Name>/<Record Identifier>.xml
  * }
  * <p>
- * The library will also create an index for every set. The index file will be opened and 
- * closed automatically. The index will be used to track record timestamp and updated record
- * file if needed. The set index will be stored as:
+ * when the `records` output format is used. The library will also create an index for every set. 
+ * The index will be used to track record timestamp and hash and to update record file only if it 
+ * has been changed. The set index will be stored as buckets by the hash of the record identifier:
  * <p>
  * {@code 
- *   <Base Folder>/<Metadata Name>/<Set Name>.xml
+ *   <Base Folder>/<Metadata Name>/_index/<Set Name>/<xx>.tsv
  * }
  * <p>  
  * The library will cope outdated records in the cache before overwriting them. The cached files will 
@@ -128,55 +150,69 @@ import com.amazonaws.util.StringUtils;
  * @author Dmitrij Kudriavcev, dmitrij@kudriavcev.info
  * @version 1.1.1
  */
-public class Harvester {
+public class Harvester implements Closeable {
 	
 	private static final String URL_IDENTIFY = "?verb=Identify";
 	private static final String URL_LIST_METADATA_FORMATS = "?verb=ListMetadataFormats";
 	private static final String URL_LIST_SETS = "?verb=ListSets";
 	private static final String URL_LIST_RECORDS = "?verb=ListRecords&set=%s&metadataPrefix=%s";
 	private static final String URL_LIST_DEFAULT_RECORDS = "?verb=ListRecords&metadataPrefix=%s";
+	private static final String URL_FROM = "&from=%s";
+	private static final String URL_UNTIL = "&until=%s";
 	private static final String URL_LIST_RECORDS_RESUMPTION_TOKEN = "?verb=ListRecords&resumptionToken=%s";
 	private static final String URL_LIST_SETS_RESUMPTION_TOKEN = "?verb=ListSets&resumptionToken=%s";
 	
 	private static final String ERR_NO_RECORDS_MATCH = "noRecordsMatch";
+	private static final String ERR_BAD_RESUMPTION_TOKEN = "badResumptionToken";
+	
+	private static final String HIGH_WATER_MARKS = "marks.properties";
+	private static final String LATEST = "latest.txt";
+	private static final String LATEST_INCREMENTAL = "latest-incremental.txt";
+	private static final String BUFFER_FOLDER = ".tmp";
+	private static final String DISCOVERY_FOLDER = "_discovery";
+	
+	private static final String OUTPUT_PAGES = "pages";
+	private static final String OUTPUT_SEGMENTS = "segments";
+	private static final String OUTPUT_RECORDS = "records";
+	
+	private static final String STORE_SNAPSHOT = "snapshot";
+	private static final String STORE_CONTENT = "content";
+	
+	private static final int HTTP_NOT_MODIFIED = 304;
+	
+	private static final String QUARANTINE_FOLDER = "_quarantine";
+	private static final String QUARANTINE_REPORT = "report.tsv";
 	
-	private static XPathExpression XPATH_OAI_PMH;
-	private static XPathExpression XPATH_ERROR;
 	private static XPathExpression XPATH_REPOSITORY_NAME;
 	private static XPathExpression XPATH_PROTOCOL_VERSION;
 	private static XPathExpression XPATH_EARLEST_TIMESHTAMP;
 	private static XPathExpression XPATH_DELETED_RECORD;
 	private static XPathExpression XPATH_GRANULARITY;
 	private static XPathExpression XPATH_ADMIN_EMAIL;
+	private static XPathExpression XPATH_COMPRESSION;
 	private static XPathExpression XPATH_LIST_SETS;
 	private static XPathExpression XPATH_SET_NAME;
 	private static XPathExpression XPATH_SET_SPEC;
-	private static XPathExpression XPATH_RECORDS_RESUMPTION_TOKEN;
 	private static XPathExpression XPATH_SETS_RESUMPTION_TOKEN;
 	
-	private static String harvestDate;
 	
 	static {
 		XPath xPath = XPathFactory.newInstance().newXPath();
 		try {
 			XPATH_REPOSITORY_NAME = xPath.compile("/OAI-PMH/Identify/repositoryName/text()");
 			XPATH_PROTOCOL_VERSION = xPath.compile("/OAI-PMH/Identify/protocolVersion/text()");
-			XPATH_EARLEST_TIMESHTAMP = xPath.compile("/OAI-PMH/Identify/earliestTimestamp/text()");
+			XPATH_EARLEST_TIMESHTAMP = xPath.compile("/OAI-PMH/Identify/earliestDatestamp/text() | /OAI-PMH/Identify/earliestTimestamp/text()");
 			XPATH_DELETED_RECORD = xPath.compile("/OAI-PMH/Identify/deletedRecord/text()");
 			XPATH_GRANULARITY = xPath.compile("/OAI-PMH/Identify/granularity/text()");
 			XPATH_ADMIN_EMAIL = xPath.compile("/OAI-PMH/Identify/adminEmail/text()");
+			XPATH_COMPRESSION = xPath.compile("/OAI-PMH/Identify/compression");
 			
 			XPATH_LIST_SETS = xPath.compile("/OAI-PMH/ListSets/set");
 			XPATH_SET_NAME = xPath.compile("./setName/text()");
 			XPATH_SET_SPEC = xPath.compile("./setSpec/text()");
 
-			XPATH_OAI_PMH = xPath.compile("/OAI-PMH");
-			XPATH_ERROR = xPath.compile("./error");
-			XPATH_RECORDS_RESUMPTION_TOKEN = xPath.compile("./ListRecords/resumptionToken");
 			XPATH_SETS_RESUMPTION_TOKEN = xPath.compile("/OAI-PMH/ListSets/resumptionToken");
 			
-			harvestDate = new SimpleDateFormat("yyyy-MM-dd").format(DateTime.now().toDate());
-			
 		} catch (XPathExpressionException e) {
 			e.printStackTrace();
 		}
@@ -187,14 +223,13 @@ public class Harvester {
 	 */
 	private String repoUrl;
 	
-	private String bucketName;
-	private String folderName;
-	
 	private String repoPrefix;
 	
 	private String metadataPrefix;
 	
-	private final Map<String, SetStatus> processedSets = new HashMap<String, SetStatus>(); 
+	private String harvestDate = new SimpleDateFormat("yyyy-MM-dd").format(DateTime.now().toDate());
+	
+	private final Map<String, SetStatus> processedSets = new ConcurrentHashMap<String, SetStatus>(); 
 	
 	private DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 	
@@ -204,6 +239,7 @@ public class Harvester {
 	private String deletedRecord;
 	private String granularity;
 	private String adminEmail;
+	private final List<String> compression = new ArrayList<String>();
 	
 	private Set<String> blackList;
 	private Set<String> whiteList;
@@ -213,8 +249,95 @@ public class Harvester {
 	private int attemptDelay;
 	private int connectionTimeout;
 	private int readTimeout;
+	private volatile int setConcurrency;
+	private int storeQueueSize;
+	private int storeThreads;
+	private int pageBufferSize;
+	private File bufferFolder;
+	private boolean httpCompression;
+	
+	private HttpTransport transport;
+	private AsyncHttpTransport asyncTransport;
+	private volatile ScheduledExecutorService setScheduler;
+	private volatile ExecutorService storeExecutor;
+	private final Queue<SetStatus> waitingSets = new ConcurrentLinkedQueue<SetStatus>();
+	private int activeSets;
+	private RateLimiter rateLimiter;
+	private int attemptDelayMax;
+	private boolean incremental;
+	private boolean incrementalRun;
+	private String incrementalBase;
+	
+	private final HighWaterMarks highWaterMarks = new HighWaterMarks();
+	
+	private boolean checkpoint;
+	private String checkpointFile;
+	private CheckpointJournal journal;
+	
+	private String outputFormat;
+	private ContentStore contentStore;
+	private long segmentMaxSize;
+	private int segmentMaxPages;
+	private RecordStore recordStore;
+	
+	private boolean writeManifest;
+	private volatile HarvestManifest harvestManifest;
+	
+	private final List<RecordListener> recordListeners = new ArrayList<RecordListener>();
+	private int recordQueueSize;
+	private boolean recordMetadata;
+	private volatile RecordPublisher recordPublisher;
+	
+	private boolean validate;
+	private String validationSchema;
+	private SchemaCache schemaCache;
+	private int validationThreads;
+	private int validationQueueSize;
+	private volatile ValidationStage validationStage;
+	private final Queue<String> quarantineReport = new ConcurrentLinkedQueue<String>();
+	
+	private boolean export;
+	private boolean exportJsonl;
+	private boolean exportColumns;
+	private String exportCrosswalk;
+	private final CrosswalkCache crosswalkCache = new CrosswalkCache();
+	private int exportThreads;
+	private int exportQueueSize;
+	private volatile ExportStage exportStage;
 	
-	private AmazonS3 s3client;
+	private HarvestMetrics metrics;
+	private boolean metricsJmx;
+	private String metricsFile;
+	private int metricsInterval;
+	
+	private DiscoveryCache discoveryCache;
+	private volatile DiscoveryCache.Entry staleSets;
+	private final Set<String> knownSets = Collections.synchronizedSet(new HashSet<String>());
+	private final Set<String> removedSets = Collections.synchronizedSet(new HashSet<String>());
+	
+	private int adminPort;
+	private String adminToken;
+	private AdminServer adminServer;
+	private volatile boolean paused;
+	private final Object pauseLock = new Object();
+	private final List<AsyncSetHarvest> pausedSets = new ArrayList<AsyncSetHarvest>();
+	private final AtomicInteger drainedSets = new AtomicInteger();
+	
+	private int partitionWindows;
+	private int partitionMaxSize;
+	private long partitionEnd;
+	
+	private final AtomicBoolean aborted = new AtomicBoolean();
+	private final AtomicInteger pendingSets = new AtomicInteger();
+	private final AtomicReference<Exception> setError = new AtomicReference<Exception>();
+	private final List<SetStatus> harvestedSets = Collections.synchronizedList(new ArrayList<SetStatus>());
+	private volatile ExecutorService setExecutor;
+	
+	private final List<HarvestSink> sinks = new ArrayList<HarvestSink>();
+	// the harvester messages, the standard error if the pages are written into the standard output
+	private PrintStream out = System.out;
+	private final List<Integer> sinkThreads = new ArrayList<Integer>();
+	private SinkQueue sinkQueue;
 	
 
 	
@@ -239,20 +362,86 @@ public class Harvester {
 			
 		metadataPrefix = properties.getProperty("metadata");
 		
-		String accessKey = properties.getProperty("aws.access.key");
-		String secretKey = properties.getProperty("aws.secret.key");
-		if (StringUtils.isNullOrEmpty(accessKey) || StringUtils.isNullOrEmpty(secretKey)) 
-			s3client = new AmazonS3Client(new InstanceProfileCredentialsProvider());
-		else
-			s3client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey)); 
+		metrics = new HarvestMetrics(repoPrefix);
+		metricsJmx = Boolean.parseBoolean(properties.getProperty("metrics.jmx", "true"));
+		metricsFile = properties.getProperty("metrics.file");
+		metricsInterval = Integer.parseInt(properties.getProperty("metrics.interval", "60"));
+		adminPort = Integer.parseInt(properties.getProperty("admin.port", "-1"));
+		adminToken = properties.getProperty("admin.token");
+		
+		String bucketName = properties.getProperty("s3.bucket");
+		String folderName = properties.getProperty("folder");
+		String pipeName = properties.getProperty("pipe");
+		
+		// the standard output will be used by the pipe, so the messages will be printed into the standard error
+		if ("-".equals(pipeName))
+			out = System.err;
+		metrics.setOut(out);
+		crosswalkCache.setOut(out);
+		
+		// the cache will be kept together with the harvested files, if they are stored in the folder
+		if (Boolean.parseBoolean(properties.getProperty("discovery.cache", "false"))) {
+			discoveryCache = new DiscoveryCache(new File(properties.getProperty("discovery.cache.folder", 
+					StringUtils.isNullOrEmpty(folderName) ? DISCOVERY_FOLDER : new File(folderName, DISCOVERY_FOLDER).getPath())), repoUrl, 
+					Long.parseLong(properties.getProperty("discovery.cache.ttl", "86400")) * 1000);
+			discoveryCache.setOut(out);
+		}
+		
+		if (StringUtils.isNullOrEmpty(bucketName) && StringUtils.isNullOrEmpty(folderName) && StringUtils.isNullOrEmpty(pipeName))
+			throw new IllegalArgumentException("Please enter local folder name, AWS S3 Bucket name or pipe to store the harvested files");
+		
+		// the pages will be written by several sinks, the buffered pages could be moved only if the folder is the only sink
+		boolean singleSink = (StringUtils.isNullOrEmpty(bucketName) ? 0 : 1) + (StringUtils.isNullOrEmpty(folderName) ? 0 : 1) 
+				+ (StringUtils.isNullOrEmpty(pipeName) ? 0 : 1) == 1;
+		int queueSize = Integer.parseInt(properties.getProperty("sink.queue.size", properties.getProperty("s3.upload.queue.size", "16")));
+		int sinkAttempts = Integer.parseInt(properties.getProperty("sink.attempts", properties.getProperty("s3.upload.attempts", "3")));
+		
+		if (!StringUtils.isNullOrEmpty(folderName)) {
+			sinks.add(new FolderSink(new File(folderName), singleSink));
+			sinkThreads.add(1);
+			
+			// the buffered pages will be moved into the folder, so they should be on the same file system
+			bufferFolder = new File(folderName, BUFFER_FOLDER);
+			bufferFolder.mkdirs();
+		}
+		
+		if (!StringUtils.isNullOrEmpty(bucketName)) {
+			AmazonS3 s3client;
+			String accessKey = properties.getProperty("aws.access.key");
+			String secretKey = properties.getProperty("aws.secret.key");
+			if (StringUtils.isNullOrEmpty(accessKey) || StringUtils.isNullOrEmpty(secretKey)) 
+				s3client = new AmazonS3Client(new InstanceProfileCredentialsProvider());
+			else
+				s3client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey)); 
+			
+			int uploadThreads = Integer.parseInt(properties.getProperty("s3.upload.threads", "4"));
+			sinks.add(new S3Sink(s3client, bucketName, 
+					Long.parseLong(properties.getProperty("s3.multipart.threshold", "16777216")), uploadThreads));
+			sinkThreads.add(uploadThreads);
+			
+			// without upload threads, the only bucket will be written by the harvesting thread
+			if (singleSink && uploadThreads <= 0)
+				queueSize = 0;
+		}
 		
-		bucketName = properties.getProperty("s3.bucket");
-		folderName = properties.getProperty("folder");
+		if (!StringUtils.isNullOrEmpty(pipeName)) {
+			OutputStream pipe;
+			if (pipeName.equals("-")) 
+				pipe = new FileOutputStream(FileDescriptor.out);
+			else
+				pipe = new FileOutputStream(pipeName);
+			
+			sinks.add(new PipeSink(pipe));
+			sinkThreads.add(1);
+		}
 		
-		if (StringUtils.isNullOrEmpty(bucketName) && StringUtils.isNullOrEmpty(folderName))
-			throw new IllegalArgumentException("Please enter either local folder name or AWS S3 Bucket name to store the harvested files");
-		if (!StringUtils.isNullOrEmpty(bucketName) && !StringUtils.isNullOrEmpty(folderName))
-			throw new IllegalArgumentException("S3 bucket and local folder parameters can not be used at the same time. Please disable one in the configuration file.");
+		if (!singleSink || (queueSize > 0 && sinks.get(0) instanceof S3Sink)) {
+			sinkQueue = new SinkQueue(queueSize, sinkAttempts, Integer.parseInt(properties.getProperty("attempt.delay", "0")));
+			for (int i = 0; i < sinks.size(); ++i)
+				sinkQueue.addSink(sinks.get(i), sinkThreads.get(i));
+			sinkQueue.setMetrics(metrics);
+			sinkQueue.setOut(out);
+		}
 		
 		try {
 			File fileBlackList = new File(properties.getProperty("black.list"));
@@ -291,7 +480,100 @@ public class Harvester {
 		readTimeout = Integer.parseInt(properties.getProperty("read.timeout", "0"));
 		maxAttempts = Integer.parseInt(properties.getProperty("max.attempts", "0"));
 		attemptDelay = Integer.parseInt(properties.getProperty("attempt.delay", "0"));
+		attemptDelayMax = Integer.parseInt(properties.getProperty("attempt.delay.max", "60000"));
+		incremental = Boolean.parseBoolean(properties.getProperty("incremental", "false"));
+		checkpoint = Boolean.parseBoolean(properties.getProperty("checkpoint", "false"));
+		// the journal will be kept next to the harvested files, if they are stored in the folder
+		checkpointFile = properties.getProperty("checkpoint.file");
+		if (StringUtils.isNullOrEmpty(checkpointFile))
+			checkpointFile = StringUtils.isNullOrEmpty(folderName) ? repoPrefix + "_" + metadataPrefix + ".journal" 
+					: new File(folderName, repoPrefix + "_" + metadataPrefix + ".journal").getPath();
 		failOnError = Boolean.parseBoolean(properties.getProperty("fail.on.error", "true"));
+		setConcurrency = Integer.parseInt(properties.getProperty("set.concurrency", "1"));
+		partitionWindows = Integer.parseInt(properties.getProperty("partition.windows", "0"));
+		partitionMaxSize = Integer.parseInt(properties.getProperty("partition.max.size", "0"));
+		storeQueueSize = Integer.parseInt(properties.getProperty("store.queue.size", "2"));
+		storeThreads = Integer.parseInt(properties.getProperty("store.threads", "4"));
+		pageBufferSize = Integer.parseInt(properties.getProperty("page.buffer.size", "1048576"));
+		outputFormat = properties.getProperty("output.format", OUTPUT_PAGES);
+		if (!OUTPUT_PAGES.equals(outputFormat) && !OUTPUT_SEGMENTS.equals(outputFormat) && !OUTPUT_RECORDS.equals(outputFormat))
+			throw new IllegalArgumentException("Unknown output format: " + outputFormat + ". Please use either `pages`, `segments` or `records`");
+		segmentMaxSize = Long.parseLong(properties.getProperty("segment.max.size", "67108864"));
+		segmentMaxPages = Integer.parseInt(properties.getProperty("segment.max.pages", "1000"));
+		writeManifest = Boolean.parseBoolean(properties.getProperty("manifest", "true"));
+		recordQueueSize = Integer.parseInt(properties.getProperty("listener.queue.size", "1000"));
+		recordMetadata = Boolean.parseBoolean(properties.getProperty("listener.metadata", "true"));
+		validate = Boolean.parseBoolean(properties.getProperty("validate", "false"));
+		validationSchema = properties.getProperty("validation.schema");
+		String validationCatalog = properties.getProperty("validation.catalog");
+		schemaCache = new SchemaCache(StringUtils.isNullOrEmpty(validationCatalog) ? null : new File(validationCatalog));
+		schemaCache.setOut(out);
+		validationThreads = Integer.parseInt(properties.getProperty("validation.threads", "2"));
+		validationQueueSize = Integer.parseInt(properties.getProperty("validation.queue.size", "16"));
+		export = Boolean.parseBoolean(properties.getProperty("export", "false"));
+		for (String exportFormat : properties.getProperty("export.formats", ExportStage.FORMAT_JSONL + "," + ExportStage.FORMAT_COLUMNS).split(",")) {
+			exportFormat = exportFormat.trim();
+			if (ExportStage.FORMAT_JSONL.equals(exportFormat))
+				exportJsonl = true;
+			else if (ExportStage.FORMAT_COLUMNS.equals(exportFormat))
+				exportColumns = true;
+			else if (!exportFormat.isEmpty())
+				throw new IllegalArgumentException("Unknown export format: " + exportFormat + ". Please use either `jsonl` or `columns`");
+		}
+		exportCrosswalk = properties.getProperty("export.crosswalk." + metadataPrefix, properties.getProperty("export.crosswalk"));
+		exportThreads = Integer.parseInt(properties.getProperty("export.threads", "2"));
+		exportQueueSize = Integer.parseInt(properties.getProperty("export.queue.size", "16"));
+		
+		String storeMode = properties.getProperty("store.mode", STORE_SNAPSHOT);
+		if (STORE_CONTENT.equals(storeMode))
+			contentStore = new ContentStore(repoPrefix + "/" + metadataPrefix + "/" + ContentStore.BLOBS);
+		else if (!STORE_SNAPSHOT.equals(storeMode))
+			throw new IllegalArgumentException("Unknown store mode: " + storeMode + ". Please use either `snapshot` or `content`");
+		
+		if (OUTPUT_RECORDS.equals(outputFormat)) {
+			if (null != contentStore)
+				throw new IllegalArgumentException("The `records` output format will store only the changed records and can not be used with the `content` store mode");
+			
+			recordStore = new RecordStore(new RecordStore.Storage() {
+				@Override
+				public byte[] read(String key) throws IOException {
+					return readObject(key);
+				}
+
+				@Override
+				public void write(String key, byte[] bytes, String contentType) throws IOException {
+					writeObject(key, bytes, contentType);
+				}
+
+				@Override
+				public void delete(String key) throws IOException {
+					deleteObject(key);
+				}
+			}, repoPrefix + "/" + metadataPrefix, 
+					Integer.parseInt(properties.getProperty("records.index.digits", "2")),
+					Integer.parseInt(properties.getProperty("records.index.flush", "10")));
+		}
+		httpCompression = Boolean.parseBoolean(properties.getProperty("http.compression", "true"));
+		
+		String transportName = properties.getProperty("http.transport", "pooled");
+		int maxConnections = Integer.parseInt(properties.getProperty("http.max.connections", 
+				Integer.toString(Math.max(setConcurrency, 1) * 2)));
+		if (transportName.equals("pooled")) 
+			transport = new PooledHttpTransport(connectionTimeout, readTimeout, maxConnections);
+		else if (transportName.equals("async")) 
+			transport = asyncTransport = new AsyncHttpTransport(connectionTimeout, readTimeout, maxConnections, pageBufferSize);
+		else if (transportName.equals("url"))
+			transport = new UrlConnectionTransport(connectionTimeout, readTimeout);
+		else
+			throw new IllegalArgumentException("Unknown HTTP transport: " + transportName + ". Please use either `pooled`, `async` or `url`");
+		
+		String host = new URL(repoUrl).getHost();
+		double requestRate = Double.parseDouble(properties.getProperty("rate.requests", "0"));
+		double byteRate = Double.parseDouble(properties.getProperty("rate.bytes", "0"));
+		if (Boolean.parseBoolean(properties.getProperty("rate.shared", "false")))
+			rateLimiter = RateLimiter.forHost(host, requestRate, byteRate, out);
+		else
+			rateLimiter = new RateLimiter(host, requestRate, byteRate);
 		
 	}
 
@@ -337,7 +619,26 @@ public class Harvester {
 	 */
 	public String getAdminEmail() { return adminEmail; }	
 	
+	/**
+	 * Return list of compression encodings, supported by the repository (available after calling identify() function).
+	 * @return {@code List<String>} - compression encodings
+	 */
+	public List<String> getCompression() { return compression; }
+	
 	public String getMetadataPrefix() { return metadataPrefix; }
+	
+	/**
+	 * Function to add the listener, which will receive every harvested record while the 
+	 * harvesting is still running. The listeners should be added before calling harvest() function.
+	 * @param listener A record listener
+	 */
+	public void addRecordListener(RecordListener listener) { recordListeners.add(listener); }
+	
+	/**
+	 * Return the harvest metrics
+	 * @return HarvestMetrics
+	 */
+	public HarvestMetrics getMetrics() { return metrics; }
 
 	
 	/**
@@ -349,7 +650,7 @@ public class Harvester {
 		String url =  repoUrl + URL_IDENTIFY;
 		
 		try {
-			Document doc = dbf.newDocumentBuilder().parse(url);
+			Document doc = requestDiscovery(DiscoveryCache.VERB_IDENTIFY, url);
 			
 			repositoryName = (String) XPATH_REPOSITORY_NAME.evaluate(doc, XPathConstants.STRING);
 			protocolVersion = (String) XPATH_PROTOCOL_VERSION.evaluate(doc, XPathConstants.STRING);
@@ -358,6 +659,15 @@ public class Harvester {
 			granularity = (String) XPATH_GRANULARITY.evaluate(doc, XPathConstants.STRING);
 			adminEmail = (String) XPATH_ADMIN_EMAIL.evaluate(doc, XPathConstants.STRING);
 			
+			compression.clear();
+			NodeList list = (NodeList) XPATH_COMPRESSION.evaluate(doc, XPathConstants.NODESET);
+			for (int i = 0; i < list.getLength(); ++i)
+				compression.add(list.item(i).getTextContent().trim());
+			
+			// only request the compression, the repository has declared
+			if (httpCompression)
+				transport.setCompression(compression);
+			
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -374,7 +684,7 @@ public class Harvester {
 		String url =  repoUrl + URL_LIST_METADATA_FORMATS;
 		
 		try {
-			Document doc = dbf.newDocumentBuilder().parse(url);
+			Document doc = requestDiscovery(DiscoveryCache.VERB_LIST_METADATA_FORMATS, url);
 			
 			return MetadataFormat.getMetadataFormats(doc);
 		} catch (Exception e) {
@@ -385,53 +695,271 @@ public class Harvester {
 	}
 	
 	/**
-	 * Function to list sets
-	 * @return Map<String, String> where Key is set name and Value is set specification
+	 * Function to list sets. The cached list will be used, if it is still fresh, or if the 
+	 * list could not be downloaded.
+	 * @return Map<String, String> where Key is set specification and Value is set name or null if 
+	 * the list could not be downloaded
 	 */
 	public Map<String, String> listSets() {
-		String url =  null;
-		String tokenString = null;
+		DiscoveryCache.Entry cached = null == discoveryCache ? null : discoveryCache.get(DiscoveryCache.VERB_LIST_SETS);
+		if (null != cached && discoveryCache.isFresh(cached))
+			return DiscoveryCache.loadSets(cached.getContent());
+		
 		try {
-			Map<String, String> mapSets = new HashMap<String, String>();
+			return downloadSets(cached);
+		} catch (Exception e) {
+			e.printStackTrace();
+			
+			if (null != cached) {
+				out.println("Warning, unable to download the list of sets, the cached list will be used");
+				
+				return DiscoveryCache.loadSets(cached.getContent());
+			}
+		}		
+		
+		return null;
+	}
+	
+	/**
+	 * Function to download all pages of the set list. If the cached list has validators, the 
+	 * first page will be requested conditionally and the cached list will be returned, if the 
+	 * server has answered it has not been changed. The downloaded list will be cached.
+	 * @param cached The cached list or null
+	 * @return Map<String, String> where Key is set specification and Value is set name
+	 * @throws Exception if any page could not be downloaded
+	 */
+	private Map<String, String> downloadSets(DiscoveryCache.Entry cached) throws Exception {
+		Map<String, String> mapSets = new HashMap<String, String>();
+		String etag = null;
+		String lastModified = null;
+		String tokenString = null;
 
-			do {
-				if (tokenString==null){
-					url =  repoUrl + URL_LIST_SETS;
-				}else{
-					url = repoUrl + String.format(URL_LIST_SETS_RESUMPTION_TOKEN, URLEncoder.encode(tokenString, "UTF-8"));
-				}
-				Document doc = dbf.newDocumentBuilder().parse(url);
-				NodeList sets = (NodeList) XPATH_LIST_SETS.evaluate(doc, XPathConstants.NODESET);
-				for (int i = 0; i < sets.getLength(); i++) {
-					Node set = sets.item(i);
-					String setName = (String) XPATH_SET_NAME.evaluate(set, XPathConstants.STRING);
-					String setGroup = (String) XPATH_SET_SPEC.evaluate(set, XPathConstants.STRING);
-
-					if (mapSets.put(setGroup, setName) != null) {
-						System.out.println("Warning, the group already exists in the set: " + setGroup + " | " + setName);
-					}
+		do {
+			String url;
+			if (tokenString==null){
+				url =  repoUrl + URL_LIST_SETS;
+			}else{
+				url = repoUrl + String.format(URL_LIST_SETS_RESUMPTION_TOKEN, URLEncoder.encode(tokenString, "UTF-8"));
+			}
+			
+			Document doc;
+			try (HttpResponse response = request(url, null == tokenString && null != cached && cached.hasValidators() 
+					? cached.getConditionalHeaders() : null)) {
+				if (response.getStatusCode() == HTTP_NOT_MODIFIED) {
+					if (null == cached)
+						throw new HarvesterException("The server has answered with 304 to unconditional request");
+					
+					out.println("The list of sets has not been changed");
+					
+					discoveryCache.revalidated(DiscoveryCache.VERB_LIST_SETS, cached);
+					
+					return DiscoveryCache.loadSets(cached.getContent());
 				}
+				
+				if (null == tokenString) {
+					etag = response.getHeader("ETag");
+					lastModified = response.getHeader("Last-Modified");
+				}
+				
+				doc = dbf.newDocumentBuilder().parse(response.getContent(), url);
+			}
+			
+			NodeList sets = (NodeList) XPATH_LIST_SETS.evaluate(doc, XPathConstants.NODESET);
+			for (int i = 0; i < sets.getLength(); i++) {
+				Node set = sets.item(i);
+				String setName = (String) XPATH_SET_NAME.evaluate(set, XPathConstants.STRING);
+				String setGroup = (String) XPATH_SET_SPEC.evaluate(set, XPathConstants.STRING);
 
-				Node nodeToken = (Node)  XPATH_SETS_RESUMPTION_TOKEN.evaluate(doc, XPathConstants.NODE);
-				if (null != nodeToken && nodeToken instanceof Element) {
-					 tokenString = ((Element) nodeToken).getTextContent();
+				if (mapSets.put(setGroup, setName) != null) {
+					out.println("Warning, the group already exists in the set: " + setGroup + " | " + setName);
 				}
-			}while(null != tokenString && !tokenString.isEmpty());
+			}
 
-			return mapSets;						
-		} catch (Exception e) {
-			e.printStackTrace();
-		}		
+			// the last page could have no token at all
+			tokenString = null;
+			Node nodeToken = (Node)  XPATH_SETS_RESUMPTION_TOKEN.evaluate(doc, XPathConstants.NODE);
+			if (null != nodeToken && nodeToken instanceof Element) {
+				 tokenString = ((Element) nodeToken).getTextContent();
+			}
+		}while(null != tokenString && !tokenString.isEmpty());
 		
-		return null;
+		if (null != discoveryCache)
+			discoveryCache.put(DiscoveryCache.VERB_LIST_SETS, DiscoveryCache.saveSets(mapSets), etag, lastModified);
+
+		return mapSets;
+	}
+	
+	/**
+	 * Function to request the discovery document: Identify or ListMetadataFormats. The cached 
+	 * response will be used, if it is still fresh or if the server has answered it has not been 
+	 * changed. The stale response will also be used, if the repository could not be reached.
+	 * @param verb The OAI:PMH verb
+	 * @param url A request URL
+	 * @return Document - the response
+	 * @throws Exception
+	 */
+	private Document requestDiscovery(String verb, String url) throws Exception {
+		if (null == discoveryCache)
+			return requestDocument(url);
+		
+		DiscoveryCache.Entry cached = discoveryCache.get(verb);
+		if (null == cached || !discoveryCache.isFresh(cached))
+			try (HttpResponse response = request(url, null != cached && cached.hasValidators() 
+					? cached.getConditionalHeaders() : null)) {
+				if (response.getStatusCode() == HTTP_NOT_MODIFIED) {
+					if (null == cached)
+						throw new HarvesterException("The server has answered with 304 to unconditional request");
+					
+					cached = discoveryCache.revalidated(verb, cached);
+				} else {
+					byte[] content = IOUtils.toByteArray(response.getContent());
+					
+					// only the valid document will be cached
+					Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(content), url);
+					discoveryCache.put(verb, content, response.getHeader("ETag"), response.getHeader("Last-Modified"));
+					
+					return doc;
+				}
+			} catch (Exception e) {
+				if (null == cached)
+					throw e;
+				
+				out.println("Warning, unable to request " + verb + ", the cached response will be used: " + e.getMessage());
+			}
+		
+		return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(cached.getContent()), url);
+	}
+	
+	/**
+	 * Function to send the request to the repository and check the response status
+	 * @param url A request URL
+	 * @return HttpResponse - successful response with not empty content
+	 * @throws IOException
+	 * @throws HarvesterException if the server has returned an error
+	 */
+	private HttpResponse request(String url) throws IOException, HarvesterException, InterruptedException {
+		return request(url, null);
+	}
+	
+	/**
+	 * Function to send the request with additional headers to the repository and check the 
+	 * response status. The response with 304 status will be returned without content.
+	 * @param url A request URL
+	 * @param headers The request headers, could be null
+	 * @return HttpResponse - successful or not modified response
+	 * @throws IOException
+	 * @throws HarvesterException if the server has returned an error
+	 */
+	private HttpResponse request(String url, Map<String, String> headers) throws IOException, HarvesterException, InterruptedException {
+		rateLimiter.acquireRequest();
+		
+		HttpResponse response = transport.get(url, headers);
+		if (response.getStatusCode() == HTTP_NOT_MODIFIED) {
+			response.close();
+			
+			return response;
+		}
+		
+		response = checkResponse(response);
+		
+		if (rateLimiter.getByteRate() > 0)
+			return response.withContent(new ThrottledInputStream(response.getContent(), rateLimiter));
+		
+		return response;
+	}
+	
+	/**
+	 * Function to check the response status
+	 * @param response A response
+	 * @return HttpResponse - successful response with not empty content
+	 * @throws IOException
+	 * @throws HarvesterException if the server has returned an error
+	 */
+	private HttpResponse checkResponse(HttpResponse response) throws IOException, HarvesterException {
+		if (!response.isSuccess() || null == response.getContent()) {
+			response.close();
+			
+			if (response.getStatusCode() == 503 || response.getStatusCode() == 429) {
+				// flow control: the whole host should wait, not only this thread
+				long delay = RetryAfterException.parseRetryAfter(response.getHeader("Retry-After"));
+				if (delay > 0) 
+					rateLimiter.pause(delay);
+				
+				throw new RetryAfterException(Integer.toString(response.getStatusCode()), 
+						"The server has asked to retry " + (delay > 0 ? "in " + delay + " ms" : "later"), delay);
+			} else if (!response.isSuccess())
+				throw new HarvesterException(Integer.toString(response.getStatusCode()), "The server has returned HTTP error");
+			else
+				throw new HarvesterException("The XML document is empty");
+		}
+		
+		return response;
 	}
 	
+	private Document requestDocument(String url) throws Exception {
+		try (HttpResponse response = request(url)) {
+			return dbf.newDocumentBuilder().parse(response.getContent(), url);
+		}
+	}
+	
+	/**
+	 * Function to download and store the next page of the set records. The set status will be 
+	 * updated with new resumption token.
+	 * @param set A set status
+	 */
 	public void downloadRecords( SetStatus set ) throws 
 			HarvesterException, UnsupportedEncodingException, IOException, 
-			InterruptedException, XPathExpressionException, SAXException, 
-			ParserConfigurationException {
-
-		// Generate the URL of request
+			InterruptedException, XMLStreamException {
+		
+		Page page = fetchRecords(set);
+		if (null != page)
+			storePage(page);
+	}
+	
+	/**
+	 * Function to download the next page of the set records. The set status will be updated 
+	 * with new resumption token as soon as the page has been parsed, so the next page could
+	 * be requested before this one has been stored.
+	 * @param set A set status
+	 * @return Page - downloaded page or null if the set is empty
+	 */
+	public Page fetchRecords( SetStatus set ) throws 
+			HarvesterException, UnsupportedEncodingException, IOException, 
+			InterruptedException, XMLStreamException {
+		Page page = downloadPage(set);
+		if (null != page)
+			acceptPage(set, page);
+		
+		return page;
+	}
+	
+	/**
+	 * Function to download and parse the next page of the set records. The page will not be 
+	 * passed to the manifest, the listeners and the stages until {@link #acceptPage(SetStatus, Page)}.
+	 * @param set A set status
+	 * @return Page - downloaded page or null if the set is empty
+	 */
+	private Page downloadPage( SetStatus set ) throws 
+			HarvesterException, UnsupportedEncodingException, IOException, 
+			InterruptedException, XMLStreamException {
+		String url = getRecordsUrl(set);
+		
+		out.println("Downloading records: " + url);
+		
+		long start = System.nanoTime();
+		HttpResponse http = request(url);
+		metrics.fetched(set.getId(), System.nanoTime() - start);
+		
+		return processRecords(set, http);
+	}
+	
+	/**
+	 * Function to generate the URL of the next page of the set records
+	 * @param set A set status
+	 * @return String - request URL
+	 * @throws UnsupportedEncodingException
+	 */
+	private String getRecordsUrl( SetStatus set ) throws UnsupportedEncodingException {
 		String url = null; ;
 		if (set.hasToken()) {
 			try {
@@ -445,93 +973,153 @@ public class Harvester {
 				url = repoUrl + String.format(URL_LIST_DEFAULT_RECORDS, metadataPrefix);
 			else
 				url = repoUrl + String.format(URL_LIST_RECORDS,  URLEncoder.encode(set.getName(), "UTF-8"), metadataPrefix);
+			if (set.hasFrom())
+				url += String.format(URL_FROM, URLEncoder.encode(set.getFrom(), "UTF-8"));
+			if (set.hasUntil())
+				url += String.format(URL_UNTIL, URLEncoder.encode(set.getUntil(), "UTF-8"));
 		}
 		
-		System.out.println("Downloading records: " + url);
-		
-		String xml = null;
-		
-		// Get XML document 
-		URLConnection conn = new URL(url).openConnection();
-		if (connectionTimeout > 0)
-			conn.setConnectTimeout(connectionTimeout);
-		if (readTimeout > 0)
-			conn.setReadTimeout(readTimeout);
-		try (InputStream is = conn.getInputStream()) {
-	    	if (null != is) 
-	    		xml = IOUtils.toString(is, StandardCharsets.UTF_8.name()); 
-	    } 			    
-	    
-	    // Check if xml has been returned and check what it had a valid root element
-		if (null == xml) 
-			throw new HarvesterException("The XML document is empty");
-        		Document doc = dbf.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
-
-		// Extract root node
-		Node root = (Node) XPATH_OAI_PMH.evaluate(doc, XPathConstants.NODE);
-		if (null == root)
-			throw new HarvesterException("The document is not an OAI:PMH file");
-	
-		// Check for error node
-		Node error = (Node) XPATH_ERROR.evaluate(root, XPathConstants.NODE); 
-		if (null != error && error instanceof Element) {
-			String code = ((Element) error).getAttribute("code");
-			String message = ((Element) error).getTextContent();
-			
-			if (ERR_NO_RECORDS_MATCH.equals(code))
-			{
-				System.out.println("Error: The set is empty");
-
-				set.setFiles(0);
-				set.resetToken();
-				
-				return;
-			} else 
-				throw new HarvesterException (code, message);
+		return url;
+	}
+	
+	/**
+	 * Function to parse the page of the set records and to update the set status
+	 * @param set A set status
+	 * @param http The server response, will be closed
+	 * @return Page - downloaded page or null if the set is empty
+	 */
+	private Page processRecords( SetStatus set, HttpResponse http ) throws 
+			HarvesterException, IOException, XMLStreamException, InterruptedException {
+		long start = System.nanoTime();
+		ResponseProcessor response = new ResponseProcessor();
+		
+		// Stream the XML document into the page buffer, parsing and hashing it at the same time 
+		DeferredFileOutputStream buffer = new DeferredFileOutputStream(pageBufferSize, "page", ".xml", bufferFolder);
+		MessageDigest digest = null == harvestManifest ? null : ContentStore.newDigest();
+		try {
+			try {
+				response.process(http.getContent(), null == digest ? buffer : new DigestOutputStream(buffer, digest));
+			} finally {
+				http.close();
+				buffer.close();
+			}
+			
+			// Check what the document had a valid root element
+			if (!response.isOaiPmh())
+				throw new HarvesterException("The document is not an OAI:PMH file");
+		
+			// Check for error node
+			if (response.hasError()) {
+				if (ERR_NO_RECORDS_MATCH.equals(response.getErrorCode()))
+				{
+					out.println("Error: The set is empty");
+	
+					set.setFiles(0);
+					set.resetToken();
+					
+					discard(buffer);
+					
+					return null;
+				} else 
+					throw new HarvesterException (response.getErrorCode(), response.getErrorMessage());
+			}
+		} catch (IOException | XMLStreamException | HarvesterException e) {
+			discard(buffer);
+			
+			throw e;
 		}
 				
-		Node nodeToken = (Node) XPATH_RECORDS_RESUMPTION_TOKEN.evaluate(root, XPathConstants.NODE);
-				
-		if (null != nodeToken && nodeToken instanceof Element) {
-			String tokenString = ((Element) nodeToken).getTextContent();
-			if (null != tokenString && !tokenString.isEmpty())
-				set.setToken(tokenString);
+		set.updateDatestamp(response.getMaxDatestamp());
+		
+		if (response.isTokenFound()) {
+			if (!StringUtils.isNullOrEmpty(response.getToken()))
+				set.setToken(response.getToken());
 			else
 				set.resetToken();
 			
-			set.setCursor(((Element) nodeToken).getAttribute("cursor"));
-			set.setSize(((Element) nodeToken).getAttribute("completeListSize"));
+			set.setCursor(response.getCursor());
+			set.setSize(response.getCompleteListSize());
 			
-			set.dumpToken(System.out);
+			set.dumpToken(out);
 		} else
 			set.resetToken();
 		
 		
-		String filePath = repoPrefix + "/" + metadataPrefix + "/" + harvestDate + "/" + set.getNameSafe() + "/" + set.getFiles() + ".xml";
+		String filePath = repoPrefix + "/" + metadataPrefix + "/" + harvestDate + "/" + set.getId() + "/" + set.getFiles() + ".xml";
+		
+		set.incFiles();
+		
+		Page page = Page.fromBuffer(filePath, buffer);
+		page.setCheckpoint(Checkpoint.fromSet(set, filePath));
 		
-		if (StringUtils.isNullOrEmpty(bucketName)) {
+		metrics.parsed(set.getId(), System.nanoTime() - start, page.getSize(), response.getRecords());
+		
+		if (null != digest) {
+			HarvestManifest.PageEntry entry = new HarvestManifest.PageEntry(set.getId(), set.getFiles() - 1, 
+					filePath, page.getSize(), ContentStore.toHex(digest.digest()));
+			entry.setRecords(response);
+			entry.setResumption(set.getToken(), set.getCursor(), set.getSize());
+			
+			page.setEntry(entry);
+		}
+		
+		return page;
+	}
+	
+	/**
+	 * Function to pass the page, which is going to be stored, into the harvest manifest, the record 
+	 * listeners, the validation and the export stages. The manifest will list the page after it 
+	 * has been stored, see saveCheckpoint. The page of the partition, which will be split, 
+	 * must not be accepted, so its records will only be seen once, from the smaller partitions.
+	 * @param set A set status
+	 * @param page A downloaded page, will be released if it could not be accepted
+	 * @throws HarvesterException
+	 * @throws InterruptedException
+	 */
+	private void acceptPage( SetStatus set, Page page ) throws HarvesterException, InterruptedException {
+		try {
+			if (null != page.getEntry())
+				harvestManifest.acceptPage(page.getEntry());
 			
-			FileUtils.writeStringToFile(new File(folderName, filePath), xml);
+			if (null != recordPublisher)
+				recordPublisher.publish(set.getId(), page);
 			
-		} else {
-			byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+			if (null != validationStage)
+				validationStage.submit(set.getId(), page);
 			
-			ObjectMetadata metadata = new ObjectMetadata();
-	        metadata.setContentEncoding(StandardCharsets.UTF_8.name());
-	        metadata.setContentType("text/xml");
-	        metadata.setContentLength(bytes.length);
-	
-	        InputStream inputStream = new ByteArrayInputStream(bytes);
-	
-	        PutObjectRequest request = new PutObjectRequest(bucketName, filePath, inputStream, metadata);
+			if (null != exportStage)
+				exportStage.submit(set.getId(), page);
+		} catch (HarvesterException | InterruptedException e) {
+			page.release();
+			
+			throw e;
+		}
+	}
 	
-	        s3client.putObject(request);
+	/**
+	 * Function to write downloaded page into all sinks. The page bytes will be written as they 
+	 * have been received, the page buffered on the disk will be moved into the folder, if the 
+	 * folder is the only sink.
+	 * @param page A page to write
+	 * @throws IOException
+	 */
+	public void storePage( Page page ) throws IOException {
+		String set = null == page.getCheckpoint() ? null : page.getCheckpoint().getSet();
+		try {
+			for (HarvestSink sink : sinks) {
+				long start = System.nanoTime();
+				sink.store(page);
+				metrics.stored(set, sink, System.nanoTime() - start);
+			}
+		} finally {
+			page.release();
 		}
-		
-        set.incFiles();
 	}
 	
-
+	private static void discard(DeferredFileOutputStream buffer) {
+		if (!buffer.isInMemory())
+			buffer.getFile().delete();
+	}
 	
 	/**
 	 * Main function to organize the standard harvest process. The function will identify 
@@ -561,123 +1149,1757 @@ public class Harvester {
 		if (StringUtils.isNullOrEmpty(metadataPrefix))
 			throw new IllegalArgumentException("The OAI:PMH Metadata Prefix can not be empty");
 
-		System.out.println("Downloading set list");
-
-        boolean result=false;
-
-        if (null == whiteList || whiteList.isEmpty()) {
+		out.println("Downloading set list");
 
+		List<SetStatus> sets = new ArrayList<SetStatus>();
+		staleSets = null;
+		removedSets.clear();
 
-            System.out.println("There is no whitelist found. Proceeding with downloading the list of all available sets.");
+		if (null == whiteList || whiteList.isEmpty()) {
 
-            // download all sets in the repository
-            Map<String, String> mapSets = listSets();
+			out.println("There is no whitelist found. Proceeding with downloading the list of all available sets.");
 
-            if (null == mapSets || mapSets.isEmpty()) {
-                System.out.println("Processing default set");
-
-                result = harvestSet(new SetStatus(null, "Default"));
-            } else {
-
-                result = false;
-
-                for (Map.Entry<String, String> entry : mapSets.entrySet()) {
-
-                    SetStatus set = new SetStatus(entry.getKey().trim(), URLDecoder.decode(entry.getValue(), StandardCharsets.UTF_8.name()));
-
-                    // if black list exists and item is blacklisted, continue
-                    if (null != blackList && blackList.contains(set)) {
-                        set.setFiles(-2);
-                        saveSetStats(set); // set was ignored
-                        continue;
-                    }
-
-                    System.out.println("Processing set: " + URLDecoder.decode(entry.getValue(), StandardCharsets.UTF_8.name()));
-
-                    if (!harvestSet(set)) {
-                        System.err.println("The harvesting job has been aborted due to an error. If you want harvesting to be continued, please set option 'fail.on.error' to 'false' in the configuration file");
-                        result = false;
-                        break;
-                    } else
-                        result = true;
-                }
-
-            }
-        }else{
-            for (String item:whiteList
-                 ) {
-                if (!harvestSet(new SetStatus(item,item))) {
-                    System.err.println("The harvesting job has been aborted due to an error. If you want harvesting to be continued, please set option 'fail.on.error' to 'false' in the configuration file");
-                    result = false;
-                    break;
-                } else
-                    result = true;
-            }
-
-        }
-		if (result)
-		{
-			String filePath = repoPrefix + "/" + metadataPrefix + "/latest.txt";
-			
-			if (StringUtils.isNullOrEmpty(bucketName)) {
+			// the stale list of sets will be harvested, while the list is refreshing in background
+			Map<String, String> mapSets;
+			DiscoveryCache.Entry cached = null == discoveryCache ? null : discoveryCache.get(DiscoveryCache.VERB_LIST_SETS);
+			if (null != cached && !discoveryCache.isFresh(cached)) {
+				out.println("Using the cached list of sets from " + new DateTime(cached.getFetched()) 
+						+ ", the list will be refreshed in background");
 				
-				FileUtils.writeStringToFile(new File(folderName, filePath), harvestDate);
+				mapSets = DiscoveryCache.loadSets(cached.getContent());
+				staleSets = cached;
+			} else
+				// download all sets in the repository
+				mapSets = listSets();
 			
-			} else {				
-				
-				byte[] bytes = harvestDate.getBytes(StandardCharsets.UTF_8);
-				
-				ObjectMetadata metadata = new ObjectMetadata();
-		        metadata.setContentEncoding(StandardCharsets.UTF_8.name());
-		        metadata.setContentType("text/plain");
-		        metadata.setContentLength(bytes.length);
+			// the failed request must not turn into the harvest of the whole repository
+			if (null == mapSets)
+				throw new HarvesterException("Unable to download the list of sets. Please check the repository or use the white list");
+
+			knownSets.clear();
+			knownSets.addAll(mapSets.keySet());
+			
+			if (mapSets.isEmpty()) {
+				out.println("Processing default set");
+
+				sets.add(new SetStatus(null, "Default"));
+			} else 
+				sets.addAll(newSets(mapSets));
+		} else {
+			for (String item : whiteList)
+				sets.add(new SetStatus(item, item));
+		}
 		
-		        InputStream inputStream = new ByteArrayInputStream(bytes);
+		if (incremental) 
+			prepareIncremental(sets);
 		
-		        PutObjectRequest request = new PutObjectRequest(bucketName, filePath, inputStream, metadata);
+		// the resumed harvest must cut the same partition windows as the interrupted one
+		partitionEnd = System.currentTimeMillis() / 1000;
+		if (checkpoint)
+			openJournal();
 		
-		        s3client.putObject(request);
-			}
+		if (partitionWindows > 1 || partitionMaxSize > 0)
+			sets = partitionSets(sets);
+		
+		harvestedSets.clear();
+		harvestedSets.addAll(sets);
+		
+		List<SetStatus> pending = sets;
+		if (null != journal) {
+			pending = new ArrayList<SetStatus>();
+			for (SetStatus set : sets) 
+				if (!applyJournal(set))
+					pending.add(set);
 		}
 		
-        return result;
-	}
-	
-	private boolean harvestSet(SetStatus set) throws Exception {
-		long mark = System.currentTimeMillis();
+		if (null != contentStore)
+			prepareContentStore();
 		
-		do {
-			for (int nAttempt = 0; nAttempt <= maxAttempts; ++nAttempt)
-				try {
-					downloadRecords(set);
-					
-					break;
-				} catch (Exception e) {
-					// only for debug!
-					e.printStackTrace();
-					
-					if (nAttempt == maxAttempts) {
-						
-						System.err.println("Error: " + e.getMessage());
-						
-						set.setError(e.getMessage());
-						set.resetToken();
-						
-						break;
-					}
-					
-					Thread.sleep(attemptDelay);
-				}
-		} while (set.hasToken());		
-
-		set.setMilliseconds(System.currentTimeMillis() - mark);
-		saveSetStats(set);
-
-		if (failOnError && set.hasError())
-			return false; 
+		if (writeManifest)
+			prepareManifest();
 		
-		return true;
-	}
+		if (!recordListeners.isEmpty() && null == recordPublisher) {
+			recordPublisher = new RecordPublisher(recordListeners, recordQueueSize, recordMetadata);
+			recordPublisher.setOut(out);
+		}
+		
+		if (validate && null == validationStage) {
+			validationStage = newValidationStage();
+			validationStage.setOut(out);
+		}
+		
+		if (export && null == exportStage) {
+			exportStage = newExportStage();
+			exportStage.setOut(out);
+		}
+		
+		startMetrics();
+		
+		if (adminPort >= 0 && null == adminServer)
+			adminServer = new AdminServer(adminPort, adminToken, newAdminControl(), out);
+		
+		boolean result = pending.isEmpty() && null == staleSets ? !sets.isEmpty() : harvestSets(pending);
+		
+		// the drained sets will keep their progress in the journal, so the harvest is not complete
+		if (drainedSets.get() > 0) {
+			out.println("Warning, " + drainedSets.get() + " sets have been drained" 
+					+ (null == journal ? "" : " and could be resumed by the next harvest"));
+			
+			result = false;
+		}
+		
+		// all pages must be stored before the harvest will be published
+		if (null != sinkQueue)
+			sinkQueue.flush();
+		
+		// all records must be validated
+		if (null != validationStage)
+			saveValidation();
+		
+		// all records must be exported
+		if (null != exportStage) 
+			try {
+				exportStage.flush();
+			} catch (HarvesterException e) {
+				System.err.println("Error: " + e.getMessage());
+				
+				result = false;
+			}
+		
+		// and all records must be received by the listeners
+		if (null != recordPublisher) 
+			try {
+				recordPublisher.flush();
+			} catch (HarvesterException e) {
+				System.err.println("Error: " + e.getMessage());
+				
+				result = false;
+			}
+		
+		// the marks of the unfinished harvest must not change, until the journal will be resumed
+		if (incremental && (result || null == journal))
+			saveHighWaterMarks(new ArrayList<SetStatus>(harvestedSets));
+		
+		if (null != contentStore)
+			writeObject(repoPrefix + "/" + metadataPrefix + "/" + harvestDate + "/" + ContentStore.MANIFEST, 
+					contentStore.saveManifest(), "text/tab-separated-values");
+		
+		// the manifest must be in place before latest.txt will point to the new harvest
+		if (null != harvestManifest)
+			writeObject(repoPrefix + "/" + metadataPrefix + "/" + harvestDate + "/" + HarvestManifest.MANIFEST, 
+					harvestManifest.save(new ArrayList<SetStatus>(processedSets.values()), result), "application/json");
+		
+		// the incremental harvest holds only the changed records, so latest.txt will keep pointing to the full harvest
+		if (result)
+			writeObject(repoPrefix + "/" + metadataPrefix + "/" + (incrementalRun ? LATEST_INCREMENTAL : LATEST), 
+					harvestDate.getBytes(StandardCharsets.UTF_8), "text/plain");
+		
+		if (null != journal) {
+			if (result)
+				journal.delete();
+			else
+				journal.close();
+			
+			journal = null;
+		}
+		
+        return result;
+	}
+	
+	/**
+	 * Function to create the sets from the list of sets. The blacklisted sets will be ignored.
+	 * @param mapSets The sets, where Key is set specification and Value is set name
+	 * @return {@code List<SetStatus>} - list of sets
+	 * @throws UnsupportedEncodingException
+	 */
+	private List<SetStatus> newSets(Map<String, String> mapSets) throws UnsupportedEncodingException {
+		List<SetStatus> sets = new ArrayList<SetStatus>();
+		for (Map.Entry<String, String> entry : mapSets.entrySet()) {
+
+			SetStatus set = new SetStatus(entry.getKey().trim(), URLDecoder.decode(entry.getValue(), StandardCharsets.UTF_8.name()));
+
+			// if black list exists and item is blacklisted, continue
+			if (null != blackList && blackList.contains(set.getName())) {
+				set.setFiles(-2);
+				saveSetStats(set); // set was ignored
+				continue;
+			}
+
+			sets.add(set);
+		}
+		
+		return sets;
+	}
+	
+	/**
+	 * Function to open the checkpoint journal. If the journal has been left by the previous run, 
+	 * it will be replayed: the harvest date and the upper bound of the partition windows will 
+	 * be restored. The completed sets will be skipped and the unfinished sets will be resumed 
+	 * from their last stored page by applyJournal.
+	 * @throws IOException
+	 */
+	private void openJournal() throws IOException {
+		File file = new File(checkpointFile);
+		
+		journal = new CheckpointJournal(file);
+		journal.setOut(out);
+		if (journal.replay() && null != journal.getHarvestDate()) {
+			out.println("Resuming the harvest of " + journal.getHarvestDate() + " from the journal " 
+					+ file.getAbsolutePath() + ": " + journal.getCompletedCount() + " sets have been completed, " 
+					+ journal.getUnfinishedCount() + " sets will be resumed from their last stored page. Please delete the journal to start a new harvest.");
+			
+			harvestDate = journal.getHarvestDate();
+			if (journal.getPartitionEnd() > 0)
+				partitionEnd = journal.getPartitionEnd();
+		}
+		
+		journal.open(harvestDate, partitionEnd);
+	}
+	
+	/**
+	 * Function to restore the set progress from the journal
+	 * @param set A set
+	 * @return true if the set has been completed already
+	 */
+	private boolean applyJournal(SetStatus set) {
+		Checkpoint completed = journal.getCompleted(set.getId());
+		if (null != completed) {
+			out.println("Set " + set.getId() + " has been harvested already");
+			
+			completed.restore(set);
+			set.resetToken();
+			saveSetStats(set);
+			
+			return true;
+		}
+		
+		Checkpoint unfinished = journal.getUnfinished(set.getId());
+		if (null != unfinished && unfinished.hasToken()) {
+			out.println("Set " + set.getId() + " will be resumed from page " + unfinished.getFiles());
+			
+			unfinished.restore(set);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Function to split every set into datestamp windows from the repository earliest datestamp 
+	 * (or the set from date) until the harvest start, which will be kept in the journal. 
+	 * Every window will be harvested as an independent set. 
+	 * @param sets A list of sets
+	 * @return {@code List<SetStatus>} - list of set partitions
+	 */
+	private List<SetStatus> partitionSets(List<SetStatus> sets) {
+		List<SetStatus> partitions = new ArrayList<SetStatus>();
+		for (SetStatus set : sets) {
+			String start = set.hasFrom() ? set.getFrom() : earliestTimestamp;
+			try {
+				for (DateWindow window : DateWindow.partition(start, partitionEnd, Math.max(1, partitionWindows), granularity)) {
+					SetStatus partition = new SetStatus(set.getName(), set.getTitle());
+					partition.setWindow(window);
+					partitions.add(partition);
+				}
+			} catch (RuntimeException e) {
+				out.println("Warning, the set " + set.getNameSafe() + " could not be partitioned: " + e.getMessage());
+				
+				partitions.add(set);
+			}
+		}
+		
+		return partitions;
+	}
+	
+	/**
+	 * Function to load the blobs of the previous harvest, so the unchanged pages will not be 
+	 * stored again, and to restore the manifest entries of the resumed harvest from the journal.
+	 * @throws IOException
+	 */
+	private void prepareContentStore() throws IOException {
+		String date = readLatest(LATEST);
+		if (null != date) {
+			Map<String, String> manifest = ContentStore.loadManifest(
+					readObject(repoPrefix + "/" + metadataPrefix + "/" + date + "/" + ContentStore.MANIFEST));
+			
+			contentStore.addBlobs(manifest.values());
+			
+			out.println("Loaded " + manifest.size() + " pages of the previous harvest " + date);
+		}
+		
+		if (null != journal)
+			for (Map.Entry<String, String> entry : journal.getManifest().entrySet())
+				contentStore.putManifest(entry.getKey(), entry.getValue());
+	}
+	
+	/**
+	 * Function to create the harvest manifest and to restore the page entries of the resumed 
+	 * harvest from the journal.
+	 */
+	private void prepareManifest() {
+		harvestManifest = new HarvestManifest(harvestDate, repoUrl, metadataPrefix, outputFormat, 
+				null == contentStore ? STORE_SNAPSHOT : STORE_CONTENT);
+		if (incrementalRun)
+			harvestManifest.setIncremental(incrementalBase);
+		
+		if (null != journal)
+			for (HarvestManifest.PageEntry entry : journal.getSummaries())
+				harvestManifest.putPage(entry);
+	}
+	
+	/**
+	 * Function to register the queue depths, to expose the metrics over JMX and to start writing 
+	 * the metrics file
+	 */
+	private void startMetrics() {
+		if (null != sinkQueue)
+			metrics.addGauge("sink", new HarvestMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return sinkQueue.getPending();
+				}
+			});
+		
+		if (null != validationStage)
+			metrics.addGauge("validation", new HarvestMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return validationStage.getPending();
+				}
+			});
+		
+		if (null != exportStage)
+			metrics.addGauge("export", new HarvestMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return exportStage.getPending();
+				}
+			});
+		
+		if (null != recordPublisher)
+			metrics.addGauge("listener", new HarvestMetrics.Gauge() {
+				@Override
+				public long getValue() {
+					return recordPublisher.getQueued();
+				}
+			});
+		
+		if (metricsJmx)
+			try {
+				metrics.registerJmx();
+			} catch (JMException e) {
+				out.println("Warning, unable to register metrics: " + e.getMessage());
+			}
+		
+		if (!StringUtils.isNullOrEmpty(metricsFile))
+			metrics.startReporting(new File(metricsFile), metricsInterval);
+	}
+	
+	/**
+	 * Function to create the validation stage. The schema of the metadata format will be 
+	 * taken from the `validation.schema` parameter or from ListMetadataFormats response.
+	 * @return ValidationStage
+	 * @throws HarvesterException if the schema could not be found or loaded
+	 */
+	private ValidationStage newValidationStage() throws HarvesterException {
+		String schemaUrl = validationSchema;
+		if (StringUtils.isNullOrEmpty(schemaUrl)) {
+			List<MetadataFormat> formats = listMetadataFormats();
+			if (null != formats)
+				for (MetadataFormat format : formats)
+					if (metadataPrefix.equals(format.getMetadataPrefix()))
+						schemaUrl = format.getSchema();
+		}
+		
+		if (StringUtils.isNullOrEmpty(schemaUrl))
+			throw new HarvesterException("Unable to find the schema of the metadata format " + metadataPrefix 
+					+ ". Please enter `validation.schema` parameter");
+		
+		final String quarantinePrefix = repoPrefix + "/" + metadataPrefix + "/" + QUARANTINE_FOLDER + "/" + harvestDate + "/";
+		
+		return new ValidationStage(schemaCache.getSchema(schemaUrl), validationThreads, validationQueueSize, 
+				new ValidationStage.Quarantine() {
+			@Override
+			public void quarantine(String set, String pageKey, Record record, String error) throws IOException {
+				String key = quarantinePrefix + set + "/" + URLEncoder.encode(record.getIdentifier(), "UTF-8") + ".xml";
+				writeObject(key, record.getXml(), "text/xml");
+				
+				quarantineReport.add(URLEncoder.encode(set, "UTF-8") + "\t" + URLEncoder.encode(record.getIdentifier(), "UTF-8") 
+						+ "\t" + pageKey + "\t" + error.replaceAll("\\s+", " ") + "\n");
+			}
+		});
+	}
+	
+	/**
+	 * Function to create the export stage. The crosswalk will be taken from the 
+	 * `export.crosswalk.<metadataPrefix>` or `export.crosswalk` parameter and will be compiled only once.
+	 * @return ExportStage
+	 * @throws HarvesterException if the crosswalk could not be compiled
+	 */
+	private ExportStage newExportStage() throws HarvesterException {
+		Templates crosswalk = StringUtils.isNullOrEmpty(exportCrosswalk) ? null 
+				: crosswalkCache.getTemplates(metadataPrefix, new File(exportCrosswalk));
+		
+		return new ExportStage(exportJsonl, exportColumns, crosswalk, exportThreads, exportQueueSize, 
+				new ExportStage.Output() {
+			@Override
+			public void write(String key, byte[] bytes, String contentType) throws IOException {
+				writeObject(key, bytes, contentType);
+			}
+		});
+	}
+	
+	/**
+	 * Function to wait until all pages have been validated, to save the validation result 
+	 * of every set and to write the quarantine report
+	 * @throws Exception
+	 */
+	private void saveValidation() throws Exception {
+		validationStage.flush();
+		
+		int invalid = 0;
+		for (SetStatus set : processedSets.values()) 
+			if (set.getFiles() > 0) {
+				set.setValidation(validationStage.getValid(set.getId()), validationStage.getInvalid(set.getId()));
+				invalid += set.getInvalidRecords();
+			}
+		
+		if (!quarantineReport.isEmpty()) {
+			StringBuilder report = new StringBuilder();
+			for (String line; null != (line = quarantineReport.poll()); )
+				report.append(line);
+			
+			writeObject(repoPrefix + "/" + metadataPrefix + "/" + QUARANTINE_FOLDER + "/" + harvestDate + "/" + QUARANTINE_REPORT, 
+					report.toString().getBytes(StandardCharsets.UTF_8), "text/tab-separated-values");
+		}
+		
+		if (invalid > 0)
+			out.println("Warning, " + invalid + " invalid records have been quarantined");
+	}
+	
+	/**
+	 * Function to set the `from` date for every set, which has been harvested before.
+	 * If the repository granularity or deleted record behavior makes incremental harvesting 
+	 * unsafe, all sets will be harvested in full.
+	 * @param sets A list of sets
+	 * @throws Exception
+	 */
+	private void prepareIncremental(List<SetStatus> sets) throws Exception {
+		incrementalRun = false;
+		incrementalBase = null;
+		
+		highWaterMarks.load(readObject(repoPrefix + "/" + metadataPrefix + "/" + HIGH_WATER_MARKS));
+		
+		String reason = HighWaterMarks.checkIncremental(granularity, deletedRecord);
+		if (null != reason) {
+			out.println("Warning, the repository will be harvested in full, because of " + reason);
+			
+			return;
+		}
+		
+		for (SetStatus set : sets) {
+			String from = HighWaterMarks.toFrom(highWaterMarks.getMark(set.getNameSafe()), granularity);
+			if (null != from) {
+				out.println("Set " + set.getNameSafe() + " will be harvested from " + from);
+				
+				set.setFrom(from);
+				
+				incrementalRun = true;
+			}
+		}
+		
+		// the marks have been moved by the latest harvest, full or incremental
+		if (incrementalRun) {
+			String full = readLatest(LATEST);
+			String delta = readLatest(LATEST_INCREMENTAL);
+			incrementalBase = null == full || null != delta && delta.compareTo(full) > 0 ? delta : full;
+		}
+	}
+	
+	/**
+	 * Function to read the date of the latest harvest
+	 * @param pointer The name of the pointer object, latest.txt or latest-incremental.txt
+	 * @return String - the harvest date or null if the pointer does not exist
+	 * @throws IOException
+	 */
+	private String readLatest(String pointer) throws IOException {
+		byte[] latest = readObject(repoPrefix + "/" + metadataPrefix + "/" + pointer);
+		return null == latest ? null : new String(latest, StandardCharsets.UTF_8).trim();
+	}
+	
+	/**
+	 * Function to store the latest datestamp of every successfully harvested set. 
+	 * The sets with errors will keep their old marks.
+	 * @param sets A list of sets
+	 * @throws Exception
+	 */
+	private void saveHighWaterMarks(List<SetStatus> sets) throws Exception {
+		// the partitions, replaced in the processed sets, have not been completed
+		Set<String> failed = new HashSet<String>();
+		for (SetStatus set : sets) 
+			if (processedSets.get(set.getId()) != set) 
+				failed.add(set.getNameSafe());
+		
+		highWaterMarks.advance(sets, failed);
+		
+		writeObject(repoPrefix + "/" + metadataPrefix + "/" + HIGH_WATER_MARKS, highWaterMarks.save(), "text/plain");
+	}
+	
+	/**
+	 * Function to read small object from the first sink, it could be read from
+	 * @param key An object key
+	 * @return byte[] - object content or null if the object does not exist
+	 * @throws IOException
+	 */
+	private byte[] readObject(String key) throws IOException {
+		for (HarvestSink sink : sinks) 
+			if (!(sink instanceof PipeSink))
+				return sink.read(key);
+		
+		return null;
+	}
+	
+	/**
+	 * Function to check if object exists in all sinks, which could be read. The pipe will be 
+	 * ignored, it could not report the objects, written by the previous harvests.
+	 * @param key An object key
+	 * @return true if the object exists, false if it is missing or there is no sink to read
+	 * @throws IOException
+	 */
+	private boolean objectExists(String key) throws IOException {
+		boolean exists = false;
+		for (HarvestSink sink : sinks) 
+			if (!(sink instanceof PipeSink)) {
+				if (!sink.exists(key))
+					return false;
+				
+				exists = true;
+			}
+		
+		return exists;
+	}
+	
+	/**
+	 * Function to delete object from all sinks
+	 * @param key An object key
+	 * @throws IOException
+	 */
+	private void deleteObject(String key) throws IOException {
+		for (HarvestSink sink : sinks) 
+			sink.delete(key);
+	}
+	
+	/**
+	 * Function to write small object into all sinks
+	 * @param key An object key
+	 * @param bytes An object content
+	 * @param contentType An object content type
+	 * @throws IOException
+	 */
+	private void writeObject(String key, byte[] bytes, String contentType) throws IOException {
+		for (HarvestSink sink : sinks) 
+			sink.write(key, bytes, contentType);
+	}
+	
+	/**
+	 * Function to harvest list of sets. If `set.concurrency` is greater than one, the sets 
+	 * will be harvested in parallel by a bounded pool of workers. Each set will use its own 
+	 * SetStatus object. If any set fails and `fail.on.error` is enabled, no new sets will be 
+	 * started and the sets in progress will be stopped after their current page.
+	 * @param sets A list of sets to harvest
+	 * @return true if all sets has been harvested without aborting the job
+	 * @throws Exception
+	 */
+	private boolean harvestSets(List<SetStatus> sets) throws Exception {
+		aborted.set(false);
+		
+		if (sets.isEmpty() && null == staleSets)
+			return false;
+		
+		int threads = Math.max(1, setConcurrency);
+		if (null != asyncTransport) {
+			// the threads will only parse and store the pages, the sets will wait for the server without them
+			out.println("Harvesting " + sets.size() + " sets asynchronously, up to " + threads + " sets at once");
+			
+			threads = Runtime.getRuntime().availableProcessors();
+			setScheduler = Executors.newSingleThreadScheduledExecutor();
+			storeExecutor = Executors.newFixedThreadPool(Math.max(1, storeThreads));
+		} else if (threads > 1)
+			out.println("Harvesting " + sets.size() + " sets using " + threads + " threads");
+		
+		setExecutor = Executors.newFixedThreadPool(threads);
+		setError.set(null);
+		try {
+			for (SetStatus set : sets)
+				scheduleSet(set);
+			
+			if (null != staleSets) {
+				refreshSets(staleSets);
+				
+				staleSets = null;
+			}
+			
+			// the sets could schedule more sets, if they will be partitioned
+			synchronized (pendingSets) {
+				while (pendingSets.get() > 0)
+					pendingSets.wait();
+			}
+		} finally {
+			setExecutor.shutdownNow();
+			setExecutor = null;
+			
+			if (null != setScheduler) {
+				setScheduler.shutdownNow();
+				setScheduler = null;
+			}
+			
+			if (null != storeExecutor) {
+				storeExecutor.shutdownNow();
+				storeExecutor = null;
+			}
+		}
+		
+		if (null != setError.get())
+			throw setError.get();
+		
+		return !aborted.get();
+	}
+	
+	/**
+	 * Function to schedule the set harvesting on the worker pool
+	 * @param set A set to harvest
+	 */
+	private void scheduleSet(final SetStatus set) {
+		pendingSets.incrementAndGet();
+		
+		if (null != asyncTransport) {
+			waitingSets.add(set);
+			startWaitingSets();
+			
+			return;
+		}
+		
+		setExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (aborted.get() || isRemoved(set))
+						return;
+					
+					out.println("Processing set: " + set.getTitle() 
+						+ (null == set.getWindow() ? "" : " " + set.getWindow()));
+
+					if (!harvestSet(set)) 
+						abort();
+				} catch (Exception e) {
+					setError.compareAndSet(null, e);
+					abort();
+				} finally {
+					completeSet();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Function to check if the set has been removed from the repository, while it has been 
+	 * waiting for harvesting. The removed set will not be harvested and will not be listed 
+	 * in the harvest.
+	 * @param set A set
+	 * @return true if the set should not be harvested
+	 */
+	private boolean isRemoved(SetStatus set) {
+		if (!set.hasName() || !removedSets.contains(set.getName()))
+			return false;
+		
+		out.println("The set " + set.getId() + " has been removed from the repository and will not be harvested");
+		
+		harvestedSets.remove(set);
+		
+		return true;
+	}
+	
+	/**
+	 * Function to download the list of sets in background and to schedule the sets, which have 
+	 * not been in the cached list. The sets, which have been removed from the list, will be 
+	 * dropped, if they have not been started yet. The harvest will not be completed until the 
+	 * list has been downloaded. If the list could not be downloaded, only the cached sets will 
+	 * be harvested.
+	 * @param cached The cached list
+	 */
+	private void refreshSets(final DiscoveryCache.Entry cached) {
+		pendingSets.incrementAndGet();
+		
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Map<String, String> downloaded = downloadSets(cached);
+					Map<String, String> added = new HashMap<String, String>();
+					for (Map.Entry<String, String> entry : downloaded.entrySet())
+						if (!knownSets.contains(entry.getKey()))
+							added.put(entry.getKey(), entry.getValue());
+					
+					// the repository without sets has been harvested as the default set 
+					if (downloaded.isEmpty() || knownSets.isEmpty() || aborted.get())
+						return;
+					
+					Set<String> removed = new HashSet<String>();
+					synchronized (knownSets) {
+						for (String set : knownSets)
+							if (!downloaded.containsKey(set))
+								removed.add(set);
+					}
+					
+					if (!removed.isEmpty()) {
+						out.println("Found " + removed.size() + " removed sets");
+						knownSets.removeAll(removed);
+						for (String set : removed)
+							removedSets.add(set.trim());
+					}
+					
+					if (added.isEmpty())
+						return;
+					
+					out.println("Found " + added.size() + " new sets");
+					knownSets.addAll(added.keySet());
+					
+					List<SetStatus> sets = newSets(added);
+					if (partitionWindows > 1 || partitionMaxSize > 0)
+						sets = partitionSets(sets);
+					
+					for (SetStatus set : sets) {
+						harvestedSets.add(set);
+						
+						if (null == journal || !applyJournal(set))
+							scheduleSet(set);
+					}
+				} catch (Exception e) {
+					out.println("Warning, unable to refresh the list of sets, only the cached sets will be harvested: " + e.getMessage());
+				} finally {
+					completeSet();
+				}
+			}
+		}, "set-refresh");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Function to count the set as completed and to notify the waiting harvest thread
+	 */
+	private void completeSet() {
+		if (pendingSets.decrementAndGet() == 0)
+			synchronized (pendingSets) {
+				pendingSets.notifyAll();
+			}
+	}
+	
+	/**
+	 * Function to start the asynchronous harvesting of the waiting sets, while the number 
+	 * of active sets is less than the set concurrency
+	 */
+	private void startWaitingSets() {
+		while (true) {
+			SetStatus set;
+			synchronized (waitingSets) {
+				if (activeSets >= Math.max(1, setConcurrency) || null == (set = waitingSets.poll()))
+					return;
+				
+				++activeSets;
+			}
+			
+			if (aborted.get() || isRemoved(set)) {
+				synchronized (waitingSets) {
+					--activeSets;
+				}
+				completeSet();
+			} else {
+				out.println("Processing set: " + set.getTitle() 
+					+ (null == set.getWindow() ? "" : " " + set.getWindow()));
+				
+				new AsyncSetHarvest(set).next();
+			}
+		}
+	}
+	
+	/**
+	 * Function to calculate delay before the next attempt. If the server has requested the delay 
+	 * with Retry-After header, it will be used. Otherwise the delay will grow exponentially 
+	 * from `attempt.delay` up to `attempt.delay.max`, with random jitter, so the parallel 
+	 * threads will not retry at the same time.
+	 * @param e An exception
+	 * @param nAttempt Number of failed attempt, starting from 0
+	 * @return long - delay in milliseconds
+	 */
+	private long retryDelay(Exception e, int nAttempt) {
+		if (e instanceof RetryAfterException && ((RetryAfterException) e).getDelay() > 0)
+			return ((RetryAfterException) e).getDelay();
+		
+		if (attemptDelay <= 0)
+			return 0;
+		
+		long delay = Math.min((long) attemptDelay << Math.min(nAttempt, 20), Math.max(attemptDelayMax, attemptDelay));
+		
+		return delay / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (delay / 2));
+	}
+	
+	/**
+	 * Function to split the set partition into two halves and schedule them for harvesting
+	 * @param set A set partition
+	 */
+	private void splitSet(SetStatus set) {
+		DateWindow[] windows = set.getWindow().split();
+		
+		out.println("The set " + set.getId() + " has " + set.getSize() 
+			+ " records, which is more than " + partitionMaxSize + ". The partition will be split.");
+		
+		harvestedSets.remove(set);
+		for (DateWindow window : windows) {
+			SetStatus partition = new SetStatus(set.getName(), set.getTitle());
+			partition.setWindow(window);
+			harvestedSets.add(partition);
+			
+			if (null == journal || !applyJournal(partition))
+				scheduleSet(partition);
+		}
+	}
+	
+	private void abort() {
+		if (aborted.compareAndSet(false, true))
+			System.err.println("The harvesting job has been aborted due to an error. If you want harvesting to be continued, please set option 'fail.on.error' to 'false' in the configuration file");
+		
+		// the paused sets must be stopped as well
+		resume();
+	}
+	
+	/**
+	 * Function to pause the harvesting. The pages, which are downloading, will be finished, 
+	 * but no new requests will be sent until the harvest will be resumed.
+	 */
+	public void pause() {
+		synchronized (pauseLock) {
+			paused = true;
+		}
+	}
+	
+	/**
+	 * Function to resume the paused harvesting
+	 */
+	public void resume() {
+		List<AsyncSetHarvest> waiting;
+		synchronized (pauseLock) {
+			paused = false;
+			pauseLock.notifyAll();
+			
+			waiting = new ArrayList<AsyncSetHarvest>(pausedSets);
+			pausedSets.clear();
+		}
+		
+		for (AsyncSetHarvest harvest : waiting)
+			harvest.next();
+	}
+	
+	/**
+	 * Function to wait while the harvesting is paused
+	 * @throws InterruptedException
+	 */
+	private void waitPaused() throws InterruptedException {
+		synchronized (pauseLock) {
+			while (paused)
+				pauseLock.wait();
+		}
+	}
+	
+	/**
+	 * Function to change number of the sets, harvested at once. The running sets will not be 
+	 * stopped, if the concurrency has been reduced, the next sets will wait until some of them 
+	 * will finish.
+	 * @param concurrency Number of the sets
+	 */
+	public void setConcurrency(int concurrency) {
+		setConcurrency = Math.max(concurrency, 1);
+		
+		ExecutorService executor = setExecutor;
+		if (null == asyncTransport && executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			if (setConcurrency > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(setConcurrency);
+				pool.setCorePoolSize(setConcurrency);
+			} else {
+				pool.setCorePoolSize(setConcurrency);
+				pool.setMaximumPoolSize(setConcurrency);
+			}
+		}
+		
+		if (null != asyncTransport)
+			startWaitingSets();
+	}
+	
+	/**
+	 * Function to stop the set after its current page. The set will keep its resumption token.
+	 * @param id The set identifier or the set name to drain all its partitions
+	 * @return boolean - true if the set has been found
+	 */
+	public boolean drain(String id) {
+		boolean found = false;
+		synchronized (harvestedSets) {
+			for (SetStatus set : harvestedSets)
+				if ((id.equals(set.getId()) || id.equals(set.getName())) && !processedSets.containsKey(set.getId())) {
+					set.drain();
+					found = true;
+				}
+		}
+		
+		return found;
+	}
+	
+	/**
+	 * Function to create the admin control of this harvester
+	 * @return AdminServer.Control
+	 */
+	private AdminServer.Control newAdminControl() {
+		return new AdminServer.Control() {
+			@Override
+			public Map<String, Object> getStatus() {
+				return getProgress();
+			}
+			
+			@Override
+			public void pause() {
+				Harvester.this.pause();
+			}
+			
+			@Override
+			public void resume() {
+				Harvester.this.resume();
+			}
+			
+			@Override
+			public void setRequestRate(double requestsPerSecond) {
+				rateLimiter.setRequestRate(requestsPerSecond);
+			}
+			
+			@Override
+			public void setByteRate(double bytesPerSecond) {
+				rateLimiter.setByteRate(bytesPerSecond);
+			}
+			
+			@Override
+			public void setConcurrency(int sets) {
+				Harvester.this.setConcurrency(sets);
+			}
+			
+			@Override
+			public boolean drain(String set) {
+				return Harvester.this.drain(set);
+			}
+		};
+	}
+	
+	/**
+	 * Function to report the progress of every set. The ETA of the running set will be derived 
+	 * from the cursor, the complete list size and the observed rate of the set records.
+	 * @return {@code Map<String, Object>} - the harvest progress
+	 */
+	public Map<String, Object> getProgress() {
+		Map<String, Object> progress = new LinkedHashMap<String, Object>();
+		progress.put("repository", repoPrefix);
+		progress.put("harvestDate", harvestDate);
+		progress.put("paused", paused);
+		progress.put("concurrency", setConcurrency);
+		progress.put("requestRate", rateLimiter.getRequestRate());
+		progress.put("byteRate", rateLimiter.getByteRate());
+		progress.put("recordsPerSecond", metrics.getTotal().getRecordsPerSecond());
+		progress.put("bytesPerSecond", metrics.getTotal().getBytesPerSecond());
+		
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		int active = 0;
+		synchronized (harvestedSets) {
+			for (SetStatus set : harvestedSets) {
+				Map<String, Object> entry = new LinkedHashMap<String, Object>();
+				entry.put("id", set.getId());
+				
+				String state;
+				if (processedSets.containsKey(set.getId()))
+					state = set.getOutcome();
+				else if (set.getStarted() > 0) {
+					state = set.isDrained() ? "draining" : paused ? "paused" : "running";
+					++active;
+				} else
+					state = set.isDrained() ? "draining" : "waiting";
+				entry.put("state", state);
+				
+				entry.put("files", Math.max(set.getFiles(), 0));
+				entry.put("cursor", set.getCursor());
+				entry.put("size", set.getSize());
+				if (set.getSize() > 0)
+					entry.put("percent", Math.min(100.0, 100.0 * set.getCursor() / set.getSize()));
+				
+				HarvestMetricsMXBean setMetrics = metrics.getSetMetrics(set.getId());
+				if (null != setMetrics) {
+					entry.put("records", setMetrics.getRecords());
+					
+					long elapsed = System.currentTimeMillis() - set.getStarted();
+					if ("running".equals(state) && elapsed > 0 && setMetrics.getPages() > 0) {
+						entry.put("pagesPerSecond", setMetrics.getPages() * 1000.0 / elapsed);
+						
+						// the cursor is the position of the first record of the last page
+						if (set.getSize() > 0 && setMetrics.getRecords() > 0)
+							entry.put("etaSeconds", Math.max(0, set.getSize() - set.getCursor()) 
+									* (elapsed / 1000.0) / setMetrics.getRecords());
+					}
+				}
+				
+				if (null != set.getError())
+					entry.put("error", set.getError());
+				
+				list.add(entry);
+			}
+		}
+		
+		progress.put("activeSets", active);
+		progress.put("sets", list);
+		
+		return progress;
+	}
+	
+	private boolean harvestSet(final SetStatus set) throws Exception {
+		long mark = System.currentTimeMillis();
+		
+		boolean resumed = set.hasToken();
+		
+		final SinkQueue.Sequence uploads = newUploadSequence();
+		final SegmentWriter segments = newSegmentWriter();
+		final RecordStore.Session records = newRecordSession(set);
+		
+		// pages will be stored by a separate stage, while the next page is downloading
+		StoreStage store = new StoreStage("store-" + set.getId(), storeQueueSize, new StoreStage.Writer() {
+			@Override
+			public void write(Page page) throws Exception {
+				storeCheckpoint(page, uploads, segments, records);
+			}
+		});
+		
+		set.setStarted(mark);
+		
+		boolean drained = false;
+		try {
+			do {
+				waitPaused();
+				
+				if (aborted.get()) {
+					set.setError("The harvesting has been aborted");
+					
+					break;
+				}
+				
+				if (set.isDrained()) {
+					out.println("The set " + set.getId() + " has been drained");
+					
+					drainedSets.incrementAndGet();
+					drained = true;
+					
+					break;
+				}
+				
+				boolean firstPage = !set.hasToken();
+				
+				Page page = null;
+				for (int nAttempt = 0; nAttempt <= maxAttempts; ++nAttempt)
+					try {
+						page = downloadPage(set);
+						
+						break;
+					} catch (Exception e) {
+						// only for debug!
+						e.printStackTrace();
+						
+						if (resumed && isBadResumptionToken(e)) {
+							restartSet(set);
+							
+							resumed = false;
+							nAttempt = -1;
+							
+							continue;
+						}
+						
+						if (nAttempt == maxAttempts) {
+							
+							System.err.println("Error: " + e.getMessage());
+							
+							// keep the resumption token, so the set could be resumed from the failed page
+							set.setError(e.getMessage());
+							
+							break;
+						}
+						
+						long delay = retryDelay(e, nAttempt);
+						out.println("Retrying in " + delay + " ms");
+						
+						metrics.retried(set.getId());
+						
+						Thread.sleep(delay);
+					}
+				
+				if (set.hasError())
+					break;
+				
+				// the split must be decided before the page has been accepted
+				if (null != page && firstPage && isTooLarge(set)) {
+					page.release();
+					splitSet(set);
+					
+					return true;
+				}
+				
+				if (null != page) {
+					acceptPage(set, page);
+					store.put(page);
+				}
+				
+				resumed = false;
+			} while (set.hasToken());
+			
+			store.close();
+			
+			closeRecords(set, records);
+			
+			if (null != segments)
+				storeSegments(segments.close(), uploads);
+			
+			if (null != uploads)
+				uploads.await();
+			
+			if (null != journal && !set.hasError() && !drained)
+				journal.done(Checkpoint.fromSet(set, null));
+		} catch (HarvesterException e) {
+			System.err.println("Error: " + e.getMessage());
+			
+			set.setError(e.getMessage());
+		} finally {
+			store.cancel();
+			
+			if (null != segments)
+				segments.discard();
+		}
+
+		return finishSet(set, mark);
+	}
+	
+	/**
+	 * Function to store the page and to save the set progress in the journal
+	 * @param page A page
+	 * @param uploads A set upload sequence or null, if the pages should be stored immediately
+	 * @param segments A set segment writer or null, if the pages should be stored as separate files
+	 * @param records A set record session or null, if the pages should be stored as files
+	 * @throws Exception
+	 */
+	private void storeCheckpoint(Page page, SinkQueue.Sequence uploads, SegmentWriter segments, 
+			RecordStore.Session records) throws Exception {
+		if (null != records) {
+			// the progress will be saved after the record index has been written
+			Checkpoint checkpoint;
+			try {
+				checkpoint = records.store(page);
+				if (null != page.getEntry())
+					page.getEntry().setLocation(records.getKey(), null, null);
+			} finally {
+				page.release();
+			}
+			
+			if (null != checkpoint)
+				saveCheckpoint(checkpoint);
+			
+			return;
+		}
+		
+		if (null != segments) {
+			// the progress will be saved after the segment has been stored
+			List<Page> sealed;
+			try {
+				sealed = segments.append(page);
+				// the segment key will be known after the segment has been sealed
+				if (null != page.getEntry())
+					page.getEntry().setLocation(null, segments.getLastOffset(), segments.getLastLength());
+			} finally {
+				page.release();
+			}
+			
+			storeSegments(sealed, uploads);
+			
+			return;
+		}
+		
+		if (null != contentStore) {
+			String blobKey = toBlob(page);
+			CompletableFuture<Void> stored = contentStore.claim(blobKey);
+			if (null == stored && objectExists(blobKey)) {
+				// the blob has been stored by the previous harvest
+				contentStore.stored(blobKey);
+				stored = CompletableFuture.completedFuture(null);
+			}
+			
+			if (null != stored) {
+				// the same content has been stored already or is being stored by another page, 
+				// only the progress should be saved after the blob has been written
+				page.release();
+				
+				if (null != uploads)
+					uploads.skip(page.getCheckpoint(), stored);
+				else {
+					awaitBlob(blobKey, stored);
+					if (null != page.getCheckpoint())
+						saveCheckpoint(page.getCheckpoint());
+				}
+				
+				return;
+			}
+			
+			page = page.withKey(blobKey);
+			try {
+				if (null != uploads) {
+					contentStore.written(blobKey, uploads.store(page));
+					
+					return;
+				}
+				
+				storePage(page);
+			} catch (Exception e) {
+				contentStore.failed(blobKey, e);
+				
+				throw e;
+			}
+			
+			contentStore.stored(blobKey);
+			
+			if (null != page.getCheckpoint())
+				saveCheckpoint(page.getCheckpoint());
+			
+			return;
+		}
+		
+		if (null != uploads) {
+			// the progress will be saved after the page has been uploaded
+			uploads.store(page);
+			
+			return;
+		}
+		
+		storePage(page);
+		
+		if (null != page.getCheckpoint())
+			saveCheckpoint(page.getCheckpoint());
+	}
+	
+	/**
+	 * Function to list the stored pages in the harvest manifest and to save the set progress 
+	 * in the journal. The page entries will be journaled before the progress, so the resumed 
+	 * harvest will list every page, it will not download again.
+	 * @param checkpoint The checkpoint of the last stored page
+	 * @throws IOException
+	 */
+	private void saveCheckpoint(Checkpoint checkpoint) throws IOException {
+		if (null != harvestManifest) 
+			for (HarvestManifest.PageEntry entry : harvestManifest.storePages(checkpoint.getSet(), 
+					checkpoint.getFiles(), checkpoint.getKey()))
+				if (null != journal)
+					journal.summary(entry);
+		
+		if (null != journal)
+			journal.page(checkpoint);
+	}
+	
+	/**
+	 * Function to map the page to the content store blob. The page will be added into the manifest
+	 * and its progress will point to the blob.
+	 * @param page A page
+	 * @return String - the blob key
+	 * @throws IOException
+	 */
+	private String toBlob(Page page) throws IOException {
+		String blobKey = contentStore.getBlobKey(page);
+		
+		contentStore.putManifest(page.getKey(), blobKey);
+		if (null != journal)
+			journal.manifest(page.getKey(), blobKey);
+		
+		if (null != page.getEntry())
+			page.getEntry().setLocation(blobKey, null, null);
+		if (null != page.getCheckpoint())
+			page.setCheckpoint(page.getCheckpoint().withKey(blobKey));
+		
+		return blobKey;
+	}
+	
+	/**
+	 * Function to wait until the blob, claimed by another page, has been stored
+	 * @param blobKey A blob key
+	 * @param stored The future of the blob write
+	 * @throws Exception
+	 */
+	private void awaitBlob(String blobKey, CompletableFuture<Void> stored) throws Exception {
+		try {
+			stored.get();
+		} catch (ExecutionException e) {
+			throw new HarvesterException("Unable to store the blob " + blobKey + ": " + e.getCause().getMessage());
+		}
+	}
+	
+	/**
+	 * Function to store the sealed segment and its index
+	 * @param pages The segment pages
+	 * @param uploads A set upload sequence or null, if the pages should be stored immediately
+	 * @throws Exception
+	 */
+	private void storeSegments(List<Page> pages, SinkQueue.Sequence uploads) throws Exception {
+		for (Page page : pages) 
+			storeCheckpoint(page, uploads, null, null);
+	}
+	
+	/**
+	 * Function to create new segment writer for one set
+	 * @return SegmentWriter - the writer or null if the pages should be stored as separate files
+	 */
+	private SegmentWriter newSegmentWriter() {
+		if (!OUTPUT_SEGMENTS.equals(outputFormat))
+			return null;
+		
+		return new SegmentWriter(segmentMaxSize, segmentMaxPages, bufferFolder);
+	}
+	
+	/**
+	 * Function to open the record store session for one set
+	 * @param set A set
+	 * @return RecordStore.Session - the session or null if the pages should be stored as files
+	 */
+	private RecordStore.Session newRecordSession(SetStatus set) {
+		if (null == recordStore)
+			return null;
+		
+		return recordStore.open(set.getNameSafe());
+	}
+	
+	/**
+	 * Function to write the record index of the set and to save the set progress
+	 * @param set A set
+	 * @param records A set record session or null
+	 * @throws IOException
+	 */
+	private void closeRecords(SetStatus set, RecordStore.Session records) throws IOException {
+		if (null == records)
+			return;
+		
+		Checkpoint checkpoint = records.close();
+		if (null != checkpoint)
+			saveCheckpoint(checkpoint);
+		
+		set.setRecords(records.getRecords());
+	}
+	
+	/**
+	 * Function to create new sequence of the asynchronous uploads for one set
+	 * @return SinkQueue.Sequence - the sequence or null if the upload queue is disabled
+	 */
+	private SinkQueue.Sequence newUploadSequence() {
+		if (null == sinkQueue)
+			return null;
+		
+		return sinkQueue.newSequence(new SinkQueue.Listener() {
+			@Override
+			public void stored(Checkpoint checkpoint) throws Exception {
+				saveCheckpoint(checkpoint);
+			}
+		});
+	}
+	
+	/**
+	 * Function to save the set statistics
+	 * @param set A set
+	 * @param mark The time, the set harvesting has been started
+	 * @return false if the harvesting should be aborted
+	 */
+	private boolean finishSet(SetStatus set, long mark) {
+		set.setMilliseconds(System.currentTimeMillis() - mark);
+		
+		if (null != recordPublisher)
+			try {
+				recordPublisher.completed(set);
+			} catch (HarvesterException e) {
+				set.setError(e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		
+		saveSetStats(set);
+		
+		if (set.hasError())
+			metrics.failed(set.getId());
+
+		if (failOnError && set.hasError())
+			return false; 
+		
+		return true;
+	}
+	
+	private static boolean isBadResumptionToken(Throwable e) {
+		return e instanceof HarvesterException && ERR_BAD_RESUMPTION_TOKEN.equals(((HarvesterException) e).getCode());
+	}
+	
+	/**
+	 * Function to restart the set harvesting from the beginning, if the resumption token has expired.
+	 * The pages of the previous pass are not part of the harvest anymore, so they will be removed 
+	 * from the manifests and the journal, and the stored page files will be deleted, because the new 
+	 * pass could have fewer pages to overwrite them.
+	 * @param set A set
+	 * @throws IOException
+	 */
+	private void restartSet(SetStatus set) throws IOException {
+		out.println("Warning, the resumption token has expired. The set will be harvested from the beginning");
+		
+		String prefix = repoPrefix + "/" + metadataPrefix + "/" + harvestDate + "/" + set.getId() + "/";
+		
+		Set<String> stale = new LinkedHashSet<String>();
+		if (OUTPUT_PAGES.equals(outputFormat))
+			for (int n = 0; n < set.getFiles(); ++n) 
+				stale.add(prefix + n + ".xml");
+		
+		if (null != harvestManifest)
+			for (HarvestManifest.PageEntry entry : harvestManifest.removeSet(set.getId())) 
+				if (null != entry.getKey() && entry.getKey().endsWith(SegmentWriter.SEGMENT_EXTENSION)) {
+					stale.add(entry.getKey());
+					stale.add(entry.getKey().substring(0, entry.getKey().length() - SegmentWriter.SEGMENT_EXTENSION.length()) 
+							+ SegmentWriter.INDEX_EXTENSION);
+				}
+		
+		// the blobs could be shared with other pages, so only the manifest entries will be removed
+		if (null != contentStore) {
+			contentStore.removeManifest(prefix);
+			stale.clear();
+		}
+		
+		if (null != journal)
+			journal.restart(set.getId(), prefix);
+		
+		for (String key : stale)
+			deleteObject(key);
+		
+		set.resetToken();
+		set.setFiles(0);
+		set.setCursor(0);
+		set.setDatestamp(null);
+	}
+	
+	/**
+	 * Function to check if the set partition should be split
+	 * @param set A set partition after the first page has been downloaded
+	 * @return true if the partition is too large and could be split
+	 */
+	private boolean isTooLarge(SetStatus set) {
+		return partitionMaxSize > 0 && set.getSize() > partitionMaxSize
+				&& null != set.getWindow() && null != set.getWindow().split();
+	}
+	
+	/**
+	 * Asynchronous harvesting of one set. Every page request is sent by the asynchronous transport 
+	 * and the response will be processed by the set worker pool after it has been received, so 
+	 * the set does not hold any thread while waiting for the server. The retry delays are 
+	 * scheduled instead of sleeping. The pages are stored in order by the set store stage on the 
+	 * shared store pool, while the next page is requested. If the stage is full, the next page 
+	 * will be requested after the stage has room for it, so the worker pool will never wait for 
+	 * the storage. The set will be finished on the store pool as well, after its last page has 
+	 * been stored.
+	 */
+	private class AsyncSetHarvest {
+		private final SetStatus set;
+		private final long mark = System.currentTimeMillis();
+		private final SinkQueue.Sequence uploads = newUploadSequence();
+		private final SegmentWriter segments = newSegmentWriter();
+		private final RecordStore.Session records;
+		private final StoreStage store;
+		
+		private boolean resumed;
+		private boolean firstPage;
+		private int nAttempt;
+		private long byteDelay;
+		private long sent;
+		
+		AsyncSetHarvest(SetStatus set) {
+			this.set = set;
+			this.resumed = set.hasToken();
+			this.records = newRecordSession(set);
+			this.store = new StoreStage(storeExecutor, storeQueueSize, new StoreStage.Writer() {
+				@Override
+				public void write(Page page) throws Exception {
+					storeCheckpoint(page, uploads, segments, records);
+				}
+			});
+			
+			set.setStarted(mark);
+		}
+		
+		/**
+		 * Request the next page of the set. If the harvest has been paused, the set will wait 
+		 * without holding any thread until the harvest will be resumed.
+		 */
+		void next() {
+			if (aborted.get()) {
+				set.setError("The harvesting has been aborted");
+				
+				finish(true, false);
+				
+				return;
+			}
+			
+			if (set.isDrained()) {
+				out.println("The set " + set.getId() + " has been drained");
+				
+				drainedSets.incrementAndGet();
+				
+				finish(true, false);
+				
+				return;
+			}
+			
+			synchronized (pauseLock) {
+				if (paused) {
+					pausedSets.add(this);
+					
+					return;
+				}
+			}
+			
+			firstPage = !set.hasToken();
+			nAttempt = 0;
+			
+			schedule(byteDelay);
+		}
+		
+		private void schedule(long delay) {
+			delay += rateLimiter.reserveRequest();
+			if (delay > 0)
+				setScheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						send();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			else
+				send();
+		}
+		
+		private void send() {
+			final String url;
+			try {
+				url = getRecordsUrl(set);
+			} catch (UnsupportedEncodingException e) {
+				fail(e);
+				
+				return;
+			}
+			
+			out.println("Downloading records: " + url);
+			
+			sent = System.nanoTime();
+			asyncTransport.getAsync(url).whenCompleteAsync(new BiConsumer<HttpResponse, Throwable>() {
+				@Override
+				public void accept(HttpResponse response, Throwable error) {
+					received(response, error);
+				}
+			}, setExecutor);
+		}
+		
+		private void received(HttpResponse response, Throwable error) {
+			Page page;
+			try {
+				if (null != error)
+					throw error instanceof CompletionException && null != error.getCause() ? error.getCause() : error;
+				
+				metrics.fetched(set.getId(), System.nanoTime() - sent);
+				
+				page = processRecords(set, checkResponse(response));
+			} catch (Throwable e) {
+				IOUtils.closeQuietly(response);
+				
+				retry(e);
+				
+				return;
+			}
+			
+			try {
+				if (null != page && firstPage && isTooLarge(set)) {
+					page.release();
+					splitSet(set);
+					
+					finish(false, false);
+					
+					return;
+				}
+				
+				boolean room = true;
+				if (null != page) {
+					byteDelay = rateLimiter.reserveBytes(page.getSize());
+					
+					acceptPage(set, page);
+					room = store.offer(page, set.hasToken() ? new Runnable() {
+						@Override
+						public void run() {
+							next();
+						}
+					} : null);
+				}
+				
+				resumed = false;
+				
+				if (!set.hasToken())
+					finish(true, true);
+				else if (room)
+					next();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+		
+		private void retry(Throwable e) {
+			// only for debug!
+			e.printStackTrace();
+			
+			if (resumed && isBadResumptionToken(e)) {
+				try {
+					restartSet(set);
+				} catch (IOException ex) {
+					fail(ex);
+					
+					return;
+				}
+				
+				resumed = false;
+				firstPage = true;
+				nAttempt = 0;
+				
+				schedule(0);
+			} else if (nAttempt >= maxAttempts) 
+				// keep the resumption token, so the set could be resumed from the failed page
+				fail(e);
+			else {
+				long wait = e instanceof Exception ? retryDelay((Exception) e, nAttempt) : 0;
+				out.println("Retrying in " + wait + " ms");
+				
+				metrics.retried(set.getId());
+				
+				++nAttempt;
+				schedule(wait);
+			}
+		}
+		
+		private void fail(Throwable e) {
+			System.err.println("Error: " + e.getMessage());
+			
+			set.setError(e.getMessage());
+			
+			finish(true, false);
+		}
+		
+		/**
+		 * Finish the set after its stored pages have been written. The queued pages of the 
+		 * failed set will be dropped.
+		 * @param stats true if the set statistics should be saved
+		 * @param completed true if the last page has been received
+		 */
+		private void finish(final boolean stats, final boolean completed) {
+			Runnable finished = new Runnable() {
+				@Override
+				public void run() {
+					finished(stats, completed);
+				}
+			};
+			
+			if (completed)
+				store.close(finished);
+			else
+				store.cancel(finished);
+		}
+		
+		private void finished(boolean stats, boolean completed) {
+			if (completed)
+				try {
+					store.checkError();
+				} catch (HarvesterException e) {
+					System.err.println("Error: " + e.getMessage());
+					
+					set.setError(e.getMessage());
+					completed = false;
+				}
+			
+			try {
+				// the records, which have been stored already, should be kept in the index
+				closeRecords(set, records);
+				
+				if (completed) {
+					if (null != segments)
+						storeSegments(segments.close(), uploads);
+					
+					if (null != uploads)
+						uploads.await();
+					
+					if (null != journal)
+						journal.done(Checkpoint.fromSet(set, null));
+				}
+			} catch (Exception e) {
+				System.err.println("Error: " + e.getMessage());
+				
+				if (completed)
+					set.setError(e.getMessage());
+			}
+			
+			if (null != segments)
+				segments.discard();
+			
+			try {
+				if (stats && !finishSet(set, mark)) 
+					abort();
+			} finally {
+				synchronized (waitingSets) {
+					--activeSets;
+				}
+				
+				startWaitingSets();
+				completeSet();
+			}
+		}
+	}
+	
+	/**
+	 * Function to close the HTTP transport and release the connections
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		transport.close();
+		
+		if (null != validationStage)
+			validationStage.close();
+		
+		if (null != exportStage)
+			exportStage.close();
+		
+		if (null != recordPublisher)
+			try {
+				recordPublisher.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		
+		if (null != sinkQueue)
+			sinkQueue.close();
+		
+		for (HarvestSink sink : sinks)
+			sink.close();
+		
+		metrics.close();
+		
+		if (null != adminServer)
+			adminServer.close();
+	}
 	
 	public void printStatistics(boolean result, PrintStream out) {
 		out.println();
@@ -690,9 +2912,12 @@ public class Harvester {
 		int emptySets = 0;
 		int ignoredSets = 0;
 		int blacklistedSets = 0;
+		int drained = 0;
 		
 		for (SetStatus set : processedSets.values()) {
-			if (set.getFiles() == 0)
+			if (SetStatus.OUTCOME_DRAINED.equals(set.getOutcome()))
+				++drained;
+			else if (set.getFiles() == 0)
 				++emptySets;
 			else if (set.getFiles() > 0)
 				++harvestedSets;
@@ -710,9 +2935,11 @@ public class Harvester {
 			out.println(String.format("Successfully harvested %s %s:", harvestedSets, harvestedSets == 1 ? "set" : "sets"));
 			int counter = 1;
 			for (SetStatus set : processedSets.values()) 
-				if (set.getFiles() > 0)
-					out.println(String.format("Set %d. %s (%s): %d %s has been harvested in %s", 
-							counter++, set.getTitle(), set.getName(), set.getFiles(), set.getFiles() == 1 ? "file" : "files", set.getEllapsedTime()));
+				if (set.getFiles() > 0 && !SetStatus.OUTCOME_DRAINED.equals(set.getOutcome()))
+					out.println(String.format("Set %d. %s (%s): %d %s%s has been harvested in %s", 
+							counter++, set.getTitle(), set.getId(), set.getFiles(), set.getFiles() == 1 ? "file" : "files", 
+							set.getRecords() > 0 ? " (" + set.getRecords() + " records)" : "", set.getEllapsedTime())
+							+ (set.getInvalidRecords() > 0 ? ", " + set.getInvalidRecords() + " invalid records have been quarantined" : ""));
 		}
 
 		if (emptySets > 0)
@@ -721,9 +2948,9 @@ public class Harvester {
 			out.println(String.format("%d %s has been empty:", emptySets, emptySets == 1 ? "set" : "sets"));
 			int counter = 1;
 			for (SetStatus set : processedSets.values()) 
-				if (set.getFiles() == 0)
+				if (set.getFiles() == 0 && !SetStatus.OUTCOME_DRAINED.equals(set.getOutcome()))
 					out.println(String.format("Set %d. %s (%s)", 
-							counter++, set.getTitle(), set.getName()));		
+							counter++, set.getTitle(), set.getId()));		
 			}
 		
 		if (ignoredSets > 0)
@@ -734,7 +2961,7 @@ public class Harvester {
 			for (SetStatus set : processedSets.values()) 
 				if (set.getFiles() == -1)
 					out.println(String.format("Set %d. %s (%s)", 
-							counter++, set.getTitle(), set.getName()));
+							counter++, set.getTitle(), set.getId()));
 		}
 
 		if (blacklistedSets > 0)
@@ -745,7 +2972,19 @@ public class Harvester {
 			for (SetStatus set : processedSets.values()) 
 				if (set.getFiles() == -2)
 					out.println(String.format("Set %d. %s (%s)", 
-							counter++, set.getTitle(), set.getName()));
+							counter++, set.getTitle(), set.getId()));
+		}
+		
+		if (drained > 0)
+		{
+			out.println();
+			out.println(String.format("%d %s has been drained:", drained, drained == 1 ? "set" : "sets"));
+			int counter = 1;
+			for (SetStatus set : processedSets.values()) 
+				if (SetStatus.OUTCOME_DRAINED.equals(set.getOutcome()))
+					out.println(String.format("Set %d. %s (%s): %d %s%s", 
+							counter++, set.getTitle(), set.getId(), set.getFiles(), set.getFiles() == 1 ? "file" : "files",
+							set.hasToken() ? ", resumption token: " + set.getToken() : ""));
 		}
 		
 		if (errorSets > 0)
@@ -755,13 +2994,14 @@ public class Harvester {
 			int counter = 1;
 			for (SetStatus set : processedSets.values()) 
 				if (set.getFiles() == -3)
-					out.println(String.format("Set %d. %s (%s) error: %s", 
-							counter++, set.getTitle(), set.getName(), set.getError()));
+					out.println(String.format("Set %d. %s (%s) error: %s%s", 
+							counter++, set.getTitle(), set.getId(), set.getError(), 
+							set.hasToken() ? ", resumption token: " + set.getToken() : ""));
 		}
 	}
 	
 	private void saveSetStats(SetStatus set) {
-		processedSets.put(set.getNameSafe(), set);
+		processedSets.put(set.getId(), set);
 	}
 	
 	/**
@@ -0,0 +1,131 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Class to store the latest harvested datestamp for every set. The marks are used to
+ * request only the records, changed since the previous harvest.
+ * @author dima
+ *
+ */
+public class HighWaterMarks {
+
+	public static final String GRANULARITY_DAY = "YYYY-MM-DD";
+	public static final String GRANULARITY_SECONDS = "YYYY-MM-DDThh:mm:ssZ";
+
+	public static final String DELETED_RECORD_PERSISTENT = "persistent";
+
+	private final Properties marks = new Properties();
+
+	/**
+	 * Load marks from the properties file content
+	 * @param data A properties file content, could be null
+	 * @throws IOException
+	 */
+	public synchronized void load(byte[] data) throws IOException {
+		marks.clear();
+		if (null != data)
+			marks.load(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Save marks as the properties file content
+	 * @return byte[] - properties file content
+	 * @throws IOException
+	 */
+	public synchronized byte[] save() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		marks.store(os, "Latest harvested datestamp per set");
+		return os.toByteArray();
+	}
+
+	public synchronized String getMark(String set) {
+		return marks.getProperty(set);
+	}
+
+	public synchronized void setMark(String set, String datestamp) {
+		marks.setProperty(set, datestamp);
+	}
+
+	/**
+	 * Function to move the marks to the latest datestamp of the harvested sets.
+	 * The set could be partitioned, so the mark is moved only if all partitions
+	 * of the set were completed: any partition with an error or with resumption token
+	 * left keeps the old mark of the whole set.
+	 * @param partitions The harvested sets or set partitions
+	 * @param failed The names of the sets, which should keep their old marks, could be null
+	 * @return Set - names of the sets with moved marks
+	 */
+	public synchronized Set<String> advance(Collection<SetStatus> partitions, Collection<String> failed) {
+		Map<String, String> latest = new HashMap<String, String>();
+		Set<String> skipped = new HashSet<String>();
+		if (null != failed)
+			skipped.addAll(failed);
+		
+		for (SetStatus partition : partitions) {
+			if (partition.hasError() || partition.hasToken()) 
+				skipped.add(partition.getNameSafe());
+			else if (null != partition.getDatestamp()) {
+				String mark = latest.get(partition.getNameSafe());
+				if (null == mark || mark.compareTo(partition.getDatestamp()) < 0)
+					latest.put(partition.getNameSafe(), partition.getDatestamp());
+			}
+		}
+		
+		latest.keySet().removeAll(skipped);
+		for (Map.Entry<String, String> mark : latest.entrySet())
+			marks.setProperty(mark.getKey(), mark.getValue());
+		
+		return latest.keySet();
+	}
+
+	/**
+	 * Convert the mark into the `from` argument with repository granularity.
+	 * @param mark A mark
+	 * @param granularity Repository granularity, returned by Identify
+	 * @return String - from argument or null if the mark could not be used
+	 */
+	public static String toFrom(String mark, String granularity) {
+		if (null == mark || mark.length() < GRANULARITY_DAY.length())
+			return null;
+
+		if (GRANULARITY_DAY.equals(granularity))
+			return mark.substring(0, GRANULARITY_DAY.length());
+
+		if (GRANULARITY_SECONDS.equals(granularity))
+			return mark;
+
+		return null;
+	}
+
+	/**
+	 * Check if repository could be harvested incrementally. The granularity must be known,
+	 * and the repository must keep track of deleted records, otherwise the deletions
+	 * made since the previous harvest will be lost.
+	 * @param granularity Repository granularity, returned by Identify
+	 * @param deletedRecord Repository deleted record behavior, returned by Identify
+	 * @return null if the incremental harvest is safe, or the reason why it is not.
+	 */
+	public static String checkIncremental(String granularity, String deletedRecord) {
+		if (!GRANULARITY_DAY.equals(granularity) && !GRANULARITY_SECONDS.equals(granularity))
+			return "unknown granularity: " + granularity;
+
+		if (!DELETED_RECORD_PERSISTENT.equals(deletedRecord))
+			return "the repository does not keep deleted records persistently: " + deletedRecord;
+
+		return null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HighWaterMarks " + marks;
+	}
+}
@@ -0,0 +1,100 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram.
+ *
+ * The values are counted in the logarithmic buckets, every power of two is divided into 
+ * four buckets, so the percentiles are reported with the error below 25%. Recording a value 
+ * does not allocate any memory and does not lock, so the histogram could be updated from 
+ * the harvesting threads for every page.
+ *
+ * @author dima
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one value
+	 * @param value A value, the negative values will be counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		for (long current; value > (current = max.get()) && !max.compareAndSet(current, value); )
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return mean value
+	 * @return double - mean value or 0 if no values have been recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Return the value below which the given fraction of the recorded values falls
+	 * @param fraction A fraction from 0 to 1, for example 0.99
+	 * @return long - the upper bound of the bucket, containing the percentile, but not more 
+	 * than the maximal value
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max((long) Math.ceil(fraction * n), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) 
+			if ((seen += buckets.get(i)) >= rank)
+				return Math.min(upperBound(i), max.get());
+
+		return max.get();
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+		return lower + (1L << shift) - 1;
+	}
+}
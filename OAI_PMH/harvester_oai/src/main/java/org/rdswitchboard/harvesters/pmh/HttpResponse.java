@@ -0,0 +1,142 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Class to store HTTP response, returned by the {@link HttpTransport}
+ * @author dima
+ *
+ */
+public class HttpResponse implements Closeable {
+
+	public static final String ENCODING_GZIP = "gzip";
+	public static final String ENCODING_DEFLATE = "deflate";
+
+	private final int statusCode;
+	private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	private final InputStream content;
+
+	public HttpResponse(int statusCode, Map<String, String> headers, InputStream content) {
+		this.statusCode = statusCode;
+		if (null != headers)
+			this.headers.putAll(headers);
+		this.content = content;
+	}
+
+	/**
+	 * Return HTTP status code
+	 * @return int - status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Return true if status code is 2xx
+	 * @return boolean
+	 */
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300;
+	}
+
+	/**
+	 * Return response header
+	 * @param name A header name, case insensitive
+	 * @return String - header value or null
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * Return decoded response content
+	 * @return InputStream - response content, could be null
+	 */
+	public InputStream getContent() {
+		return content;
+	}
+
+	/**
+	 * Create a copy of the response with different content stream
+	 * @param content A new content stream
+	 * @return HttpResponse
+	 */
+	public HttpResponse withContent(InputStream content) {
+		return new HttpResponse(statusCode, headers, content);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (null != content)
+			content.close();
+	}
+
+	/**
+	 * Generate Accept-Encoding header value from the list of supported encodings
+	 * @param encodings A collection of encodings
+	 * @return String - header value or null if none of encodings are supported
+	 */
+	public static String acceptEncoding(Collection<String> encodings) {
+		if (null == encodings)
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (String encoding : encodings)
+			if (null != encoding) {
+				String e = encoding.trim().toLowerCase();
+				if ((ENCODING_GZIP.equals(e) || ENCODING_DEFLATE.equals(e)) && sb.indexOf(e) < 0) {
+					if (sb.length() > 0)
+						sb.append(", ");
+					sb.append(e);
+				}
+			}
+
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	/**
+	 * Wrap response stream into decoding stream, according to Content-Encoding header.
+	 * The empty stream is returned as is, because some servers send Content-Encoding
+	 * header with an empty body
+	 * @param is A response stream
+	 * @param encoding Content-Encoding header value
+	 * @return InputStream - decoded stream
+	 * @throws IOException
+	 */
+	public static InputStream decode(InputStream is, String encoding) throws IOException {
+		if (null == is || null == encoding)
+			return is;
+
+		String e = encoding.trim().toLowerCase();
+		boolean gzip = ENCODING_GZIP.equals(e) || "x-gzip".equals(e);
+		if (!gzip && !ENCODING_DEFLATE.equals(e))
+			return is;
+
+		PushbackInputStream pis = new PushbackInputStream(is, 2);
+		byte[] header = new byte[2];
+		int read = 0;
+		for (int n; read < header.length && (n = pis.read(header, read, header.length - read)) > 0; read += n)
+			;
+		if (read == 0)
+			return pis;
+
+		pis.unread(header, 0, read);
+		if (gzip)
+			return new GZIPInputStream(pis, 8192);
+
+		// some servers send raw deflate stream instead of zlib one
+		boolean zlib = read == 2 && (header[0] & 0x0f) == 8
+				&& (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+
+		return new InflaterInputStream(pis, new Inflater(!zlib), 8192);
+	}
+}
@@ -0,0 +1,44 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Interface to send HTTP requests to the OAI:PMH Provider.
+ *
+ * The transport must decode the response content, if the server has compressed it
+ * with one of the encodings, enabled by {@link #setCompression(Collection)}.
+ *
+ * @author dima
+ *
+ */
+public interface HttpTransport extends Closeable {
+
+	/**
+	 * Send GET request
+	 * @param url A request URL
+	 * @return HttpResponse - the response. Must be closed by the caller.
+	 * @throws IOException
+	 */
+	HttpResponse get(String url) throws IOException;
+
+	/**
+	 * Send GET request with additional headers, for example the conditional request headers
+	 * @param url A request URL
+	 * @param headers The request headers, could be null
+	 * @return HttpResponse - the response. Must be closed by the caller.
+	 * @throws IOException
+	 */
+	HttpResponse get(String url, Map<String, String> headers) throws IOException;
+
+	/**
+	 * Set the content encodings, the transport is allowed to request from the server.
+	 * Usually the encodings are taken from the Identify response. Only gzip and deflate
+	 * encodings are supported, any other will be ignored.
+	 * @param encodings A collection of the encodings. The empty collection or null will
+	 * disable the compression.
+	 */
+	void setCompression(Collection<String> encodings);
+}
@@ -0,0 +1,263 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * Class to store one downloaded OAI:PMH response page until it has been written.
+ *
+ * The page bytes are kept exactly as they have been received. Small pages are kept in
+ * memory, the pages larger than the buffer size are kept in a temporary file, which
+ * will be deleted by {@link #release()}. If the page is shared with another stage, the
+ * stage should call {@link #retain()} and the temporary file will be deleted only after
+ * every holder has released the page.
+ *
+ * @author dima
+ *
+ */
+public class Page {
+
+	private final String key;
+	private final byte[] data;
+	private final File file;
+	private final long size;
+	private final AtomicInteger references;
+
+	private String contentType = "text/xml";
+	private Checkpoint checkpoint;
+	private HarvestManifest.PageEntry entry;
+
+	public Page(String key, byte[] data) {
+		this.key = key;
+		this.data = data;
+		this.file = null;
+		this.size = data.length;
+		this.references = new AtomicInteger(1);
+	}
+
+	public Page(String key, File file) {
+		this.key = key;
+		this.data = null;
+		this.file = file;
+		this.size = file.length();
+		this.references = new AtomicInteger(1);
+	}
+
+	private Page(String key, Page page) {
+		this.key = key;
+		this.data = page.data;
+		this.file = page.file;
+		this.size = page.size;
+		this.references = page.references;
+	}
+
+	/**
+	 * Construct page from the buffer, the response has been written into.
+	 * The buffer must be closed.
+	 * @param key A page key
+	 * @param buffer A buffer
+	 * @return Page
+	 */
+	public static Page fromBuffer(String key, DeferredFileOutputStream buffer) {
+		if (buffer.isInMemory())
+			return new Page(key, buffer.getData());
+		else
+			return new Page(key, buffer.getFile());
+	}
+
+	/**
+	 * Construct the same page with another key
+	 * @param key A new page key
+	 * @return Page
+	 */
+	public Page withKey(String key) {
+		Page page = new Page(key, this);
+		page.setContentType(contentType);
+		page.setCheckpoint(checkpoint);
+		page.setEntry(entry);
+		return page;
+	}
+
+	/**
+	 * Return the page path, relative to the storage root
+	 * @return String - page path
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Return the temporary file, if the page has been buffered on the disk
+	 * @return File - temporary file or null if the page is in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the page size in bytes
+	 * @return long - page size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Return the page MIME type
+	 * @return String - content type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Return the set harvesting progress, which should be saved after the page has been stored
+	 * @return Checkpoint - checkpoint or null
+	 */
+	public Checkpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Return the harvest manifest entry, collected while the page has been downloaded
+	 * @return HarvestManifest.PageEntry - entry or null if the manifest is disabled
+	 */
+	public HarvestManifest.PageEntry getEntry() {
+		return entry;
+	}
+
+	public void setEntry(HarvestManifest.PageEntry entry) {
+		this.entry = entry;
+	}
+
+	/**
+	 * Open a new stream to read the page bytes
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+		if (null != data)
+			return new ByteArrayInputStream(data);
+		else
+			return new FileInputStream(file);
+	}
+
+	/**
+	 * Map the page bytes without copying them. The page buffered on the disk will be memory mapped.
+	 * @return ByteBuffer - read only buffer with the page bytes
+	 * @throws IOException
+	 */
+	public ByteBuffer map() throws IOException {
+		if (null != data)
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Write the page into the target file. The page will be written into a temporary file next to the
+	 * target and renamed, so the target will never contain a partial page. The page buffered on the
+	 * disk will be moved without copying, if it is on the same file system and has not been retained 
+	 * by another stage, and could not be read again.
+	 * @param target A target file
+	 * @throws IOException
+	 */
+	public void moveTo(File target) throws IOException {
+		if (null != file && references.get() == 1) {
+			mkdirs(target);
+
+			try {
+				Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+				return;
+			} catch (AtomicMoveNotSupportedException e) {
+				// the buffer is on another file system, the page will be copied
+			}
+		}
+
+		copyTo(target);
+	}
+
+	/**
+	 * Copy the page into the target file. The page will be written into a temporary file next to the
+	 * target and renamed, so the target will never contain a partial page.
+	 * @param target A target file
+	 * @throws IOException
+	 */
+	public void copyTo(File target) throws IOException {
+		File parent = mkdirs(target);
+
+		File temp = new File(parent, target.getName() + ".part");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			if (null != data) {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} else
+				try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					for (long position = 0; position < size; )
+						position += source.transferTo(position, size - position, channel);
+				}
+		} catch (IOException e) {
+			temp.delete();
+
+			throw e;
+		}
+
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static File mkdirs(File target) throws IOException {
+		File parent = target.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Unable to create folder: " + parent);
+
+		return parent;
+	}
+
+	/**
+	 * Keep the page for another holder. Every holder must release the page.
+	 * @return Page - this page
+	 */
+	public Page retain() {
+		references.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Delete the temporary file, if the page has been buffered on the disk and has been 
+	 * released by every holder
+	 */
+	public void release() {
+		if (references.decrementAndGet() <= 0 && null != file)
+			file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return "Page [key=" + key + ", size=" + size + "]";
+	}
+}
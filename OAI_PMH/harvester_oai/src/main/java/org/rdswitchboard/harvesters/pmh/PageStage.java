@@ -0,0 +1,138 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Base class of the stages, which process the downloaded pages by a separate pool of worker
+ * threads.
+ *
+ * The harvesting thread will submit every page as soon as it has been downloaded and will
+ * continue harvesting, unless the queue of the pages is full. The page will be retained until
+ * it has been processed, so the harvesting thread could store and release it at once. After the
+ * first failed page, no more pages will be accepted and the error will be thrown by the next call.
+ *
+ * @author dima
+ *
+ */
+public abstract class PageStage {
+
+	private final String name;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+
+	private int pending;
+	private volatile Exception error;
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Construct page stage
+	 * @param name A stage name to use in the messages
+	 * @param threads Number of the worker threads
+	 * @param queueSize Maximum number of the pages, waiting to be processed
+	 */
+	protected PageStage(String name, int threads, int queueSize) {
+		this.name = name;
+		this.executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+		this.permits = new Semaphore(Math.max(queueSize, 1));
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Function to process one page by the worker thread. The page must not be released.
+	 * @param set The set identifier
+	 * @param page A page
+	 * @throws Exception
+	 */
+	protected abstract void process(String set, Page page) throws Exception;
+
+	/**
+	 * Queue the page for processing. Will block if the queue is full.
+	 * @param set The set identifier
+	 * @param page A page
+	 * @throws InterruptedException
+	 * @throws HarvesterException if any of previous pages could not be processed
+	 */
+	public void submit(final String set, final Page page) throws InterruptedException, HarvesterException {
+		checkError();
+
+		permits.acquire();
+		begin();
+
+		page.retain();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process(set, page);
+					} catch (Exception e) {
+						out.println("Error, unable to " + name + " the page " + page.getKey() + ": " + e.getMessage());
+
+						error = e;
+					} finally {
+						page.release();
+						permits.release();
+						end();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			page.release();
+			permits.release();
+			end();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait until all queued pages have been processed
+	 * @throws InterruptedException
+	 * @throws HarvesterException if any of the pages could not be processed
+	 */
+	public synchronized void flush() throws InterruptedException, HarvesterException {
+		while (pending > 0)
+			wait();
+
+		checkError();
+	}
+
+	/**
+	 * Return number of the pages, which have been submitted, but have not been processed yet
+	 * @return int - number of the pages
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Stop the worker threads. The pending pages will not be processed.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private synchronized void begin() {
+		++pending;
+	}
+
+	private synchronized void end() {
+		if (--pending == 0)
+			notifyAll();
+	}
+
+	private void checkError() throws HarvesterException {
+		if (null != error)
+			throw new HarvesterException("Unable to " + name + " the records: " + error.getMessage());
+	}
+}
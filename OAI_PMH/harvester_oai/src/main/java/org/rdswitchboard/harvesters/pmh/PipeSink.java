@@ -0,0 +1,106 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Sink to write the pages into a stream, for example the standard output or a named pipe, 
+ * so they could be processed by another program while harvesting. Every page or object will 
+ * be written as a header line, followed by the content and a new line:
+ * <p>
+ * {@code
+ *   <key> <size>
+ *   <content>
+ * }
+ * <p>
+ * where the key and the size are separated by a tab. Nothing could be read from the sink.
+ * <p>
+ * The failed write could leave a part of the page in the stream, so the reader would lose 
+ * the framing. The sink will not accept anything after the first failure.
+ * 
+ * @author dima
+ *
+ */
+public class PipeSink implements HarvestSink {
+
+	private final OutputStream os;
+	private IOException error;
+	
+	public PipeSink(OutputStream os) {
+		this.os = new BufferedOutputStream(os, 65536);
+	}
+	
+	@Override
+	public synchronized void store(Page page) throws IOException {
+		checkError();
+		try {
+			writeHeader(page.getKey(), page.getSize());
+			
+			try (InputStream is = page.openStream()) {
+				IOUtils.copy(is, os);
+			}
+			
+			os.write('\n');
+			os.flush();
+		} catch (IOException e) {
+			throw error = e;
+		}
+	}
+
+	@Override
+	public synchronized void write(String key, byte[] bytes, String contentType) throws IOException {
+		checkError();
+		try {
+			writeHeader(key, bytes.length);
+			
+			os.write(bytes);
+			os.write('\n');
+			os.flush();
+		} catch (IOException e) {
+			throw error = e;
+		}
+	}
+
+	@Override
+	public byte[] read(String key) {
+		return null;
+	}
+
+	@Override
+	public boolean isRetryable() {
+		return false;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return false;
+	}
+
+	@Override
+	public void delete(String key) {
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		os.close();
+	}
+	
+	private void checkError() throws IOException {
+		if (null != error)
+			throw new IOException("The pipe has failed before: " + error.getMessage(), error);
+	}
+	
+	private void writeHeader(String key, long size) throws IOException {
+		os.write((key + "\t" + size + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Override
+	public String toString() {
+		return "pipe";
+	}
+}
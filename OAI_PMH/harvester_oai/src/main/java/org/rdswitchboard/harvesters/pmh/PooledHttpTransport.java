@@ -0,0 +1,104 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * HTTP Transport, based on Apache HttpClient with a pool of persistent connections.
+ *
+ * The connections, including TLS sessions, are kept open and reused by all harvesting
+ * threads. The content decompression is handled by the transport itself, so the
+ * Accept-Encoding header will only be sent for the encodings, the server has declared
+ * in the Identify response.
+ *
+ * @author dima
+ *
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient client;
+
+	private volatile String acceptEncoding;
+
+	public PooledHttpTransport(int connectionTimeout, int readTimeout, int maxConnections) {
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+		RequestConfig.Builder config = RequestConfig.custom();
+		if (connectionTimeout > 0)
+			config.setConnectTimeout(connectionTimeout);
+		if (readTimeout > 0)
+			config.setSocketTimeout(readTimeout);
+
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(config.build())
+				.disableContentCompression()
+				.build();
+	}
+
+	@Override
+	public HttpResponse get(String url) throws IOException {
+		return get(url, null);
+	}
+
+	@Override
+	public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+		HttpGet request = new HttpGet(url);
+
+		String encoding = acceptEncoding;
+		if (null != encoding)
+			request.setHeader("Accept-Encoding", encoding);
+		if (null != headers)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				request.setHeader(header.getKey(), header.getValue());
+
+		CloseableHttpResponse response = client.execute(request);
+		try {
+			Map<String, String> responseHeaders = new HashMap<String, String>();
+			for (Header header : response.getAllHeaders())
+				if (!responseHeaders.containsKey(header.getName()))
+					responseHeaders.put(header.getName(), header.getValue());
+
+			// closing the content stream after reading it to the end will return connection to the pool
+			InputStream is = null;
+			HttpEntity entity = response.getEntity();
+			if (null != entity) {
+				Header contentEncoding = entity.getContentEncoding();
+				is = HttpResponse.decode(entity.getContent(),
+						null == contentEncoding ? null : contentEncoding.getValue());
+			}
+
+			return new HttpResponse(response.getStatusLine().getStatusCode(), responseHeaders, is);
+		} catch (IOException | RuntimeException e) {
+			response.close();
+
+			throw e;
+		}
+	}
+
+	@Override
+	public void setCompression(Collection<String> encodings) {
+		acceptEncoding = HttpResponse.acceptEncoding(encodings);
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+		connectionManager.shutdown();
+	}
+}
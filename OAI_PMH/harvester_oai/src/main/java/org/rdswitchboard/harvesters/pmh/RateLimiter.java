@@ -0,0 +1,195 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-host rate limiter.
+ *
+ * The limiter uses two token buckets: one for the requests per second and one for the
+ * bytes per second. The buckets are allowed to go into debt, so a large response will
+ * delay the next requests instead of being rejected. The host could also be paused for
+ * a given time, for example when the server has answered with 503 and Retry-After header.
+ *
+ * Every harvester has its own limiter, unless the harvesters of the same host in the JVM
+ * should share one limiter on purpose, see {@link #forHost(String, double, double)}.
+ *
+ * @author dima
+ *
+ */
+public class RateLimiter {
+
+	private static final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+	private final String host;
+	private final Bucket requests = new Bucket();
+	private final Bucket bytes = new Bucket();
+
+	private volatile long pausedUntil;
+
+	public RateLimiter(String host, double requestsPerSecond, double bytesPerSecond) {
+		this.host = host;
+		requests.setRate(requestsPerSecond);
+		bytes.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Return the limiter, shared by every harvester of the host. If the limiter exists already, 
+	 * the given rates will replace the shared rates. 
+	 * @param host A host name
+	 * @param requestsPerSecond Maximum requests per second. 0 means unlimited.
+	 * @param bytesPerSecond Maximum bytes per second. 0 means unlimited.
+	 * @return RateLimiter
+	 */
+	public static RateLimiter forHost(String host, double requestsPerSecond, double bytesPerSecond) {
+		return forHost(host, requestsPerSecond, bytesPerSecond, System.out);
+	}
+
+	/**
+	 * Return the limiter, shared by every harvester of the host. If the limiter exists already, 
+	 * the given rates will replace the shared rates. 
+	 * @param host A host name
+	 * @param requestsPerSecond Maximum requests per second. 0 means unlimited.
+	 * @param bytesPerSecond Maximum bytes per second. 0 means unlimited.
+	 * @param out The stream to print the warning into, if the shared rates will be changed
+	 * @return RateLimiter
+	 */
+	public static RateLimiter forHost(String host, double requestsPerSecond, double bytesPerSecond, PrintStream out) {
+		RateLimiter limiter = new RateLimiter(host, requestsPerSecond, bytesPerSecond);
+		RateLimiter existing = limiters.putIfAbsent(host, limiter);
+		if (null == existing)
+			return limiter;
+
+		if (existing.getRequestRate() != limiter.getRequestRate() || existing.getByteRate() != limiter.getByteRate()) {
+			out.println("Warning, the shared rates of the host " + host + " will be changed from " 
+					+ existing.getRequestRate() + " requests and " + existing.getByteRate() + " bytes per second to "
+					+ limiter.getRequestRate() + " requests and " + limiter.getByteRate() + " bytes per second");
+
+			existing.setRequestRate(requestsPerSecond);
+			existing.setByteRate(bytesPerSecond);
+		}
+
+		return existing;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Wait until the next request could be sent to the host
+	 * @throws InterruptedException
+	 */
+	public void acquireRequest() throws InterruptedException {
+		waitPause();
+
+		sleep(requests.reserve(1));
+	}
+
+	/**
+	 * Account bytes received from the host. Will wait if the byte rate has been exceeded.
+	 * @param count Number of bytes
+	 * @throws InterruptedException
+	 */
+	public void acquireBytes(long count) throws InterruptedException {
+		sleep(bytes.reserve(count));
+	}
+
+	/**
+	 * Reserve the next request to the host without waiting. Should be used by the asynchronous
+	 * harvesting, which will schedule the request instead of sleeping.
+	 * @return long - time in milliseconds to wait before the request could be sent
+	 */
+	public long reserveRequest() {
+		return Math.max(0, pausedUntil - System.currentTimeMillis()) + toMillis(requests.reserve(1));
+	}
+
+	/**
+	 * Account bytes received from the host without waiting
+	 * @param count Number of bytes
+	 * @return long - time in milliseconds to wait before the next request should be sent
+	 */
+	public long reserveBytes(long count) {
+		return toMillis(bytes.reserve(count));
+	}
+
+	/**
+	 * Stop sending requests to the host for given time
+	 * @param milliseconds A pause duration
+	 */
+	public synchronized void pause(long milliseconds) {
+		pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + milliseconds);
+	}
+
+	public double getRequestRate() {
+		return requests.getRate();
+	}
+
+	public void setRequestRate(double requestsPerSecond) {
+		requests.setRate(requestsPerSecond);
+	}
+
+	public double getByteRate() {
+		return bytes.getRate();
+	}
+
+	public void setByteRate(double bytesPerSecond) {
+		bytes.setRate(bytesPerSecond);
+	}
+
+	private void waitPause() throws InterruptedException {
+		for (long wait = pausedUntil - System.currentTimeMillis(); wait > 0; wait = pausedUntil - System.currentTimeMillis())
+			Thread.sleep(wait);
+	}
+
+	private static long toMillis(long nanos) {
+		return (nanos + 999999) / 1000000;
+	}
+
+	private static void sleep(long nanos) throws InterruptedException {
+		if (nanos > 0)
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	}
+
+	/**
+	 * Token bucket with capacity of one second of tokens
+	 */
+	private static final class Bucket {
+		private double rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		synchronized double getRate() {
+			return rate;
+		}
+
+		synchronized void setRate(double rate) {
+			refill();
+
+			this.rate = rate > 0 ? rate : 0;
+			this.tokens = Math.min(tokens, Math.max(this.rate, 1));
+		}
+
+		/**
+		 * Take tokens from the bucket
+		 * @return long - time in nanoseconds to wait before the tokens will be available
+		 */
+		synchronized long reserve(double count) {
+			if (rate <= 0)
+				return 0;
+
+			refill();
+			tokens -= count;
+
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			if (rate > 0)
+				tokens = Math.min(Math.max(rate, 1), tokens + (now - last) * rate / 1e9);
+			last = now;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Class to store one OAI:PMH record, extracted from the ListRecords response.
+ *
+ * The record XML will contain the {@code <record>} element with all the namespace
+ * declarations it needs, so it could be parsed as a standalone document. If requested,
+ * the content of the {@code <metadata>} element will be extracted as a separate document.
+ *
+ * @author dima
+ *
+ */
+public class Record {
+
+	/**
+	 * Interface to receive the records one by one, while the response is parsed
+	 */
+	public interface Handler {
+		void record(Record record) throws Exception;
+	}
+
+	private static final String TAG_LIST_RECORDS = "ListRecords";
+	private static final String TAG_RECORD = "record";
+	private static final String TAG_HEADER = "header";
+	private static final String TAG_IDENTIFIER = "identifier";
+	private static final String TAG_DATESTAMP = "datestamp";
+	private static final String TAG_SET_SPEC = "setSpec";
+	private static final String TAG_METADATA = "metadata";
+
+	private static final String ATTR_STATUS = "status";
+	private static final String STATUS_DELETED = "deleted";
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	static {
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+	}
+
+	private final String identifier;
+	private final String datestamp;
+	private final boolean deleted;
+	private final byte[] xml;
+	private final List<String> setSpecs;
+	private final byte[] metadata;
+
+	public Record(String identifier, String datestamp, boolean deleted, byte[] xml) {
+		this(identifier, datestamp, deleted, xml, Collections.<String>emptyList(), null);
+	}
+
+	public Record(String identifier, String datestamp, boolean deleted, byte[] xml, List<String> setSpecs, byte[] metadata) {
+		this.identifier = identifier;
+		this.datestamp = datestamp;
+		this.deleted = deleted;
+		this.xml = xml;
+		this.setSpecs = setSpecs;
+		this.metadata = metadata;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public String getDatestamp() {
+		return datestamp;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Return the record XML document
+	 * @return byte[] - UTF-8 encoded XML
+	 */
+	public byte[] getXml() {
+		return xml;
+	}
+
+	/**
+	 * Return the sets of the record from the record header
+	 * @return {@code List<String>} - list of the set specs
+	 */
+	public List<String> getSetSpecs() {
+		return setSpecs;
+	}
+
+	/**
+	 * Return the content of the metadata element as a standalone XML document
+	 * @return byte[] - UTF-8 encoded XML or null if the record has no metadata or the metadata
+	 * has not been requested
+	 */
+	public byte[] getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Split the ListRecords response into records
+	 * @param is An input stream with the response
+	 * @return {@code List<Record>} - list of records
+	 * @throws XMLStreamException if the response is not a valid XML
+	 */
+	public static List<Record> split(InputStream is) throws XMLStreamException {
+		final List<Record> records = new ArrayList<Record>();
+
+		try {
+			split(is, false, new Handler() {
+				@Override
+				public void record(Record record) {
+					records.add(record);
+				}
+			});
+		} catch (XMLStreamException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+
+		return records;
+	}
+
+	/**
+	 * Split the ListRecords response into records and pass every record to the handler 
+	 * as soon as it has been parsed
+	 * @param is An input stream with the response
+	 * @param metadata true if the content of the metadata element should be extracted
+	 * @param handler A record handler
+	 * @throws XMLStreamException if the response is not a valid XML
+	 * @throws Exception if the handler has failed
+	 */
+	public static void split(InputStream is, boolean metadata, Handler handler) throws Exception {
+		XMLEventReader reader = inputFactory.createXMLEventReader(is);
+		try {
+			int depth = 0;
+			int listRecords = 0;
+
+			ByteArrayOutputStream os = null;
+			XMLEventWriter writer = null;
+			int recordDepth = 0;
+			String element = null;
+			String identifier = null;
+			String datestamp = null;
+			boolean deleted = false;
+			boolean header = false;
+			List<String> setSpecs = null;
+			StringBuilder text = new StringBuilder();
+
+			ByteArrayOutputStream metadataOs = null;
+			XMLEventWriter metadataWriter = null;
+			int metadataDepth = 0;
+			byte[] metadataXml = null;
+
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+
+				if (event.isStartElement()) {
+					++depth;
+
+					StartElement start = event.asStartElement();
+					String name = start.getName().getLocalPart();
+					if (null == writer) {
+						if (TAG_LIST_RECORDS.equals(name) && 0 == listRecords)
+							listRecords = depth;
+						else if (TAG_RECORD.equals(name) && depth == listRecords + 1) {
+							os = new ByteArrayOutputStream();
+							writer = outputFactory.createXMLEventWriter(os, StandardCharsets.UTF_8.name());
+							writer.add(eventFactory.createStartDocument(StandardCharsets.UTF_8.name(), "1.0"));
+							recordDepth = depth;
+							identifier = null;
+							datestamp = null;
+							deleted = false;
+							setSpecs = new ArrayList<String>();
+							metadataDepth = 0;
+							metadataXml = null;
+						}
+					} else if (depth == recordDepth + 1 && TAG_METADATA.equals(name)) {
+						metadataDepth = depth;
+					} else if (metadata && depth == metadataDepth + 1 && null == metadataWriter && null == metadataXml) {
+						metadataOs = new ByteArrayOutputStream();
+						metadataWriter = outputFactory.createXMLEventWriter(metadataOs, StandardCharsets.UTF_8.name());
+						metadataWriter.add(eventFactory.createStartDocument(StandardCharsets.UTF_8.name(), "1.0"));
+					} else if (depth == recordDepth + 1 && TAG_HEADER.equals(name)) {
+						header = true;
+
+						Attribute status = start.getAttributeByName(new QName(ATTR_STATUS));
+						deleted = null != status && STATUS_DELETED.equals(status.getValue());
+					} else if (header && depth == recordDepth + 2) {
+						element = name;
+						text.setLength(0);
+					}
+				} else if (event.isCharacters() && null != element)
+					text.append(event.asCharacters().getData());
+
+				if (null != writer)
+					writer.add(event);
+				if (null != metadataWriter)
+					metadataWriter.add(event);
+
+				if (event.isEndElement()) {
+					if (null != writer) {
+						if (depth == recordDepth + 2 && null != element) {
+							if (TAG_IDENTIFIER.equals(element))
+								identifier = text.toString().trim();
+							else if (TAG_DATESTAMP.equals(element))
+								datestamp = text.toString().trim();
+							else if (TAG_SET_SPEC.equals(element))
+								setSpecs.add(text.toString().trim());
+							element = null;
+						} else if (null != metadataWriter && depth == metadataDepth + 1) {
+							metadataWriter.add(eventFactory.createEndDocument());
+							metadataWriter.close();
+
+							metadataXml = metadataOs.toByteArray();
+							metadataWriter = null;
+							metadataOs = null;
+						} else if (depth == recordDepth + 1) {
+							header = false;
+							metadataDepth = 0;
+						}
+						else if (depth == recordDepth) {
+							writer.add(eventFactory.createEndDocument());
+							writer.close();
+
+							if (null != identifier && !identifier.isEmpty())
+								handler.record(new Record(identifier, datestamp, deleted, os.toByteArray(), setSpecs, metadataXml));
+
+							writer = null;
+							os = null;
+						}
+					}
+
+					--depth;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Record [identifier=" + identifier + ", datestamp=" + datestamp + ", deleted=" + deleted + "]";
+	}
+}
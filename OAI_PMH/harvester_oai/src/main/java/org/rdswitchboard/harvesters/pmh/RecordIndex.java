@@ -0,0 +1,197 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Class to store the index of the records of one set.
+ *
+ * The index is split into buckets by the first hex digits of the sha-256 of the record identifier,
+ * so any record could be found by reading only one bucket {@code <prefix>/<xx>.tsv}. The bucket
+ * will contain one tab separated line per record, sorted by the identifier:
+ * <p>
+ * {@code
+ *   <identifier> <datestamp> <sha-256 of the record> <record key>
+ * }
+ * <p>
+ * The identifier is URL encoded. The record key is empty if the record has been deleted.
+ *
+ * The buckets are loaded on the first access and only the changed buckets are written by flush.
+ * The index could be shared by the partitions of the same set.
+ *
+ * @author dima
+ *
+ */
+public class RecordIndex {
+
+	public static final String BUCKET_EXTENSION = ".tsv";
+
+	private final RecordStore.Storage storage;
+	private final String prefix;
+	private final int digits;
+
+	private final Map<String, Map<String, Entry>> buckets = new HashMap<String, Map<String, Entry>>();
+	private final Set<String> dirty = new HashSet<String>();
+
+	/**
+	 * Construct record index
+	 * @param storage A storage of the index buckets
+	 * @param prefix A key prefix of the buckets, for example {@code repo/metadata/_index/set}
+	 * @param digits Number of hex digits in the bucket name, from 1 to 4
+	 */
+	public RecordIndex(RecordStore.Storage storage, String prefix, int digits) {
+		if (digits < 1 || digits > 4)
+			throw new IllegalArgumentException("The number of the index digits must be from 1 to 4");
+
+		this.storage = storage;
+		this.prefix = prefix;
+		this.digits = digits;
+	}
+
+	/**
+	 * Find the record in the index
+	 * @param identifier A record identifier
+	 * @return Entry - the index entry or null if the record has never been stored
+	 * @throws IOException
+	 */
+	public synchronized Entry get(String identifier) throws IOException {
+		return getBucket(getBucketName(identifier)).get(identifier);
+	}
+
+	/**
+	 * Add or replace the record in the index
+	 * @param entry An index entry
+	 * @throws IOException
+	 */
+	public synchronized void put(Entry entry) throws IOException {
+		String name = getBucketName(entry.getIdentifier());
+
+		getBucket(name).put(entry.getIdentifier(), entry);
+		dirty.add(name);
+	}
+
+	/**
+	 * Write all changed buckets
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		for (String name : dirty) {
+			StringBuilder sb = new StringBuilder();
+			for (Entry entry : buckets.get(name).values())
+				sb.append(encode(entry.getIdentifier())).append('\t')
+					.append(null == entry.getDatestamp() ? "" : entry.getDatestamp()).append('\t')
+					.append(entry.getHash()).append('\t')
+					.append(null == entry.getKey() ? "" : entry.getKey()).append('\n');
+
+			storage.write(prefix + "/" + name + BUCKET_EXTENSION,
+					sb.toString().getBytes(StandardCharsets.UTF_8), "text/tab-separated-values");
+		}
+
+		dirty.clear();
+	}
+
+	/**
+	 * Return the bucket name of the record
+	 * @param identifier A record identifier
+	 * @return String - the bucket name
+	 */
+	public String getBucketName(String identifier) {
+		return ContentStore.sha256(identifier.getBytes(StandardCharsets.UTF_8)).substring(0, digits);
+	}
+
+	private Map<String, Entry> getBucket(String name) throws IOException {
+		Map<String, Entry> bucket = buckets.get(name);
+		if (null == bucket) {
+			bucket = loadBucket(storage.read(prefix + "/" + name + BUCKET_EXTENSION));
+			buckets.put(name, bucket);
+		}
+
+		return bucket;
+	}
+
+	/**
+	 * Parse the bucket content
+	 * @param data A bucket content, could be null
+	 * @return {@code Map<String, Entry>} - map of the record identifiers to the index entries
+	 */
+	public static Map<String, Entry> loadBucket(byte[] data) {
+		Map<String, Entry> bucket = new TreeMap<String, Entry>();
+		if (null != data)
+			for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length == 4) {
+					Entry entry = new Entry(decode(fields[0]), fields[1].isEmpty() ? null : fields[1],
+							fields[2], fields[3].isEmpty() ? null : fields[3]);
+
+					bucket.put(entry.getIdentifier(), entry);
+				}
+			}
+
+		return bucket;
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The index entry of one record
+	 */
+	public static class Entry {
+		private final String identifier;
+		private final String datestamp;
+		private final String hash;
+		private final String key;
+
+		public Entry(String identifier, String datestamp, String hash, String key) {
+			this.identifier = identifier;
+			this.datestamp = datestamp;
+			this.hash = hash;
+			this.key = key;
+		}
+
+		public String getIdentifier() {
+			return identifier;
+		}
+
+		public String getDatestamp() {
+			return datestamp;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Return the key of the stored record
+		 * @return String - the record key or null if the record has been deleted
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isDeleted() {
+			return null == key;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.rdswitchboard.harvesters.pmh;
+
+/**
+ * Interface to receive the harvested records while the harvesting is still running.
+ *
+ * The records of every set will be received in the harvesting order, the records of the
+ * different sets could be interleaved, if several sets are harvested at the same time.
+ * All methods will be called by one delivery thread, so the listener does not need to be
+ * thread safe. If the listener is slower than the harvester, the harvester will wait.
+ * If the listener has thrown an exception, no more records will be delivered and the 
+ * harvest will fail.
+ *
+ * The pages of the resumed harvest could be delivered again, so the listener should not
+ * rely on receiving every record only once.
+ *
+ * @author dima
+ *
+ */
+public interface RecordListener {
+
+	/**
+	 * Function to receive one record
+	 * @param set The set identifier, as used in the storage path
+	 * @param record The record with its header values and, if requested, its metadata
+	 * @throws Exception
+	 */
+	void record(String set, Record record) throws Exception;
+
+	/**
+	 * Function to receive the final status of the set, after all its records have been received
+	 * @param set The set status
+	 * @throws Exception
+	 */
+	void setCompleted(SetStatus set) throws Exception;
+}
@@ -0,0 +1,190 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Class to deliver the harvested records to the record listeners.
+ *
+ * Every page will be split into records by the harvesting thread, before the page has been 
+ * stored, so the page will never be read again. The records will be put into a bounded queue
+ * and will be delivered to the listeners by one delivery thread. If the queue is full, the 
+ * harvesting thread will wait until the listeners have processed enough records, so the slow 
+ * listener will slow down the harvest instead of keeping all records in memory.
+ *
+ * @author dima
+ *
+ */
+public class RecordPublisher {
+
+	private static final Event END = new Event(null, null, null);
+
+	private final List<RecordListener> listeners;
+	private final boolean metadata;
+	private final BlockingQueue<Event> queue;
+	private final Thread thread;
+
+	private int pending;
+	private volatile Exception error;
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Construct record publisher and start the delivery thread
+	 * @param listeners The record listeners
+	 * @param queueSize Maximum number of the records, waiting to be delivered
+	 * @param metadata true if the content of the metadata element should be extracted for every record
+	 */
+	public RecordPublisher(List<RecordListener> listeners, int queueSize, boolean metadata) {
+		this.listeners = new ArrayList<RecordListener>(listeners);
+		this.metadata = metadata;
+		this.queue = new ArrayBlockingQueue<Event>(Math.max(queueSize, 1));
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "record-publisher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Split the page into records and queue them for delivery. Will block if the queue is full. 
+	 * The page will not be released.
+	 * @param set The set identifier
+	 * @param page A page
+	 * @throws InterruptedException
+	 * @throws HarvesterException if the page could not be parsed or any listener has failed
+	 */
+	public void publish(final String set, Page page) throws InterruptedException, HarvesterException {
+		checkError();
+
+		try (InputStream is = page.openStream()) {
+			Record.split(is, metadata, new Record.Handler() {
+				@Override
+				public void record(Record record) throws Exception {
+					put(new Event(set, record, null));
+				}
+			});
+		} catch (InterruptedException | HarvesterException e) {
+			throw e;
+		} catch (XMLStreamException e) {
+			throw new HarvesterException("Unable to parse the records of the page " + page.getKey() + ": " + e.getMessage());
+		} catch (Exception e) {
+			throw new HarvesterException("Unable to publish the records of the page " + page.getKey() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Queue the final status of the set. Will block if the queue is full.
+	 * @param set The set status
+	 * @throws InterruptedException
+	 * @throws HarvesterException if any listener has failed
+	 */
+	public void completed(SetStatus set) throws InterruptedException, HarvesterException {
+		checkError();
+
+		put(new Event(set.getId(), null, set));
+	}
+
+	/**
+	 * Return number of the records, waiting to be delivered
+	 * @return int - number of the records
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Wait until all queued records have been delivered
+	 * @throws InterruptedException
+	 * @throws HarvesterException if any listener has failed
+	 */
+	public synchronized void flush() throws InterruptedException, HarvesterException {
+		while (pending > 0 && null == error)
+			wait();
+
+		checkError();
+	}
+
+	/**
+	 * Deliver the queued records and stop the delivery thread
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		if (thread.isAlive()) {
+			queue.put(END);
+			thread.join();
+		}
+	}
+
+	private void put(Event event) throws InterruptedException {
+		synchronized (this) {
+			++pending;
+		}
+
+		queue.put(event);
+	}
+
+	private void deliver() {
+		try {
+			for (;;) {
+				Event event = queue.take();
+				if (END == event)
+					break;
+
+				if (null == error)
+					try {
+						for (RecordListener listener : listeners)
+							if (null != event.record)
+								listener.record(event.set, event.record);
+							else
+								listener.setCompleted(event.status);
+					} catch (Exception e) {
+						out.println("Error, the record listener has failed: " + e.getMessage());
+
+						error = e;
+					}
+
+				synchronized (this) {
+					--pending;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkError() throws HarvesterException {
+		if (null != error)
+			throw new HarvesterException("The record listener has failed: " + error.getMessage());
+	}
+
+	private static class Event {
+		private final String set;
+		private final Record record;
+		private final SetStatus status;
+
+		Event(String set, Record record, SetStatus status) {
+			this.set = set;
+			this.record = record;
+			this.status = status;
+		}
+	}
+}
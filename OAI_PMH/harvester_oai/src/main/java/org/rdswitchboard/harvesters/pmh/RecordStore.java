@@ -0,0 +1,232 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Class to store the harvested records one file per record.
+ *
+ * The pages will be split into records and every record will be stored as
+ * {@code <prefix>/<set>/<identifier>.xml}, where the identifier is URL encoded. The set index
+ * {@code <prefix>/_index/<set>/} will map every identifier to its datestamp, the hash of the
+ * record and the record key, see {@link RecordIndex}. The record will not be written again,
+ * if its hash has not been changed. The previous version of the changed or deleted record will
+ * be copied into {@code <prefix>/_cache/<set>/<identifier>_<datestamp>.xml} before it is
+ * overwritten.
+ *
+ * @author dima
+ *
+ */
+public class RecordStore {
+
+	public static final String INDEX = "_index";
+	public static final String CACHE = "_cache";
+
+	private static final String RECORD_EXTENSION = ".xml";
+
+	/**
+	 * Interface to read and write the objects in the local folder or S3 bucket
+	 */
+	public interface Storage {
+		byte[] read(String key) throws IOException;
+		void write(String key, byte[] bytes, String contentType) throws IOException;
+		void delete(String key) throws IOException;
+	}
+
+	private final Storage storage;
+	private final String prefix;
+	private final int indexDigits;
+	private final int flushPages;
+
+	private final Map<String, RecordIndex> indexes = new ConcurrentHashMap<String, RecordIndex>();
+
+	/**
+	 * Construct record store
+	 * @param storage A storage of the records and the index
+	 * @param prefix A key prefix, for example {@code repo/metadata}
+	 * @param indexDigits Number of hex digits in the index bucket name
+	 * @param flushPages Number of pages, after which the index will be written
+	 */
+	public RecordStore(Storage storage, String prefix, int indexDigits, int flushPages) {
+		this.storage = storage;
+		this.prefix = prefix;
+		this.indexDigits = indexDigits;
+		this.flushPages = Math.max(flushPages, 1);
+	}
+
+	/**
+	 * Open the session to store the records of one set or set partition. The partitions of the same
+	 * set will share one index.
+	 * @param setName A set name
+	 * @return Session
+	 */
+	public Session open(final String setName) {
+		RecordIndex index = indexes.computeIfAbsent(setName, new Function<String, RecordIndex>() {
+			@Override
+			public RecordIndex apply(String name) {
+				return new RecordIndex(storage, prefix + "/" + INDEX + "/" + name, indexDigits);
+			}
+		});
+
+		return new Session(setName, index);
+	}
+
+	/**
+	 * Return the index of the set, which has been opened
+	 * @param setName A set name
+	 * @return RecordIndex - the index or null
+	 */
+	public RecordIndex getIndex(String setName) {
+		return indexes.get(setName);
+	}
+
+	public String getRecordKey(String setName, String identifier) {
+		return prefix + "/" + setName + "/" + encode(identifier) + RECORD_EXTENSION;
+	}
+
+	public String getCacheKey(String setName, String identifier, String datestamp) {
+		return prefix + "/" + CACHE + "/" + setName + "/" + encode(identifier)
+				+ "_" + encode(null == datestamp ? "" : datestamp) + RECORD_EXTENSION;
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Records of one set. The index is written after every few pages, so the page progress
+	 * could be saved only after the index has been written. The session is not thread safe.
+	 */
+	public class Session {
+
+		private final String setName;
+		private final RecordIndex index;
+
+		private Checkpoint pending;
+		private int pages;
+		private int records;
+		private int stored;
+
+		private Session(String setName, RecordIndex index) {
+			this.setName = setName;
+			this.index = index;
+		}
+
+		/**
+		 * Return the key of the folder, the records of the set are stored into
+		 * @return String - the folder key
+		 */
+		public String getKey() {
+			return prefix + "/" + setName + "/";
+		}
+
+		/**
+		 * Store the records of the page. The page will not be released.
+		 * @param page A page
+		 * @return Checkpoint - the progress, which could be saved now, or null
+		 * @throws IOException
+		 * @throws HarvesterException if the page is not a valid XML
+		 */
+		public Checkpoint store(Page page) throws IOException, HarvesterException {
+			try (InputStream is = page.openStream()) {
+				for (Record record : Record.split(is))
+					store(record);
+			} catch (XMLStreamException e) {
+				throw new HarvesterException("Unable to parse the page " + page.getKey() + ": " + e.getMessage());
+			}
+
+			if (null != page.getCheckpoint())
+				pending = page.getCheckpoint();
+
+			if (++pages < flushPages)
+				return null;
+
+			return flush();
+		}
+
+		/**
+		 * Write the index
+		 * @return Checkpoint - the progress of the last stored page or null
+		 * @throws IOException
+		 */
+		public Checkpoint close() throws IOException {
+			return flush();
+		}
+
+		/**
+		 * Return number of the records in the stored pages
+		 * @return int - number of the records
+		 */
+		public int getRecords() {
+			return records;
+		}
+
+		/**
+		 * Return number of the new, changed or deleted records
+		 * @return int - number of the records
+		 */
+		public int getStored() {
+			return stored;
+		}
+
+		private Checkpoint flush() throws IOException {
+			index.flush();
+
+			Checkpoint checkpoint = pending;
+			pending = null;
+			pages = 0;
+
+			return checkpoint;
+		}
+
+		private void store(Record record) throws IOException {
+			++records;
+
+			RecordIndex.Entry entry = index.get(record.getIdentifier());
+			if (record.isDeleted()) {
+				if (null != entry && entry.isDeleted())
+					return;
+
+				if (null != entry) {
+					cache(entry);
+					storage.delete(entry.getKey());
+				}
+
+				index.put(new RecordIndex.Entry(record.getIdentifier(), record.getDatestamp(),
+						ContentStore.sha256(record.getXml()), null));
+			} else {
+				String hash = ContentStore.sha256(record.getXml());
+				if (null != entry && !entry.isDeleted() && hash.equals(entry.getHash()))
+					return;
+
+				if (null != entry && !entry.isDeleted())
+					cache(entry);
+
+				String key = getRecordKey(setName, record.getIdentifier());
+				storage.write(key, record.getXml(), "text/xml");
+
+				index.put(new RecordIndex.Entry(record.getIdentifier(), record.getDatestamp(), hash, key));
+			}
+
+			++stored;
+		}
+
+		private void cache(RecordIndex.Entry entry) throws IOException {
+			byte[] xml = storage.read(entry.getKey());
+			if (null != xml)
+				storage.write(getCacheKey(setName, entry.getIdentifier(), entry.getDatestamp()), xml, "text/xml");
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
+/**
+ * Streaming processor for the OAI:PMH ListRecords response.
+ *
+ * The processor will copy the response bytes into the output stream as they are read
+ * and will parse them with StAX at the same time. Only the values needed to continue
+ * harvesting and to describe the page in the harvest manifest will be extracted: the error 
+ * code and message, the resumption token, the cursor, the complete list size, the number of 
+ * the records, the first and the last record identifier and the earliest and the latest record 
+ * datestamp. The response will never be materialized as a String or a DOM tree.
+ *
+ * @author dima
+ *
+ */
+public class ResponseProcessor {
+
+	private static final String TAG_OAI_PMH = "OAI-PMH";
+	private static final String TAG_ERROR = "error";
+	private static final String TAG_LIST_RECORDS = "ListRecords";
+	private static final String TAG_RESUMPTION_TOKEN = "resumptionToken";
+	private static final String TAG_RECORD = "record";
+	private static final String TAG_HEADER = "header";
+	private static final String TAG_IDENTIFIER = "identifier";
+	private static final String TAG_DATESTAMP = "datestamp";
+
+	private static final String ATTR_CODE = "code";
+	private static final String ATTR_CURSOR = "cursor";
+	private static final String ATTR_COMPLETE_LIST_SIZE = "completeListSize";
+	private static final String ATTR_STATUS = "status";
+	
+	private static final String STATUS_DELETED = "deleted";
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	private boolean oaiPmh;
+	private String errorCode;
+	private String errorMessage;
+	private boolean tokenFound;
+	private String token;
+	private String cursor;
+	private String completeListSize;
+	private String minDatestamp;
+	private String maxDatestamp;
+	private String firstIdentifier;
+	private String lastIdentifier;
+	private int records;
+	private int deleted;
+
+	/**
+	 * Process the response. The input stream will be read until the end, even if
+	 * the XML document ends earlier, so the output will contain the complete response.
+	 * @param is An input stream with the response
+	 * @param os An output stream to copy the response into.
+	 * @throws IOException
+	 * @throws XMLStreamException if the response is not a valid XML
+	 */
+	public void process(InputStream is, OutputStream os) throws IOException, XMLStreamException {
+		InputStream tee = new TeeInputStream(is, os);
+
+		// the parser could close the stream, before the whole response has been copied
+		XMLStreamReader reader = factory.createXMLStreamReader(new CloseShieldInputStream(tee));
+		try {
+			int depth = 0;
+			boolean listRecords = false;
+			boolean record = false;
+			boolean header = false;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					++depth;
+
+					String name = reader.getLocalName();
+					if (depth == 1)
+						oaiPmh = TAG_OAI_PMH.equals(name);
+					else if (depth == 2 && oaiPmh) {
+						if (TAG_ERROR.equals(name)) {
+							errorCode = reader.getAttributeValue(null, ATTR_CODE);
+							errorMessage = reader.getElementText();
+							--depth;
+						} else
+							listRecords = TAG_LIST_RECORDS.equals(name);
+					} else if (depth == 3 && listRecords) {
+						if (TAG_RESUMPTION_TOKEN.equals(name)) {
+							tokenFound = true;
+							cursor = reader.getAttributeValue(null, ATTR_CURSOR);
+							completeListSize = reader.getAttributeValue(null, ATTR_COMPLETE_LIST_SIZE);
+							token = reader.getElementText().trim();
+							--depth;
+						} else {
+							record = TAG_RECORD.equals(name);
+							if (record)
+								++records;
+						}
+					} else if (depth == 4 && record) {
+						header = TAG_HEADER.equals(name);
+						if (header && STATUS_DELETED.equals(reader.getAttributeValue(null, ATTR_STATUS)))
+							++deleted;
+					} else if (depth == 5 && header && TAG_IDENTIFIER.equals(name)) {
+						lastIdentifier = reader.getElementText().trim();
+						if (null == firstIdentifier)
+							firstIdentifier = lastIdentifier;
+						--depth;
+					} else if (depth == 5 && header && TAG_DATESTAMP.equals(name)) {
+						String datestamp = reader.getElementText().trim();
+						// ISO 8601 dates with the same granularity could be compared as strings
+						if (null == maxDatestamp || maxDatestamp.compareTo(datestamp) < 0)
+							maxDatestamp = datestamp;
+						if (null == minDatestamp || minDatestamp.compareTo(datestamp) > 0)
+							minDatestamp = datestamp;
+						--depth;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					switch (--depth) {
+					case 1:
+						listRecords = false;
+						break;
+					case 2:
+						record = false;
+						break;
+					case 3:
+						header = false;
+						break;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		// copy anything left after the end of the document
+		byte[] buffer = new byte[4096];
+		while (tee.read(buffer) != -1)
+			continue;
+	}
+
+	/**
+	 * Return true if the root element of the response was OAI-PMH
+	 * @return boolean
+	 */
+	public boolean isOaiPmh() {
+		return oaiPmh;
+	}
+
+	/**
+	 * Return true if the response contained an error element
+	 * @return boolean
+	 */
+	public boolean hasError() {
+		return null != errorCode || null != errorMessage;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * Return true if the response contained a resumption token element, even an empty one
+	 * @return boolean
+	 */
+	public boolean isTokenFound() {
+		return tokenFound;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public String getCompleteListSize() {
+		return completeListSize;
+	}
+
+	/**
+	 * Return the latest datestamp of the records in the response
+	 * @return String - datestamp or null if the response has no records
+	 */
+	public String getMaxDatestamp() {
+		return maxDatestamp;
+	}
+
+	/**
+	 * Return the earliest datestamp of the records in the response
+	 * @return String - datestamp or null if the response has no records
+	 */
+	public String getMinDatestamp() {
+		return minDatestamp;
+	}
+
+	/**
+	 * Return the identifier of the first record in the response
+	 * @return String - identifier or null if the response has no records
+	 */
+	public String getFirstIdentifier() {
+		return firstIdentifier;
+	}
+
+	/**
+	 * Return the identifier of the last record in the response
+	 * @return String - identifier or null if the response has no records
+	 */
+	public String getLastIdentifier() {
+		return lastIdentifier;
+	}
+
+	/**
+	 * Return number of the records in the response, including the deleted records
+	 * @return int - number of the records
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Return number of the deleted records in the response
+	 * @return int - number of the deleted records
+	 */
+	public int getDeleted() {
+		return deleted;
+	}
+}
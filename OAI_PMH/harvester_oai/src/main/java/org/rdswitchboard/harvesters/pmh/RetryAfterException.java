@@ -0,0 +1,48 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.util.Date;
+
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Exception, thrown when the server has asked to repeat the request later,
+ * usually with HTTP 503 and Retry-After header.
+ * @author dima
+ *
+ */
+public class RetryAfterException extends HarvesterException {
+
+	private final long delay;
+
+	public RetryAfterException(String code, String message, long delay) {
+		super(code, message);
+
+		this.delay = delay;
+	}
+
+	/**
+	 * Return the delay, requested by the server
+	 * @return long - delay in milliseconds or 0 if the server has not provided it
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Parse Retry-After header. The header could contain either number of seconds or HTTP date.
+	 * @param retryAfter A header value
+	 * @return long - delay in milliseconds or 0 if the header could not be parsed
+	 */
+	public static long parseRetryAfter(String retryAfter) {
+		if (null == retryAfter || retryAfter.trim().isEmpty())
+			return 0;
+
+		try {
+			return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(retryAfter.trim());
+
+			return null == date ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+
+/**
+ * Sink to store the pages into S3 bucket. The pages buffered on the disk and larger than 
+ * the multipart threshold will be uploaded in parallel parts.
+ * 
+ * @author dima
+ *
+ */
+public class S3Sink implements HarvestSink {
+
+	private final AmazonS3 s3client;
+	private final String bucketName;
+	private final long multipartThreshold;
+	private final TransferManager transferManager;
+	
+	public S3Sink(AmazonS3 s3client, String bucketName, long multipartThreshold, int threads) {
+		this.s3client = s3client;
+		this.bucketName = bucketName;
+		this.multipartThreshold = multipartThreshold;
+		
+		TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+		configuration.setMultipartUploadThreshold(multipartThreshold);
+		transferManager = new TransferManager(s3client, Executors.newFixedThreadPool(Math.max(threads, 1)), false);
+		transferManager.setConfiguration(configuration);
+	}
+
+	@Override
+	public void store(Page page) throws IOException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		if (page.getContentType().startsWith("text/"))
+			metadata.setContentEncoding(StandardCharsets.UTF_8.name());
+		metadata.setContentType(page.getContentType());
+		metadata.setContentLength(page.getSize());
+		
+		if (null != page.getFile() && page.getSize() >= multipartThreshold) {
+			PutObjectRequest request = new PutObjectRequest(bucketName, page.getKey(), page.getFile());
+			request.setMetadata(metadata);
+			
+			try {
+				transferManager.upload(request).waitForCompletion();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				
+				throw new InterruptedIOException("The upload of " + page.getKey() + " has been interrupted");
+			}
+		} else 
+			try (InputStream is = page.openStream()) {
+				s3client.putObject(new PutObjectRequest(bucketName, page.getKey(), is, metadata));
+			}
+	}
+
+	@Override
+	public void write(String key, byte[] bytes, String contentType) throws IOException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentEncoding(StandardCharsets.UTF_8.name());
+		metadata.setContentType(contentType);
+		metadata.setContentLength(bytes.length);
+		
+		s3client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+	}
+
+	@Override
+	public byte[] read(String key) throws IOException {
+		try (S3Object object = s3client.getObject(bucketName, key)) {
+			return IOUtils.toByteArray(object.getObjectContent());
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				return null;
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isRetryable() {
+		return true;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		try {
+			s3client.getObjectMetadata(bucketName, key);
+			
+			return true;
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				return false;
+			throw e;
+		}
+	}
+
+	@Override
+	public void delete(String key) {
+		s3client.deleteObject(bucketName, key);
+	}
+
+	@Override
+	public void close() {
+		transferManager.shutdownNow(false);
+	}
+	
+	@Override
+	public String toString() {
+		return "S3 bucket " + bucketName;
+	}
+}
@@ -0,0 +1,105 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Cache of the compiled XML schemas.
+ *
+ * Every schema will be compiled only once and could be shared by any number of threads.
+ * If the catalog folder has been set and contains the file with the same name as the last
+ * part of the schema URL, for example {@code oai_dc.xsd}, the schema will be loaded from that
+ * file, otherwise the schema will be downloaded from its URL. The imported and included
+ * schemas will be resolved relative to the schema location.
+ *
+ * @author dima
+ *
+ */
+public class SchemaCache {
+
+	private final File catalog;
+	private final Map<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Construct schema cache
+	 * @param catalog A local folder with the schemas or null
+	 */
+	public SchemaCache(File catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Return the compiled schema
+	 * @param schemaUrl A schema URL, as returned by ListMetadataFormats
+	 * @return Schema
+	 * @throws HarvesterException if the schema could not be loaded or compiled
+	 */
+	public Schema getSchema(String schemaUrl) throws HarvesterException {
+		Schema schema = schemas.get(schemaUrl);
+		if (null != schema)
+			return schema;
+
+		synchronized (this) {
+			schema = schemas.get(schemaUrl);
+			if (null == schema) {
+				schema = compile(schemaUrl);
+				schemas.put(schemaUrl, schema);
+			}
+		}
+
+		return schema;
+	}
+
+	/**
+	 * Return the local file of the schema
+	 * @param schemaUrl A schema URL
+	 * @return File - the file or null if the schema is not in the catalog
+	 */
+	public File getCatalogFile(String schemaUrl) {
+		if (null == catalog)
+			return null;
+
+		String name = schemaUrl.substring(schemaUrl.lastIndexOf('/') + 1);
+		File file = new File(catalog, name);
+
+		return !name.isEmpty() && file.isFile() ? file : null;
+	}
+
+	private Schema compile(String schemaUrl) throws HarvesterException {
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+		File file = getCatalogFile(schemaUrl);
+		try {
+			if (null != file) {
+				out.println("Loading schema " + schemaUrl + " from " + file);
+
+				return factory.newSchema(file);
+			} else {
+				out.println("Downloading schema " + schemaUrl);
+
+				return factory.newSchema(new URL(schemaUrl));
+			}
+		} catch (SAXException | MalformedURLException e) {
+			throw new HarvesterException("Unable to load the schema " + schemaUrl + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Class to append the downloaded pages of one set into rolling compressed segments.
+ *
+ * Every page is written as a separate gzip member, so the segment is a valid gzip file, and
+ * any page could be read by seeking to its offset and decompressing only its member. The
+ * segment will be sealed, when its compressed size or number of pages will reach the limit.
+ * The sealed segment will be stored as {@code <first page>-<last page>.xml.gz} together with
+ * the offset index {@code <first page>-<last page>.idx}, containing one line per page:
+ * <p>
+ * {@code
+ *   <page> <offset> <compressed length> <size>
+ * }
+ * <p>
+ * separated by tabs. The page number is the same as N in the {@code N.xml} file name.
+ *
+ * @author dima
+ *
+ */
+public class SegmentWriter {
+
+	public static final String SEGMENT_EXTENSION = ".xml.gz";
+	public static final String INDEX_EXTENSION = ".idx";
+
+	private final long maxSize;
+	private final int maxPages;
+	private final File folder;
+
+	private File file;
+	private CountingOutputStream os;
+	private String prefix;
+	private int firstPage;
+	private int lastPage;
+	private long lastOffset;
+	private long lastLength;
+	private Checkpoint checkpoint;
+	private final StringBuilder index = new StringBuilder();
+
+	/**
+	 * Construct segment writer
+	 * @param maxSize Maximum compressed size of one segment in bytes, 0 for unlimited
+	 * @param maxPages Maximum number of the pages in one segment, 0 for unlimited
+	 */
+	public SegmentWriter(long maxSize, int maxPages) {
+		this(maxSize, maxPages, null);
+	}
+
+	/**
+	 * Construct segment writer
+	 * @param maxSize Maximum compressed size of one segment in bytes, 0 for unlimited
+	 * @param maxPages Maximum number of the pages in one segment, 0 for unlimited
+	 * @param folder A folder for the unsealed segments or null for the system temporary folder. 
+	 * The segment could be moved into the output folder without copying, if it is on the same file system.
+	 */
+	public SegmentWriter(long maxSize, int maxPages, File folder) {
+		this.maxSize = maxSize;
+		this.maxPages = maxPages;
+		this.folder = folder;
+	}
+
+	/**
+	 * Append the page into the current segment. The page will not be released.
+	 * @param page A downloaded page with checkpoint
+	 * @return {@code List<Page>} - the index and the segment, if the segment has been sealed, or empty list.
+	 * The segment page will keep the checkpoint of the last page in it.
+	 * @throws IOException
+	 */
+	public List<Page> append(Page page) throws IOException {
+		int number = page.getCheckpoint().getFiles() - 1;
+
+		if (null == os) {
+			String key = page.getKey();
+			prefix = key.substring(0, key.lastIndexOf('/') + 1);
+			firstPage = number;
+			file = File.createTempFile("segment", SEGMENT_EXTENSION, folder);
+			os = new CountingOutputStream(new FileOutputStream(file));
+			index.setLength(0);
+		}
+
+		long offset = os.getByteCount();
+		try (GZIPOutputStream gz = new GZIPOutputStream(new CloseShieldOutputStream(os), 65536);
+				InputStream is = page.openStream()) {
+			IOUtils.copy(is, gz);
+		}
+
+		index.append(number).append('\t').append(offset).append('\t')
+			.append(os.getByteCount() - offset).append('\t').append(page.getSize()).append('\n');
+
+		lastPage = number;
+		lastOffset = offset;
+		lastLength = os.getByteCount() - offset;
+		checkpoint = page.getCheckpoint();
+
+		if ((maxSize > 0 && os.getByteCount() >= maxSize) || (maxPages > 0 && number - firstPage + 1 >= maxPages))
+			return seal();
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Seal the current segment, if it has any pages
+	 * @return {@code List<Page>} - the index and the segment or empty list
+	 * @throws IOException
+	 */
+	public List<Page> close() throws IOException {
+		if (null == os)
+			return Collections.emptyList();
+
+		return seal();
+	}
+
+	/**
+	 * Return the offset of the last appended page in its segment
+	 * @return long - the offset in bytes
+	 */
+	public long getLastOffset() {
+		return lastOffset;
+	}
+
+	/**
+	 * Return the compressed length of the last appended page
+	 * @return long - the length in bytes
+	 */
+	public long getLastLength() {
+		return lastLength;
+	}
+
+	/**
+	 * Delete the current segment without storing it
+	 */
+	public void discard() {
+		IOUtils.closeQuietly(os);
+		os = null;
+
+		if (null != file) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	private List<Page> seal() throws IOException {
+		os.close();
+		os = null;
+
+		String name = prefix + firstPage + "-" + lastPage;
+
+		Page indexPage = new Page(name + INDEX_EXTENSION, index.toString().getBytes(StandardCharsets.UTF_8));
+		indexPage.setContentType("text/tab-separated-values");
+
+		Page segment = new Page(name + SEGMENT_EXTENSION, file);
+		segment.setContentType("application/gzip");
+		segment.setCheckpoint(new Checkpoint(checkpoint.getSet(), checkpoint.getToken(), checkpoint.getCursor(),
+				checkpoint.getSize(), checkpoint.getFiles(), segment.getKey(), checkpoint.getDatestamp()));
+
+		file = null;
+
+		List<Page> pages = new ArrayList<Page>();
+		pages.add(indexPage);
+		pages.add(segment);
+
+		return pages;
+	}
+
+	/**
+	 * Read one page from the segment file
+	 * @param segment A segment file
+	 * @param offset The page offset from the index
+	 * @param length The page compressed length from the index
+	 * @return InputStream - uncompressed page content. Must be closed by the caller.
+	 * @throws IOException
+	 */
+	public static InputStream openPage(File segment, long offset, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try {
+			raf.seek(offset);
+
+			return new GZIPInputStream(new BoundedInputStream(Channels.newInputStream(raf.getChannel()), length));
+		} catch (IOException e) {
+			raf.close();
+
+			throw e;
+		}
+	}
+}
@@ -8,19 +8,38 @@ import java.io.PrintStream;
  */
 public class SetStatus {
 	
+	public static final String OUTCOME_HARVESTED = "harvested";
+	public static final String OUTCOME_EMPTY = "empty";
+	public static final String OUTCOME_IGNORED = "ignored";
+	public static final String OUTCOME_BLACKLISTED = "blacklisted";
+	public static final String OUTCOME_FAILED = "failed";
+	public static final String OUTCOME_UNFINISHED = "unfinished";
+	public static final String OUTCOME_DRAINED = "drained";
+	
 	private String name;
+	private String id;
 	private String title;
-	private String error;
-	private String token = null;
-	private int cursor;
-	private int size;
-	private int files;
+	// the progress is written by the harvesting thread and is read by the admin thread
+	private volatile String error;
+	private volatile String token = null;
+	private String from;
+	private volatile String datestamp;
+	private DateWindow window;
+	private volatile int cursor;
+	private volatile int size;
+	private volatile int files;
 	private int records;
+	private boolean validated;
+	private int validRecords;
+	private int invalidRecords;
 	private long milliseconds;
+	private volatile long started;
+	private volatile boolean drained;
 	
 	public SetStatus(String name, String title) {
 		this.name = name;
 		this.title = title;
+		this.id = getNameSafe();
 	}
 	
 	public String getName() {
@@ -31,9 +50,19 @@ public class SetStatus {
 		return name == null || name.isEmpty() ? "default" : name;
 	}
 
+	/**
+	 * Return unique identifier of the set or the set partition. The identifier is used as 
+	 * the set path in the storage. The identifier is used for every page, so it will be 
+	 * created only when the name or the window has been changed.
+	 * @return String - set identifier
+	 */
+	public String getId() {
+		return id;
+	}
 	
 	public void setName(String name) {
 		this.name = name;
+		this.id = newId();
 	}
 
 	public boolean hasName() {
@@ -64,6 +93,73 @@ public class SetStatus {
 		return null != token && !token.isEmpty();
 	}
 
+	/**
+	 * Return the date, the set should be harvested from. Null means full harvest.
+	 * @return String - from date
+	 */
+	public String getFrom() {
+		return from;
+	}
+
+	public void setFrom(String from) {
+		this.from = from;
+	}
+	
+	public boolean hasFrom() {
+		return null != from && !from.isEmpty();
+	}
+
+	/**
+	 * Return the date, the set should be harvested until. Null means until now.
+	 * @return String - until date
+	 */
+	public String getUntil() {
+		return null == window ? null : window.getUntil();
+	}
+	
+	public boolean hasUntil() {
+		return null != getUntil();
+	}
+	
+	/**
+	 * Return datestamp window, if the set has been partitioned
+	 * @return DateWindow - window or null
+	 */
+	public DateWindow getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Set datestamp window. The set from date will be set to the window start.
+	 * @param window A window
+	 */
+	public void setWindow(DateWindow window) {
+		this.window = window;
+		this.from = null == window ? null : window.getFrom();
+		this.id = newId();
+	}
+
+	/**
+	 * Return the latest datestamp of the harvested records
+	 * @return String - datestamp
+	 */
+	public String getDatestamp() {
+		return datestamp;
+	}
+	
+	public void setDatestamp(String datestamp) {
+		this.datestamp = datestamp;
+	}
+
+	/**
+	 * Update the latest datestamp, if the new one is later
+	 * @param datestamp A datestamp
+	 */
+	public void updateDatestamp(String datestamp) {
+		if (null != datestamp && (null == this.datestamp || this.datestamp.compareTo(datestamp) < 0))
+			this.datestamp = datestamp;
+	}
+
 	public String getError() {
 		return error;
 	}
@@ -81,6 +177,29 @@ public class SetStatus {
 		return files;
 	}
 	
+	/**
+	 * Return the set outcome, described by the files counter
+	 * @return String - one of the OUTCOME_ constants
+	 */
+	public String getOutcome() {
+		if (drained && files != -3 && (hasToken() || files == 0))
+			return OUTCOME_DRAINED;
+		if (files > 0)
+			return hasToken() ? OUTCOME_UNFINISHED : OUTCOME_HARVESTED;
+		switch (files) {
+		case 0:
+			return OUTCOME_EMPTY;
+		case -1:
+			return OUTCOME_IGNORED;
+		case -2:
+			return OUTCOME_BLACKLISTED;
+		case -3:
+			return OUTCOME_FAILED;
+		default:
+			return OUTCOME_UNFINISHED;
+		}
+	}
+	
 	public void setFiles(int files) {
 		this.files = files;
 	}
@@ -97,6 +216,33 @@ public class SetStatus {
 		this.records = records;
 	}
 	
+	/**
+	 * Return true if the set records have been validated
+	 * @return boolean
+	 */
+	public boolean isValidated() {
+		return validated;
+	}
+	
+	public int getValidRecords() {
+		return validRecords;
+	}
+	
+	public int getInvalidRecords() {
+		return invalidRecords;
+	}
+	
+	/**
+	 * Set the validation result of the set records
+	 * @param validRecords Number of the valid records
+	 * @param invalidRecords Number of the invalid records
+	 */
+	public void setValidation(int validRecords, int invalidRecords) {
+		this.validated = true;
+		this.validRecords = validRecords;
+		this.invalidRecords = invalidRecords;
+	}
+	
 	public long getMilliseconds() {
 		return milliseconds;
 	}
@@ -171,6 +317,31 @@ public class SetStatus {
 		this.milliseconds = milliseconds;
 	}
 	
+	/**
+	 * Return the time, the set harvesting has been started
+	 * @return long - time in milliseconds or 0 if the set has not been started yet
+	 */
+	public long getStarted() {
+		return started;
+	}
+	
+	public void setStarted(long started) {
+		this.started = started;
+	}
+	
+	/**
+	 * Return true if the set has been asked to stop after the current page. The set will keep
+	 * its resumption token, so it could be resumed by the next harvest.
+	 * @return boolean
+	 */
+	public boolean isDrained() {
+		return drained;
+	}
+	
+	public void drain() {
+		this.drained = true;
+	}
+	
 
 	public Integer getCursor() {
 		return cursor;
@@ -222,10 +393,13 @@ public class SetStatus {
 	@Override
 	public String toString() {
 		return "SetStatus [name=" + name + ", title=" + title + ", error="
-				+ error + ", token=" + token + ", cursor=" + cursor + ", size="
+				+ error + ", token=" + token + ", from=" + from + ", until=" + getUntil() + ", datestamp=" 
+				+ datestamp + ", cursor=" + cursor + ", size="
 				+ size + ", files=" + files + ", records=" + records
 				+ ", milliseconds=" + milliseconds + "]";
 	}
-
-
+	
+	private String newId() {
+		return null == window ? getNameSafe() : getNameSafe() + "/" + window.getLabel();
+	}
 }
@@ -0,0 +1,349 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous write-behind queue for one or several sinks.
+ *
+ * Every page will be stored by all sinks, so one downloaded page could be written into the
+ * local folder, S3 bucket and a pipe at the same time. Every sink has its own pool of threads
+ * and its own limit of the pages in flight, if the queue of any sink is full, the harvesting
+ * thread will wait, so the slowest sink will slow down the harvesting, but will never let the
+ * pages to pile up in memory. The failed writes will be retried from the buffered page, so the
+ * page will never be downloaded again. The page will be released after all sinks have stored it.
+ *
+ * The pages of one set should be stored by one {@link Sequence}, which will report the stored
+ * pages in order, so the set progress could be saved only after all previous pages were stored.
+ *
+ * @author dima
+ *
+ */
+public class SinkQueue {
+
+	/**
+	 * Interface to receive the set progress after the page has been stored
+	 */
+	public interface Listener {
+		void stored(Checkpoint checkpoint) throws Exception;
+	}
+
+	private final int queueSize;
+	private final int maxAttempts;
+	private final int attemptDelay;
+
+	private final List<Target> targets = new ArrayList<Target>();
+
+	private int pending;
+	private HarvestMetrics metrics;
+	private volatile PrintStream out = System.out;
+
+	/**
+	 * Construct sink queue
+	 * @param queueSize Maximum number of the pages in flight for every sink
+	 * @param maxAttempts Number of attempts to store a page, before the set will fail
+	 * @param attemptDelay Delay in milliseconds before the first retry, will be doubled after every attempt
+	 */
+	public SinkQueue(int queueSize, int maxAttempts, int attemptDelay) {
+		this.queueSize = Math.max(queueSize, 1);
+		this.maxAttempts = maxAttempts;
+		this.attemptDelay = attemptDelay;
+	}
+
+	/**
+	 * Add the sink, the pages will be stored into
+	 * @param sink A sink
+	 * @param threads Number of threads to store the pages into the sink
+	 */
+	public void addSink(HarvestSink sink, int threads) {
+		targets.add(new Target(sink, Math.max(threads, 1), queueSize));
+	}
+
+	/**
+	 * Set the metrics to record the write latency of every sink, the retries and the failed writes
+	 * @param metrics The harvest metrics
+	 */
+	public void setMetrics(HarvestMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the stream to print the messages into
+	 * @param out A print stream
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Return number of the pages, which have been queued, but have not been stored yet
+	 * @return int - number of the pages
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Create new sequence of pages
+	 * @param listener A listener, which will receive the progress of the stored pages in order. Could be null.
+	 * @return Sequence
+	 */
+	public Sequence newSequence(Listener listener) {
+		return new Sequence(listener);
+	}
+
+	/**
+	 * Wait until all queued pages of all sequences have been stored or failed
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (pending > 0)
+			wait();
+	}
+
+	/**
+	 * Stop the threads. The pending writes will be cancelled.
+	 */
+	public void close() {
+		for (Target target : targets)
+			target.executor.shutdownNow();
+	}
+
+	private synchronized void begin() {
+		++pending;
+	}
+
+	private synchronized void end() {
+		if (--pending == 0)
+			notifyAll();
+	}
+
+	private void put(HarvestSink sink, Page page) throws Exception {
+		String set = null == page.getCheckpoint() ? null : page.getCheckpoint().getSet();
+		for (int nAttempt = 0;; ++nAttempt) {
+			try {
+				long start = System.nanoTime();
+				sink.store(page);
+				if (null != metrics)
+					metrics.stored(set, sink, System.nanoTime() - start);
+
+				return;
+			} catch (Exception e) {
+				// the failed write could not be repeated, if the sink could have written a part of the page
+				if (nAttempt >= maxAttempts || !sink.isRetryable() || Thread.currentThread().isInterrupted()) {
+					if (null != metrics)
+						metrics.failed(set);
+
+					throw e;
+				}
+
+				if (null != metrics)
+					metrics.retried(set);
+
+				long delay = attemptDelay <= 0 ? 0 : (long) attemptDelay << Math.min(nAttempt, 10);
+				out.println("Warning, unable to store " + page.getKey() + " into " + sink + ": " + e.getMessage() + ". Retrying in " + delay + " ms");
+
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * Ordered pages of one set. The checkpoint of the page will be reported only after the page
+	 * and all previous pages of the sequence have been stored by all sinks. After the first failed
+	 * page, no more checkpoints will be reported and the error will be thrown by the next call.
+	 */
+	public class Sequence {
+
+		private final Listener listener;
+		private final Deque<Write> writes = new ArrayDeque<Write>();
+
+		private Exception error;
+
+		private Sequence(Listener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Queue page for storing. Will block if the queue of any sink is full. The page will be
+		 * released after it has been stored by all sinks.
+		 * @param page A page
+		 * @return CompletableFuture - the future, which will be completed after the page has been 
+		 * stored by all sinks, or will fail if any of the sinks could not store it
+		 * @throws InterruptedException
+		 * @throws HarvesterException if any of previous pages could not be stored
+		 */
+		public CompletableFuture<Void> store(final Page page) throws InterruptedException, HarvesterException {
+			checkError();
+
+			final Write write = new Write(page.getCheckpoint(), targets.size());
+			synchronized (this) {
+				writes.add(write);
+			}
+
+			begin();
+			for (final Target target : targets) {
+				try {
+					target.permits.acquire();
+				} catch (InterruptedException e) {
+					// the page will not be stored by this and the next sinks
+					for (int i = targets.indexOf(target); i < targets.size(); ++i)
+						finished(write, page, e);
+
+					throw e;
+				}
+
+				try {
+					target.executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							Exception e = null;
+							try {
+								put(target.sink, page);
+							} catch (Exception ex) {
+								e = ex;
+							} finally {
+								target.permits.release();
+							}
+
+							finished(write, page, e);
+						}
+					});
+				} catch (RuntimeException e) {
+					target.permits.release();
+
+					for (int i = targets.indexOf(target); i < targets.size(); ++i)
+						finished(write, page, e);
+
+					throw e;
+				}
+			}
+			
+			return write.stored;
+		}
+
+		/**
+		 * Report the page, which does not need to be stored, in order with the other pages
+		 * @param checkpoint The page checkpoint
+		 * @throws HarvesterException if any of previous pages could not be stored
+		 */
+		public void skip(Checkpoint checkpoint) throws HarvesterException {
+			skip(checkpoint, CompletableFuture.<Void>completedFuture(null));
+		}
+
+		/**
+		 * Report the page, which content is being stored by another page, in order with the other 
+		 * pages. The checkpoint will be reported after the other write has completed, if that
+		 * write fails, the sequence will fail too.
+		 * @param checkpoint The page checkpoint
+		 * @param stored The future of the other write
+		 * @throws HarvesterException if any of previous pages could not be stored
+		 */
+		public void skip(Checkpoint checkpoint, CompletableFuture<Void> stored) throws HarvesterException {
+			checkError();
+
+			final Write write = new Write(checkpoint, 0);
+			synchronized (this) {
+				writes.add(write);
+			}
+
+			stored.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void result, Throwable e) {
+					if (null != e)
+						write.error.compareAndSet(null, e instanceof Exception ? (Exception) e : new ExecutionException(e));
+
+					completed(write);
+				}
+			});
+		}
+
+		/**
+		 * Wait until all queued pages of the sequence have been stored
+		 * @throws InterruptedException
+		 * @throws HarvesterException if any of the pages could not be stored
+		 */
+		public synchronized void await() throws InterruptedException, HarvesterException {
+			while (!writes.isEmpty())
+				wait();
+
+			checkError();
+		}
+
+		private void finished(Write write, Page page, Exception e) {
+			if (null != e)
+				write.error.compareAndSet(null, e);
+
+			if (write.sinks.decrementAndGet() == 0) {
+				page.release();
+
+				if (null == write.error.get())
+					write.stored.complete(null);
+				else
+					write.stored.completeExceptionally(write.error.get());
+
+				completed(write);
+				end();
+			}
+		}
+
+		private synchronized void completed(Write write) {
+			write.done = true;
+			if (null != write.error.get() && null == error)
+				error = write.error.get();
+
+			while (!writes.isEmpty() && writes.peek().done) {
+				Write head = writes.poll();
+				if (null == error && null != listener && null != head.checkpoint)
+					try {
+						listener.stored(head.checkpoint);
+					} catch (Exception ex) {
+						error = ex;
+					}
+			}
+
+			notifyAll();
+		}
+
+		private synchronized void checkError() throws HarvesterException {
+			if (null != error)
+				throw new HarvesterException("Unable to store the page: " + error.getMessage());
+		}
+	}
+
+	private static class Target {
+		private final HarvestSink sink;
+		private final ExecutorService executor;
+		private final Semaphore permits;
+
+		Target(HarvestSink sink, int threads, int queueSize) {
+			this.sink = sink;
+			this.executor = Executors.newFixedThreadPool(threads);
+			this.permits = new Semaphore(queueSize);
+		}
+	}
+
+	private static class Write {
+		private final Checkpoint checkpoint;
+		private final AtomicInteger sinks;
+		private final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		private final CompletableFuture<Void> stored = new CompletableFuture<Void>();
+		private boolean done;
+
+		Write(Checkpoint checkpoint, int sinks) {
+			this.checkpoint = checkpoint;
+			this.sinks = new AtomicInteger(sinks);
+		}
+	}
+}
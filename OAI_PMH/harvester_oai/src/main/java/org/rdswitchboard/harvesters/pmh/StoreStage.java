@@ -0,0 +1,291 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store stage of the set harvesting pipeline.
+ *
+ * The harvesting thread puts downloaded pages into a bounded queue and continues to
+ * download the next page, while the stage thread writes the queued pages to the storage.
+ * If the queue is full, the harvesting thread will wait until the storage catches up.
+ * If the queue size is 0, the pages will be written immediately by the calling thread.
+ *
+ * The asynchronous sets should not block any thread, so their stages will share a small pool
+ * of store threads instead. Such stage will write its pages in order, one page at a time, and
+ * will never block the caller: {@link #offer(Page, Runnable)} will report if the next page
+ * could be requested, otherwise the caller will be resumed, when the queue has room for it.
+ *
+ * The first write error will stop the stage and will be reported by the next call to
+ * {@link #put(Page)}, {@link #offer(Page, Runnable)} or {@link #close()}.
+ *
+ * @author dima
+ *
+ */
+public class StoreStage {
+
+	/**
+	 * Interface to write one page into the storage
+	 */
+	public interface Writer {
+		void write(Page page) throws Exception;
+	}
+
+	private static final Page END = new Page(null, new byte[0]);
+
+	private final Writer writer;
+	private final BlockingQueue<Page> queue;
+	private final Thread thread;
+
+	// the shared pool stage
+	private final Executor executor;
+	private final int queueSize;
+	private final Deque<Page> pages;
+	private boolean running;
+	private Runnable resume;
+	private Runnable done;
+
+	private volatile Exception error;
+
+	public StoreStage(String name, int queueSize, Writer writer) {
+		this.writer = writer;
+		this.executor = null;
+		this.queueSize = queueSize;
+		this.pages = null;
+
+		if (queueSize > 0) {
+			queue = new ArrayBlockingQueue<Page>(queueSize);
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					process();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			queue = null;
+			thread = null;
+		}
+	}
+
+	/**
+	 * Construct the stage, which will write its pages by the shared pool
+	 * @param executor A shared pool of the store threads
+	 * @param queueSize Number of the pages, which could wait to be written, before the caller
+	 * should wait. The 0 will let the caller wait until every page has been written.
+	 * @param writer A page writer
+	 */
+	public StoreStage(Executor executor, int queueSize, Writer writer) {
+		this.writer = writer;
+		this.executor = executor;
+		this.queueSize = queueSize;
+		this.pages = new ArrayDeque<Page>();
+		this.queue = null;
+		this.thread = null;
+	}
+
+	/**
+	 * Queue page for writing. Will block if the queue is full.
+	 * @param page A page to write
+	 * @throws HarvesterException if any of previous pages could not be written
+	 * @throws InterruptedException
+	 */
+	public void put(Page page) throws HarvesterException, InterruptedException {
+		checkError();
+
+		if (null == queue) {
+			try {
+				writer.write(page);
+			} catch (Exception e) {
+				error = e;
+				checkError();
+			}
+		} else {
+			while (!queue.offer(page, 1, TimeUnit.SECONDS))
+				checkError();
+		}
+	}
+
+	/**
+	 * Wait until all queued pages has been written and stop the stage thread.
+	 * @throws HarvesterException if any of the pages could not be written
+	 * @throws InterruptedException
+	 */
+	public void close() throws HarvesterException, InterruptedException {
+		if (null != thread && thread.isAlive()) {
+			while (error == null && !queue.offer(END, 1, TimeUnit.SECONDS))
+				continue;
+
+			thread.join();
+		}
+
+		checkError();
+	}
+
+	/**
+	 * Stop the stage thread without waiting for the queued pages. The page, which is being
+	 * written, will be finished before the call returns.
+	 */
+	public void cancel() {
+		if (null != thread) {
+			queue.clear();
+			thread.interrupt();
+
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queue page for writing by the shared pool. Will never block.
+	 * @param page A page to write
+	 * @param resume A callback to run, when the queue will have room for the next page, 
+	 * if it has not room now, or after a write has failed
+	 * @return true if the next page could be queued now, false if the resume callback will be run
+	 * @throws HarvesterException if any of previous pages could not be written
+	 */
+	public boolean offer(Page page, Runnable resume) throws HarvesterException {
+		boolean start;
+		boolean room;
+		synchronized (this) {
+			checkError();
+
+			pages.add(page);
+			start = !running;
+			running = true;
+
+			room = hasRoom();
+			if (!room)
+				this.resume = resume;
+		}
+
+		if (start)
+			schedule();
+
+		return room;
+	}
+
+	/**
+	 * Run the callback by the shared pool, after all queued pages have been written, or after 
+	 * a write has failed. The error could be checked with {@link #checkError()}.
+	 * @param done A callback
+	 */
+	public void close(Runnable done) {
+		synchronized (this) {
+			if (running) {
+				this.done = done;
+
+				return;
+			}
+		}
+
+		executor.execute(done);
+	}
+
+	/**
+	 * Drop the queued pages and run the callback, after the page, which is being written by 
+	 * the shared pool, has been finished
+	 * @param done A callback
+	 */
+	public void cancel(Runnable done) {
+		synchronized (this) {
+			pages.clear();
+		}
+
+		close(done);
+	}
+
+	/**
+	 * Throw the first write error
+	 * @throws HarvesterException if any of the pages could not be written
+	 */
+	public void checkError() throws HarvesterException {
+		if (null != error)
+			throw new HarvesterException("Unable to store the page: " + error.getMessage());
+	}
+
+	private boolean hasRoom() {
+		return pages.size() < queueSize || (pages.isEmpty() && !running);
+	}
+
+	private void schedule() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	private void drain() {
+		while (true) {
+			Page page;
+			synchronized (this) {
+				page = null == error ? pages.poll() : null;
+				if (null == page)
+					running = false;
+			}
+
+			if (null == page)
+				break;
+
+			try {
+				writer.write(page);
+			} catch (Exception e) {
+				e.printStackTrace();
+
+				error = e;
+				synchronized (this) {
+					pages.clear();
+				}
+			}
+
+			callback();
+		}
+
+		callback();
+	}
+
+	private void callback() {
+		Runnable ready = null;
+		Runnable finished = null;
+		synchronized (this) {
+			if (null != resume && (null != error || hasRoom())) {
+				ready = resume;
+				resume = null;
+			}
+
+			if (null != done && !running) {
+				finished = done;
+				done = null;
+			}
+		}
+
+		if (null != ready)
+			ready.run();
+		if (null != finished)
+			finished.run();
+	}
+
+	private void process() {
+		try {
+			for (Page page = queue.take(); page != END; page = queue.take())
+				writer.write(page);
+		} catch (InterruptedException e) {
+			// the stage has been cancelled
+		} catch (Exception e) {
+			e.printStackTrace();
+
+			error = e;
+			queue.clear();
+		}
+	}
+}
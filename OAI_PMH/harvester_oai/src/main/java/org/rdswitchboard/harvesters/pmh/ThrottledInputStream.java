@@ -0,0 +1,56 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream, which will account every read byte in the host rate limiter
+ * @author dima
+ *
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+	private final RateLimiter limiter;
+
+	public ThrottledInputStream(InputStream in, RateLimiter limiter) {
+		super(in);
+
+		this.limiter = limiter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0)
+			acquire(1);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0)
+			acquire(n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		if (skipped > 0)
+			acquire(skipped);
+		return skipped;
+	}
+
+	private void acquire(long count) throws InterruptedIOException {
+		try {
+			limiter.acquireBytes(count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("The download has been interrupted");
+		}
+	}
+}
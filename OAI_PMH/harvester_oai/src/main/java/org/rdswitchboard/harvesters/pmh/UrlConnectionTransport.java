@@ -0,0 +1,76 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP Transport, based on standard Java URLConnection. The connections will be reused
+ * by JVM keep-alive cache, if the response has been read to the end.
+ * @author dima
+ *
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+	private final int connectionTimeout;
+	private final int readTimeout;
+
+	private volatile String acceptEncoding;
+
+	public UrlConnectionTransport(int connectionTimeout, int readTimeout) {
+		this.connectionTimeout = connectionTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public HttpResponse get(String url) throws IOException {
+		return get(url, null);
+	}
+
+	@Override
+	public HttpResponse get(String url, Map<String, String> headers) throws IOException {
+		URLConnection conn = new URL(url).openConnection();
+		if (connectionTimeout > 0)
+			conn.setConnectTimeout(connectionTimeout);
+		if (readTimeout > 0)
+			conn.setReadTimeout(readTimeout);
+
+		String encoding = acceptEncoding;
+		if (null != encoding)
+			conn.setRequestProperty("Accept-Encoding", encoding);
+		if (null != headers)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				conn.setRequestProperty(header.getKey(), header.getValue());
+
+		int statusCode = 200;
+		InputStream is;
+		if (conn instanceof HttpURLConnection) {
+			HttpURLConnection http = (HttpURLConnection) conn;
+			statusCode = http.getResponseCode();
+			is = statusCode >= 400 ? http.getErrorStream() : http.getInputStream();
+		} else
+			is = conn.getInputStream();
+
+		Map<String, String> responseHeaders = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet())
+			if (null != header.getKey() && null != header.getValue() && !header.getValue().isEmpty())
+				responseHeaders.put(header.getKey(), header.getValue().get(0));
+
+		return new HttpResponse(statusCode, responseHeaders, HttpResponse.decode(is, conn.getContentEncoding()));
+	}
+
+	@Override
+	public void setCompression(Collection<String> encodings) {
+		acceptEncoding = HttpResponse.acceptEncoding(encodings);
+	}
+
+	@Override
+	public void close() {
+	}
+}
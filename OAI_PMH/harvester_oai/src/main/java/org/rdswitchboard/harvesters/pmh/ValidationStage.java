@@ -0,0 +1,129 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Stage to validate the metadata of the harvested records against the metadata format schema.
+ *
+ * The pages will be validated by a separate pool of worker threads, see {@link PageStage}. 
+ * Every page will be split into records and the content of the metadata element of every 
+ * record, which has not been deleted, will be validated. The invalid records will be passed to the quarantine with the
+ * validation error. The number of the valid and invalid records will be counted for every set.
+ *
+ * @author dima
+ *
+ */
+public class ValidationStage extends PageStage {
+
+	/**
+	 * Interface to keep the invalid records
+	 */
+	public interface Quarantine {
+		void quarantine(String set, String pageKey, Record record, String error) throws IOException;
+	}
+
+	private final Schema schema;
+	private final Quarantine quarantine;
+
+	private final Map<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+	/**
+	 * Construct validation stage
+	 * @param schema A compiled schema of the metadata format
+	 * @param threads Number of the worker threads
+	 * @param queueSize Maximum number of the pages, waiting to be validated
+	 * @param quarantine A quarantine for the invalid records
+	 */
+	public ValidationStage(Schema schema, int threads, int queueSize, Quarantine quarantine) {
+		super("validate", threads, queueSize);
+
+		this.schema = schema;
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * Return number of the valid records of the set
+	 * @param set The set identifier
+	 * @return int - number of the records
+	 */
+	public int getValid(String set) {
+		Counters c = counters.get(set);
+		return null == c ? 0 : c.valid.get();
+	}
+
+	/**
+	 * Return number of the invalid records of the set
+	 * @param set The set identifier
+	 * @return int - number of the records
+	 */
+	public int getInvalid(String set) {
+		Counters c = counters.get(set);
+		return null == c ? 0 : c.invalid.get();
+	}
+
+	@Override
+	protected void process(final String set, final Page page) throws Exception {
+		final Counters c = counters.computeIfAbsent(set, new Function<String, Counters>() {
+			@Override
+			public Counters apply(String name) {
+				return new Counters();
+			}
+		});
+
+		// the validator is not thread safe, but is cheap to create from the compiled schema
+		final Validator validator = schema.newValidator();
+
+		try (InputStream is = page.openStream()) {
+			Record.split(is, true, new Record.Handler() {
+				@Override
+				public void record(Record record) throws Exception {
+					if (record.isDeleted())
+						return;
+
+					String message = null;
+					if (null == record.getMetadata())
+						message = "The record has no metadata";
+					else
+						try {
+							validator.validate(new StreamSource(new ByteArrayInputStream(record.getMetadata())));
+						} catch (SAXParseException e) {
+							message = "Line " + e.getLineNumber() + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+						} catch (SAXException e) {
+							message = e.getMessage();
+						} finally {
+							validator.reset();
+						}
+
+					if (null == message)
+						c.valid.incrementAndGet();
+					else {
+						c.invalid.incrementAndGet();
+
+						quarantine.quarantine(set, page.getKey(), record, message);
+					}
+				}
+			});
+		} catch (XMLStreamException e) {
+			throw new HarvesterException("Unable to parse the page " + page.getKey() + ": " + e.getMessage());
+		}
+	}
+
+	private static class Counters {
+		private final AtomicInteger valid = new AtomicInteger();
+		private final AtomicInteger invalid = new AtomicInteger();
+	}
+}
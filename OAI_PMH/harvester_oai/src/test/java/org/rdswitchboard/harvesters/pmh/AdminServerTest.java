@@ -0,0 +1,157 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AdminServerTest {
+
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    private AdminServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new AdminServer(0, "secret", new AdminServer.Control() {
+            @Override
+            public Map<String, Object> getStatus() {
+                Map<String, Object> status = new LinkedHashMap<String, Object>();
+                status.put("commands", commands.size());
+                return status;
+            }
+
+            @Override
+            public void pause() {
+                commands.add("pause");
+            }
+
+            @Override
+            public void resume() {
+                commands.add("resume");
+            }
+
+            @Override
+            public void setRequestRate(double requestsPerSecond) {
+                commands.add("requests " + requestsPerSecond);
+            }
+
+            @Override
+            public void setByteRate(double bytesPerSecond) {
+                commands.add("bytes " + bytesPerSecond);
+            }
+
+            @Override
+            public void setConcurrency(int sets) {
+                commands.add("concurrency " + sets);
+            }
+
+            @Override
+            public boolean drain(String set) {
+                commands.add("drain " + set);
+                return "a b".equals(set);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private int request(String method, String path) throws IOException {
+        return request(method, path, "secret");
+    }
+
+    private int request(String method, String path, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (null != token)
+            connection.setRequestProperty(AdminServer.TOKEN_HEADER, token);
+        int status = connection.getResponseCode();
+        InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (null != is)
+            is.close();
+        return status;
+    }
+
+    @Test
+    public void testCommands() throws Exception {
+        assertEquals(200, request("POST", "/pause"));
+        assertEquals(200, request("POST", "/resume"));
+        assertEquals(200, request("POST", "/rate?requests=2.5&bytes=1000"));
+        assertEquals(200, request("POST", "/concurrency?sets=4"));
+        assertEquals(200, request("POST", "/drain?set=a+b"));
+        assertEquals(404, request("POST", "/drain?set=c"));
+        assertEquals(400, request("POST", "/concurrency?sets=0"));
+        assertEquals(400, request("POST", "/rate?requests=fast"));
+        assertEquals(400, request("POST", "/rate"));
+        assertEquals(405, request("GET", "/pause"));
+        assertEquals(404, request("POST", "/stop"));
+
+        assertEquals(7, commands.size());
+        assertEquals("requests 2.5", commands.get(2));
+        assertEquals("bytes 1000.0", commands.get(3));
+        assertEquals("concurrency 4", commands.get(4));
+        assertEquals("drain a b", commands.get(5));
+
+        JsonNode status = new ObjectMapper().readTree(new URL("http://127.0.0.1:" + server.getPort() + "/status"));
+        assertEquals(7, status.get("commands").asInt());
+    }
+
+    // HttpURLConnection will not send the Origin header, so the request is written by hand
+    private int requestWithOrigin(String method, String path) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write((method + " " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nOrigin: http://example.org\r\n"
+                    + AdminServer.TOKEN_HEADER + ": secret\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            os.flush();
+
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            return Integer.parseInt(status.split(" ")[1]);
+        }
+    }
+
+    @Test
+    public void testSecurity() throws Exception {
+        assertEquals(401, request("POST", "/pause", null));
+        assertEquals(401, request("POST", "/pause", "guess"));
+        assertEquals(403, requestWithOrigin("POST", "/pause"));
+        assertEquals(403, requestWithOrigin("GET", "/status"));
+        assertEquals(200, request("GET", "/status", null));
+        assertEquals(0, commands.size());
+
+        assertEquals(200, request("POST", "/pause"));
+        assertEquals(1, commands.size());
+
+        // every run should have its own token
+        AdminServer first = new AdminServer(0, null, null);
+        AdminServer second = new AdminServer(0, null, null);
+        try {
+            assertEquals(32, first.getToken().length());
+            assertNotEquals(first.getToken(), second.getToken());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointJournalTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        File file = new File(testFolder.getRoot(), "test.journal");
+
+        CheckpointJournal journal = new CheckpointJournal(file);
+        assertFalse(journal.replay());
+        journal.open("2016-01-01", 1451606400L);
+        journal.page(new Checkpoint("a", "token\t1", 0, 10, 1, "a/0.xml", "2016-01-01"));
+        journal.page(new Checkpoint("a", null, 5, 10, 2, "a/1.xml", "2016-01-02"));
+        journal.done(new Checkpoint("a", null, 5, 10, 2, null, "2016-01-02"));
+        journal.page(new Checkpoint("b", "token 1", 0, 10, 1, "b/0.xml", null));
+        journal.page(new Checkpoint("b", "token 2", 5, 10, 2, "b/1.xml", null));
+        journal.close();
+
+        // simulate the harvester killed while writing the datestamp of a line
+        String line = "P\t" + new Checkpoint("b", "token 3", 10, 10, 3, "b/2.xml", "2016-01-03").toLine();
+        try (FileOutputStream os = new FileOutputStream(file, true)) {
+            os.write(line.substring(0, line.length() - 3).getBytes("UTF-8"));
+        }
+
+        journal = new CheckpointJournal(file);
+        assertTrue(journal.replay());
+        assertEquals("2016-01-01", journal.getHarvestDate());
+        assertEquals(1451606400L, journal.getPartitionEnd());
+
+        assertNull(journal.getUnfinished("a"));
+        assertEquals(2, journal.getCompleted("a").getFiles());
+        assertEquals("2016-01-02", journal.getCompleted("a").getDatestamp());
+
+        Checkpoint b = journal.getUnfinished("b");
+        assertEquals("token 2", b.getToken());
+        assertEquals(2, b.getFiles());
+        assertEquals("b/1.xml", b.getKey());
+
+        SetStatus set = new SetStatus("b", "B");
+        b.restore(set);
+        assertEquals("token 2", set.getToken());
+        assertEquals(Integer.valueOf(5), set.getCursor());
+
+        // the harvest date and the partition end should be kept after reopening
+        journal.open("2016-02-02", 1454371200L);
+        journal.done(Checkpoint.fromSet(set, null));
+        journal.close();
+
+        journal = new CheckpointJournal(file);
+        journal.replay();
+        assertEquals("2016-01-01", journal.getHarvestDate());
+        assertEquals(1451606400L, journal.getPartitionEnd());
+        assertNull(journal.getUnfinished("b"));
+        assertEquals("token 2", journal.getCompleted("b").getToken());
+        // the incomplete line must be dropped, not completed by the next line
+        assertFalse(FileUtils.readFileToString(file, "UTF-8").contains("b/2.xml"));
+
+        journal.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        File file = new File(testFolder.getRoot(), "test.journal");
+
+        CheckpointJournal journal = new CheckpointJournal(file);
+        journal.open("2016-01-01");
+        for (String set : new String[] { "a", "ab" }) 
+            for (int n = 0; n < 3; ++n) {
+                journal.manifest("date/" + set + "/" + n + ".xml", "blobs/" + set + n);
+                journal.summary(new HarvestManifest.PageEntry(set, n, "date/" + set + "/" + n + ".xml", 10, "sha"));
+                journal.page(new Checkpoint(set, "token " + n, n * 5, 15, n + 1, "date/" + set + "/" + n + ".xml", null));
+            }
+
+        // the set a has been harvested again from the beginning
+        journal.restart("a", "date/a/");
+        journal.manifest("date/a/0.xml", "blobs/new");
+        journal.summary(new HarvestManifest.PageEntry("a", 0, "date/a/0.xml", 10, "sha"));
+        journal.close();
+
+        journal = new CheckpointJournal(file);
+        journal.replay();
+        assertNull(journal.getUnfinished("a"));
+        assertEquals(3, journal.getUnfinished("ab").getFiles());
+
+        assertEquals(4, journal.getManifest().size());
+        assertEquals("blobs/new", journal.getManifest().get("date/a/0.xml"));
+        assertFalse(journal.getManifest().containsKey("date/a/1.xml"));
+
+        int pages = 0;
+        for (HarvestManifest.PageEntry entry : journal.getSummaries())
+            if ("a".equals(entry.getSet()))
+                ++pages;
+        assertEquals(1, pages);
+        assertEquals(4, journal.getSummaries().size());
+    }
+}
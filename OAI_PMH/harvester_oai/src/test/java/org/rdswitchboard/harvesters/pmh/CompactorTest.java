@@ -0,0 +1,140 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactorTest {
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<ListRecords>%s</ListRecords></OAI-PMH>";
+
+    private static final String RECORD = "<record><header><identifier>%s</identifier><datestamp>%s</datestamp></header>"
+            + "<metadata><title>%s</title></metadata></record>";
+
+    private static final String DELETED = "<record><header status=\"deleted\"><identifier>%s</identifier>"
+            + "<datestamp>%s</datestamp></header></record>";
+
+    private File folder;
+    private Properties properties;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("compact").toFile();
+
+        properties = new Properties();
+        properties.setProperty("folder", folder.getPath());
+        properties.setProperty("name", "repo");
+        properties.setProperty("metadata", "oai_dc");
+        // every record will be sorted in its own run and merged in several passes
+        properties.setProperty("compact.run.size", "1");
+        properties.setProperty("compact.merge.factor", "2");
+        properties.setProperty("compact.block.records", "2");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    private void writePage(String path, String records) throws Exception {
+        FileUtils.writeStringToFile(new File(folder, "repo/oai_dc/" + path), String.format(PAGE, records), "UTF-8");
+    }
+
+    private Map<String, String> readSnapshot(String date, String set) throws Exception {
+        File snapshot = new File(folder, "repo/oai_dc/compacted/" + date + "/" + set + ".xml.gz");
+        String index = FileUtils.readFileToString(new File(folder, "repo/oai_dc/compacted/" + date + "/" + set + ".tsv"), "UTF-8");
+
+        Map<String, String> records = new HashMap<String, String>();
+        for (String line : index.split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields[2].isEmpty()) {
+                records.put(fields[0], null);
+                continue;
+            }
+
+            try (InputStream is = SegmentWriter.openPage(snapshot, Long.parseLong(fields[2]), Long.parseLong(fields[3]))) {
+                for (Record record : Record.split(is))
+                    if (record.getIdentifier().equals(URLDecoder.decode(fields[0], "UTF-8")))
+                        records.put(fields[0], new String(record.getXml(), StandardCharsets.UTF_8));
+            }
+        }
+
+        return records;
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        writePage("2020-01-01/a/0.xml", String.format(RECORD, "r1", "2020-01-01", "One")
+                + String.format(RECORD, "r2", "2020-01-01", "Two"));
+        writePage("2020-01-01/a/1.xml", String.format(RECORD, "r3", "2020-01-01", "Three"));
+        writePage("2020-01-01/b/0.xml", String.format(RECORD, "r1", "2020-01-01", "Other set"));
+        writePage("2020-01-02/a/0.xml", String.format(RECORD, "r2", "2020-01-02", "Two v2")
+                + String.format(DELETED, "r3", "2020-01-02"));
+
+        Compactor compactor = new Compactor(properties);
+        assertEquals("2020-01-02", compactor.compact());
+
+        Map<String, String> a = readSnapshot("2020-01-02", "a");
+        assertEquals(3, a.size());
+        assertTrue(a.get("r1").contains("One"));
+        assertTrue(a.get("r2").contains("Two v2"));
+        assertNull(a.get("r3"));
+        assertTrue(a.containsKey("r3"));
+        assertTrue(readSnapshot("2020-01-02", "b").get("r1").contains("Other set"));
+
+        assertNull(new Compactor(properties).compact());
+
+        // the next compaction will merge only the new harvest with the previous snapshot
+        writePage("2020-01-03/a/0.xml", String.format(DELETED, "r1", "2020-01-03")
+                + String.format(RECORD, "r4", "2020-01-03", "Four"));
+
+        assertEquals("2020-01-03", new Compactor(properties).compact());
+
+        a = readSnapshot("2020-01-03", "a");
+        assertEquals(4, a.size());
+        assertNull(a.get("r1"));
+        assertTrue(a.get("r2").contains("Two v2"));
+        assertNull(a.get("r3"));
+        assertTrue(a.get("r4").contains("Four"));
+        assertEquals("2020-01-03", FileUtils.readFileToString(new File(folder, "repo/oai_dc/compacted/latest.txt"), "UTF-8"));
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        SegmentWriter writer = new SegmentWriter(0, 0);
+        for (int i = 0; i < 3; ++i) {
+            writer.append(TestPages.newPage("repo/oai_dc/2020-01-01/a", i, null, 
+                    String.format(PAGE, String.format(RECORD, "r" + i, "2020-01-01", "Record " + i))));
+        }
+
+        for (Page page : writer.close())
+            try (InputStream is = page.openStream()) {
+                FileUtils.copyInputStreamToFile(is, new File(folder, page.getKey()));
+            } finally {
+                page.release();
+            }
+
+        new Compactor(properties).compact();
+
+        Map<String, String> a = readSnapshot("2020-01-01", "a");
+        assertEquals(3, a.size());
+        assertTrue(a.get("r2").contains("Record 2"));
+        List<Record> records = Record.split(new ByteArrayInputStream(a.get("r0").getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, records.size());
+    }
+}
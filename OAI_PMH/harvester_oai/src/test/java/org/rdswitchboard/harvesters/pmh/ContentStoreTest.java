@@ -0,0 +1,89 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class ContentStoreTest {
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH><responseDate>%s</responseDate>"
+            + "<request verb=\"ListRecords\" set=\"a\">http://example.org/oai</request><ListRecords><record>%s</record>"
+            + "<resumptionToken expirationDate=\"%s\" cursor=\"0\">%s</resumptionToken></ListRecords></OAI-PMH>";
+
+    private static Page newPage(String key, String date, String record, String token) {
+        return TestPages.newPage(key, String.format(PAGE, date, record, date, token), null);
+    }
+
+    @Test
+    public void testBlobKey() throws Exception {
+        ContentStore store = new ContentStore("repo/oai_dc/blobs");
+
+        String first = store.getBlobKey(newPage("repo/oai_dc/2020-01-01/a/0.xml", "2020-01-01T00:00:00Z", "one", "a!1"));
+        String second = store.getBlobKey(newPage("repo/oai_dc/2020-01-02/a/0.xml", "2020-01-02T10:00:00Z", "one", "a!1!x"));
+        String changed = store.getBlobKey(newPage("repo/oai_dc/2020-01-02/a/1.xml", "2020-01-02T10:00:00Z", "two", "a!1"));
+
+        // the response date and resumption token must not change the blob
+        assertEquals(first, second);
+        assertNotEquals(first, changed);
+        assertTrue(first.matches("repo/oai_dc/blobs/([0-9a-f]{2})/\\1[0-9a-f]{62}\\.xml"));
+        // the blob is the hash of the page without the response date, the request and the resumption token
+        assertTrue(first.endsWith(ContentStore.sha256(("<?xml version=\"1.0\"?><OAI-PMH>"
+                + "<ListRecords><record>one</record></ListRecords></OAI-PMH>").getBytes(StandardCharsets.UTF_8)) + ".xml"));
+
+    }
+
+    @Test
+    public void testClaim() throws Exception {
+        ContentStore store = new ContentStore("blobs");
+
+        // the second page must wait until the first page has stored the blob
+        assertNull(store.claim("blobs/aa/aa.xml"));
+        CompletableFuture<Void> waiting = store.claim("blobs/aa/aa.xml");
+        assertFalse(waiting.isDone());
+
+        store.stored("blobs/aa/aa.xml");
+        assertTrue(waiting.isDone());
+        assertFalse(waiting.isCompletedExceptionally());
+        assertTrue(store.claim("blobs/aa/aa.xml").isDone());
+
+        // the failed blob could be claimed again
+        assertNull(store.claim("blobs/bb/bb.xml"));
+        waiting = store.claim("blobs/bb/bb.xml");
+        store.failed("blobs/bb/bb.xml", new IOException("Unable to write"));
+        assertTrue(waiting.isCompletedExceptionally());
+        assertNull(store.claim("blobs/bb/bb.xml"));
+
+        // the asynchronous write
+        CompletableFuture<Void> write = new CompletableFuture<Void>();
+        store.written("blobs/bb/bb.xml", write);
+        waiting = store.claim("blobs/bb/bb.xml");
+        assertFalse(waiting.isDone());
+        write.complete(null);
+        assertTrue(waiting.isDone());
+        assertTrue(store.claim("blobs/bb/bb.xml").isDone());
+
+        // the previous harvest blobs
+        store.addBlobs(Collections.singleton("blobs/cc/cc.xml"));
+        assertTrue(store.claim("blobs/cc/cc.xml").isDone());
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        ContentStore store = new ContentStore("blobs");
+        store.putManifest("2020-01-01/b/0.xml", "blobs/aa/aa.xml");
+        store.putManifest("2020-01-01/a/0.xml", "blobs/bb/bb.xml");
+
+        byte[] data = store.saveManifest();
+        assertEquals("2020-01-01/a/0.xml\tblobs/bb/bb.xml\n2020-01-01/b/0.xml\tblobs/aa/aa.xml\n",
+                new String(data, StandardCharsets.UTF_8));
+
+        Map<String, String> manifest = ContentStore.loadManifest(data);
+        assertEquals(store.getManifest(), manifest);
+    }
+}
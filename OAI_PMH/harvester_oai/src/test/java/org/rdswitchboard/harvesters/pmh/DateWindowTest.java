@@ -0,0 +1,50 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DateWindowTest {
+
+    private static long day(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    @Test
+    public void testPartitionDays() {
+        List<DateWindow> windows = DateWindow.partition("2020-01-01", day("2020-01-10"), 3, HighWaterMarks.GRANULARITY_DAY);
+
+        assertEquals(3, windows.size());
+        assertEquals("2020-01-01", windows.get(0).getFrom());
+        assertEquals("2020-01-03", windows.get(0).getUntil());
+        assertEquals("2020-01-04", windows.get(1).getFrom());
+        assertEquals("2020-01-06", windows.get(1).getUntil());
+        assertEquals("2020-01-07", windows.get(2).getFrom());
+        // the last window is open
+        assertNull(windows.get(2).getUntil());
+    }
+
+    @Test
+    public void testSplit() {
+        List<DateWindow> windows = DateWindow.partition("2020-01-01T00:00:00Z", day("2020-01-02") - 1, 1, HighWaterMarks.GRANULARITY_SECONDS);
+        assertEquals(1, windows.size());
+
+        DateWindow[] halves = windows.get(0).split();
+        assertEquals("2020-01-01T00:00:00Z", halves[0].getFrom());
+        assertEquals("2020-01-01T11:59:59Z", halves[0].getUntil());
+        assertEquals("2020-01-01T12:00:00Z", halves[1].getFrom());
+        assertNull(halves[1].getUntil());
+
+        DateWindow single = new DateWindow(day("2020-01-01"), day("2020-01-01"), false, 86400);
+        assertNull(single.split());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownGranularity() {
+        DateWindow.partition("2020-01-01", day("2020-01-10"), 3, "YYYY");
+    }
+}
@@ -0,0 +1,136 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.transform.Templates;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ExportStageTest {
+
+    private static final String CROSSWALK = "<?xml version=\"1.0\"?>"
+            + "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" "
+            + "xmlns:m=\"http://example.org/meta\"><xsl:output method=\"text\"/>"
+            + "<xsl:template match=\"/\">title=<xsl:value-of select=\"m:meta/m:title\"/></xsl:template></xsl:stylesheet>";
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<ListRecords>%s</ListRecords></OAI-PMH>";
+
+    private static final String RECORD = "<record><header><identifier>%s</identifier><datestamp>2020-01-01</datestamp>"
+            + "<setSpec>a</setSpec><setSpec>b</setSpec></header>"
+            + "<metadata><m:meta xmlns:m=\"http://example.org/meta\"><m:title>%s</m:title></m:meta></metadata></record>";
+
+    private static final String DELETED = "<record><header status=\"deleted\"><identifier>%s</identifier>"
+            + "<datestamp>2020-01-02</datestamp></header></record>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testColumnFile() throws Exception {
+        ColumnFile.Writer writer = new ColumnFile.Writer(new String[] { "s", "b", "x", "l" },
+                new byte[] { ColumnFile.TYPE_STRING, ColumnFile.TYPE_BOOLEAN, ColumnFile.TYPE_BINARY, ColumnFile.TYPE_STRING_LIST });
+        writer.addRow("one", true, new byte[] { 1, 2 }, Arrays.asList("a", "b"));
+        writer.addRow(null, false, null, null);
+
+        ColumnFile.Reader reader = new ColumnFile.Reader(writer.toByteArray());
+        assertEquals(2, reader.getRows());
+        assertEquals(Arrays.asList("s", "b", "x", "l"), reader.getColumns());
+        assertEquals(Arrays.asList("one", null), reader.read("s"));
+        assertEquals(Arrays.asList(true, false), reader.read("b"));
+        assertArrayEquals(new byte[] { 1, 2 }, (byte[]) reader.read("x").get(0));
+        assertNull(reader.read("x").get(1));
+        assertEquals(Arrays.asList("a", "b"), reader.read("l").get(0));
+        assertNull(reader.read("l").get(1));
+
+        try {
+            new ColumnFile.Reader("not a columnar file".getBytes(StandardCharsets.UTF_8));
+            fail("The invalid file must be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("columnar"));
+        }
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        File stylesheet = new File(folder.getRoot(), "meta.xsl");
+        FileUtils.writeStringToFile(stylesheet, CROSSWALK, "UTF-8");
+
+        // the crosswalk must be compiled only once
+        CrosswalkCache cache = new CrosswalkCache();
+        Templates crosswalk = cache.getTemplates("meta", stylesheet);
+        assertSame(crosswalk, cache.getTemplates("meta", stylesheet));
+
+        final Map<String, byte[]> files = Collections.synchronizedMap(new HashMap<String, byte[]>());
+        ExportStage stage = new ExportStage(true, true, crosswalk, 2, 1, new ExportStage.Output() {
+            @Override
+            public void write(String key, byte[] bytes, String contentType) {
+                files.put(key, bytes);
+            }
+        });
+
+        try {
+            for (int i = 0; i < 3; ++i) {
+                Page page = new Page("repo/meta/2020-01-01/a/" + i + ".xml", String.format(PAGE,
+                        String.format(RECORD, "oai:" + i + ":1", "Title " + i)
+                        + String.format(DELETED, "oai:" + i + ":2")).getBytes(StandardCharsets.UTF_8));
+
+                stage.submit("a", page);
+                page.release();
+            }
+
+            stage.flush();
+        } finally {
+            stage.close();
+        }
+
+        assertEquals(6, files.size());
+
+        List<JsonNode> lines = new ArrayList<JsonNode>();
+        ObjectMapper mapper = new ObjectMapper();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(files.get("repo/meta/2020-01-01/a/1.jsonl.gz"))), StandardCharsets.UTF_8))) {
+            for (String line; null != (line = reader.readLine()); )
+                lines.add(mapper.readTree(line));
+        }
+
+        assertEquals(2, lines.size());
+        assertEquals("oai:1:1", lines.get(0).get("identifier").asText());
+        assertEquals("2020-01-01", lines.get(0).get("datestamp").asText());
+        assertFalse(lines.get(0).get("deleted").asBoolean());
+        assertEquals("b", lines.get(0).get("setSpecs").get(1).asText());
+        assertTrue(lines.get(0).get("metadata").asText().contains("<m:title>Title 1</m:title>"));
+        assertEquals("title=Title 1", lines.get(0).get("crosswalk").asText());
+        assertTrue(lines.get(1).get("deleted").asBoolean());
+        assertTrue(lines.get(1).get("metadata").isNull());
+
+        // only the requested columns will be read
+        ColumnFile.Reader reader = new ColumnFile.Reader(files.get("repo/meta/2020-01-01/a/2.columns"));
+        assertEquals(2, reader.getRows());
+        assertEquals(Arrays.asList("oai:2:1", "oai:2:2"), reader.read(ExportStage.COLUMN_IDENTIFIER));
+        assertEquals(Arrays.asList(false, true), reader.read(ExportStage.COLUMN_DELETED));
+        assertEquals(Arrays.asList("title=Title 2", null), reader.read(ExportStage.COLUMN_CROSSWALK));
+        assertTrue(new String((byte[]) reader.read(ExportStage.COLUMN_METADATA).get(0), StandardCharsets.UTF_8)
+                .contains("Title 2"));
+    }
+}
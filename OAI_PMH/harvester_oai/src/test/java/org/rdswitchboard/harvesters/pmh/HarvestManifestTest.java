@@ -0,0 +1,112 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HarvestManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HarvestManifest.PageEntry newEntry(String set, int number, String token) {
+        HarvestManifest.PageEntry entry = new HarvestManifest.PageEntry(set, number,
+                "repo/oai_dc/2020-01-01/" + set + "/" + number + ".xml", 100 + number, "hash" + number);
+        entry.setResumption(token, number * 10, 30);
+        return entry;
+    }
+
+    @Test
+    public void testSave() throws Exception {
+        HarvestManifest manifest = new HarvestManifest("2020-01-01", "http://localhost/oai", "oai_dc", "pages", "snapshot");
+        manifest.putPage(newEntry("a", 2, null));
+        manifest.putPage(newEntry("a", 0, "token\t1"));
+        manifest.putPage(newEntry("a", 1, "token\n2"));
+        manifest.putPage(newEntry("b", 0, "token"));
+
+        SetStatus a = new SetStatus("a", "Set A");
+        a.setFiles(3);
+        SetStatus c = new SetStatus("c", "Set C");
+        c.setError("Connection reset");
+
+        HarvestManifest loaded = HarvestManifest.load(manifest.save(Arrays.asList(c, a), false));
+        assertEquals("2020-01-01", loaded.getHarvestDate());
+        assertEquals("pages", loaded.getFormat());
+        assertFalse(loaded.isComplete());
+        assertEquals(3, loaded.getSets().size());
+
+        HarvestManifest.SetEntry set = loaded.getSets().get(0);
+        assertEquals("a", set.getId());
+        assertEquals(SetStatus.OUTCOME_HARVESTED, set.getOutcome());
+        assertEquals(3, set.getPages().size());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(i, set.getPages().get(i).getNumber());
+        assertEquals("token\t1", set.getPages().get(0).getResumptionToken());
+        assertNull(set.getPages().get(2).getResumptionToken());
+
+        // the set, which has not been finished, must still list its pages
+        set = loaded.getSets().get(1);
+        assertEquals("b", set.getId());
+        assertEquals(SetStatus.OUTCOME_UNFINISHED, set.getOutcome());
+        assertEquals(1, set.getPages().size());
+
+        set = loaded.getSets().get(2);
+        assertEquals(SetStatus.OUTCOME_FAILED, set.getOutcome());
+        assertEquals("Connection reset", set.getError());
+        assertEquals(0, set.getPages().size());
+    }
+
+    @Test
+    public void testStorePages() throws Exception {
+        HarvestManifest manifest = new HarvestManifest("2020-01-01", "http://localhost/oai", "oai_dc", "segments", "snapshot");
+        for (int i = 0; i < 3; ++i) {
+            HarvestManifest.PageEntry entry = newEntry("a", i, "token");
+            entry.setLocation(null, i * 50L, 50L);
+            manifest.acceptPage(entry);
+        }
+
+        // the pages, which have not been stored, must not be listed
+        assertEquals(0, manifest.getPageCount());
+        assertEquals(2, manifest.storePages("a", 2, "a/0-1.xml.gz").size());
+        assertEquals(2, manifest.getPageCount());
+
+        // the set has been harvested again from the beginning
+        manifest.acceptPage(newEntry("a", 2, null));
+        manifest.acceptPage(newEntry("a", 0, null));
+        assertEquals(1, manifest.storePages("a", 1, "a/0-0.xml.gz").size());
+
+        HarvestManifest loaded = HarvestManifest.load(manifest.save(Arrays.<SetStatus>asList(), false));
+        HarvestManifest.SetEntry set = loaded.getSets().get(0);
+        assertEquals(2, set.getPages().size());
+        assertEquals("repo/oai_dc/2020-01-01/a/0.xml", set.getPages().get(0).getKey());
+        assertNull(set.getPages().get(0).getOffset());
+        assertEquals("a/0-1.xml.gz", set.getPages().get(1).getKey());
+        assertEquals(Long.valueOf(50), set.getPages().get(1).getOffset());
+        assertEquals(Long.valueOf(50), set.getPages().get(1).getLength());
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        File file = new File(folder.getRoot(), "harvest.journal");
+        CheckpointJournal journal = new CheckpointJournal(file);
+        journal.open("2020-01-01");
+        journal.summary(newEntry("a", 0, "token\t1"));
+        journal.summary(newEntry("a", 1, null));
+        journal.close();
+
+        journal = new CheckpointJournal(file);
+        assertTrue(journal.replay());
+        assertEquals(2, journal.getSummaries().size());
+
+        HarvestManifest.PageEntry entry = journal.getSummaries().get(0);
+        assertEquals("repo/oai_dc/2020-01-01/a/0.xml", entry.getKey());
+        assertEquals("token\t1", entry.getResumptionToken());
+        assertEquals(100, entry.getSize());
+        assertEquals("hash0", entry.getSha256());
+    }
+}
@@ -0,0 +1,142 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class HarvestMetricsTest {
+
+    private static final String REPO_BEANS = "org.rdswitchboard.harvesters.pmh:type=HarvestMetrics,repository=\"repo\",";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Find the only registered bean of the repository, the harvest key is unique for every instance
+     */
+    private static ObjectName findName(String pattern) throws Exception {
+        Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName(REPO_BEANS + pattern), null);
+        if (!pattern.startsWith("set="))
+            for (Iterator<ObjectName> it = names.iterator(); it.hasNext(); )
+                if (null != it.next().getKeyProperty("set"))
+                    it.remove();
+
+        assertEquals(1, names.size());
+        return names.iterator().next();
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+
+        // every percentile must be reported with the error below 25%
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 500 && p50 < 625);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+
+        for (long value = 0; value < 1L << 40; value = value * 3 + 1)
+            assertTrue(Histogram.upperBound(Histogram.bucket(value)) >= value);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        HarvestSink sink = new FolderSink(folder.getRoot(), false);
+        HarvestMetrics metrics = new HarvestMetrics("repo");
+        metrics.addGauge("sink", new HarvestMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 3;
+            }
+        });
+        metrics.registerJmx();
+
+        try {
+            metrics.fetched("a", 2000000);
+            metrics.parsed("a", 5000000, 1000, 10);
+            metrics.parsed("b", 5000000, 500, 5);
+            metrics.stored("a", sink, 1000000);
+            metrics.retried("b");
+            metrics.failed(null);
+
+            assertEquals(2, metrics.getTotal().getPages());
+            assertEquals(15, metrics.getTotal().getRecords());
+            assertEquals(1500, metrics.getTotal().getBytes());
+            assertEquals(1, metrics.getTotal().getRetries());
+            assertEquals(1, metrics.getTotal().getErrors());
+            assertEquals(10, metrics.getSetMetrics("a").getRecords());
+            assertEquals(1, metrics.getSetMetrics("b").getRetries());
+            assertEquals(0, metrics.getSetMetrics("b").getErrors());
+
+            Map<String, Double> latencies = metrics.getTotal().getLatencies();
+            assertEquals(2.0, latencies.get("fetch.max"), 0.001);
+            assertEquals(2.0, latencies.get("parse.count"), 0.001);
+            assertEquals(1.0, latencies.get("store." + sink + ".count"), 0.001);
+            assertEquals(Long.valueOf(3), metrics.getTotal().getQueueDepths().get("sink"));
+
+            // the sets must be registered as soon as they have been seen
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(10L, server.getAttribute(findName("set=\"a\",*"), "Records"));
+            assertEquals(15L, server.getAttribute(findName("*"), "Records"));
+
+            File file = new File(folder.getRoot(), "metrics.json");
+            metrics.startReporting(file, 60);
+            metrics.close();
+
+            JsonNode json = new ObjectMapper().readTree(file);
+            assertEquals("repo", json.get("repository").asText());
+            assertEquals(2, json.get("total").get("pages").asInt());
+            assertEquals(3, json.get("total").get("queueDepths").get("sink").asInt());
+            assertEquals(5, json.get("sets").get("b").get("records").asInt());
+            assertTrue(server.queryNames(new ObjectName(REPO_BEANS + "*"), null).isEmpty());
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentHarvests() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        HarvestMetrics first = new HarvestMetrics("repo");
+        HarvestMetrics second = new HarvestMetrics("repo");
+        try {
+            first.registerJmx();
+            second.registerJmx();
+            first.parsed("a", 1000, 100, 1);
+            second.parsed("a", 1000, 100, 2);
+            assertEquals(4, server.queryNames(new ObjectName(REPO_BEANS + "*"), null).size());
+
+            // the second harvest of the repository must keep its beans
+            first.close();
+            assertEquals(2L, server.getAttribute(findName("set=\"a\",*"), "Records"));
+            assertEquals(2, server.queryNames(new ObjectName(REPO_BEANS + "*"), null).size());
+        } finally {
+            first.close();
+            second.close();
+        }
+
+        assertTrue(server.queryNames(new ObjectName(REPO_BEANS + "*"), null).isEmpty());
+    }
+}
@@ -1,18 +1,25 @@
 package org.rdswitchboard.harvesters.pmh;
 
-import org.junit.Assert;
+import org.junit.Assume;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.junit.Rule;
-import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class HarvesterTest {
@@ -20,35 +27,532 @@ public class HarvesterTest {
     @Rule
     public TemporaryFolder testFolder = new TemporaryFolder();
 
-    private Properties figshareProperties = new Properties();
+    private MockProvider provider;
+    private Properties mockProperties = new Properties();
 
     @org.junit.Before
     public void setUp() throws Exception {
-        File tempFolder = testFolder.newFolder("testHarvest");
-        figshareProperties.setProperty("url", "https://api.figshare.com/v2/oai");
-        figshareProperties.setProperty("name", "figshare");
-        figshareProperties.setProperty("metadata", "rdf");
-        figshareProperties.setProperty("folder", testFolder.getRoot().toString());
+        mockProperties.setProperty("name", "mock");
+        mockProperties.setProperty("metadata", MockProvider.METADATA_PREFIX);
+        mockProperties.setProperty("folder", testFolder.getRoot().toString());
+        mockProperties.setProperty("checkpoint.file", new File(testFolder.getRoot(), "mock.journal").toString());
         System.out.println("Test folder: " + testFolder.getRoot());
     }
 
     @org.junit.After
     public void tearDown() throws Exception {
-        //nothing to do
+        if (null != provider)
+            provider.close();
+    }
+
+    private void startProvider(int sets, int records, int pageSize) throws IOException {
+        provider = new MockProvider(sets, records, pageSize);
+        mockProperties.setProperty("url", provider.start(0));
+    }
+
+    private boolean harvest(Set<String> whiteList) throws Exception {
+        return harvest(whiteList, null);
+    }
+
+    private boolean harvest(Set<String> whiteList, RecordListener listener) throws Exception {
+        try (Harvester harvester = new Harvester(mockProperties)) {
+            assertTrue(harvester.identify());
+            if (null != whiteList)
+                harvester.setWhiteList(whiteList);
+            if (null != listener)
+                harvester.addRecordListener(listener);
+
+            return harvester.harvest();
+        }
+    }
+
+    private HarvestManifest loadManifest() throws IOException {
+        return loadManifest(testFolder.getRoot());
+    }
+
+    private HarvestManifest loadManifest(File root) throws IOException {
+        File folder = new File(root, "mock/" + MockProvider.METADATA_PREFIX);
+        String date = FileUtils.readFileToString(new File(folder, "latest.txt"), "UTF-8");
+        return HarvestManifest.load(FileUtils.readFileToByteArray(new File(folder, date + "/" + HarvestManifest.MANIFEST)));
+    }
+
+    private static String sha256(InputStream is) throws IOException {
+        MessageDigest digest = ContentStore.newDigest();
+        try (InputStream dis = new DigestInputStream(is, digest)) {
+            IOUtils.copy(dis, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        return ContentStore.toHex(digest.digest());
+    }
+
+    private static Map<String, Long> countRecords(HarvestManifest manifest) {
+        Map<String, Long> records = new HashMap<String, Long>();
+        for (HarvestManifest.SetEntry set : manifest.getSets())
+            records.put(set.getId(), set.getRecords());
+        return records;
     }
 
     @org.junit.Test
     public void testWhiteList() throws Exception {
-        //nothing to do
-        Harvester harvester = new Harvester(figshareProperties);
-        harvester.identify();
+        startProvider(3, 25, 10);
 
         //set whitelist
         Set<String> whiteList=new HashSet<String>();
-        whiteList.add("portal_21");
-        harvester.setWhiteList(whiteList);
+        whiteList.add(MockProvider.getSetSpec(1));
+
+        assertTrue(harvest(whiteList));
+
+        Map<String, Long> records = countRecords(loadManifest());
+        assertEquals(1, records.size());
+        assertEquals(Long.valueOf(25), records.get(MockProvider.getSetSpec(1)));
+    }
+
+    @org.junit.Test
+    public void testHarvest() throws Exception {
+        startProvider(5, 42, 10);
+        // the set list will be paged as well
+        provider.setSetsPageSize(2);
+        mockProperties.setProperty("set.concurrency", "3");
+
+        assertTrue(harvest(null));
+
+        HarvestManifest manifest = loadManifest();
+        assertTrue(manifest.isComplete());
+        Map<String, Long> records = countRecords(manifest);
+        assertEquals(5, records.size());
+        for (int i = 0; i < 5; ++i)
+            assertEquals(Long.valueOf(42), records.get(MockProvider.getSetSpec(i)));
+        assertEquals(5, manifest.getSets().get(0).getFiles());
+    }
+
+    @org.junit.Test
+    public void testCompression() throws Exception {
+        startProvider(2, 25, 10);
+        // the harvester should only request the encoding, declared in Identify response
+        provider.setCompression("compress", HttpResponse.ENCODING_DEFLATE);
+
+        try (Harvester harvester = new Harvester(mockProperties)) {
+            assertTrue(harvester.identify());
+            assertEquals(Arrays.asList("compress", HttpResponse.ENCODING_DEFLATE), harvester.getCompression());
+            assertTrue(harvester.harvest());
+        }
+
+        assertEquals(HttpResponse.ENCODING_DEFLATE, provider.getAcceptEncoding());
+        assertEquals(0, provider.getEncoded(HttpResponse.ENCODING_GZIP));
+        assertTrue(provider.getEncoded(HttpResponse.ENCODING_DEFLATE) >= provider.getRequests("ListRecords"));
+        assertEquals(Long.valueOf(25), countRecords(loadManifest()).get(MockProvider.getSetSpec(1)));
+    }
+
+    @org.junit.Test
+    public void testNoCompression() throws Exception {
+        startProvider(2, 25, 10);
+        provider.setCompression(false);
+
+        assertTrue(harvest(null));
+
+        assertNull(provider.getAcceptEncoding());
+        assertEquals(0, provider.getEncoded(HttpResponse.ENCODING_GZIP));
+        assertEquals(Long.valueOf(25), countRecords(loadManifest()).get(MockProvider.getSetSpec(1)));
+    }
+
+    @org.junit.Test
+    public void testAsync() throws Exception {
+        startProvider(3, 25, 10);
+        provider.setLatency(20, 10);
+        mockProperties.setProperty("http.transport", "async");
+        mockProperties.setProperty("set.concurrency", "2");
+        mockProperties.setProperty("output.format", "segments");
+
+        assertTrue(harvest(null));
+
+        HarvestManifest manifest = loadManifest();
+        assertTrue(manifest.isComplete());
+        Map<String, Long> records = countRecords(manifest);
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(Long.valueOf(25), records.get(MockProvider.getSetSpec(i)));
+    }
+
+    @org.junit.Test
+    public void testAsyncStorePool() throws Exception {
+        startProvider(4, 35, 10);
+        provider.setLatency(5, 5);
+        mockProperties.setProperty("http.transport", "async");
+        mockProperties.setProperty("set.concurrency", "4");
+        mockProperties.setProperty("output.format", "records");
+        // all sets share one store thread and every set must wait until its page has been stored
+        mockProperties.setProperty("store.threads", "1");
+        mockProperties.setProperty("store.queue.size", "0");
+
+        assertTrue(harvest(null));
+
+        HarvestManifest manifest = loadManifest();
+        assertTrue(manifest.isComplete());
+        Map<String, Long> records = countRecords(manifest);
+        assertEquals(4, records.size());
+        for (int i = 0; i < 4; ++i)
+            assertEquals(Long.valueOf(35), records.get(MockProvider.getSetSpec(i)));
+    }
+
+    @org.junit.Test
+    public void testFaults() throws Exception {
+        startProvider(3, 50, 10);
+        provider.setSeed(1);
+        for (MockProvider.Fault fault : MockProvider.Fault.values())
+            provider.setFault(fault, 0.1);
+        provider.setLatency(5, 10);
+        mockProperties.setProperty("max.attempts", "10");
+        mockProperties.setProperty("attempt.delay", "10");
+
+        assertTrue(harvest(null));
+
+        for (MockProvider.Fault fault : MockProvider.Fault.values())
+            assertTrue(fault + " has not been injected", provider.getFaults(fault) > 0);
+
+        // every page should be stored once, after it has been received without errors
+        Map<String, Long> records = countRecords(loadManifest());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(Long.valueOf(50), records.get(MockProvider.getSetSpec(i)));
+    }
+
+    @org.junit.Test
+    public void testExpiredToken() throws Exception {
+        startProvider(1, 30, 10);
+        mockProperties.setProperty("checkpoint", "true");
+        // every token will expire before it could be used
+        provider.setTokenTtl(100);
+        provider.setLatency(300, 0);
+
+        assertFalse(harvest(null));
+        assertTrue(new File(mockProperties.getProperty("checkpoint.file")).exists());
+
+        // the resumed set should be harvested again from the beginning
+        provider.setTokenTtl(0);
+        provider.setLatency(0, 0);
+        provider.expireTokens();
+
+        assertTrue(harvest(null));
+
+        HarvestManifest manifest = loadManifest();
+        assertTrue(manifest.isComplete());
+        assertEquals(Long.valueOf(30), countRecords(manifest).get(MockProvider.getSetSpec(0)));
+    }
+
+    @org.junit.Test
+    public void testRestartFewerPages() throws Exception {
+        for (String mode : new String[] { "snapshot", "content" }) {
+            File folder = testFolder.newFolder(mode);
+            mockProperties.setProperty("folder", folder.toString());
+            mockProperties.setProperty("store.mode", mode);
+            mockProperties.setProperty("checkpoint", "true");
+
+            startProvider(1, 45, 10);
+            // the harvest will fail after 4 stored pages
+            provider.setFault(MockProvider.Fault.UNAVAILABLE, 1);
+            provider.setFaultAfter(4);
+
+            assertFalse(harvest(null));
+            provider.close();
+
+            // the set is smaller now, so the new pass will have only 2 pages of the previous 4
+            startProvider(1, 15, 10);
+            provider.expireTokens();
+
+            assertTrue(harvest(null));
+
+            HarvestManifest manifest = loadManifest(folder);
+            assertTrue(manifest.isComplete());
+            assertEquals(Long.valueOf(15), countRecords(manifest).get(MockProvider.getSetSpec(0)));
+            assertEquals(2, manifest.getSets().get(0).getPages().size());
+
+            File date = new File(folder, "mock/" + MockProvider.METADATA_PREFIX + "/" 
+                    + FileUtils.readFileToString(new File(folder, "mock/" + MockProvider.METADATA_PREFIX + "/latest.txt"), "UTF-8"));
+            if ("content".equals(mode))
+                assertEquals(2, ContentStore.loadManifest(FileUtils.readFileToByteArray(new File(date, ContentStore.MANIFEST))).size());
+            else {
+                File set = new File(date, MockProvider.getSetSpec(0));
+                assertTrue(new File(set, "1.xml").isFile());
+                assertFalse(new File(set, "2.xml").exists());
+                assertFalse(new File(set, "3.xml").exists());
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testPartitionSplit() throws Exception {
+        startProvider(1, 40, 10);
+        // the records will be spread from 2020 until now
+        provider.setInterval(4000000);
+        mockProperties.setProperty("partition.max.size", "15");
+
+        final AtomicInteger received = new AtomicInteger();
+        assertTrue(harvest(null, new RecordListener() {
+            @Override
+            public void record(String set, Record record) {
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void setCompleted(SetStatus set) {
+            }
+        }));
+
+        // the first page of the split partition must not be seen anywhere
+        assertEquals(40, received.get());
+
+        HarvestManifest manifest = loadManifest();
+        long total = 0;
+        for (HarvestManifest.SetEntry set : manifest.getSets()) {
+            assertEquals(set.getId(), SetStatus.OUTCOME_HARVESTED, set.getOutcome());
+            assertTrue(set.getId(), set.getRecords() <= 15);
+            total += set.getRecords();
+        }
+        assertTrue(manifest.getSets().size() > 1);
+        assertEquals(40, total);
+    }
+
+    @org.junit.Test
+    public void testIncremental() throws Exception {
+        startProvider(2, 25, 10);
+        mockProperties.setProperty("incremental", "true");
+        // every set will be harvested with from and until arguments
+        mockProperties.setProperty("partition.windows", "2");
+
+        final AtomicInteger received = new AtomicInteger();
+        RecordListener listener = new RecordListener() {
+            @Override
+            public void record(String set, Record record) {
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void setCompleted(SetStatus set) {
+            }
+        };
+
+        File marksFile = new File(testFolder.getRoot(), "mock/" + MockProvider.METADATA_PREFIX + "/marks.properties");
+        HighWaterMarks marks = new HighWaterMarks();
+
+        assertTrue(harvest(null, listener));
+        assertEquals(50, received.get());
+        marks.load(FileUtils.readFileToByteArray(marksFile));
+        assertEquals("2020-01-01T00:24:00Z", marks.getMark(MockProvider.getSetSpec(0)));
+        assertEquals("2020-01-01T00:24:00Z", marks.getMark(MockProvider.getSetSpec(1)));
+        // the first harvest has been done in full
+        File latestIncremental = new File(marksFile.getParentFile(), "latest-incremental.txt");
+        assertFalse(latestIncremental.exists());
+        assertFalse(loadManifest().isIncremental());
+        String fullDate = FileUtils.readFileToString(new File(marksFile.getParentFile(), "latest.txt"), "UTF-8");
+
+        // only the records since the mark should be harvested, the mark itself is included
+        provider.setRecords(40);
+        received.set(0);
+        assertTrue(harvest(null, listener));
+        assertEquals(2 * 16, received.get());
+        marks.load(FileUtils.readFileToByteArray(marksFile));
+        assertEquals("2020-01-01T00:39:00Z", marks.getMark(MockProvider.getSetSpec(0)));
+        assertEquals("2020-01-01T00:39:00Z", marks.getMark(MockProvider.getSetSpec(1)));
+        // latest.txt must keep pointing to the full harvest
+        assertTrue(latestIncremental.exists());
+        assertEquals(fullDate, FileUtils.readFileToString(new File(marksFile.getParentFile(), "latest.txt"), "UTF-8"));
+        HarvestManifest manifest = HarvestManifest.load(FileUtils.readFileToByteArray(new File(marksFile.getParentFile(), 
+                FileUtils.readFileToString(latestIncremental, "UTF-8") + "/" + HarvestManifest.MANIFEST)));
+        assertTrue(manifest.isIncremental());
+        assertEquals(fullDate, manifest.getBaseDate());
+
+        received.set(0);
+        assertTrue(harvest(null, listener));
+        assertEquals(2, received.get());
+        assertNotNull(provider.getListFrom());
+    }
+
+    @org.junit.Test
+    public void testManifestLocations() throws Exception {
+        startProvider(2, 25, 10);
+        mockProperties.setProperty("segment.max.pages", "2");
+
+        for (String format : new String[] { "segments", "content", "records" }) {
+            File folder = testFolder.newFolder(format);
+            mockProperties.setProperty("folder", folder.toString());
+            mockProperties.setProperty("output.format", "content".equals(format) ? "pages" : format);
+            mockProperties.setProperty("store.mode", "content".equals(format) ? "content" : "snapshot");
+
+            assertTrue(format, harvest(null));
+
+            // every page must point to the object, it has been stored into
+            HarvestManifest manifest = loadManifest(folder);
+            assertEquals(format, 2, manifest.getSets().size());
+            for (HarvestManifest.SetEntry set : manifest.getSets()) {
+                assertEquals(format, 3, set.getPages().size());
+                for (HarvestManifest.PageEntry page : set.getPages()) {
+                    File file = new File(folder, page.getKey());
+                    assertTrue(format + ": " + page.getKey(), file.exists());
+
+                    if ("segments".equals(format))
+                        assertEquals(page.getSha256(), sha256(SegmentWriter.openPage(file, page.getOffset(), page.getLength())));
+                    else if ("content".equals(format))
+                        assertEquals(page.getSha256(), sha256(FileUtils.openInputStream(file)));
+                    else {
+                        assertTrue(file.isDirectory());
+                        assertNull(page.getOffset());
+                    }
+                }
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testResumePartitions() throws Exception {
+        startProvider(1, 30, 100);
+        // the records will be spread from 2020 until now, one page in every window
+        provider.setInterval(7000000);
+        provider.setRetryAfter(0);
+        // only the first window could be harvested
+        provider.setFaultAfter(1);
+        provider.setFault(MockProvider.Fault.UNAVAILABLE, 1);
+        mockProperties.setProperty("partition.windows", "2");
+        mockProperties.setProperty("checkpoint", "true");
+
+        assertFalse(harvest(null));
+        assertTrue(new File(mockProperties.getProperty("checkpoint.file")).exists());
+        int requests = provider.getRequests("ListRecords");
+
+        // the resumed harvest must cut the same windows, even if the clock has moved
+        Thread.sleep(2100);
+        provider.setFault(MockProvider.Fault.UNAVAILABLE, 0);
+
+        assertTrue(harvest(null));
+        // the first window must not be harvested again
+        assertEquals(requests + 1, provider.getRequests("ListRecords"));
+        assertFalse(new File(mockProperties.getProperty("checkpoint.file")).exists());
+
+        HarvestManifest manifest = loadManifest();
+        assertTrue(manifest.isComplete());
+        assertEquals(2, manifest.getSets().size());
+        long total = 0;
+        for (HarvestManifest.SetEntry set : manifest.getSets()) {
+            assertEquals(set.getId(), SetStatus.OUTCOME_HARVESTED, set.getOutcome());
+            total += set.getRecords();
+        }
+        assertEquals(30, total);
+    }
+
+    @org.junit.Test
+    public void testDiscoveryCache() throws Exception {
+        startProvider(2, 20, 10);
+        provider.setValidators(true);
+        mockProperties.setProperty("discovery.cache", "true");
+
+        assertTrue(harvest(null));
+        // the cache should be kept together with the harvested files
+        assertTrue(new File(testFolder.getRoot(), "_discovery").isDirectory());
+        assertEquals(1, provider.getRequests("ListSets"));
+        assertEquals(0, provider.getNotModified());
+
+        // the cached sets will be harvested, while the new set will be found in background
+        provider.setSets(3);
+        assertTrue(harvest(null));
+        assertEquals(2, provider.getRequests("ListSets"));
+        assertEquals(1, provider.getNotModified());
+
+        Map<String, Long> records = countRecords(loadManifest());
+        assertEquals(3, records.size());
+        assertEquals(Long.valueOf(20), records.get(MockProvider.getSetSpec(2)));
+
+        // Identify and ListSets have not been changed
+        assertTrue(harvest(null));
+        assertEquals(3, provider.getNotModified());
+        assertEquals(3, countRecords(loadManifest()).size());
+    }
+
+    @org.junit.Test
+    public void testDiscoveryRemovedSets() throws Exception {
+        startProvider(3, 20, 5);
+        provider.setValidators(true);
+        mockProperties.setProperty("discovery.cache", "true");
+
+        assertTrue(harvest(null));
+        assertEquals(3, countRecords(loadManifest()).size());
+
+        // the removed set will be dropped, while the cached sets are harvested
+        provider.setSets(2);
+        provider.setLatency(300, 0);
+        assertTrue(harvest(null));
+
+        Map<String, Long> records = countRecords(loadManifest());
+        assertEquals(2, records.size());
+        assertFalse(records.containsKey(MockProvider.getSetSpec(2)));
+    }
+
+    @org.junit.Test
+    public void testDiscoveryCacheTtl() throws Exception {
+        startProvider(2, 20, 10);
+        mockProperties.setProperty("discovery.cache", "true");
+
+        assertTrue(harvest(null));
+
+        // the responses without validators will be used until the TTL has expired
+        provider.setSets(3);
+        assertTrue(harvest(null));
+        assertEquals(1, provider.getRequests("Identify"));
+        assertEquals(1, provider.getRequests("ListSets"));
+        assertEquals(2, countRecords(loadManifest()).size());
+
+        mockProperties.setProperty("discovery.cache.ttl", "0");
+        assertTrue(harvest(null));
+        assertEquals(2, provider.getRequests("ListSets"));
+        assertEquals(3, countRecords(loadManifest()).size());
+    }
+
+    @org.junit.Test
+    public void testListSetsFailure() throws Exception {
+        startProvider(2, 20, 10);
+        provider.setFaultVerbs("ListSets");
+        provider.setRetryAfter(0);
+        provider.setFault(MockProvider.Fault.UNAVAILABLE, 1);
+        mockProperties.setProperty("discovery.cache", "false");
+
+        // the repository must not be harvested as the default set
+        try {
+            harvest(null);
+            fail("The harvest should fail without the list of sets");
+        } catch (HarvesterException e) {
+        }
+        assertEquals(0, provider.getRequests("ListRecords"));
+
+        mockProperties.setProperty("discovery.cache", "true");
+        provider.setFault(MockProvider.Fault.UNAVAILABLE, 0);
+        assertTrue(harvest(null));
+
+        // the cached sets will be harvested
+        provider.setFault(MockProvider.Fault.UNAVAILABLE, 1);
+        mockProperties.setProperty("discovery.cache.ttl", "0");
+        assertTrue(harvest(null));
+        assertEquals(2, countRecords(loadManifest()).size());
+    }
+
+    /**
+     * Load test, will run only if the number of the records has been set, for example:
+     * {@code mvn test -Dtest=HarvesterTest#testLoad -Dmock.records=100000 -Dmock.sets=20}
+     */
+    @org.junit.Test
+    public void testLoad() throws Exception {
+        int records = Integer.getInteger("mock.records", 0);
+        Assume.assumeTrue(records > 0);
+
+        startProvider(Integer.getInteger("mock.sets", 10), records, Integer.getInteger("mock.page.size", 100));
+        mockProperties.setProperty("set.concurrency", System.getProperty("mock.concurrency", "4"));
+        mockProperties.setProperty("max.attempts", "3");
+
+        long start = System.currentTimeMillis();
+        assertTrue(harvest(null));
+        long time = Math.max(System.currentTimeMillis() - start, 1);
 
-        harvester.harvest();
+        long total = 0;
+        for (Long count : countRecords(loadManifest()).values())
+            total += count;
+        assertEquals(provider.getRecords(), total);
 
+        System.out.println("Harvested " + total + " records with " + provider.getRequests() + " requests in "
+                + time + " ms, " + (total * 1000 / time) + " records per second");
     }
-}
\ No newline at end of file
+}
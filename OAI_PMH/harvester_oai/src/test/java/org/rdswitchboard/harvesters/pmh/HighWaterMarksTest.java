@@ -0,0 +1,84 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class HighWaterMarksTest {
+
+    private static SetStatus partition(String set, String datestamp) {
+        SetStatus status = new SetStatus(set, set);
+        status.setDatestamp(datestamp);
+        return status;
+    }
+
+    @Test
+    public void testCheckIncremental() {
+        assertNull(HighWaterMarks.checkIncremental(HighWaterMarks.GRANULARITY_SECONDS, HighWaterMarks.DELETED_RECORD_PERSISTENT));
+        assertNull(HighWaterMarks.checkIncremental(HighWaterMarks.GRANULARITY_DAY, HighWaterMarks.DELETED_RECORD_PERSISTENT));
+
+        // unknown granularity
+        assertNotNull(HighWaterMarks.checkIncremental(null, HighWaterMarks.DELETED_RECORD_PERSISTENT));
+        assertNotNull(HighWaterMarks.checkIncremental("YYYY-MM", HighWaterMarks.DELETED_RECORD_PERSISTENT));
+
+        // the deletions could be lost
+        assertNotNull(HighWaterMarks.checkIncremental(HighWaterMarks.GRANULARITY_SECONDS, "transient"));
+        assertNotNull(HighWaterMarks.checkIncremental(HighWaterMarks.GRANULARITY_SECONDS, "no"));
+        assertNotNull(HighWaterMarks.checkIncremental(HighWaterMarks.GRANULARITY_DAY, null));
+    }
+
+    @Test
+    public void testToFrom() {
+        assertEquals("2020-01-02", HighWaterMarks.toFrom("2020-01-02T03:04:05Z", HighWaterMarks.GRANULARITY_DAY));
+        assertEquals("2020-01-02", HighWaterMarks.toFrom("2020-01-02", HighWaterMarks.GRANULARITY_DAY));
+        assertEquals("2020-01-02T03:04:05Z", HighWaterMarks.toFrom("2020-01-02T03:04:05Z", HighWaterMarks.GRANULARITY_SECONDS));
+
+        assertNull(HighWaterMarks.toFrom(null, HighWaterMarks.GRANULARITY_DAY));
+        assertNull(HighWaterMarks.toFrom("2020-01", HighWaterMarks.GRANULARITY_DAY));
+        assertNull(HighWaterMarks.toFrom("2020-01-02T03:04:05Z", "YYYY-MM"));
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        HighWaterMarks marks = new HighWaterMarks();
+        marks.setMark("set_0", "2020-01-02T03:04:05Z");
+
+        HighWaterMarks loaded = new HighWaterMarks();
+        loaded.load(marks.save());
+        assertEquals("2020-01-02T03:04:05Z", loaded.getMark("set_0"));
+
+        loaded.load(null);
+        assertNull(loaded.getMark("set_0"));
+    }
+
+    @Test
+    public void testAdvance() {
+        HighWaterMarks marks = new HighWaterMarks();
+        for (String set : Arrays.asList("completed", "failed", "unfinished", "replaced", "empty"))
+            marks.setMark(set, "2020-01-01T00:00:00Z");
+
+        SetStatus failed = partition("failed", "2020-01-02T00:00:00Z");
+        failed.setError("Unable to harvest the set");
+        SetStatus unfinished = partition("unfinished", "2020-01-02T00:00:00Z");
+        unfinished.setToken("token");
+
+        // every set has two partitions and only the second one has a problem
+        assertEquals(Collections.singleton("completed"), marks.advance(Arrays.asList(
+                partition("completed", "2020-01-03T00:00:00Z"), partition("completed", "2020-01-02T00:00:00Z"),
+                partition("failed", "2020-01-03T00:00:00Z"), failed,
+                partition("unfinished", "2020-01-03T00:00:00Z"), unfinished,
+                partition("replaced", "2020-01-03T00:00:00Z"), partition("replaced", "2020-01-02T00:00:00Z"),
+                partition("empty", null), partition("empty", null)),
+                new HashSet<String>(Arrays.asList("replaced"))));
+
+        assertEquals("2020-01-03T00:00:00Z", marks.getMark("completed"));
+        assertEquals("2020-01-01T00:00:00Z", marks.getMark("failed"));
+        assertEquals("2020-01-01T00:00:00Z", marks.getMark("unfinished"));
+        assertEquals("2020-01-01T00:00:00Z", marks.getMark("replaced"));
+        assertEquals("2020-01-01T00:00:00Z", marks.getMark("empty"));
+    }
+}
@@ -0,0 +1,701 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded OAI:PMH provider for the end-to-end, load and fault-injection tests.
+ *
+ * The provider serves Identify, ListMetadataFormats, ListSets and ListRecords for synthetic
+ * sets {@code set_0 ... set_<n-1>}. The records are generated when the page is requested, so a
+ * provider with millions of records will not use any memory: the record {@code i} of the set
+ * {@code s} has identifier {@code oai:mock:<s>:<i>} and datestamp {@code 2020-01-01T00:00:00Z}
+ * plus {@code i} minutes, so the from and until arguments select a continuous range of records.
+ * Every page ends with the resumption token, the cursor and the complete list size. The tokens
+ * carry the epoch of the provider and the time they have been issued, so they will expire after
+ * {@link #expireTokens()} or after the token TTL.
+ * <p>
+ * Every request could be delayed and every ListRecords request (or the request of any other
+ * verb, see {@link #setFaultVerbs(String...)}) could fail with one of the {@link Fault}s,
+ * chosen with the given rate by the seeded random generator, so the single threaded harvest will
+ * see the same faults every time. Any request, failed with a fault, will succeed when retried
+ * with the probability of 1 - rate.
+ * <p>
+ * The provider could also be started alone to load-test the harvester from the command line:
+ * <p>
+ * {@code java -cp <test classpath> org.rdswitchboard.harvesters.pmh.MockProvider <port> <sets> <records per set> <page size>}
+ *
+ * @author dima
+ *
+ */
+public class MockProvider implements Closeable {
+
+    /**
+     * Faults, the provider could inject into ListRecords responses
+     */
+    public enum Fault {
+        /** HTTP 503 with Retry-After header */
+        UNAVAILABLE,
+        /** badResumptionToken error for a valid token */
+        EXPIRED_TOKEN,
+        /** Only the first half of the response body */
+        TRUNCATED,
+        /** The response with mismatched closing tag */
+        MALFORMED,
+        /** HTTP 200 without any content, but with Content-Encoding header, if the response should be compressed */
+        EMPTY
+    }
+
+    public static final String METADATA_PREFIX = "oai_dc";
+
+    private static final String SET_PREFIX = "set_";
+    private static final long BASE = LocalDate.of(2020, 1, 1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    private static final DateTimeFormatter FORMAT_SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+            + "xsi:schemaLocation=\"http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd\">"
+            + "<responseDate>%s</responseDate><request>%s</request>";
+    private static final String ENVELOPE_END = "</OAI-PMH>";
+
+    private static final String IDENTIFY = "<Identify><repositoryName>Mock Repository</repositoryName><baseURL>%s</baseURL>"
+            + "<protocolVersion>2.0</protocolVersion><adminEmail>admin@example.org</adminEmail>"
+            + "<earliestDatestamp>2020-01-01T00:00:00Z</earliestDatestamp><deletedRecord>persistent</deletedRecord>"
+            + "<granularity>YYYY-MM-DDThh:mm:ssZ</granularity>%s</Identify>";
+
+    private static final String METADATA_FORMATS = "<ListMetadataFormats><metadataFormat><metadataPrefix>" + METADATA_PREFIX + "</metadataPrefix>"
+            + "<schema>http://www.openarchives.org/OAI/2.0/oai_dc.xsd</schema>"
+            + "<metadataNamespace>http://www.openarchives.org/OAI/2.0/oai_dc/</metadataNamespace></metadataFormat></ListMetadataFormats>";
+
+    private static final String SET = "<set><setSpec>%s</setSpec><setName>Mock set %s</setName></set>";
+
+    private static final String RECORD = "<record><header><identifier>oai:mock:%1$s:%2$d</identifier><datestamp>%3$s</datestamp>"
+            + "<setSpec>%1$s</setSpec></header><metadata><oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" "
+            + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>Record %2$d of the mock set %1$s</dc:title>"
+            + "<dc:creator>Mock, Creator</dc:creator><dc:date>%3$s</dc:date><dc:identifier>http://example.org/%1$s/%2$d</dc:identifier>"
+            + "</oai_dc:dc></metadata></record>";
+
+    private static final String TOKEN = "<resumptionToken cursor=\"%d\" completeListSize=\"%d\">%s</resumptionToken>";
+
+    private static final String ERROR = "<error code=\"%s\">%s</error>";
+
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2020 00:00:00 GMT";
+
+    private volatile int sets;
+    private volatile int records;
+    private final int pageSize;
+
+    private int setsPageSize = 100;
+    private int interval = 60;
+    private volatile List<String> compression = Collections.singletonList("gzip");
+    private volatile String acceptEncoding;
+    private volatile String listFrom;
+    private boolean validators;
+    private volatile Set<String> faultVerbs = Collections.singleton("ListRecords");
+    private volatile int faultAfter;
+
+    private volatile long latency;
+    private volatile long latencyJitter;
+    private volatile long tokenTtl;
+    private volatile int retryAfter = 1;
+    private volatile int epoch;
+
+    private final Map<Fault, Double> rates = new EnumMap<Fault, Double>(Fault.class);
+    private final Map<Fault, AtomicInteger> faults = new EnumMap<Fault, AtomicInteger>(Fault.class);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger faultRequests = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> verbRequests = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> encodedResponses = new ConcurrentHashMap<String, AtomicInteger>();
+    private Random random = new Random(0);
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Construct mock provider
+     * @param sets Number of the sets
+     * @param records Number of the records in every set
+     * @param pageSize Number of the records in one ListRecords response
+     */
+    public MockProvider(int sets, int records, int pageSize) {
+        this.sets = sets;
+        this.records = records;
+        this.pageSize = Math.max(pageSize, 1);
+
+        for (Fault fault : Fault.values())
+            faults.put(fault, new AtomicInteger());
+    }
+
+    /**
+     * Set number of the sets in one ListSets response
+     * @param setsPageSize Number of the sets
+     */
+    public void setSetsPageSize(int setsPageSize) {
+        this.setsPageSize = Math.max(setsPageSize, 1);
+    }
+
+    /**
+     * Set number of the records in every set. The new records will have the later datestamps,
+     * so the provider could be harvested incrementally.
+     * @param records Number of the records
+     */
+    public void setRecords(int records) {
+        this.records = records;
+    }
+
+    /**
+     * Set the time between the datestamps of two records of the set
+     * @param interval The interval in seconds
+     */
+    public void setInterval(int interval) {
+        this.interval = Math.max(interval, 1);
+    }
+
+    /**
+     * Enable or disable gzip compression of the responses. Should be set before the provider
+     * has been started.
+     * @param compression true to declare gzip compression in Identify response and to compress the responses
+     */
+    public void setCompression(boolean compression) {
+        if (compression)
+            setCompression("gzip");
+        else
+            setCompression();
+    }
+
+    /**
+     * Set the encodings to declare in Identify response. The response will be compressed with the first
+     * declared encoding, accepted by the client. Only gzip and deflate (zlib) encodings are supported.
+     * @param encodings The encodings, none to disable the compression
+     */
+    public void setCompression(String... encodings) {
+        this.compression = Arrays.asList(encodings);
+    }
+
+    /**
+     * Change the number of the sets
+     * @param sets Number of the sets
+     */
+    public void setSets(int sets) {
+        this.sets = sets;
+    }
+
+    /**
+     * Enable or disable ETag and Last-Modified headers of Identify, ListMetadataFormats and the
+     * first page of ListSets. The conditional request with matching If-None-Match header will be
+     * answered with 304. The ETag of ListSets will be changed with the number of the sets.
+     * @param validators true to return the validators
+     */
+    public void setValidators(boolean validators) {
+        this.validators = validators;
+    }
+
+    /**
+     * Delay every response
+     * @param latency The delay in milliseconds
+     * @param jitter The maximum random delay in milliseconds, added to every response
+     */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+    }
+
+    /**
+     * Set the resumption token time to live
+     * @param tokenTtl The time in milliseconds or 0 if the tokens should never expire
+     */
+    public void setTokenTtl(long tokenTtl) {
+        this.tokenTtl = tokenTtl;
+    }
+
+    /**
+     * Set the value of Retry-After header, returned with HTTP 503
+     * @param retryAfter The delay in seconds
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Set the probability of the fault for every ListRecords request
+     * @param fault A fault
+     * @param rate The probability from 0 to 1
+     */
+    public synchronized void setFault(Fault fault, double rate) {
+        rates.put(fault, rate);
+    }
+
+    /**
+     * Set the verbs, the faults will be injected into. By default only ListRecords responses will fail.
+     * @param verbs The OAI:PMH verbs
+     */
+    public void setFaultVerbs(String... verbs) {
+        faultVerbs = new HashSet<String>(Arrays.asList(verbs));
+    }
+
+    /**
+     * Inject the faults only after the given number of requests of the fault verbs
+     * @param requests Number of the requests, which will never fail
+     */
+    public void setFaultAfter(int requests) {
+        faultAfter = requests;
+    }
+
+    /**
+     * Set the seed of the random generator, used to inject the faults
+     * @param seed A seed
+     */
+    public synchronized void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Expire all resumption tokens, issued before this call
+     */
+    public void expireTokens() {
+        ++epoch;
+    }
+
+    /**
+     * Start the provider on the loopback address
+     * @param port A local port, 0 to choose any free port
+     * @return String - the provider base URL
+     * @throws IOException if the port could not be bound
+     */
+    public String start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/oai", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    process(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mock-provider");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        return getUrl();
+    }
+
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/oai";
+    }
+
+    /**
+     * Return the number of the sets
+     * @return int - number of the sets
+     */
+    public int getSets() {
+        return sets;
+    }
+
+    /**
+     * Return the total number of the records in all sets
+     * @return long - number of the records
+     */
+    public long getRecords() {
+        return (long) sets * records;
+    }
+
+    /**
+     * Return the set specification
+     * @param set The set number
+     * @return String - set specification
+     */
+    public static String getSetSpec(int set) {
+        return SET_PREFIX + set;
+    }
+
+    /**
+     * Return the number of the received requests
+     * @return int - number of the requests
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Return the number of the received requests with the verb
+     * @param verb The OAI:PMH verb
+     * @return int - number of the requests
+     */
+    public int getRequests(String verb) {
+        AtomicInteger count = verbRequests.get(verb);
+        return null == count ? 0 : count.get();
+    }
+
+    /**
+     * Return the number of the conditional requests, answered with 304
+     * @return int - number of the requests
+     */
+    public int getNotModified() {
+        return notModified.get();
+    }
+
+    /**
+     * Return the number of the responses, compressed with the encoding
+     * @param encoding An encoding
+     * @return int - number of the responses
+     */
+    public int getEncoded(String encoding) {
+        AtomicInteger count = encodedResponses.get(encoding);
+        return null == count ? 0 : count.get();
+    }
+
+    /**
+     * Return the from argument of the last ListRecords request, which has started the list
+     * @return String - from argument or null if the list has been requested without it
+     */
+    public String getListFrom() {
+        return listFrom;
+    }
+
+    /**
+     * Return the Accept-Encoding header of the last request
+     * @return String - header value or null if the header has not been sent
+     */
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     * Return the number of the injected faults
+     * @param fault A fault
+     * @return int - number of the faults
+     */
+    public int getFaults(Fault fault) {
+        return faults.get(fault).get();
+    }
+
+    /**
+     * Stop the provider
+     */
+    @Override
+    public void close() {
+        if (null != server)
+            server.stop(0);
+        if (null != executor)
+            executor.shutdownNow();
+    }
+
+    private void process(HttpExchange exchange) throws IOException, InterruptedException {
+        requests.incrementAndGet();
+
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String verb = query.get("verb");
+        acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+        if (null != verb) {
+            verbRequests.putIfAbsent(verb, new AtomicInteger());
+            verbRequests.get(verb).incrementAndGet();
+        }
+
+        if (latency > 0 || latencyJitter > 0)
+            Thread.sleep(latency + (latencyJitter > 0 ? (long) (Math.random() * latencyJitter) : 0));
+
+        byte[] body;
+        String etag = null;
+        if ("ListRecords".equals(verb))
+            body = listRecords(query);
+        else if ("Identify".equals(verb)) {
+            StringBuilder encodings = new StringBuilder();
+            for (String encoding : compression)
+                encodings.append("<compression>").append(encoding).append("</compression>");
+            body = bytes(envelope(verb, String.format(IDENTIFY, getUrl(), encodings)));
+            etag = "\"identify\"";
+        } else if ("ListMetadataFormats".equals(verb)) {
+            body = bytes(envelope(verb, METADATA_FORMATS));
+            etag = "\"formats\"";
+        } else if ("ListSets".equals(verb)) {
+            body = bytes(listSets(query));
+            // only the first page could be validated
+            if (!query.containsKey("resumptionToken"))
+                etag = "\"sets-" + sets + "\"";
+        } else
+            body = bytes(error(verb, "badVerb", "Illegal OAI verb"));
+
+        if (faultVerbs.contains(verb) && faultRequests.incrementAndGet() > faultAfter) {
+            Fault fault = nextFault();
+            if (null != fault) {
+                faults.get(fault).incrementAndGet();
+                switch (fault) {
+                case UNAVAILABLE:
+                    exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfter));
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+
+                case EXPIRED_TOKEN:
+                    if (query.containsKey("resumptionToken")) {
+                        send(exchange, error(verb, "badResumptionToken", "The resumption token has expired"));
+                        return;
+                    }
+                    break;
+
+                case TRUNCATED:
+                    send(exchange, body, body.length / 2);
+                    return;
+
+                case MALFORMED:
+                    String xml = new String(body, StandardCharsets.UTF_8);
+                    send(exchange, xml.contains("</metadata>") ? xml.replaceFirst("</metadata>", "</metadta>")
+                            : xml.replace(ENVELOPE_END, "</OAI-PMX>"));
+                    return;
+
+                case EMPTY:
+                    String encoding = selectEncoding(exchange);
+                    if (null != encoding)
+                        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+            }
+        }
+
+        if (validators && null != etag) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+
+        send(exchange, body, -1);
+    }
+
+    private synchronized Fault nextFault() {
+        // one draw for all faults, so every fault will be injected with its own rate
+        double value = random.nextDouble();
+        for (Fault fault : Fault.values()) {
+            Double rate = rates.get(fault);
+            if (null != rate && (value -= rate) < 0)
+                return fault;
+        }
+
+        return null;
+    }
+
+    private String listSets(Map<String, String> query) {
+        int offset = 0;
+        if (query.containsKey("resumptionToken"))
+            try {
+                offset = Integer.parseInt(query.get("resumptionToken"));
+            } catch (NumberFormatException e) {
+                return error("ListSets", "badResumptionToken", "The resumption token is invalid");
+            }
+
+        StringBuilder sb = new StringBuilder("<ListSets>");
+        int end = Math.min(offset + setsPageSize, sets);
+        for (int i = offset; i < end; ++i)
+            sb.append(String.format(SET, getSetSpec(i), i));
+        if (offset > 0 || end < sets)
+            sb.append(String.format(TOKEN, offset, sets, end < sets ? Integer.toString(end) : ""));
+
+        return envelope("ListSets", sb.append("</ListSets>").toString());
+    }
+
+    private byte[] listRecords(Map<String, String> query) {
+        String set;
+        long from, until;
+        int offset;
+
+        if (query.containsKey("resumptionToken")) {
+            // <set>!<from>!<until>!<offset>!<epoch>!<issued>
+            String[] token = query.get("resumptionToken").split("!");
+            try {
+                if (token.length != 6 || Integer.parseInt(token[4]) != epoch
+                        || tokenTtl > 0 && System.currentTimeMillis() - Long.parseLong(token[5]) > tokenTtl)
+                    return bytes(error("ListRecords", "badResumptionToken", "The resumption token is invalid or has expired"));
+
+                set = token[0];
+                from = Long.parseLong(token[1]);
+                until = Long.parseLong(token[2]);
+                offset = Integer.parseInt(token[3]);
+            } catch (NumberFormatException e) {
+                return bytes(error("ListRecords", "badResumptionToken", "The resumption token is invalid"));
+            }
+        } else {
+            if (!METADATA_PREFIX.equals(query.get("metadataPrefix")))
+                return bytes(error("ListRecords", "cannotDisseminateFormat", "The metadata format is not supported"));
+
+            set = query.get("set");
+            listFrom = query.get("from");
+            from = query.containsKey("from") ? parseDate(query.get("from"), false) : 0;
+            until = query.containsKey("until") ? parseDate(query.get("until"), true) : Long.MAX_VALUE;
+            offset = 0;
+        }
+
+        int setNumber = -1;
+        if (null != set && set.startsWith(SET_PREFIX))
+            try {
+                setNumber = Integer.parseInt(set.substring(SET_PREFIX.length()));
+            } catch (NumberFormatException e) {
+            }
+
+        // without the set, the first set will be returned, as it would be the whole repository
+        if (null == set)
+            setNumber = 0;
+
+        // the range of the records, selected by from and until
+        long first = from <= BASE ? 0 : (from - BASE + interval - 1) / interval;
+        long last = until == Long.MAX_VALUE ? records - 1 : until < BASE ? -1 : (until - BASE) / interval;
+        last = Math.min(last, records - 1);
+
+        if (setNumber < 0 || setNumber >= sets || first > last)
+            return bytes(error("ListRecords", "noRecordsMatch", "The combination of the arguments results in an empty list"));
+
+        int size = (int) (last - first + 1);
+        int end = Math.min(offset + pageSize, size);
+
+        StringBuilder sb = new StringBuilder(ENVELOPE_START.length() + (end - offset) * (RECORD.length() + 64));
+        sb.append(String.format(ENVELOPE_START, FORMAT_SECONDS.format(Instant.now()), "ListRecords")).append("<ListRecords>");
+        for (int i = offset; i < end; ++i) {
+            long index = first + i;
+            sb.append(String.format(RECORD, getSetSpec(setNumber), index,
+                    FORMAT_SECONDS.format(Instant.ofEpochSecond(BASE + index * interval))));
+        }
+
+        if (offset > 0 || end < size) {
+            String token = end < size ? getSetSpec(setNumber) + "!" + from + "!" + until + "!" + end + "!" + epoch
+                    + "!" + System.currentTimeMillis() : "";
+            sb.append(String.format(TOKEN, offset, size, token));
+        }
+
+        return bytes(sb.append("</ListRecords>").append(ENVELOPE_END).toString());
+    }
+
+    private static long parseDate(String date, boolean until) {
+        if (date.length() == 10)
+            return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toEpochSecond() + (until ? 86399 : 0);
+
+        return Instant.parse(date).getEpochSecond();
+    }
+
+    private static String envelope(String verb, String body) {
+        return String.format(ENVELOPE_START, FORMAT_SECONDS.format(Instant.now()), verb) + body + ENVELOPE_END;
+    }
+
+    private static String error(String verb, String code, String message) {
+        return envelope(verb, String.format(ERROR, code, message));
+    }
+
+    private static byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void send(HttpExchange exchange, String xml) throws IOException {
+        send(exchange, bytes(xml), -1);
+    }
+
+    private void send(HttpExchange exchange, byte[] body, int length) throws IOException {
+        if (length < 0)
+            length = body.length;
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+
+        String encoding = selectEncoding(exchange);
+        if (null != encoding) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (OutputStream os = "gzip".equals(encoding) ? new GZIPOutputStream(bos) : new DeflaterOutputStream(bos)) {
+                os.write(body, 0, length);
+            }
+
+            body = bos.toByteArray();
+            length = body.length;
+
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+
+            encodedResponses.putIfAbsent(encoding, new AtomicInteger());
+            encodedResponses.get(encoding).incrementAndGet();
+        }
+
+        exchange.sendResponseHeaders(200, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body, 0, length);
+        }
+    }
+
+    private String selectEncoding(HttpExchange exchange) {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (null != accepted)
+            for (String encoding : compression)
+                if (accepted.contains(encoding))
+                    return encoding;
+
+        return null;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> map = new HashMap<String, String>();
+        if (null != query)
+            for (String pair : query.split("&")) {
+                int pos = pair.indexOf('=');
+                if (pos > 0)
+                    map.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"), URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+            }
+
+        return map;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: MockProvider <port> <sets> <records per set> <page size>");
+
+            System.exit(1);
+        }
+
+        MockProvider provider = new MockProvider(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        System.out.println("Mock OAI:PMH provider is listening on " + provider.start(Integer.parseInt(args[0])));
+
+        Thread.currentThread().join();
+    }
+}
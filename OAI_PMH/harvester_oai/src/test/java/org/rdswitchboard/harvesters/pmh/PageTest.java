@@ -0,0 +1,71 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class PageTest {
+
+    @Test
+    public void testMoveTo() throws Exception {
+        File folder = Files.createTempDirectory("page").toFile();
+        try {
+            // the bytes must be kept as they are, whatever the encoding is
+            byte[] bytes = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>é</a>".getBytes("ISO-8859-1");
+
+            File target = new File(folder, "repo/a/0.xml");
+            new Page("repo/a/0.xml", bytes).moveTo(target);
+            assertArrayEquals(bytes, FileUtils.readFileToByteArray(target));
+
+            File buffer = new File(folder, "buffer.xml");
+            FileUtils.writeByteArrayToFile(buffer, bytes);
+
+            Page page = new Page("repo/a/1.xml", buffer);
+            ByteBuffer mapped = page.map();
+            assertEquals(bytes.length, mapped.remaining());
+            assertEquals(bytes[bytes.length - 6], mapped.get(bytes.length - 6));
+
+            target = new File(folder, "repo/a/1.xml");
+            page.moveTo(target);
+            assertFalse(buffer.exists());
+            assertArrayEquals(bytes, FileUtils.readFileToByteArray(target));
+
+            // the existing page will be replaced
+            new Page("repo/a/1.xml", new byte[] { 1, 2, 3 }).moveTo(target);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, FileUtils.readFileToByteArray(target));
+            assertEquals(2, target.getParentFile().list().length);
+        } finally {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        File folder = Files.createTempDirectory("page").toFile();
+        try {
+            File buffer = new File(folder, "buffer.xml");
+            FileUtils.writeByteArrayToFile(buffer, new byte[] { 1, 2, 3 });
+
+            Page page = new Page("repo/a/0.xml", buffer).retain();
+
+            // the retained page must be copied and must still be readable
+            File target = new File(folder, "repo/a/0.xml");
+            page.moveTo(target);
+            page.release();
+            assertTrue(buffer.exists());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, FileUtils.readFileToByteArray(target));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, IOUtils.toByteArray(page.openStream()));
+
+            page.release();
+            assertFalse(buffer.exists());
+        } finally {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testRequestRate() throws Exception {
+        RateLimiter limiter = new RateLimiter("localhost", 20, 0);
+
+        long mark = System.currentTimeMillis();
+        for (int i = 0; i < 11; ++i)
+            limiter.acquireRequest();
+
+        // the first second of tokens is available immediately, the rest should take 10 / 20 seconds
+        assertTrue(System.currentTimeMillis() - mark >= 400);
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        RateLimiter limiter = new RateLimiter("localhost", 0, 0);
+
+        long mark = System.currentTimeMillis();
+        for (int i = 0; i < 1000; ++i) {
+            limiter.acquireRequest();
+            limiter.acquireBytes(1 << 20);
+        }
+
+        assertTrue(System.currentTimeMillis() - mark < 1000);
+    }
+
+    @Test
+    public void testPause() throws Exception {
+        RateLimiter limiter = new RateLimiter("localhost", 0, 0);
+        limiter.pause(300);
+
+        long mark = System.currentTimeMillis();
+        limiter.acquireRequest();
+
+        assertTrue(System.currentTimeMillis() - mark >= 250);
+    }
+
+    @Test
+    public void testForHost() throws Exception {
+        RateLimiter limiter = RateLimiter.forHost("shared.test", 10, 1000);
+        assertSame(limiter, RateLimiter.forHost("shared.test", 10, 1000));
+
+        // the shared limiter should use the rates of the last harvester
+        assertSame(limiter, RateLimiter.forHost("shared.test", 5, 0));
+        assertEquals(5, limiter.getRequestRate(), 0);
+        assertEquals(0, limiter.getByteRate(), 0);
+
+        assertNotSame(limiter, new RateLimiter("shared.test", 5, 0));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertEquals(120000, RetryAfterException.parseRetryAfter("120"));
+        assertEquals(0, RetryAfterException.parseRetryAfter(null));
+        assertEquals(0, RetryAfterException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(0, RetryAfterException.parseRetryAfter("soon"));
+    }
+
+    @Test
+    public void testReserve() throws Exception {
+        RateLimiter limiter = new RateLimiter("localhost", 10, 0);
+
+        // every reserved request should be delayed by 1 / 10 second more, than the previous one
+        long delay = 0;
+        for (int i = 0; i < 10; ++i)
+            delay = limiter.reserveRequest();
+
+        assertTrue(delay >= 800 && delay <= 1100);
+
+        limiter.pause(5000);
+        assertTrue(limiter.reserveRequest() >= 5000);
+    }
+}
@@ -0,0 +1,132 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class RecordPublisherTest {
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<ListRecords>%s</ListRecords></OAI-PMH>";
+
+    private static final String RECORD = "<record><header><identifier>%s</identifier><datestamp>2020-01-01</datestamp>"
+            + "<setSpec>a</setSpec><setSpec>b</setSpec></header>"
+            + "<metadata><oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" "
+            + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>%s</dc:title></oai_dc:dc></metadata></record>";
+
+    private static final String DELETED = "<record><header status=\"deleted\"><identifier>%s</identifier>"
+            + "<datestamp>2020-01-02</datestamp></header></record>";
+
+    private static Page newPage(String records) {
+        return TestPages.newPage("repo/oai_dc/2020-01-01/a/0.xml", String.format(PAGE, records), null);
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final List<Record> records = Collections.synchronizedList(new ArrayList<Record>());
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        final RecordPublisher publisher = new RecordPublisher(Arrays.<RecordListener>asList(new RecordListener() {
+            @Override
+            public void record(String set, Record record) throws Exception {
+                latch.await();
+                received.add(set + ":" + record.getIdentifier());
+                records.add(record);
+            }
+
+            @Override
+            public void setCompleted(SetStatus set) throws Exception {
+                received.add(set.getId() + ":done");
+            }
+        }), 2, true);
+
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 10; ++i)
+            page.append(String.format(RECORD, "oai:" + i, "Title " + i));
+        page.append(String.format(DELETED, "oai:10"));
+        final Page first = newPage(page.toString());
+
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread harvester = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publisher.publish("a", first);
+                    publisher.completed(new SetStatus("a", "Set A"));
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        });
+        harvester.start();
+
+        // the harvester must wait, while the listener is busy and the queue is full
+        harvester.join(200);
+        assertTrue(harvester.isAlive());
+        assertTrue(received.isEmpty());
+
+        latch.countDown();
+        harvester.join();
+        publisher.flush();
+        publisher.close();
+        assertNull(error.get());
+
+        assertEquals(12, received.size());
+        assertEquals("a:oai:0", received.get(0));
+        assertEquals("a:oai:10", received.get(10));
+        assertEquals("a:done", received.get(11));
+
+        Record record = records.get(3);
+        assertEquals(Arrays.asList("a", "b"), record.getSetSpecs());
+        String metadata = new String(record.getMetadata(), StandardCharsets.UTF_8);
+        assertTrue(metadata.contains("<dc:title>Title 3</dc:title>"));
+        assertTrue(metadata.contains("xmlns:dc=\"http://purl.org/dc/elements/1.1/\""));
+        assertFalse(metadata.contains("metadata>"));
+
+        assertTrue(records.get(10).isDeleted());
+        assertNull(records.get(10).getMetadata());
+    }
+
+    @Test
+    public void testFailedListener() throws Exception {
+        RecordPublisher publisher = new RecordPublisher(Arrays.<RecordListener>asList(new RecordListener() {
+            @Override
+            public void record(String set, Record record) throws Exception {
+                throw new IllegalStateException("Graph is not available");
+            }
+
+            @Override
+            public void setCompleted(SetStatus set) throws Exception {
+            }
+        }), 1, false);
+
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 5; ++i)
+            page.append(String.format(RECORD, "oai:" + i, "Title " + i));
+
+        try {
+            publisher.publish("a", newPage(page.toString()));
+            publisher.flush();
+            fail("The listener error must be reported");
+        } catch (HarvesterException e) {
+            assertTrue(e.getMessage().contains("Graph is not available"));
+        }
+
+        try {
+            publisher.completed(new SetStatus("a", "Set A"));
+            fail("No more records must be accepted after the listener has failed");
+        } catch (HarvesterException e) {
+        } finally {
+            publisher.close();
+        }
+    }
+}
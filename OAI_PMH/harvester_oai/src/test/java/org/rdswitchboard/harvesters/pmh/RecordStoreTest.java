@@ -0,0 +1,118 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RecordStoreTest {
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<responseDate>2020-01-01T00:00:00Z</responseDate><ListRecords>%s</ListRecords></OAI-PMH>";
+
+    private static final String RECORD = "<record><header><identifier>%s</identifier><datestamp>%s</datestamp></header>"
+            + "<metadata><oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" "
+            + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>%s</dc:title></oai_dc:dc></metadata></record>";
+
+    private static final String DELETED = "<record><header status=\"deleted\"><identifier>%s</identifier>"
+            + "<datestamp>%s</datestamp></header></record>";
+
+    private static class MemoryStorage implements RecordStore.Storage {
+        final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+        final List<String> written = new ArrayList<String>();
+
+        @Override
+        public byte[] read(String key) throws IOException {
+            return objects.get(key);
+        }
+
+        @Override
+        public void write(String key, byte[] bytes, String contentType) throws IOException {
+            objects.put(key, bytes);
+            written.add(key);
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+            objects.remove(key);
+        }
+    }
+
+    private static Page newPage(int files, String records) {
+        return TestPages.newPage("repo/oai_dc/2020-01-01/a", files - 1, null, String.format(PAGE, records));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        String page = String.format(PAGE, String.format(RECORD, "oai:x:1", "2020-01-01", "One")
+                + String.format(DELETED, "oai:x:2", "2020-01-02"));
+
+        List<Record> records = Record.split(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, records.size());
+
+        assertEquals("oai:x:1", records.get(0).getIdentifier());
+        assertEquals("2020-01-01", records.get(0).getDatestamp());
+        assertFalse(records.get(0).isDeleted());
+
+        // every record must keep its namespaces
+        String xml = new String(records.get(0).getXml(), StandardCharsets.UTF_8);
+        assertTrue(xml.contains("xmlns=\"http://www.openarchives.org/OAI/2.0/\""));
+        assertTrue(xml.contains("xmlns:dc=\"http://purl.org/dc/elements/1.1/\""));
+        assertFalse(xml.contains("responseDate"));
+
+        assertEquals("oai:x:2", records.get(1).getIdentifier());
+        assertTrue(records.get(1).isDeleted());
+    }
+
+    @Test
+    public void testStore() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        RecordStore store = new RecordStore(storage, "repo/oai_dc", 2, 2);
+        String key = store.getRecordKey("a", "oai:x:1");
+        assertEquals("repo/oai_dc/a/oai%3Ax%3A1.xml", key);
+
+        RecordStore.Session session = store.open("a");
+        assertNull(session.store(newPage(1, String.format(RECORD, "oai:x:1", "2020-01-01", "One"))));
+        Checkpoint checkpoint = session.store(newPage(2, String.format(RECORD, "oai:x:2", "2020-01-01", "Two")));
+        assertNotNull(checkpoint);
+        assertEquals(2, checkpoint.getFiles());
+        assertNull(session.close());
+        assertEquals(2, session.getRecords());
+        assertTrue(storage.objects.containsKey(key));
+
+        // the index must be loaded from the storage by the new store
+        store = new RecordStore(storage, "repo/oai_dc", 2, 2);
+        session = store.open("a");
+        storage.written.clear();
+        session.store(newPage(1, String.format(RECORD, "oai:x:1", "2020-01-01", "One")));
+        assertEquals(1, session.close().getFiles());
+        assertTrue(storage.written.isEmpty());
+        assertEquals(0, session.getStored());
+
+        // the previous version must be cached
+        session.store(newPage(2, String.format(RECORD, "oai:x:1", "2020-01-05", "Changed")));
+        session.close();
+        assertTrue(new String(storage.objects.get(key), StandardCharsets.UTF_8).contains("Changed"));
+        assertTrue(new String(storage.objects.get(store.getCacheKey("a", "oai:x:1", "2020-01-01")),
+                StandardCharsets.UTF_8).contains("One"));
+
+        session.store(newPage(3, String.format(DELETED, "oai:x:1", "2020-01-06")));
+        session.close();
+        assertFalse(storage.objects.containsKey(key));
+
+        RecordIndex.Entry entry = store.getIndex("a").get("oai:x:1");
+        assertTrue(entry.isDeleted());
+        assertEquals("2020-01-06", entry.getDatestamp());
+
+        Map<String, RecordIndex.Entry> bucket = RecordIndex.loadBucket(storage.objects.get("repo/oai_dc/_index/a/"
+                + store.getIndex("a").getBucketName("oai:x:1") + RecordIndex.BUCKET_EXTENSION));
+        assertTrue(bucket.get("oai:x:1").isDeleted());
+    }
+}
@@ -0,0 +1,86 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ResponseProcessorTest {
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<responseDate>2016-01-01T00:00:00Z</responseDate>"
+            + "<request verb=\"ListRecords\">http://localhost/oai</request>";
+
+    private static ResponseProcessor process(String xml, ByteArrayOutputStream os) throws Exception {
+        ResponseProcessor response = new ResponseProcessor();
+        response.process(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), os);
+        return response;
+    }
+
+    @Test
+    public void testResumptionToken() throws Exception {
+        String xml = HEADER + "<ListRecords><record><header><identifier>oai:1</identifier></header></record>"
+                + "<resumptionToken cursor=\"10\" completeListSize=\"25\">token!1</resumptionToken>"
+                + "</ListRecords></OAI-PMH>\n";
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ResponseProcessor response = process(xml, os);
+
+        assertTrue(response.isOaiPmh());
+        assertFalse(response.hasError());
+        assertTrue(response.isTokenFound());
+        assertEquals("token!1", response.getToken());
+        assertEquals("10", response.getCursor());
+        assertEquals("25", response.getCompleteListSize());
+        assertArrayEquals(xml.getBytes(StandardCharsets.UTF_8), os.toByteArray());
+    }
+
+    @Test
+    public void testRecords() throws Exception {
+        ResponseProcessor response = process(HEADER + "<ListRecords>"
+                + "<record><header><identifier>oai:2</identifier><datestamp>2016-01-05</datestamp></header></record>"
+                + "<record><header status=\"deleted\"><identifier>oai:1</identifier><datestamp>2016-01-02</datestamp></header></record>"
+                + "<record><header><identifier>oai:3</identifier><datestamp>2016-01-03</datestamp></header>"
+                + "<metadata><identifier>not a header</identifier></metadata></record>"
+                + "</ListRecords></OAI-PMH>", new ByteArrayOutputStream());
+
+        assertEquals(3, response.getRecords());
+        assertEquals(1, response.getDeleted());
+        assertEquals("oai:2", response.getFirstIdentifier());
+        assertEquals("oai:3", response.getLastIdentifier());
+        assertEquals("2016-01-02", response.getMinDatestamp());
+        assertEquals("2016-01-05", response.getMaxDatestamp());
+    }
+
+    @Test
+    public void testLastPage() throws Exception {
+        ResponseProcessor response = process(HEADER + "<ListRecords><record/>"
+                + "<resumptionToken completeListSize=\"25\"/></ListRecords></OAI-PMH>", new ByteArrayOutputStream());
+
+        assertTrue(response.isTokenFound());
+        assertEquals("", response.getToken());
+        assertNull(response.getCursor());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        ResponseProcessor response = process(HEADER
+                + "<error code=\"noRecordsMatch\">No matching records</error></OAI-PMH>", new ByteArrayOutputStream());
+
+        assertTrue(response.hasError());
+        assertEquals("noRecordsMatch", response.getErrorCode());
+        assertEquals("No matching records", response.getErrorMessage());
+        assertFalse(response.isTokenFound());
+    }
+
+    @Test
+    public void testNotOaiPmh() throws Exception {
+        ResponseProcessor response = process("<html><body>Not found</body></html>", new ByteArrayOutputStream());
+
+        assertFalse(response.isOaiPmh());
+    }
+}
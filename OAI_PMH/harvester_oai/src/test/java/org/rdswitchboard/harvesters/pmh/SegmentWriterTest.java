@@ -0,0 +1,60 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentWriterTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static Page newPage(int n) {
+        return TestPages.newPage("repo/oai_dc/2020-01-01/set", n, "token" + n, "<OAI-PMH>page " + n + "</OAI-PMH>");
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        SegmentWriter writer = new SegmentWriter(0, 2, testFolder.getRoot());
+
+        assertTrue(writer.append(newPage(0)).isEmpty());
+
+        List<Page> sealed = writer.append(newPage(1));
+        assertEquals(2, sealed.size());
+        assertEquals("repo/oai_dc/2020-01-01/set/0-1.idx", sealed.get(0).getKey());
+        assertEquals("repo/oai_dc/2020-01-01/set/0-1.xml.gz", sealed.get(1).getKey());
+        assertEquals("token1", sealed.get(1).getCheckpoint().getToken());
+        assertEquals(sealed.get(1).getKey(), sealed.get(1).getCheckpoint().getKey());
+        // the segment must be written next to the output folder, so it could be moved there
+        assertEquals(testFolder.getRoot(), sealed.get(1).getFile().getParentFile());
+
+        // every page could be read by its offset from the index
+        String[] index = new String(IOUtils.toByteArray(sealed.get(0).openStream()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, index.length);
+        for (int i = 0; i < index.length; ++i) {
+            String[] fields = index[i].split("\t");
+            assertEquals(Integer.toString(i), fields[0]);
+
+            try (InputStream is = SegmentWriter.openPage(sealed.get(1).getFile(), Long.parseLong(fields[1]), Long.parseLong(fields[2]))) {
+                String page = IOUtils.toString(is, StandardCharsets.UTF_8.name());
+                assertEquals("<OAI-PMH>page " + i + "</OAI-PMH>", page);
+                assertEquals(Long.parseLong(fields[3]), page.length());
+            }
+        }
+        sealed.get(1).release();
+
+        writer.append(newPage(2));
+        sealed = writer.close();
+        assertEquals("repo/oai_dc/2020-01-01/set/2-2.xml.gz", sealed.get(1).getKey());
+        sealed.get(1).release();
+
+        assertTrue(writer.close().isEmpty());
+    }
+}
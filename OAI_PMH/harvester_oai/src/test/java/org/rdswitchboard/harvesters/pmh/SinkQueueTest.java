@@ -0,0 +1,255 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+public class SinkQueueTest {
+
+    private final Map<String, String> objects = new ConcurrentHashMap<String, String>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * S3 client, which will keep the objects in memory and will fail the first uploads of some keys
+     */
+    private AmazonS3 newClient() {
+        return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("putObject"))
+                    return null;
+
+                PutObjectRequest request = (PutObjectRequest) args[0];
+                Thread.sleep(ThreadLocalRandom.current().nextInt(20));
+
+                Integer fail = failures.get(request.getKey());
+                if (null != fail && fail > 0) {
+                    failures.put(request.getKey(), fail - 1);
+                    throw new AmazonClientException("Connection reset");
+                }
+
+                objects.put(request.getKey(), IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8.name()));
+                return null;
+            }
+        });
+    }
+
+    private static Page newPage(int n) {
+        return TestPages.newPage("set", n, "token" + n, "page " + n);
+    }
+
+    @Test
+    public void testOrderedCheckpoints() throws Exception {
+        failures.put("set/2.xml", 2);
+
+        // the standard output could be used by the pipe, so the warnings must be printed into the given stream
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SinkQueue queue = new SinkQueue(2, 3, 10);
+        queue.setOut(new PrintStream(log, true, "UTF-8"));
+        queue.addSink(new S3Sink(newClient(), "bucket", Long.MAX_VALUE, 4), 4);
+        try {
+            final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+            SinkQueue.Sequence sequence = queue.newSequence(new SinkQueue.Listener() {
+                @Override
+                public void stored(Checkpoint checkpoint) throws Exception {
+                    stored.add(checkpoint.getCursor());
+                }
+            });
+
+            for (int i = 0; i < 10; ++i)
+                sequence.store(newPage(i));
+            sequence.await();
+            queue.flush();
+
+            assertEquals(10, objects.size());
+            assertEquals("page 2", objects.get("set/2.xml"));
+            // the retried page must not be overtaken by the next pages in the journal
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), stored);
+            assertTrue(new String(log.toByteArray(), StandardCharsets.UTF_8).contains("Warning, unable to store set/2.xml"));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testFailedUpload() throws Exception {
+        failures.put("set/1.xml", 10);
+
+        SinkQueue queue = new SinkQueue(4, 1, 0);
+        queue.addSink(new S3Sink(newClient(), "bucket", Long.MAX_VALUE, 2), 2);
+        try {
+            final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+            SinkQueue.Sequence sequence = queue.newSequence(new SinkQueue.Listener() {
+                @Override
+                public void stored(Checkpoint checkpoint) throws Exception {
+                    stored.add(checkpoint.getCursor());
+                }
+            });
+
+            for (int i = 0; i < 3; ++i)
+                sequence.store(newPage(i));
+
+            try {
+                sequence.await();
+                fail("The upload error must be reported");
+            } catch (HarvesterException e) {
+                assertTrue(e.getMessage().contains("Connection reset"));
+            }
+
+            // the progress after the failed page must not be saved
+            assertFalse(stored.contains(1));
+            assertFalse(stored.contains(2));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testSharedWrite() throws Exception {
+        failures.put("set/1.xml", 10);
+
+        SinkQueue queue = new SinkQueue(4, 1, 0);
+        queue.addSink(new S3Sink(newClient(), "bucket", Long.MAX_VALUE, 2), 1);
+        try {
+            final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+            SinkQueue.Listener listener = new SinkQueue.Listener() {
+                @Override
+                public void stored(Checkpoint checkpoint) throws Exception {
+                    stored.add(checkpoint.getCursor());
+                }
+            };
+            SinkQueue.Sequence first = queue.newSequence(listener);
+            SinkQueue.Sequence second = queue.newSequence(listener);
+
+            // the second sequence has the same content and must wait for the writes of the first one
+            second.skip(newPage(5).getCheckpoint(), first.store(newPage(0)));
+            second.skip(newPage(6).getCheckpoint(), first.store(newPage(1)));
+
+            for (SinkQueue.Sequence sequence : Arrays.asList(first, second))
+                try {
+                    sequence.await();
+                    fail("The error of the shared write must be reported");
+                } catch (HarvesterException e) {
+                    assertTrue(e.getMessage().contains("Connection reset"));
+                }
+
+            assertTrue(stored.contains(0));
+            assertTrue(stored.contains(5));
+            assertFalse(stored.contains(6));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        failures.put("set/1.xml", 1);
+
+        File folder = Files.createTempDirectory("sinks").toFile();
+        ByteArrayOutputStream pipe = new ByteArrayOutputStream();
+
+        SinkQueue queue = new SinkQueue(2, 3, 0);
+        queue.addSink(new S3Sink(newClient(), "bucket", Long.MAX_VALUE, 2), 2);
+        queue.addSink(new FolderSink(folder, false), 1);
+        queue.addSink(new PipeSink(pipe), 1);
+        try {
+            final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+            SinkQueue.Sequence sequence = queue.newSequence(new SinkQueue.Listener() {
+                @Override
+                public void stored(Checkpoint checkpoint) throws Exception {
+                    stored.add(checkpoint.getCursor());
+                }
+            });
+
+            for (int i = 0; i < 5; ++i)
+                sequence.store(newPage(i));
+            sequence.await();
+
+            // every page must be stored by all sinks before its progress is saved
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), stored);
+            assertEquals(5, objects.size());
+            for (int i = 0; i < 5; ++i)
+                assertEquals("page " + i, FileUtils.readFileToString(new File(folder, "set/" + i + ".xml"), "UTF-8"));
+
+            String output = new String(pipe.toByteArray(), StandardCharsets.UTF_8);
+            for (int i = 0; i < 5; ++i)
+                assertTrue(output.contains("set/" + i + ".xml\t6\npage " + i + "\n"));
+        } finally {
+            queue.close();
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    @Test
+    public void testFailedPipe() throws Exception {
+        // the pipe will fail once in the middle of the first page
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OutputStream pipe = new OutputStream() {
+            private boolean failed;
+
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!failed && output.size() > 0) {
+                    failed = true;
+                    throw new IOException("Broken pipe");
+                }
+            }
+        };
+
+        SinkQueue queue = new SinkQueue(2, 3, 0);
+        queue.addSink(new PipeSink(pipe), 1);
+        try {
+            final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+            SinkQueue.Sequence sequence = queue.newSequence(new SinkQueue.Listener() {
+                @Override
+                public void stored(Checkpoint checkpoint) throws Exception {
+                    stored.add(checkpoint.getCursor());
+                }
+            });
+
+            sequence.store(newPage(0));
+            try {
+                sequence.await();
+                fail("The pipe error must be reported");
+            } catch (HarvesterException e) {
+                assertTrue(e.getMessage().contains("Broken pipe"));
+            }
+            assertTrue(stored.isEmpty());
+        } finally {
+            queue.close();
+        }
+
+        // the page must not be written again into the same stream
+        String written = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(written.indexOf("set/0.xml\t"), written.lastIndexOf("set/0.xml\t"));
+    }
+}
@@ -0,0 +1,44 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Page fixtures for the storage tests.
+ *
+ * The pages are created in memory, as if they have been downloaded and buffered by the harvester.
+ * The set page {@code N} has the key {@code <set folder>/N.xml} and the checkpoint, which the
+ * harvester would save after the page has been stored: the cursor N and N + 1 stored files.
+ *
+ * @author dima
+ *
+ */
+public class TestPages {
+
+    /**
+     * Create the page
+     * @param key A page key
+     * @param body A page content, will be encoded as UTF-8
+     * @param checkpoint A page checkpoint or null
+     * @return Page - the page
+     */
+    public static Page newPage(String key, String body, Checkpoint checkpoint) {
+        Page page = new Page(key, body.getBytes(StandardCharsets.UTF_8));
+        page.setCheckpoint(checkpoint);
+        return page;
+    }
+
+    /**
+     * Create the page N of the set with its checkpoint
+     * @param folder A set folder, for example {@code repo/oai_dc/2020-01-01/a}, the last name is the set
+     * @param n A page number
+     * @param token A resumption token of the next page or null
+     * @param body A page content, will be encoded as UTF-8
+     * @return Page - the page
+     */
+    public static Page newPage(String folder, int n, String token, String body) {
+        String key = folder + "/" + n + ".xml";
+        String set = folder.substring(folder.lastIndexOf('/') + 1);
+
+        return newPage(key, body, new Checkpoint(set, token, n, 0, n + 1, key, null));
+    }
+}
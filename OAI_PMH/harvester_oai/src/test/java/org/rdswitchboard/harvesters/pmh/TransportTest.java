@@ -0,0 +1,155 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransportTest {
+    private static final String IDENTIFY = "?verb=Identify";
+
+    private MockProvider provider;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new MockProvider(1, 10, 10);
+        url = provider.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.close();
+    }
+
+    private static List<HttpTransport> newTransports() {
+        return Arrays.<HttpTransport>asList(
+                new PooledHttpTransport(0, 0, 4),
+                new UrlConnectionTransport(0, 0),
+                new AsyncHttpTransport(0, 0, 4, 65536));
+    }
+
+    private static String read(HttpResponse response) throws IOException {
+        return null == response.getContent() ? "" : IOUtils.toString(response.getContent(), StandardCharsets.UTF_8);
+    }
+
+    private void testEncoding(String encoding) throws Exception {
+        provider.setCompression(encoding);
+
+        for (HttpTransport transport : newTransports())
+            try {
+                transport.setCompression(Collections.singletonList(encoding));
+
+                int encoded = provider.getEncoded(encoding);
+                try (HttpResponse response = transport.get(url + IDENTIFY)) {
+                    assertEquals(200, response.getStatusCode());
+                    assertTrue(read(response).contains("<Identify>"));
+                }
+
+                assertEquals(encoding, provider.getAcceptEncoding());
+                assertEquals(encoded + 1, provider.getEncoded(encoding));
+            } finally {
+                transport.close();
+            }
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        testEncoding(HttpResponse.ENCODING_GZIP);
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        testEncoding(HttpResponse.ENCODING_DEFLATE);
+    }
+
+    @Test
+    public void testNoCompression() throws Exception {
+        for (HttpTransport transport : newTransports())
+            try {
+                // the repository has not declared any compression
+                transport.setCompression(Collections.<String>emptyList());
+
+                try (HttpResponse response = transport.get(url + IDENTIFY)) {
+                    assertEquals(200, response.getStatusCode());
+                    assertTrue(read(response).contains("<Identify>"));
+                }
+
+                assertNull(provider.getAcceptEncoding());
+            } finally {
+                transport.close();
+            }
+
+        assertEquals(0, provider.getEncoded(HttpResponse.ENCODING_GZIP));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        provider.setValidators(true);
+
+        for (HttpTransport transport : newTransports())
+            try {
+                transport.setCompression(Collections.singletonList(HttpResponse.ENCODING_GZIP));
+
+                String etag;
+                try (HttpResponse response = transport.get(url + IDENTIFY)) {
+                    assertEquals(200, response.getStatusCode());
+                    etag = response.getHeader("ETag");
+                    assertNotNull(etag);
+                }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("If-None-Match", etag);
+
+                int notModified = provider.getNotModified();
+                try (HttpResponse response = transport.get(url + IDENTIFY, headers)) {
+                    assertEquals(304, response.getStatusCode());
+                    assertFalse(response.isSuccess());
+                    assertEquals("", read(response));
+                }
+                assertEquals(notModified + 1, provider.getNotModified());
+            } finally {
+                transport.close();
+            }
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        provider.setFault(MockProvider.Fault.EMPTY, 1);
+        provider.setFaultVerbs("Identify");
+
+        for (HttpTransport transport : newTransports())
+            try {
+                // the empty body is sent with Content-Encoding: gzip header
+                transport.setCompression(Collections.singletonList(HttpResponse.ENCODING_GZIP));
+
+                try (HttpResponse response = transport.get(url + IDENTIFY)) {
+                    assertEquals(200, response.getStatusCode());
+                    assertEquals("", read(response));
+                }
+            } finally {
+                transport.close();
+            }
+
+        assertEquals(3, provider.getFaults(MockProvider.Fault.EMPTY));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        assertNull(HttpResponse.decode(null, HttpResponse.ENCODING_GZIP));
+        assertEquals("", IOUtils.toString(HttpResponse.decode(
+                IOUtils.toInputStream("", StandardCharsets.UTF_8), HttpResponse.ENCODING_DEFLATE), StandardCharsets.UTF_8));
+        assertEquals("gzip, deflate", HttpResponse.acceptEncoding(Arrays.asList("GZIP", "compress", "deflate", "gzip")));
+        assertNull(HttpResponse.acceptEncoding(Collections.singletonList("compress")));
+    }
+}
@@ -0,0 +1,77 @@
+package org.rdswitchboard.harvesters.pmh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ValidationStageTest {
+
+    private static final String SCHEMA = "<?xml version=\"1.0\"?>"
+            + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"http://example.org/meta\" "
+            + "elementFormDefault=\"qualified\"><xs:element name=\"meta\"><xs:complexType><xs:sequence>"
+            + "<xs:element name=\"title\" type=\"xs:string\"/></xs:sequence></xs:complexType></xs:element></xs:schema>";
+
+    private static final String PAGE = "<?xml version=\"1.0\"?><OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<ListRecords>%s</ListRecords></OAI-PMH>";
+
+    private static final String RECORD = "<record><header><identifier>%s</identifier><datestamp>2020-01-01</datestamp></header>"
+            + "<metadata><m:meta xmlns:m=\"http://example.org/meta\">%s</m:meta></metadata></record>";
+
+    private static final String DELETED = "<record><header status=\"deleted\"><identifier>%s</identifier>"
+            + "<datestamp>2020-01-02</datestamp></header></record>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValidate() throws Exception {
+        FileUtils.writeStringToFile(new File(folder.getRoot(), "meta.xsd"), SCHEMA, "UTF-8");
+
+        // the schema must be loaded from the catalog and compiled only once
+        SchemaCache cache = new SchemaCache(folder.getRoot());
+        assertSame(cache.getSchema("http://unreachable.invalid/schemas/meta.xsd"),
+                cache.getSchema("http://unreachable.invalid/schemas/meta.xsd"));
+
+        final Map<String, String> quarantined = Collections.synchronizedMap(new HashMap<String, String>());
+        ValidationStage stage = new ValidationStage(cache.getSchema("http://unreachable.invalid/schemas/meta.xsd"), 2, 1,
+                new ValidationStage.Quarantine() {
+            @Override
+            public void quarantine(String set, String pageKey, Record record, String error) {
+                quarantined.put(set + "/" + record.getIdentifier(), error);
+            }
+        });
+
+        try {
+            for (int i = 0; i < 4; ++i) {
+                Page page = new Page("repo/oai_dc/2020-01-01/a/" + i + ".xml", String.format(PAGE,
+                        String.format(RECORD, "oai:" + i + ":1", "<m:title>Valid</m:title>")
+                        + String.format(RECORD, "oai:" + i + ":2", "<m:name>Invalid</m:name>")
+                        + String.format(DELETED, "oai:" + i + ":3")).getBytes(StandardCharsets.UTF_8));
+
+                stage.submit(i < 3 ? "a" : "b", page);
+                // the page could be released by the harvester as soon as it has been submitted
+                page.release();
+            }
+
+            stage.flush();
+
+            assertEquals(3, stage.getValid("a"));
+            assertEquals(3, stage.getInvalid("a"));
+            assertEquals(1, stage.getValid("b"));
+            assertEquals(1, stage.getInvalid("b"));
+            assertEquals(4, quarantined.size());
+            assertTrue(quarantined.get("b/oai:3:2").contains("name"));
+        } finally {
+            stage.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks main class.
+ *
+ * Will run all benchmarks with the GC profiler, so the allocation rate will be reported next to
+ * the throughput, and will save the results as target/jmh-result.json. Any standard JMH option
+ * could be passed in the command line, for example to run only the streaming benchmark for rif:
+ * <p>
+ * {@code java -jar target/benchmarks.jar ResponseBenchmark.streaming -p format=rif}
+ *
+ * @author dima
+ *
+ */
+public class BenchmarkRunner {
+
+	private static final String RESULT_FILE = "target/jmh-result.json";
+
+	public static void main(String[] args) {
+		try {
+			CommandLineOptions cmd = new CommandLineOptions(args);
+			OptionsBuilder builder = new OptionsBuilder();
+			builder.parent(cmd);
+
+			if (cmd.getIncludes().isEmpty())
+				builder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+			if (cmd.getProfilers().isEmpty())
+				builder.addProfiler(GCProfiler.class);
+			if (!cmd.getResult().hasValue()) {
+				builder.resultFormat(ResultFormatType.JSON);
+				builder.result(RESULT_FILE);
+			}
+
+			Options options = builder.build();
+			new Runner(options).run();
+		} catch (Exception e) {
+			e.printStackTrace();
+
+			System.exit(1);
+		}
+	}
+}
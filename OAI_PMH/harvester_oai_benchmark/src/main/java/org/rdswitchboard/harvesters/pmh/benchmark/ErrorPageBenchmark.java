@@ -0,0 +1,59 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rdswitchboard.harvesters.pmh.ResponseProcessor;
+
+/**
+ * Benchmarks of the OAI:PMH error responses. The error pages are small, so the fixed cost
+ * of the parser creation will dominate.
+ *
+ * @author dima
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorPageBenchmark {
+
+	@Param({ Fixtures.ERROR_NO_RECORDS_MATCH, Fixtures.ERROR_BAD_RESUMPTION_TOKEN })
+	private String code;
+
+	private byte[] page;
+	private LegacyChain legacy;
+
+	@Setup
+	public void setUp() throws Exception {
+		page = Fixtures.error(code);
+		legacy = new LegacyChain();
+	}
+
+	@Benchmark
+	public String legacyChain() throws Exception {
+		return legacy.process(new ByteArrayInputStream(page)).getError();
+	}
+
+	@Benchmark
+	public String streaming() throws Exception {
+		ResponseProcessor processor = new ResponseProcessor();
+		processor.process(new ByteArrayInputStream(page), NullOutputStream.NULL_OUTPUT_STREAM);
+
+		return processor.getErrorCode();
+	}
+}
@@ -0,0 +1,110 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * OAI:PMH ListRecords responses, used by the benchmarks.
+ *
+ * The responses are built from the record templates, stored in the fixtures folder, so one
+ * template could produce a page of any size. Every template is a typical record of one metadata
+ * format (oai_dc, rif and rdf), taken from the real repositories with the values replaced. The
+ * error pages are stored as they are.
+ *
+ * @author dima
+ *
+ */
+public class Fixtures {
+
+	public static final String FORMAT_OAI_DC = "oai_dc";
+	public static final String FORMAT_RIF = "rif";
+	public static final String FORMAT_RDF = "rdf";
+
+	public static final String ERROR_NO_RECORDS_MATCH = "noRecordsMatch";
+	public static final String ERROR_BAD_RESUMPTION_TOKEN = "badResumptionToken";
+
+	private static final String FOLDER = "/fixtures/";
+	private static final String EXTENSION = ".xml";
+
+	private static final String TEMPLATE_ENVELOPE = "envelope";
+	private static final String TEMPLATE_TOKEN = "token";
+
+	private static final String SET = "collection";
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Function to build ListRecords response
+	 * @param format A metadata format, one of oai_dc, rif or rdf
+	 * @param records Number of the records in the response
+	 * @param token true if the response should end with resumption token
+	 * @return byte[] - the response in UTF-8
+	 * @throws IOException
+	 */
+	public static byte[] page(String format, int records, boolean token) throws IOException {
+		String record = load(format);
+
+		StringBuilder sb = new StringBuilder();
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("set", SET);
+		for (int i = 0; i < records; ++i) {
+			values.put("index", Integer.toString(i));
+			values.put("day", String.format("%02d", 1 + i % 28));
+			values.put("second", String.format("%02d", i % 60));
+
+			sb.append(replace(record, values));
+		}
+
+		values.put("metadataPrefix", format);
+		values.put("cursor", Integer.toString(records));
+		values.put("size", Integer.toString(records * 10));
+		values.put("records", sb.toString());
+		values.put("token", token ? replace(load(TEMPLATE_TOKEN), values) : "");
+
+		return replace(load(TEMPLATE_ENVELOPE), values).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Function to load OAI:PMH error response
+	 * @param code An error code, one of noRecordsMatch or badResumptionToken
+	 * @return byte[] - the response in UTF-8
+	 * @throws IOException
+	 */
+	public static byte[] error(String code) throws IOException {
+		return load(code).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String load(String name) throws IOException {
+		InputStream is = Fixtures.class.getResourceAsStream(FOLDER + name + EXTENSION);
+		if (null == is)
+			throw new IllegalArgumentException("Unknown fixture: " + name);
+
+		try {
+			return IOUtils.toString(is, "UTF-8");
+		} finally {
+			is.close();
+		}
+	}
+
+	private static String replace(String template, Map<String, String> values) {
+		StringBuilder sb = new StringBuilder(template.length());
+		int pos = 0;
+		for (int start; (start = template.indexOf("${", pos)) >= 0;) {
+			int end = template.indexOf('}', start);
+			String value = values.get(template.substring(start + 2, end));
+			if (null == value)
+				throw new IllegalArgumentException("Unknown placeholder: " + template.substring(start, end + 1));
+
+			sb.append(template, pos, start).append(value);
+			pos = end + 1;
+		}
+
+		return sb.append(template, pos, template.length()).toString();
+	}
+}
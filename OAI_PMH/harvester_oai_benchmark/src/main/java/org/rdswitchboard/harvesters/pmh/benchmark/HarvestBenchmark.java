@@ -0,0 +1,98 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rdswitchboard.harvesters.pmh.Harvester;
+import org.rdswitchboard.harvesters.pmh.MockProvider;
+
+/**
+ * End-to-end benchmark of the whole harvest against the embedded mock provider. Every
+ * invocation will harvest all sets into a new local folder, so the time will include the
+ * requests, the parsing and the storing of the pages.
+ *
+ * @author dima
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HarvestBenchmark {
+
+	@Param({ "10" })
+	private int sets;
+
+	@Param({ "10000" })
+	private int records;
+
+	@Param({ "100" })
+	private int pageSize;
+
+	@Param({ "1", "4" })
+	private int concurrency;
+
+	@Param({ "0" })
+	private long latency;
+
+	private MockProvider provider;
+	private File folder;
+
+	@Setup(Level.Trial)
+	public void startProvider() throws Exception {
+		provider = new MockProvider(sets, records, pageSize);
+		provider.setLatency(latency, 0);
+		provider.start(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void stopProvider() {
+		provider.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void createFolder() throws Exception {
+		folder = Files.createTempDirectory("harvest").toFile();
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteFolder() throws Exception {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Benchmark
+	public boolean harvest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("url", provider.getUrl());
+		properties.setProperty("name", "mock");
+		properties.setProperty("metadata", MockProvider.METADATA_PREFIX);
+		properties.setProperty("folder", folder.getPath());
+		properties.setProperty("checkpoint", "false");
+		properties.setProperty("metrics.jmx", "false");
+		properties.setProperty("set.concurrency", Integer.toString(concurrency));
+
+		try (Harvester harvester = new Harvester(properties)) {
+			harvester.identify();
+
+			return harvester.harvest();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * The response processing chain, used by Harvester.downloadRecords() before the responses
+ * have been processed by the streaming ResponseProcessor.
+ *
+ * The response will be read into a String, parsed into a DOM tree, the error and the resumption
+ * token will be found with XPath and the String will be encoded back into bytes to be stored.
+ * The chain is kept here only as a baseline for the benchmarks.
+ *
+ * @author dima
+ *
+ */
+public class LegacyChain {
+
+	private final DocumentBuilder builder;
+	private final XPathExpression root;
+	private final XPathExpression error;
+	private final XPathExpression token;
+
+	/**
+	 * Result of the response processing
+	 */
+	public static class Result {
+		private final byte[] bytes;
+		private final String error;
+		private final String token;
+		private final String cursor;
+		private final String completeListSize;
+
+		private Result(byte[] bytes, String error, String token, String cursor, String completeListSize) {
+			this.bytes = bytes;
+			this.error = error;
+			this.token = token;
+			this.cursor = cursor;
+			this.completeListSize = completeListSize;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public String getToken() {
+			return token;
+		}
+
+		public String getCursor() {
+			return cursor;
+		}
+
+		public String getCompleteListSize() {
+			return completeListSize;
+		}
+	}
+
+	/**
+	 * Construct legacy chain
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 */
+	public LegacyChain() throws ParserConfigurationException, XPathExpressionException {
+		builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		root = xpath.compile("/OAI-PMH");
+		error = xpath.compile("./error");
+		token = xpath.compile("./ListRecords/resumptionToken");
+	}
+
+	/**
+	 * Function to process the response the same way as downloadRecords() did
+	 * @param is An input stream with the response
+	 * @return Result
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws XPathExpressionException
+	 */
+	public Result process(InputStream is) throws IOException, SAXException, XPathExpressionException {
+		String xml = read(is);
+		Document doc = parse(xml);
+
+		Element root = (Element) this.root.evaluate(doc, XPathConstants.NODE);
+		if (null == root)
+			throw new IOException("The response is not an OAI:PMH document");
+
+		Element error = (Element) this.error.evaluate(root, XPathConstants.NODE);
+		// downloadRecords() would throw HarvesterException for any error except the empty set,
+		// the error is returned here so the exception would not be measured
+		if (null != error)
+			return new Result(null, error.getAttribute("code"), null, null, null);
+
+		Element token = token(root);
+
+		return new Result(encode(xml), null,
+				null == token ? null : token.getTextContent(),
+				null == token ? null : token.getAttribute("cursor"),
+				null == token ? null : token.getAttribute("completeListSize"));
+	}
+
+	/**
+	 * Function to read the response into a String
+	 * @param is An input stream
+	 * @return String
+	 * @throws IOException
+	 */
+	public String read(InputStream is) throws IOException {
+		return IOUtils.toString(is, "UTF-8");
+	}
+
+	/**
+	 * Function to parse the response into a DOM tree
+	 * @param xml The response
+	 * @return Document
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public Document parse(String xml) throws IOException, SAXException {
+		return builder.parse(new InputSource(new StringReader(xml)));
+	}
+
+	/**
+	 * Function to find the resumption token
+	 * @param node The document or the OAI-PMH element
+	 * @return Element - the token or null if the response has no token
+	 * @throws XPathExpressionException
+	 */
+	public Element token(Node node) throws XPathExpressionException {
+		if (node instanceof Document)
+			node = (Node) root.evaluate(node, XPathConstants.NODE);
+
+		return (Element) token.evaluate(node, XPathConstants.NODE);
+	}
+
+	/**
+	 * Function to encode the response back into bytes to be stored
+	 * @param xml The response
+	 * @return byte[]
+	 */
+	public byte[] encode(String xml) {
+		return xml.getBytes(StandardCharsets.UTF_8);
+	}
+}
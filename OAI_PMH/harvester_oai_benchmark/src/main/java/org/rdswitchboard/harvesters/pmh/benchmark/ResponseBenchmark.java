@@ -0,0 +1,127 @@
+package org.rdswitchboard.harvesters.pmh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rdswitchboard.harvesters.pmh.Record;
+import org.rdswitchboard.harvesters.pmh.ResponseProcessor;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmarks of the ListRecords response processing.
+ *
+ * Every step of the legacy chain (reading the response into a String, DOM parsing, XPath
+ * token extraction and encoding the String back into bytes) is measured alone and as the
+ * whole chain, so the cost of every step could be compared with the streaming
+ * ResponseProcessor, which does all of it in one pass. The response is read from memory,
+ * so only the processing will be measured. Run with {@code -prof gc} to see the allocation
+ * rate of every benchmark.
+ *
+ * @author dima
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+	@Param({ Fixtures.FORMAT_OAI_DC, Fixtures.FORMAT_RIF, Fixtures.FORMAT_RDF })
+	private String format;
+
+	@Param({ "10", "100", "1000" })
+	private int records;
+
+	@Param({ "true", "false" })
+	private boolean token;
+
+	private byte[] page;
+	private String xml;
+	private Document doc;
+	private LegacyChain legacy;
+
+	@Setup
+	public void setUp() throws Exception {
+		page = Fixtures.page(format, records, token);
+		legacy = new LegacyChain();
+		xml = legacy.read(new ByteArrayInputStream(page));
+		doc = legacy.parse(xml);
+	}
+
+	/**
+	 * The whole legacy chain: String, DOM, XPath and bytes
+	 */
+	@Benchmark
+	public LegacyChain.Result legacyChain() throws Exception {
+		return legacy.process(new ByteArrayInputStream(page));
+	}
+
+	/**
+	 * IOUtils.toString() of the response
+	 */
+	@Benchmark
+	public String ioUtilsToString() throws Exception {
+		return legacy.read(new ByteArrayInputStream(page));
+	}
+
+	/**
+	 * DOM parsing of the response String
+	 */
+	@Benchmark
+	public Document domParse() throws Exception {
+		return legacy.parse(xml);
+	}
+
+	/**
+	 * XPath resumption token extraction from the parsed DOM tree
+	 */
+	@Benchmark
+	public Object xpathToken() throws Exception {
+		return legacy.token(doc);
+	}
+
+	/**
+	 * Encoding of the response String back into bytes
+	 */
+	@Benchmark
+	public byte[] reencode() {
+		return legacy.encode(xml);
+	}
+
+	/**
+	 * The streaming ResponseProcessor, copying the response into the null stream, the same as
+	 * it would be copied into the page buffer
+	 */
+	@Benchmark
+	public void streaming(Blackhole bh) throws Exception {
+		ResponseProcessor processor = new ResponseProcessor();
+		processor.process(new ByteArrayInputStream(page), NullOutputStream.NULL_OUTPUT_STREAM);
+
+		bh.consume(processor.getToken());
+		bh.consume(processor.getRecords());
+	}
+
+	/**
+	 * Splitting of the response into the records, used by the record store and the listeners
+	 */
+	@Benchmark
+	public List<Record> recordSplit() throws Exception {
+		return Record.split(new ByteArrayInputStream(page));
+	}
+}